@@ -0,0 +1,299 @@
+package gov.usgs.volcanoes.vdx;
+
+import gov.usgs.volcanoes.core.Zip;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compression codec used for binary results on the wire. Clients list the codecs they accept in
+ * the 'codecs' request parameter, most preferred first, e.g. "lz,deflate:6,none". The server picks
+ * one per response and names it in the 'codec' result parameter.
+ *
+ * <p>Supported codecs are "none", "deflate[:level]" (zlib, level 1 to 9, default 1) and "lz", a
+ * fast byte-oriented LZ77 codec with a 4-byte uncompressed length header.
+ *
+ * @author Tom Parker
+ */
+public final class Compression {
+
+  public static final Compression NONE = new Compression("none", 0);
+  public static final Compression DEFLATE = new Compression("deflate", 1);
+  public static final Compression LZ = new Compression("lz", 0);
+
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_OFFSET = 65535;
+  private static final int HASH_BITS = 14;
+
+  private final String name;
+  private final int level;
+
+  /**
+   * Constructor.
+   *
+   * @param name codec name
+   * @param level compression level, only used by deflate
+   */
+  private Compression(String name, int level) {
+    this.name = name;
+    this.level = level;
+  }
+
+  /**
+   * Parse a single codec name.
+   *
+   * @param s codec, e.g. "none", "lz", "deflate" or "deflate:6"
+   * @return codec, or null if not supported
+   */
+  public static Compression parse(String s) {
+    if (s == null) {
+      return null;
+    }
+    String[] parts = s.trim().toLowerCase().split(":");
+    if (parts[0].equals("none")) {
+      return NONE;
+    } else if (parts[0].equals("lz")) {
+      return LZ;
+    } else if (parts[0].equals("deflate")) {
+      if (parts.length == 1) {
+        return DEFLATE;
+      }
+      try {
+        return new Compression("deflate", Math.max(1, Math.min(9, Integer.parseInt(parts[1]))));
+      } catch (NumberFormatException e) {
+        return DEFLATE;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Pick the codec for a response.
+   *
+   * @param accepted comma separated codecs accepted by the client, most preferred first; null for
+   *        clients that predate negotiation, which always get deflate level 1
+   * @param length uncompressed size in bytes
+   * @param threshold size below which compression is skipped if the client accepts "none"
+   * @return codec to use
+   */
+  public static Compression negotiate(String accepted, int length, int threshold) {
+    if (accepted == null) {
+      return DEFLATE;
+    }
+    Compression first = null;
+    boolean none = false;
+    for (String s : accepted.split(",")) {
+      Compression c = parse(s);
+      if (c == null) {
+        continue;
+      }
+      if (first == null) {
+        first = c;
+      }
+      if (c == NONE) {
+        none = true;
+      }
+    }
+    if (none && length < threshold) {
+      return NONE;
+    }
+    return first == null ? DEFLATE : first;
+  }
+
+  /**
+   * Compress bytes.
+   *
+   * @param b source array
+   * @param off offset of first byte
+   * @param len number of bytes
+   * @return compressed bytes
+   */
+  public byte[] compress(byte[] b, int off, int len) {
+    if (name.equals("none")) {
+      return off == 0 && len == b.length ? b : Arrays.copyOfRange(b, off, off + len);
+    } else if (name.equals("lz")) {
+      return lzCompress(b, off, len);
+    } else {
+      byte[] in = off == 0 && len == b.length ? b : Arrays.copyOfRange(b, off, off + len);
+      return Zip.compress(in, level);
+    }
+  }
+
+  /**
+   * Decompress bytes produced by {@link #compress(byte[], int, int)}.
+   *
+   * @param b compressed bytes
+   * @return uncompressed bytes
+   * @throws IOException if data is corrupt
+   */
+  public byte[] decompress(byte[] b) throws IOException {
+    if (name.equals("none")) {
+      return b;
+    } else if (name.equals("lz")) {
+      return lzDecompress(b);
+    } else {
+      return Zip.decompress(b);
+    }
+  }
+
+  /**
+   * LZ compress bytes. Output is the uncompressed length followed by sequences of a token byte
+   * (literal count in the high nibble, match length minus 4 in the low nibble, 15 meaning more
+   * length bytes follow), the literals, and a 2-byte match offset. The last sequence has only
+   * literals.
+   *
+   * @param src source array
+   * @param off offset of first byte
+   * @param len number of bytes
+   * @return compressed bytes
+   */
+  private static byte[] lzCompress(byte[] src, int off, int len) {
+    byte[] dst = new byte[4 + len + len / 255 + 16];
+    int dp = 0;
+    dst[dp++] = (byte) (len >>> 24);
+    dst[dp++] = (byte) (len >>> 16);
+    dst[dp++] = (byte) (len >>> 8);
+    dst[dp++] = (byte) len;
+
+    int[] table = new int[1 << HASH_BITS];
+    Arrays.fill(table, -1);
+    int end = off + len;
+    int anchor = off;
+    int sp = off;
+    while (sp + MIN_MATCH <= end) {
+      int h = hash(src, sp);
+      int ref = table[h];
+      table[h] = sp;
+      if (ref >= 0 && sp - ref <= MAX_OFFSET && src[ref] == src[sp]
+          && src[ref + 1] == src[sp + 1] && src[ref + 2] == src[sp + 2]
+          && src[ref + 3] == src[sp + 3]) {
+        int matchLen = MIN_MATCH;
+        while (sp + matchLen < end && src[ref + matchLen] == src[sp + matchLen]) {
+          matchLen++;
+        }
+        int literals = sp - anchor;
+        int extra = matchLen - MIN_MATCH;
+        dst[dp++] = (byte) ((Math.min(literals, 15) << 4) | Math.min(extra, 15));
+        dp = writeLength(dst, dp, literals);
+        System.arraycopy(src, anchor, dst, dp, literals);
+        dp += literals;
+        int offset = sp - ref;
+        dst[dp++] = (byte) (offset >>> 8);
+        dst[dp++] = (byte) offset;
+        dp = writeLength(dst, dp, extra);
+        sp += matchLen;
+        anchor = sp;
+      } else {
+        sp++;
+      }
+    }
+
+    int literals = end - anchor;
+    dst[dp++] = (byte) (Math.min(literals, 15) << 4);
+    dp = writeLength(dst, dp, literals);
+    System.arraycopy(src, anchor, dst, dp, literals);
+    dp += literals;
+    return Arrays.copyOf(dst, dp);
+  }
+
+  /**
+   * Hash the 4 bytes at a position.
+   *
+   * @param b bytes
+   * @param i position
+   * @return hash table index
+   */
+  private static int hash(byte[] b, int i) {
+    int v = (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | b[i + 3] << 24;
+    return (v * -1640531535) >>> (32 - HASH_BITS);
+  }
+
+  /**
+   * Write the part of a length that does not fit in a token nibble.
+   *
+   * @param dst destination
+   * @param dp position in destination
+   * @param n length
+   * @return new position in destination
+   */
+  private static int writeLength(byte[] dst, int dp, int n) {
+    if (n >= 15) {
+      n -= 15;
+      while (n >= 255) {
+        dst[dp++] = (byte) 255;
+        n -= 255;
+      }
+      dst[dp++] = (byte) n;
+    }
+    return dp;
+  }
+
+  /**
+   * LZ decompress bytes.
+   *
+   * @param src compressed bytes
+   * @return uncompressed bytes
+   * @throws IOException if data is corrupt
+   */
+  private static byte[] lzDecompress(byte[] src) throws IOException {
+    try {
+      int len = (src[0] & 0xff) << 24 | (src[1] & 0xff) << 16 | (src[2] & 0xff) << 8
+          | (src[3] & 0xff);
+      byte[] dst = new byte[len];
+      int sp = 4;
+      int dp = 0;
+      while (sp < src.length) {
+        int token = src[sp++] & 0xff;
+        int literals = token >>> 4;
+        if (literals == 15) {
+          int b;
+          do {
+            b = src[sp++] & 0xff;
+            literals += b;
+          } while (b == 255);
+        }
+        System.arraycopy(src, sp, dst, dp, literals);
+        sp += literals;
+        dp += literals;
+        if (sp >= src.length) {
+          break;
+        }
+
+        int offset = (src[sp++] & 0xff) << 8 | (src[sp++] & 0xff);
+        int matchLen = token & 0x0f;
+        if (matchLen == 15) {
+          int b;
+          do {
+            b = src[sp++] & 0xff;
+            matchLen += b;
+          } while (b == 255);
+        }
+        matchLen += MIN_MATCH;
+        int ref = dp - offset;
+        if (offset == 0 || ref < 0) {
+          throw new IOException("corrupt lz data");
+        }
+
+        // matches may overlap the bytes they produce, so copy one byte at a time
+        for (int i = 0; i < matchLen; i++) {
+          dst[dp++] = dst[ref++];
+        }
+      }
+      if (dp != len) {
+        throw new IOException("corrupt lz data");
+      }
+      return dst;
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("corrupt lz data");
+    }
+  }
+
+  /**
+   * Codec name as used in the 'codecs' and 'codec' parameters.
+   *
+   * @return codec name, with level for deflate
+   */
+  public String toString() {
+    return name.equals("deflate") ? name + ":" + level : name;
+  }
+}
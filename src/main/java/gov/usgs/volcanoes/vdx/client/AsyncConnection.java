@@ -0,0 +1,426 @@
+package gov.usgs.volcanoes.vdx.client;
+
+import gov.usgs.volcanoes.core.util.StringUtils;
+import gov.usgs.volcanoes.core.util.UtilException;
+import gov.usgs.volcanoes.vdx.Compression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One client connection with any number of getdata requests outstanding. Requests are sent with
+ * an id parameter as soon as they are submitted, and a reader thread matches each response to its
+ * request by the id the server echoes, so responses may arrive in any order. Responses without an
+ * id, from servers that predate multiplexing, are matched to the oldest outstanding request.
+ *
+ * @author Tom Parker
+ */
+class AsyncConnection implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AsyncConnection.class);
+  private static final int CONNECT_TIMEOUT = 30000;
+
+  private final String host;
+  private final int port;
+  private final AtomicInteger nextId;
+  private final Map<String, Response<?>> pending;
+  private volatile Socket socket;
+  private DataInputStream in;
+  private OutputStream out;
+  private volatile boolean closed;
+
+  /**
+   * Result of one request.
+   *
+   * @param <T> result type
+   */
+  private static class Response<T> implements Future<T> {
+    private final boolean binary;
+    private final CountDownLatch done;
+    private T value;
+    private Exception error;
+
+    /**
+     * Constructor.
+     *
+     * @param binary true if the result is a binary data set, false for text
+     */
+    Response(boolean binary) {
+      this.binary = binary;
+      done = new CountDownLatch(1);
+    }
+
+    /**
+     * Set the result.
+     *
+     * @param v result
+     */
+    @SuppressWarnings("unchecked")
+    void complete(Object v) {
+      value = (T) v;
+      done.countDown();
+    }
+
+    /**
+     * Set the failure.
+     *
+     * @param e cause
+     */
+    void fail(Exception e) {
+      error = e;
+      done.countDown();
+    }
+
+    /**
+     * Requests can't be withdrawn once sent.
+     *
+     * @param mayInterruptIfRunning ignored
+     * @return false
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    /**
+     * Requests are never cancelled.
+     *
+     * @return false
+     */
+    public boolean isCancelled() {
+      return false;
+    }
+
+    /**
+     * Check whether the response has arrived.
+     *
+     * @return true if the request completed or failed
+     */
+    public boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    /**
+     * Wait for the response.
+     *
+     * @return result
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if the request failed
+     */
+    public T get() throws InterruptedException, ExecutionException {
+      done.await();
+      return result();
+    }
+
+    /**
+     * Wait for the response for at most the given time.
+     *
+     * @param timeout time to wait
+     * @param unit unit of timeout
+     * @return result
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if the request failed
+     * @throws TimeoutException if the response didn't arrive in time
+     */
+    public T get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      if (!done.await(timeout, unit)) {
+        throw new TimeoutException();
+      }
+      return result();
+    }
+
+    /**
+     * Get the result of a completed request.
+     *
+     * @return result
+     * @throws ExecutionException if the request failed
+     */
+    private T result() throws ExecutionException {
+      if (error != null) {
+        throw new ExecutionException(error);
+      }
+      return value;
+    }
+  }
+
+  /**
+   * Constructor. The connection is opened with the first request.
+   *
+   * @param host host to connect
+   * @param port port to connect
+   */
+  AsyncConnection(String host, int port) {
+    this.host = host;
+    this.port = port;
+    nextId = new AtomicInteger();
+    pending = new LinkedHashMap<String, Response<?>>();
+  }
+
+  /**
+   * Send a getdata request.
+   *
+   * @param <T> result type
+   * @param params command parameters, without id
+   * @param binary true if the result is a binary data set, false for text
+   * @return future result
+   */
+  <T> Future<T> submit(Map<String, String> params, boolean binary) {
+    String id = Integer.toString(nextId.incrementAndGet());
+    Map<String, String> request = new HashMap<String, String>(params);
+    request.put("id", id);
+    Response<T> response = new Response<T>(binary);
+    byte[] cmd = ("getdata: " + StringUtils.mapToString(request) + "\n")
+        .getBytes(StandardCharsets.UTF_8);
+    try {
+      synchronized (this) {
+        if (closed) {
+          throw new IOException("connection closed");
+        }
+        if (socket == null) {
+          connect();
+        }
+        synchronized (pending) {
+          pending.put(id, response);
+        }
+        out.write(cmd);
+        out.flush();
+      }
+    } catch (IOException e) {
+      response.fail(e);
+      fail(e);
+    }
+    return response;
+  }
+
+  /**
+   * Open the socket and start the reader thread.
+   *
+   * @throws IOException if the connection fails
+   */
+  private void connect() throws IOException {
+    socket = new Socket();
+    socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+    socket.setTcpNoDelay(true);
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    out = new BufferedOutputStream(socket.getOutputStream());
+    Thread reader = new Thread(this, "VDX/AsyncClient-" + host + ":" + port);
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Read responses until the connection is closed.
+   */
+  public void run() {
+    try {
+      while (true) {
+        String line = readLine();
+        int ci = line.indexOf(':');
+        if (ci == -1) {
+          throw new IOException("unexpected response: " + line);
+        }
+        String rc = line.substring(0, ci).trim();
+        String r = line.substring(ci + 1).trim();
+        if (rc.equals("error")) {
+          String id = null;
+          int sc = r.indexOf(';');
+          if (r.startsWith("id=") && sc != -1) {
+            id = r.substring(3, sc).trim();
+            r = r.substring(sc + 1).trim();
+          }
+          take(id).fail(VDXClient.errorFor(r));
+        } else {
+          Map<String, String> map = StringUtils.stringToMap(r);
+          Response<?> response = take(map.get("id"));
+          try {
+            response.complete(readBody(map, response.binary));
+          } catch (UtilException e) {
+            response.fail(e);
+          }
+        }
+      }
+    } catch (IOException e) {
+      if (!closed) {
+        LOGGER.warn("AsyncConnection.run() failed. ({}:{})", host, port, e);
+      }
+      fail(e);
+    }
+  }
+
+  /**
+   * Read the body of an ok response.
+   *
+   * @param map response parameters
+   * @param binary true if a binary data set is expected, false for text
+   * @return data set, list of lines, or null if the body is not of the expected kind
+   * @throws IOException if reading fails
+   * @throws UtilException if the server refused the request or the body can't be decoded
+   */
+  private Object readBody(Map<String, String> map, boolean binary)
+      throws IOException, UtilException {
+    if (map.get("lines") != null) {
+      int lines = Integer.parseInt(map.get("lines"));
+      List<String> list = new ArrayList<String>(lines);
+      for (int i = 0; i < lines; i++) {
+        list.add(readLine());
+      }
+      return binary ? null : list;
+    }
+    if (map.get("bytes") == null && !"chunked".equals(map.get("encoding"))) {
+      return null;
+    }
+
+    // servers that predate negotiation always deflate
+    Compression compression = Compression.parse(map.get("codec"));
+    if (compression == null) {
+      compression = Compression.DEFLATE;
+    }
+    ByteBuffer bb;
+    if (map.get("bytes") != null) {
+      bb = ByteBuffer.wrap(compression.decompress(read(Integer.parseInt(map.get("bytes")))));
+    } else {
+      List<byte[]> chunks = new ArrayList<byte[]>();
+      while (true) {
+        int length = in.readInt();
+        if (length == 0) {
+          break;
+        } else if (length == -2) {
+          throw new UtilException(new String(read(in.readInt()), StandardCharsets.UTF_8));
+        } else if (length == -1) {
+          throw new UtilException("server failed while sending data");
+        }
+        chunks.add(compression.decompress(read(length)));
+      }
+      bb = VDXClient.joinChunks(chunks);
+    }
+    if (!binary) {
+      return null;
+    }
+    try {
+      return VDXClient.newDataSet(map.get("type"), bb);
+    } catch (Exception e) {
+      throw new UtilException("binary dataset unpacking exception: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Read a number of bytes.
+   *
+   * @param length number of bytes
+   * @return bytes
+   * @throws IOException if reading fails
+   */
+  private byte[] read(int length) throws IOException {
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  /**
+   * Read one line.
+   *
+   * @return line without line end
+   * @throws IOException if reading fails or the connection was closed
+   */
+  private String readLine() throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1) {
+        throw new EOFException("connection closed by server");
+      }
+      if (b != '\r') {
+        line.write(b);
+      }
+    }
+    return new String(line.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Remove the request a response belongs to.
+   *
+   * @param id echoed id, null to take the oldest request
+   * @return request
+   * @throws IOException if there is no such request
+   */
+  private Response<?> take(String id) throws IOException {
+    synchronized (pending) {
+      Response<?> response;
+      if (id != null) {
+        response = pending.remove(id);
+      } else {
+        Iterator<Response<?>> it = pending.values().iterator();
+        response = it.hasNext() ? it.next() : null;
+        if (response != null) {
+          it.remove();
+        }
+      }
+      if (response == null) {
+        throw new IOException("response to unknown request " + id);
+      }
+      return response;
+    }
+  }
+
+  /**
+   * Close the connection and fail all outstanding requests.
+   *
+   * @param e cause
+   */
+  private void fail(Exception e) {
+    closed = true;
+    try {
+      if (socket != null) {
+        socket.close();
+      }
+    } catch (IOException ex) {
+      LOGGER.debug("AsyncConnection.fail() close failed.", ex);
+    }
+    synchronized (pending) {
+      for (Response<?> response : pending.values()) {
+        response.fail(e);
+      }
+      pending.clear();
+    }
+  }
+
+  /**
+   * Check whether the connection was closed or lost.
+   *
+   * @return true if no more requests can be sent
+   */
+  boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Close the connection, failing outstanding requests.
+   */
+  void close() {
+    fail(new IOException("connection closed"));
+  }
+}
@@ -0,0 +1,151 @@
+package gov.usgs.volcanoes.vdx.client;
+
+import gov.usgs.volcanoes.core.legacy.Arguments;
+import gov.usgs.volcanoes.core.util.StringUtils;
+import gov.usgs.volcanoes.core.util.UtilException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command line load test for a VDX server. A number of clients, each on its own thread and
+ * connection, send getdata requests round robin from a list of queries, and latency and throughput
+ * are reported per query. Running it against the same data with vdx.server=handlers and
+ * vdx.server=nio compares the two server cores, e.g. with one slow hypocenter query mixed in with
+ * fast ones.
+ *
+ * @author Tom Parker
+ */
+public class LoadTest {
+
+  private final String host;
+  private final int port;
+  private final List<Map<String, String>> queries;
+  private final List<List<Long>> latencies;
+  private final AtomicInteger errors;
+
+  /**
+   * Constructor.
+   *
+   * @param host server host
+   * @param port server port
+   * @param queries getdata parameters, e.g. source=x;action=data;...
+   */
+  public LoadTest(String host, int port, List<String> queries) {
+    this.host = host;
+    this.port = port;
+    this.queries = new ArrayList<Map<String, String>>();
+    latencies = new ArrayList<List<Long>>();
+    for (String query : queries) {
+      this.queries.add(StringUtils.stringToMap(query));
+      latencies.add(Collections.synchronizedList(new ArrayList<Long>()));
+    }
+    errors = new AtomicInteger();
+  }
+
+  /**
+   * Run the test and print the results.
+   *
+   * @param clients number of concurrent clients
+   * @param requests requests sent by each client
+   * @throws InterruptedException if interrupted while waiting for the clients
+   */
+  public void run(int clients, final int requests) throws InterruptedException {
+    final long start = System.currentTimeMillis();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int c = 0; c < clients; c++) {
+      final int offset = c;
+      Thread t = new Thread(new Runnable() {
+        public void run() {
+          VDXClient client = new VDXClient(host, port);
+          for (int i = 0; i < requests; i++) {
+            int q = (offset + i) % queries.size();
+            long t0 = System.nanoTime();
+            try {
+              if (client.getBinaryData(queries.get(q)) == null) {
+                errors.incrementAndGet();
+              }
+            } catch (UtilException e) {
+              errors.incrementAndGet();
+            }
+            latencies.get(q).add((System.nanoTime() - t0) / 1000000);
+          }
+          client.close();
+        }
+      }, "LoadTest-" + c);
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    long elapsed = System.currentTimeMillis() - start;
+
+    int total = clients * requests;
+    System.out.printf("%d clients, %d requests, %d errors, %d ms, %.1f requests/s%n", clients,
+        total, errors.get(), elapsed, total * 1000.0 / Math.max(1, elapsed));
+    for (int q = 0; q < queries.size(); q++) {
+      List<Long> l = new ArrayList<Long>(latencies.get(q));
+      if (l.isEmpty()) {
+        continue;
+      }
+      Collections.sort(l);
+      System.out.printf("query %d (%s): %d requests, ms p50 %d p90 %d p99 %d max %d%n", q,
+          queries.get(q).get("source"), l.size(), percentile(l, 50), percentile(l, 90),
+          percentile(l, 99), l.get(l.size() - 1));
+    }
+  }
+
+  /**
+   * Get a percentile of sorted values.
+   *
+   * @param sorted values in ascending order
+   * @param p percentile
+   * @return value
+   */
+  private static long percentile(List<Long> sorted, int p) {
+    int i = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+    return sorted.get(Math.max(0, i));
+  }
+
+  /**
+   * Main method, provide command-line interface.
+   *
+   * @param as command line args
+   */
+  public static void main(String[] as) {
+    Set<String> flags = new HashSet<String>();
+    Set<String> kvs = new HashSet<String>();
+    kvs.add("-h");
+    kvs.add("-p");
+    kvs.add("-c");
+    kvs.add("-n");
+    kvs.add("-q");
+    Arguments args = new Arguments(as, flags, kvs);
+
+    if (args.get("-q") == null) {
+      System.out.println("<LoadTest> [-h host] [-p port] [-c clients] [-n requests per client] "
+          + "-q 'source=x;action=data;...[|source=y;...]'");
+      System.exit(-1);
+    }
+    String host = args.get("-h") == null ? "localhost" : args.get("-h");
+    int port = args.get("-p") == null ? 16050 : Integer.parseInt(args.get("-p"));
+    int clients = args.get("-c") == null ? 10 : Integer.parseInt(args.get("-c"));
+    int requests = args.get("-n") == null ? 100 : Integer.parseInt(args.get("-n"));
+
+    List<String> queries = new ArrayList<String>();
+    for (String query : args.get("-q").split("\\|")) {
+      queries.add(query);
+    }
+    try {
+      new LoadTest(host, port, queries).run(clients, requests);
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
+  }
+}
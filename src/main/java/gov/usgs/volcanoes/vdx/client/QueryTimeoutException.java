@@ -0,0 +1,23 @@
+package gov.usgs.volcanoes.vdx.client;
+
+import gov.usgs.volcanoes.core.util.UtilException;
+
+/**
+ * Thrown when the server cancelled a request because its queries ran longer than the time the
+ * data source allows. Retrying the same request is unlikely to help; ask for less data instead.
+ *
+ * @author Tom Parker
+ */
+public class QueryTimeoutException extends UtilException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Constructor.
+   *
+   * @param msg error message from the server
+   */
+  public QueryTimeoutException(String msg) {
+    super(msg);
+  }
+}
@@ -0,0 +1,36 @@
+package gov.usgs.volcanoes.vdx.client;
+
+import gov.usgs.volcanoes.core.util.UtilException;
+
+/**
+ * Thrown when the server refused a request because it is busy or the client sent too many
+ * requests. The same request may succeed once the suggested number of seconds has passed.
+ *
+ * @author Tom Parker
+ */
+public class ServerBusyException extends UtilException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int retryAfter;
+
+  /**
+   * Constructor.
+   *
+   * @param msg error message from the server
+   * @param retryAfter seconds after which to retry
+   */
+  public ServerBusyException(String msg, int retryAfter) {
+    super(msg);
+    this.retryAfter = retryAfter;
+  }
+
+  /**
+   * Get the seconds after which the server suggests to retry.
+   *
+   * @return seconds
+   */
+  public int getRetryAfter() {
+    return retryAfter;
+  }
+}
@@ -1,18 +1,20 @@
 package gov.usgs.volcanoes.vdx.client;
 
-import gov.usgs.volcanoes.core.Zip;
 import gov.usgs.volcanoes.core.data.BinaryDataSet;
 import gov.usgs.volcanoes.core.legacy.net.InternetClient;
 import gov.usgs.volcanoes.core.util.Retriable;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
+import gov.usgs.volcanoes.vdx.Compression;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * Customized internet client, can connect to specified host-port and read raw data. Can issue
@@ -24,8 +26,12 @@ import java.util.Map;
 public class VDXClient extends InternetClient {
 
   private static final int MAX_RETRIES = 3;
+  private static final String DEFAULT_CODECS = "lz,deflate:1,none";
   private static final Map<String, String> dataTypeMap;
 
+  private String codecs;
+  private AsyncConnection async;
+
   static {
     dataTypeMap = new HashMap<String, String>();
     dataTypeMap.put("genericfixed", "gov.usgs.volcanoes.core.data.GenericDataMatrix");
@@ -49,6 +55,17 @@ public class VDXClient extends InternetClient {
   public VDXClient(String h, int p) {
     super(h, p);
     setTimeout(30000);
+    codecs = DEFAULT_CODECS;
+  }
+
+  /**
+   * Set compression codecs offered to the server, most preferred first. Use "none" for a server
+   * on the same host, or "deflate:9" over slow links.
+   *
+   * @param c comma separated codecs, see {@link Compression}
+   */
+  public void setCodecs(String c) {
+    codecs = c;
   }
 
   /**
@@ -68,10 +85,21 @@ public class VDXClient extends InternetClient {
    * @return Command result got from server as string
    */
   protected String submitCommand(Map<String, String> params) throws IOException {
+    return submitCommand("getdata", params);
+  }
+
+  /**
+   * Issue a named command to server.
+   *
+   * @param command command name
+   * @param params Command
+   * @return Command result got from server as string
+   */
+  protected String submitCommand(String command, Map<String, String> params) throws IOException {
     if (!connected()) {
       connect();
     }
-    String cmd = "getdata: " + StringUtils.mapToString(params) + "\n";
+    String cmd = command + ": " + StringUtils.mapToString(params) + "\n";
     writeString(cmd);
 
     String rs = readString();
@@ -89,7 +117,12 @@ public class VDXClient extends InternetClient {
    * @param params Command
    * @return Command result got from server and parsed in BinaryDataSet
    */
-  public BinaryDataSet getBinaryData(final Map<String, String> params) throws UtilException {
+  public BinaryDataSet getBinaryData(Map<String, String> params) throws UtilException {
+
+    // sources that support it send large results in chunks
+    final Map<String, String> request = new HashMap<String, String>(params);
+    request.put("stream", "true");
+    request.put("codecs", codecs);
     Retriable<BinaryDataSet> rt = new Retriable<BinaryDataSet>("VDXClient.getBinaryData()",
         MAX_RETRIES) {
       public void attemptFix() {
@@ -100,7 +133,7 @@ public class VDXClient extends InternetClient {
       public boolean attempt() throws UtilException {
         String rs = null;
         try {
-          rs = submitCommand(params);
+          rs = submitCommand(request);
         } catch (Exception e) {
           logger.warn("VDXClient.submitCommand() exception: {}", e.getMessage());
           return false;
@@ -111,17 +144,11 @@ public class VDXClient extends InternetClient {
         if (rc.equals("ok")) {
           logger.info("rc is ok: " + r);
           Map<String, String> map = StringUtils.stringToMap(r);
-          if (map.get("bytes") != null) {
+          if (map.get("bytes") != null || "chunked".equals(map.get("encoding"))) {
             try {
-              int bytes = Integer.parseInt(map.get("bytes"));
-              byte[] buffer = readBinary(bytes);
-              byte[] decompBuf = Zip.decompress(buffer);
-              ByteBuffer bb = ByteBuffer.wrap(decompBuf);
-
-              String className = dataTypeMap.get(map.get("type"));
-              BinaryDataSet ds = (BinaryDataSet) Class.forName(className).newInstance();
-              ds.fromBinary(bb);
-              result = ds;
+              result = readBinaryBody(map);
+            } catch (UtilException e) {
+              throw e;
             } catch (Exception e) {
               logger.warn("VDXClient: binary dataset unpacking exception: {}", e.getMessage());
               return false;
@@ -131,7 +158,7 @@ public class VDXClient extends InternetClient {
           }
           return true;
         } else if (rc.equals("error")) {
-          throw new UtilException(r);
+          throw errorFor(r);
         }
         return false;
       }
@@ -139,6 +166,290 @@ public class VDXClient extends InternetClient {
     return rt.go();
   }
 
+  /**
+   * Wait for rows newer than a cursor. The server answers as soon as any are written, or with no
+   * rows after the timeout. The next cursor is the end time of the data returned, or the same
+   * cursor if it has no rows.
+   *
+   * @param params Command, as for getBinaryData
+   * @param since cursor, time of the last row already read
+   * @param timeout seconds to wait at most
+   * @return data set with the new rows, null if the request failed
+   */
+  public BinaryDataSet waitForData(Map<String, String> params, double since, int timeout)
+      throws UtilException {
+    Map<String, String> request = new HashMap<String, String>(params);
+    request.put("since", Double.toString(since));
+    request.put("timeout", Integer.toString(timeout));
+    request.put("codecs", codecs);
+    setTimeout((timeout + 30) * 1000);
+    try {
+      String rs = submitCommand("subscribe", request);
+      if (rs == null) {
+        return null;
+      }
+      String rc = rs.substring(0, rs.indexOf(':'));
+      String r = rs.substring(rs.indexOf(':') + 1);
+      if (rc.equals("error")) {
+        throw errorFor(r);
+      }
+      Map<String, String> map = StringUtils.stringToMap(r);
+      return map.get("bytes") == null ? null : readBinaryBody(map);
+    } catch (UtilException e) {
+      throw e;
+    } catch (Exception e) {
+      logger.warn("VDXClient.waitForData() exception: {}", e.getMessage());
+      close();
+      return null;
+    } finally {
+      setTimeout(30000);
+    }
+  }
+
+  /**
+   * Issue a batch of requests in one command and get their binary responses. The batch parameter
+   * names the parameters that differ between requests, each a comma separated list with one value
+   * per request, e.g. batch=ch;ch=1,2,3. The server runs the requests concurrently.
+   *
+   * @param params Command, including batch
+   * @return one data set per request in order, null for requests that failed or returned no
+   *         binary data
+   */
+  public List<BinaryDataSet> getBinaryDataBatch(Map<String, String> params) throws UtilException {
+    final Map<String, String> request = new HashMap<String, String>(params);
+    request.put("codecs", codecs);
+    Retriable<List<BinaryDataSet>> rt = new Retriable<List<BinaryDataSet>>(
+        "VDXClient.getBinaryDataBatch()", MAX_RETRIES) {
+      public void attemptFix() {
+        close();
+        connect();
+      }
+
+      public boolean attempt() throws UtilException {
+        result = null;
+        try {
+          String rs = submitCommand(request);
+          String rc = rs.substring(0, rs.indexOf(':'));
+          String r = rs.substring(rs.indexOf(':') + 1);
+          if (rc.equals("error")) {
+            throw errorFor(r);
+          }
+          int count = Integer.parseInt(StringUtils.stringToMap(r).get("count"));
+          List<BinaryDataSet> list = new ArrayList<BinaryDataSet>(count);
+          for (int i = 0; i < count; i++) {
+            list.add(readBatchItem());
+          }
+          result = list;
+          return true;
+        } catch (UtilException e) {
+          throw e;
+        } catch (Exception e) {
+          logger.warn("VDXClient.getBinaryDataBatch() exception: {}", e.getMessage());
+          return false;
+        }
+      }
+    };
+    return rt.go();
+  }
+
+  /**
+   * Read one response of a batch.
+   *
+   * @return data set, null if the request failed or returned no binary data
+   * @throws Exception if reading fails
+   */
+  private BinaryDataSet readBatchItem() throws Exception {
+    String rs = readString();
+    String rc = rs.substring(0, rs.indexOf(':'));
+    String r = rs.substring(rs.indexOf(':') + 1);
+    if (!rc.equals("ok")) {
+      logger.warn("VDXClient: batch request failed: {}", r);
+      return null;
+    }
+    Map<String, String> map = StringUtils.stringToMap(r);
+    if (map.get("lines") != null) {
+      int lines = Integer.parseInt(map.get("lines"));
+      for (int i = 0; i < lines; i++) {
+        readString();
+      }
+      return null;
+    }
+    if (map.get("bytes") == null && !"chunked".equals(map.get("encoding"))) {
+      return null;
+    }
+    try {
+      return readBinaryBody(map);
+    } catch (UtilException e) {
+      logger.warn("VDXClient: batch request refused: {}", e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Read a binary body, whole or chunked, and unpack it.
+   *
+   * @param map response parameters
+   * @return data set
+   * @throws Exception if reading or unpacking fails
+   */
+  private BinaryDataSet readBinaryBody(Map<String, String> map) throws Exception {
+
+    // servers that predate negotiation always deflate
+    Compression compression = Compression.parse(map.get("codec"));
+    if (compression == null) {
+      compression = Compression.DEFLATE;
+    }
+    ByteBuffer bb;
+    if (map.get("bytes") != null) {
+      int bytes = Integer.parseInt(map.get("bytes"));
+      byte[] buffer = readBinary(bytes);
+      byte[] decompBuf = compression.decompress(buffer);
+      bb = ByteBuffer.wrap(decompBuf);
+    } else {
+      bb = readChunks(compression);
+    }
+    return newDataSet(map.get("type"), bb);
+  }
+
+  /**
+   * Read a chunked binary body and join the chunks into one GenericDataMatrix binary.
+   *
+   * @param compression codec used for the chunks
+   * @return joined binary data
+   * @throws IOException if reading fails or the server aborted the body
+   * @throws UtilException if the server refused the rest of the request
+   */
+  private ByteBuffer readChunks(Compression compression) throws IOException, UtilException {
+    List<byte[]> chunks = new ArrayList<byte[]>();
+    while (true) {
+      int length = ByteBuffer.wrap(readBinary(4)).getInt();
+      if (length == 0) {
+        break;
+      } else if (length == -2) {
+        int messageLength = ByteBuffer.wrap(readBinary(4)).getInt();
+        throw errorFor(new String(readBinary(messageLength), StandardCharsets.UTF_8));
+      } else if (length < 0) {
+        throw new IOException("server failed while sending data");
+      }
+      chunks.add(compression.decompress(readBinary(length)));
+    }
+    return joinChunks(chunks);
+  }
+
+  /**
+   * Join the decompressed chunks of a chunked body into one GenericDataMatrix binary.
+   *
+   * @param chunks chunks, each starting with its rows and columns
+   * @return joined binary data
+   */
+  static ByteBuffer joinChunks(List<byte[]> chunks) {
+    int rows = 0;
+    int columns = 0;
+    for (byte[] chunk : chunks) {
+      ByteBuffer header = ByteBuffer.wrap(chunk);
+      rows += header.getInt();
+      columns = header.getInt();
+    }
+    ByteBuffer bb = ByteBuffer.allocate(8 + rows * columns * 8);
+    bb.putInt(rows);
+    bb.putInt(columns);
+    for (byte[] chunk : chunks) {
+      bb.put(chunk, 8, chunk.length - 8);
+    }
+    bb.flip();
+    return bb;
+  }
+
+  /**
+   * Get the exception for an error response. Requests the server cancelled for running too long
+   * get a {@link QueryTimeoutException}, requests it refused while busy a
+   * {@link ServerBusyException}.
+   *
+   * @param r error message after "error:"
+   * @return exception to throw
+   */
+  static UtilException errorFor(String r) {
+    String msg = r.trim();
+    if (msg.startsWith("timeout:")) {
+      return new QueryTimeoutException(msg);
+    }
+    if (msg.startsWith("busy:")) {
+      int retryAfter = 1;
+      int ri = msg.indexOf("retry-after=");
+      if (ri != -1) {
+        int end = msg.indexOf(';', ri);
+        retryAfter = StringUtils.stringToInt(
+            msg.substring(ri + 12, end == -1 ? msg.length() : end).trim(), retryAfter);
+      }
+      return new ServerBusyException(msg, retryAfter);
+    }
+    return new UtilException(r);
+  }
+
+  /**
+   * Create a data set of a result type from its binary form.
+   *
+   * @param type result type
+   * @param bb binary data
+   * @return data set
+   * @throws Exception if the type is unknown or the data can't be read
+   */
+  static BinaryDataSet newDataSet(String type, ByteBuffer bb) throws Exception {
+    String className = dataTypeMap.get(type);
+    BinaryDataSet ds = (BinaryDataSet) Class.forName(className).newInstance();
+    ds.fromBinary(bb);
+    return ds;
+  }
+
+  /**
+   * Send a getdata command on the shared multiplexed connection without waiting for the result.
+   * Any number of requests may be outstanding; a server that supports multiplexing answers them
+   * as they complete, one that doesn't answers them in order. The result is null if the server
+   * returned no binary data.
+   *
+   * @param params Command
+   * @return future binary data set. It fails with a UtilException cause if the server returned an
+   *         error, or an IOException cause if the connection was lost
+   */
+  public Future<BinaryDataSet> getBinaryDataAsync(Map<String, String> params) {
+    Map<String, String> request = new HashMap<String, String>(params);
+    request.put("codecs", codecs);
+    return getAsyncConnection().<BinaryDataSet>submit(request, true);
+  }
+
+  /**
+   * Send a getdata command with a text result on the shared multiplexed connection without waiting
+   * for the result.
+   *
+   * @param params Command
+   * @return future list of lines, null if the server returned no text
+   */
+  public Future<List<String>> getTextDataAsync(Map<String, String> params) {
+    return getAsyncConnection().<List<String>>submit(params, false);
+  }
+
+  /**
+   * Get the multiplexed connection, opening a new one if there is none or it was lost.
+   *
+   * @return connection
+   */
+  private synchronized AsyncConnection getAsyncConnection() {
+    if (async == null || async.isClosed()) {
+      async = new AsyncConnection(host, port);
+    }
+    return async;
+  }
+
+  /**
+   * Close the multiplexed connection, failing requests still outstanding on it.
+   */
+  public synchronized void closeAsync() {
+    if (async != null) {
+      async.close();
+      async = null;
+    }
+  }
+
   /**
    * Issue command to server and get text data response. Command is map of parameters - param_name -
    * param_value pairs.
@@ -189,7 +500,7 @@ public class VDXClient extends InternetClient {
           }
           return true;
         } else if (rc.equals("error")) {
-          throw new UtilException(r);
+          throw errorFor(r);
         }
 
         return false;
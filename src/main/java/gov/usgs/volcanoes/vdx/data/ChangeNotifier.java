@@ -0,0 +1,294 @@
+package gov.usgs.volcanoes.vdx.data;
+
+import gov.usgs.volcanoes.core.util.StringUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide notification of data written to a data source, so subscribers waiting for new rows
+ * query again as soon as there are any instead of polling the database. Each data source has a
+ * version that is advanced by every insert.
+ *
+ * <p>Importers usually run in their own process. Their data sources can forward inserts to a VDX
+ * server ([source].notify=host:port), which publishes them to its own subscribers and drops the
+ * cached tiles they touch. Notifications still queued when the process exits are sent within
+ * a bounded wait by a shutdown hook, so one-shot importers don't lose them.
+ *
+ * @author Tom Parker
+ */
+public class ChangeNotifier {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChangeNotifier.class);
+  private static final ChangeNotifier instance = new ChangeNotifier();
+  private static final int FORWARD_QUEUE = 10000;
+  private static final int RECONNECT_DELAY = 5000;
+  private static final int FLUSH_WAIT = 5000;
+
+  private final Map<String, Topic> topics;
+  private final Map<String, Forwarder> forwarders;
+
+  /**
+   * Version of one data source.
+   */
+  private static class Topic {
+    private long version;
+  }
+
+  /**
+   * Sends notify commands to a remote server from a background thread, dropping them while the
+   * server is unreachable.
+   */
+  private static class Forwarder implements Runnable {
+    private final String host;
+    private final int port;
+    private final BlockingQueue<String> queue;
+    private int pending;
+
+    /**
+     * Constructor.
+     *
+     * @param host server host
+     * @param port server port
+     */
+    Forwarder(String host, int port) {
+      this.host = host;
+      this.port = port;
+      queue = new LinkedBlockingQueue<String>(FORWARD_QUEUE);
+    }
+
+    /**
+     * Queue a command, dropping it if the queue is full.
+     *
+     * @param command notify command
+     */
+    synchronized void offer(String command) {
+      if (queue.offer(command)) {
+        pending++;
+      }
+    }
+
+    /**
+     * Count commands sent or dropped.
+     *
+     * @param n number of commands
+     */
+    private synchronized void done(int n) {
+      pending -= n;
+      notifyAll();
+    }
+
+    /**
+     * Wait until all queued commands are sent or dropped.
+     *
+     * @param deadline time to give up at, in milliseconds since the epoch
+     * @return number of commands still queued or being sent
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized int await(long deadline) throws InterruptedException {
+      long remaining = deadline - System.currentTimeMillis();
+      while (pending > 0 && remaining > 0) {
+        wait(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+      return pending;
+    }
+
+    public void run() {
+      Socket socket = null;
+      while (true) {
+        try {
+          String command = queue.take();
+          if (socket == null) {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), RECONNECT_DELAY);
+          }
+          OutputStream out = socket.getOutputStream();
+          out.write(command.getBytes(StandardCharsets.UTF_8));
+          out.flush();
+          done(1);
+        } catch (InterruptedException e) {
+          return;
+        } catch (IOException e) {
+          LOGGER.warn("ChangeNotifier.run() failed. ({}:{}) {}", host, port, e.getMessage());
+          try {
+            if (socket != null) {
+              socket.close();
+            }
+          } catch (IOException ex) {
+            LOGGER.debug("ChangeNotifier.run() close failed.", ex);
+          }
+          socket = null;
+          List<String> dropped = new ArrayList<String>();
+          queue.drainTo(dropped);
+          done(1 + dropped.size());
+          try {
+            Thread.sleep(RECONNECT_DELAY);
+          } catch (InterruptedException ex) {
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Constructor.
+   */
+  private ChangeNotifier() {
+    topics = new HashMap<String, Topic>();
+    forwarders = new HashMap<String, Forwarder>();
+  }
+
+  /**
+   * Wait for the commands queued to remote servers to be sent. Commands sent to an unreachable
+   * server are dropped, so this doesn't wait longer than it takes to connect.
+   *
+   * @param millis maximum time to wait
+   * @return true if all commands were sent or dropped, false on timeout or interrupt
+   */
+  public boolean flush(long millis) {
+    List<Forwarder> list;
+    synchronized (forwarders) {
+      list = new ArrayList<Forwarder>(forwarders.values());
+    }
+    long deadline = System.currentTimeMillis() + millis;
+    int left = 0;
+    try {
+      for (Forwarder forwarder : list) {
+        left += forwarder.await(deadline);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    if (left > 0) {
+      LOGGER.warn("ChangeNotifier.flush() timed out, {} notifications not sent.", left);
+    }
+    return left == 0;
+  }
+
+  /**
+   * Get the process-wide notifier.
+   *
+   * @return change notifier
+   */
+  public static ChangeNotifier getInstance() {
+    return instance;
+  }
+
+  /**
+   * Get the topic of a data source, creating it on first use.
+   *
+   * @param key data source key, see {@link SQLDataSource#getChangeKey()}
+   * @return topic
+   */
+  private synchronized Topic getTopic(String key) {
+    Topic topic = topics.get(key);
+    if (topic == null) {
+      topic = new Topic();
+      topics.put(key, topic);
+    }
+    return topic;
+  }
+
+  /**
+   * Get the current version of a data source.
+   *
+   * @param key data source key
+   * @return version
+   */
+  public long getVersion(String key) {
+    Topic topic = getTopic(key);
+    synchronized (topic) {
+      return topic.version;
+    }
+  }
+
+  /**
+   * Wait until data is written to a data source after a version was read.
+   *
+   * @param key data source key
+   * @param version version read before the data source was last queried
+   * @param millis maximum time to wait
+   * @return true if data was written, false on timeout
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean await(String key, long version, long millis) throws InterruptedException {
+    Topic topic = getTopic(key);
+    long deadline = System.currentTimeMillis() + millis;
+    synchronized (topic) {
+      long remaining = millis;
+      while (topic.version == version && remaining > 0) {
+        topic.wait(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+      return topic.version != version;
+    }
+  }
+
+  /**
+   * Announce data written to a data source.
+   *
+   * @param key data source key
+   */
+  public void publish(String key) {
+    Topic topic = getTopic(key);
+    synchronized (topic) {
+      topic.version++;
+      topic.notifyAll();
+    }
+  }
+
+  /**
+   * Tell a remote VDX server about data written to a data source. Returns at once; the command
+   * is sent by a background thread.
+   *
+   * @param address server as host:port
+   * @param key data source key
+   * @param channelCode channel table written
+   * @param st time of the first row written
+   * @param et time of the last row written
+   */
+  public void forward(String address, String key, String channelCode, double st, double et) {
+    Forwarder forwarder;
+    synchronized (forwarders) {
+      forwarder = forwarders.get(address);
+      if (forwarder == null) {
+        if (forwarders.isEmpty()) {
+          Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+              flush(FLUSH_WAIT);
+            }
+          }, "VDX/ChangeNotifier-flush"));
+        }
+        int ci = address.lastIndexOf(':');
+        forwarder = new Forwarder(address.substring(0, ci),
+            Integer.parseInt(address.substring(ci + 1)));
+        Thread t = new Thread(forwarder, "VDX/ChangeNotifier-" + address);
+        t.setDaemon(true);
+        t.start();
+        forwarders.put(address, forwarder);
+      }
+    }
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    params.put("key", key);
+    params.put("ch", channelCode);
+    params.put("st", Double.toString(st));
+    params.put("et", Double.toString(et));
+    forwarder.offer("notify: " + StringUtils.mapToString(params) + "\n");
+  }
+}
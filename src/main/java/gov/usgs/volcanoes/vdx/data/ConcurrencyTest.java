@@ -0,0 +1,198 @@
+package gov.usgs.volcanoes.vdx.data;
+
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.data.GenericDataMatrix;
+import gov.usgs.volcanoes.core.legacy.Arguments;
+import gov.usgs.volcanoes.core.math.DownsamplingType;
+import gov.usgs.volcanoes.core.util.UtilException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command line stress test for a shared {@link SQLDataSource}. The data of some channels of a
+ * source is first read on one thread as the reference, then a number of threads read the same
+ * channels from the same data source instance in random order, dropping the cached metadata now
+ * and then so the channel, column and rank lookups hit the database as well. Every result is
+ * compared with the reference, so a query that sees the statement or result set of another thread
+ * shows up as a mismatch. Nothing is written to the database.
+ *
+ * @author Tom Parker
+ */
+public class ConcurrencyTest {
+
+  private static final String DEFAULT_CONFIG_FILE = "VDX.config";
+  private static final int DEFAULT_CHANNELS = 8;
+
+  private final SQLDataSource dataSource;
+  private final double st;
+  private final double et;
+  private final List<Channel> channels;
+  private final List<double[][]> expected;
+  private final AtomicInteger requests;
+  private final AtomicInteger mismatches;
+  private final AtomicInteger errors;
+
+  /**
+   * Constructor.
+   *
+   * @param dataSource data source with a columns table, e.g. a generic fixed source
+   * @param st start time, j2ksec
+   * @param et end time, j2ksec
+   */
+  public ConcurrencyTest(SQLDataSource dataSource, double st, double et) {
+    this.dataSource = dataSource;
+    this.st = st;
+    this.et = et;
+    channels = new ArrayList<Channel>();
+    expected = new ArrayList<double[][]>();
+    requests = new AtomicInteger();
+    mismatches = new AtomicInteger();
+    errors = new AtomicInteger();
+  }
+
+  /**
+   * Read the reference data of the first channels of the data source on this thread.
+   *
+   * @param max number of channels to read
+   * @throws UtilException if a query fails
+   */
+  public void prepare(int max) throws UtilException {
+    List<Channel> all = dataSource.defaultGetChannelsList(false);
+    for (Channel ch : all.subList(0, Math.min(max, all.size()))) {
+      GenericDataMatrix gdm = query(ch);
+      channels.add(ch);
+      expected.add(gdm == null ? null : gdm.getData().toArray());
+      System.out.printf("%s: %d rows%n", ch.getCode(), gdm == null ? 0 : gdm.rows());
+    }
+    dataSource.releaseConnection();
+  }
+
+  /**
+   * Read the channels on several threads at once and print the results.
+   *
+   * @param threads number of threads
+   * @param count requests per thread
+   * @return true if every result matched the reference
+   * @throws InterruptedException if interrupted while waiting for the threads
+   */
+  public boolean run(int threads, final int count) throws InterruptedException {
+    if (channels.isEmpty()) {
+      System.out.println("no channels to read");
+      return false;
+    }
+    final long start = System.currentTimeMillis();
+    List<Thread> running = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      final Random random = new Random(t);
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          for (int i = 0; i < count; i++) {
+            if (random.nextInt(10) == 0) {
+              dataSource.getMetadataCache().invalidate();
+            }
+            check(random.nextInt(channels.size()));
+          }
+          dataSource.releaseConnection();
+        }
+      }, "ConcurrencyTest-" + t);
+      running.add(thread);
+      thread.start();
+    }
+    for (Thread thread : running) {
+      thread.join();
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    System.out.printf("%d threads, %d requests, %d mismatches, %d errors, %d ms%n", threads,
+        requests.get(), mismatches.get(), errors.get(), elapsed);
+    return mismatches.get() == 0 && errors.get() == 0;
+  }
+
+  /**
+   * Read one channel and compare it with the reference.
+   *
+   * @param i index of the channel
+   */
+  private void check(int i) {
+    Channel ch = channels.get(i);
+    requests.incrementAndGet();
+    try {
+      Channel found = dataSource.defaultGetChannel(ch.getCId(), false);
+      GenericDataMatrix gdm = query(ch);
+      double[][] data = gdm == null ? null : gdm.getData().toArray();
+      if (found == null || !ch.getCode().equals(found.getCode())
+          || !Arrays.deepEquals(expected.get(i), data)) {
+        mismatches.incrementAndGet();
+        System.out.printf("%s: mismatch on %s%n", ch.getCode(), Thread.currentThread().getName());
+      }
+    } catch (Exception e) {
+      errors.incrementAndGet();
+      System.out.printf("%s: %s on %s%n", ch.getCode(), e, Thread.currentThread().getName());
+    }
+  }
+
+  /**
+   * Read the data of a channel, best available rank, without downsampling.
+   *
+   * @param ch channel
+   * @return data, null if the query failed
+   * @throws UtilException if the query fails
+   */
+  private GenericDataMatrix query(Channel ch) throws UtilException {
+    return dataSource.defaultGetData(ch.getCId(), 0, st, et, dataSource.getTranslationsFlag(),
+        dataSource.getRanksFlag(), 0, DownsamplingType.NONE, 0);
+  }
+
+  /**
+   * Main method, provide command-line interface.
+   *
+   * @param as command line args
+   */
+  public static void main(String[] as) {
+    Set<String> flags = new HashSet<String>();
+    Set<String> kvs = new HashSet<String>();
+    kvs.add("-c");
+    kvs.add("-s");
+    kvs.add("-b");
+    kvs.add("-e");
+    kvs.add("-t");
+    kvs.add("-n");
+    kvs.add("-h");
+    Arguments args = new Arguments(as, flags, kvs);
+
+    if (args.get("-s") == null || args.get("-b") == null || args.get("-e") == null) {
+      System.out.println("<ConcurrencyTest> [-c configfile] -s source -b start j2ksec "
+          + "-e end j2ksec [-t threads] [-n requests per thread] [-h channels]");
+      System.exit(-1);
+    }
+    String cf = args.get("-c") == null ? DEFAULT_CONFIG_FILE : args.get("-c");
+    int threads = args.get("-t") == null ? 16 : Integer.parseInt(args.get("-t"));
+    int count = args.get("-n") == null ? 100 : Integer.parseInt(args.get("-n"));
+    int max = args.get("-h") == null ? DEFAULT_CHANNELS : Integer.parseInt(args.get("-h"));
+
+    ConfigFile params = new ConfigFile(cf);
+    SQLDataSourceHandler handler = new SQLDataSourceHandler(params.getString("vdx.driver"),
+        params.getString("vdx.url"), params.getString("vdx.prefix"));
+    SQLDataSourceDescriptor dsd = handler.getDataSourceDescriptor(args.get("-s"));
+    if (dsd == null || dsd.getSQLDataSource() == null) {
+      System.out.println("unknown source " + args.get("-s"));
+      System.exit(-1);
+    }
+
+    boolean passed = false;
+    try {
+      ConcurrencyTest test = new ConcurrencyTest(dsd.getSQLDataSource(),
+          Double.parseDouble(args.get("-b")), Double.parseDouble(args.get("-e")));
+      test.prepare(max);
+      passed = test.run(threads, count);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    System.exit(passed ? 0 : 1);
+  }
+}
@@ -2,12 +2,20 @@ package gov.usgs.volcanoes.vdx.data;
 
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
- * Keeps all information needed to construct particular data source.
+ * Keeps all information needed to construct particular data source. The data source is
+ * instantiated once and kept warm between requests; it is disconnected only when the descriptor
+ * is shut down, e.g. on server exit or configuration reload. SQL data sources are re-entrant and
+ * may be used by several threads at once, other data sources are handed to one thread at a time.
  *
  * @author Dan Cervelli
  */
 public class DataSourceDescriptor {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DataSourceDescriptor.class);
+
   private String name;
   private String className;
   private String description;
@@ -15,6 +23,8 @@ public class DataSourceDescriptor {
   private ConfigFile params;
 
   private DataSource dataSource;
+  private int checkedOut;
+  private boolean retired;
 
   /**
    * Constructor.
@@ -92,25 +102,87 @@ public class DataSourceDescriptor {
   }
 
   /**
-   * Construct data source using internal information if it isn't exist.
+   * Construct data source using internal information if it isn't exist. Each call must be matched
+   * by a call to {@link #putDataSource()}.
    * 
    * @return reference to constructed data source
    */
-  public DataSource getDataSource() {
+  public synchronized DataSource getDataSource() {
     if (dataSource == null && className != null) {
       instantiateDataSource();
     }
+    while (checkedOut > 0 && dataSource != null && !(dataSource instanceof SQLDataSource)) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+    if (dataSource != null) {
+      checkedOut++;
+    }
 
     return dataSource;
   }
 
   /**
-   * Deconstruct data source using internal information if it doesn't exist.
+   * Return data source obtained with {@link #getDataSource()}. The data source stays connected
+   * unless this descriptor was shut down while it was in use.
+   */
+  public synchronized void putDataSource() {
+    if (dataSource instanceof SQLDataSource) {
+      ((SQLDataSource) dataSource).releaseConnection();
+    }
+    if (checkedOut > 0) {
+      checkedOut--;
+    }
+    if (retired && checkedOut == 0) {
+      closeDataSource();
+    }
+    notifyAll();
+  }
+
+  /**
+   * Check the health of an idle data source, reconnecting it if its connection was lost. Data
+   * sources that are in use or not yet instantiated are skipped.
+   *
+   * @return false if the data source could not be brought back to a usable state
+   */
+  public synchronized boolean checkHealth() {
+    if (dataSource == null || checkedOut > 0 || retired) {
+      return true;
+    }
+    if (dataSource instanceof SQLDataSource) {
+      SQLDataSource sqlDataSource = (SQLDataSource) dataSource;
+      LOGGER.debug("data source {} metadata cache: {}", name, sqlDataSource.getMetadataCache());
+      boolean healthy = sqlDataSource.checkConnection();
+      if (!healthy) {
+        LOGGER.warn("data source {} failed health check", name);
+      }
+      return healthy;
+    }
+    return true;
+  }
+
+  /**
+   * Disconnect data source. If it is currently in use it is disconnected once it is returned.
+   */
+  public synchronized void shutdown() {
+    retired = true;
+    if (checkedOut == 0) {
+      closeDataSource();
+    }
+  }
+
+  /**
+   * Disconnect and forget the data source.
    */
-  public void putDataSource() {
+  private void closeDataSource() {
     if (dataSource != null && className != null) {
       uninstantiateDataSource();
     }
+    dataSource = null;
   }
 
 }
@@ -23,12 +23,12 @@ import org.slf4j.LoggerFactory;
 public class DataSourceHandler {
   private static final String CONFIG_FILE = "vdxSources.config";
   private static final Logger LOGGER = LoggerFactory.getLogger(DataSourceHandler.class);
-  protected Map<String, DataSourceDescriptor> dataSources;
+  protected volatile Map<String, DataSourceDescriptor> dataSources;
   private ConfigFile config;
   private String driver;
   private String url;
   private String prefix;
-  protected TreeMap<String, ExportConfig> exportConfigs;
+  protected volatile TreeMap<String, ExportConfig> exportConfigs;
 
   /**
    * Constructor.
@@ -42,8 +42,6 @@ public class DataSourceHandler {
     url = u;
     prefix = p;
 
-    dataSources = new HashMap<String, DataSourceDescriptor>();
-    exportConfigs = new TreeMap<String, ExportConfig>();
     processConfigFile();
   }
 
@@ -52,6 +50,8 @@ public class DataSourceHandler {
    * initialized data_source_descriptor defined in the config file
    */
   public void processConfigFile() {
+    Map<String, DataSourceDescriptor> dataSources = new HashMap<String, DataSourceDescriptor>();
+    TreeMap<String, ExportConfig> exportConfigs = new TreeMap<String, ExportConfig>();
     config = new ConfigFile(CONFIG_FILE);
     List<String> sources = config.getList("source");
     for (Iterator<String> it = sources.iterator(); it.hasNext();) {
@@ -70,6 +70,39 @@ public class DataSourceHandler {
       dataSources.put(source, dsd);
       LOGGER.debug("read data source: {}", source);
     }
+    this.exportConfigs = exportConfigs;
+    this.dataSources = dataSources;
+  }
+
+  /**
+   * Re-read configuration file and replace all data sources. Data sources built from the previous
+   * configuration are disconnected as soon as they are no longer in use.
+   */
+  public synchronized void reload() {
+    Map<String, DataSourceDescriptor> old = dataSources;
+    processConfigFile();
+    for (DataSourceDescriptor dsd : old.values()) {
+      dsd.shutdown();
+    }
+    LOGGER.info("reloaded {}", CONFIG_FILE);
+  }
+
+  /**
+   * Check health of all instantiated data sources.
+   */
+  public void checkHealth() {
+    for (DataSourceDescriptor dsd : dataSources.values()) {
+      dsd.checkHealth();
+    }
+  }
+
+  /**
+   * Disconnect all data sources.
+   */
+  public synchronized void shutdown() {
+    for (DataSourceDescriptor dsd : dataSources.values()) {
+      dsd.shutdown();
+    }
   }
 
   /**
@@ -108,7 +141,7 @@ public class DataSourceHandler {
    * @param source name of data source
    * @return export config fo named source
    */
-  public ExportConfig getExportConfig(String source) {
+  public synchronized ExportConfig getExportConfig(String source) {
     return exportConfigs.get(source);
   }
 
@@ -118,7 +151,7 @@ public class DataSourceHandler {
    * @param source name of data source
    * @param ec export config
    */
-  public void putExportConfig(String source, ExportConfig ec) {
+  public synchronized void putExportConfig(String source, ExportConfig ec) {
     exportConfigs.put(source, ec);
   }
 }
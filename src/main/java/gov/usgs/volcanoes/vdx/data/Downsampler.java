@@ -0,0 +1,412 @@
+package gov.usgs.volcanoes.vdx.data;
+
+import gov.usgs.volcanoes.core.math.DownsamplingType;
+import gov.usgs.volcanoes.core.util.UtilException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Downsampling stage applied to rows as they are read from a result set. Rows must arrive in time
+ * order with the time in column 0. The first key columns (time, and rank id where there is one)
+ * are carried through rather than aggregated.
+ *
+ * <p>Methods are decimate (every dsInt-th row), mean (average of each dsInt second bucket), minmax
+ * (minimum and maximum of each bucket, preserving peaks) and lttb (largest-triangle-three-buckets,
+ * one representative row per bucket).
+ *
+ * @author Tom Parker
+ */
+public abstract class Downsampler {
+
+  protected final int keyColumns;
+  protected final List<double[]> rows;
+  private String method;
+
+  /**
+   * Constructor.
+   *
+   * @param keyColumns number of leading columns that are not aggregated
+   */
+  protected Downsampler(int keyColumns) {
+    this.keyColumns = keyColumns;
+    rows = new ArrayList<double[]>();
+  }
+
+  /**
+   * Create a downsampler for a request.
+   *
+   * @param ds downsampling type requested by the client
+   * @param method 'decimate', 'mean', 'minmax' or 'lttb' to override the type, may be null
+   * @param st request start time, buckets are aligned to it
+   * @param dsInt rows for decimate, or bucket length in seconds for the other methods
+   * @param keyColumns number of leading columns that are not aggregated, at least 1
+   * @return downsampler, or null if no downsampling was requested
+   * @throws UtilException if the method is unknown or the interval is too small
+   */
+  public static Downsampler create(DownsamplingType ds, String method, double st, int dsInt,
+      int keyColumns) throws UtilException {
+    if (method == null) {
+      if (ds == null || ds.equals(DownsamplingType.NONE)) {
+        return null;
+      } else if (ds.equals(DownsamplingType.DECIMATE)) {
+        method = "decimate";
+      } else if (ds.equals(DownsamplingType.MEAN)) {
+        method = "mean";
+      } else {
+        throw new UtilException("Unknown downsampling type: " + ds);
+      }
+    }
+    if (dsInt <= 1) {
+      throw new UtilException("Downsampling interval should be more than 1");
+    }
+    method = method.toLowerCase();
+    Downsampler downsampler;
+    if (method.equals("decimate")) {
+      downsampler = new Decimate(keyColumns, dsInt);
+    } else if (method.equals("mean")) {
+      downsampler = new Mean(keyColumns, st, dsInt);
+    } else if (method.equals("minmax")) {
+      downsampler = new MinMax(keyColumns, st, dsInt);
+    } else if (method.equals("lttb")) {
+      downsampler = new Lttb(keyColumns, st, dsInt);
+    } else {
+      throw new UtilException("Unknown downsampling method: " + method);
+    }
+    downsampler.method = method;
+    return downsampler;
+  }
+
+  /**
+   * Getter for the downsampling method.
+   *
+   * @return 'decimate', 'mean', 'minmax' or 'lttb'
+   */
+  public String getMethod() {
+    return method;
+  }
+
+  /**
+   * Align the time buckets to another start time, before the first row is added. Methods without
+   * time buckets ignore it.
+   *
+   * @param start time the buckets are aligned to
+   */
+  public void align(double start) {
+  }
+
+  /**
+   * Add the next row.
+   *
+   * @param row data row, which may be kept
+   */
+  public abstract void add(double[] row);
+
+  /**
+   * Flush rows held back after the last row was added.
+   */
+  public abstract void finish();
+
+  /**
+   * Getter for rows produced so far.
+   *
+   * @return downsampled rows
+   */
+  public List<double[]> getRows() {
+    return rows;
+  }
+
+  /**
+   * Keep every dsInt-th row, starting with the first.
+   */
+  private static class Decimate extends Downsampler {
+    private final int interval;
+    private long count;
+
+    /**
+     * Constructor.
+     *
+     * @param keyColumns number of leading columns that are not aggregated
+     * @param interval keep one row in this many
+     */
+    Decimate(int keyColumns, int interval) {
+      super(keyColumns);
+      this.interval = interval;
+    }
+
+    public void add(double[] row) {
+      if (count++ % interval == 0) {
+        rows.add(row);
+      }
+    }
+
+    public void finish() {
+    }
+  }
+
+  /**
+   * Base for methods that aggregate fixed length time buckets aligned to the start time.
+   */
+  private abstract static class Bucketed extends Downsampler {
+    private double st;
+    private final double interval;
+    private long bucket = Long.MIN_VALUE;
+
+    /**
+     * Constructor.
+     *
+     * @param keyColumns number of leading columns that are not aggregated
+     * @param st start time
+     * @param interval bucket length in seconds
+     */
+    Bucketed(int keyColumns, double st, double interval) {
+      super(keyColumns);
+      this.st = st;
+      this.interval = interval;
+    }
+
+    public void align(double start) {
+      st = start;
+    }
+
+    public void add(double[] row) {
+      long b = (long) Math.floor((row[0] - st) / interval);
+      if (b != bucket) {
+        if (bucket != Long.MIN_VALUE) {
+          endBucket();
+        }
+        bucket = b;
+      }
+      addToBucket(row);
+    }
+
+    public void finish() {
+      if (bucket != Long.MIN_VALUE) {
+        endBucket();
+        bucket = Long.MIN_VALUE;
+      }
+    }
+
+    /**
+     * Add a row to the current bucket.
+     *
+     * @param row data row
+     */
+    protected abstract void addToBucket(double[] row);
+
+    /**
+     * Emit rows for the current bucket and reset it.
+     */
+    protected abstract void endBucket();
+  }
+
+  /**
+   * Average of each bucket. Key columns take their minimum, null values are ignored.
+   */
+  private static class Mean extends Bucketed {
+    private double[] first;
+    private double[] sum;
+    private int[] count;
+
+    /**
+     * Constructor.
+     *
+     * @param keyColumns number of leading columns that are not aggregated
+     * @param st start time
+     * @param interval bucket length in seconds
+     */
+    Mean(int keyColumns, double st, double interval) {
+      super(keyColumns, st, interval);
+    }
+
+    protected void addToBucket(double[] row) {
+      if (first == null) {
+        first = row.clone();
+        sum = new double[row.length];
+        count = new int[row.length];
+      }
+      for (int i = 0; i < row.length; i++) {
+        if (i < keyColumns) {
+          first[i] = Double.isNaN(first[i]) ? row[i] : Math.min(first[i], row[i]);
+        } else if (!Double.isNaN(row[i])) {
+          sum[i] += row[i];
+          count[i]++;
+        }
+      }
+    }
+
+    protected void endBucket() {
+      double[] row = new double[first.length];
+      for (int i = 0; i < row.length; i++) {
+        if (i < keyColumns) {
+          row[i] = first[i];
+        } else {
+          row[i] = count[i] == 0 ? Double.NaN : sum[i] / count[i];
+        }
+      }
+      rows.add(row);
+      first = null;
+    }
+  }
+
+  /**
+   * Minimum and maximum of each bucket, as two rows stamped with the first and last time in the
+   * bucket. A bucket holding a single row is passed through.
+   */
+  private static class MinMax extends Bucketed {
+    private double[] min;
+    private double[] max;
+    private double[] only;
+    private int count;
+
+    /**
+     * Constructor.
+     *
+     * @param keyColumns number of leading columns that are not aggregated
+     * @param st start time
+     * @param interval bucket length in seconds
+     */
+    MinMax(int keyColumns, double st, double interval) {
+      super(keyColumns, st, interval);
+    }
+
+    protected void addToBucket(double[] row) {
+      if (count++ == 0) {
+        only = row;
+        min = row.clone();
+        max = row.clone();
+        return;
+      }
+      max[0] = row[0];
+      for (int i = keyColumns; i < row.length; i++) {
+        if (Double.isNaN(row[i])) {
+          continue;
+        }
+        if (Double.isNaN(min[i]) || row[i] < min[i]) {
+          min[i] = row[i];
+        }
+        if (Double.isNaN(max[i]) || row[i] > max[i]) {
+          max[i] = row[i];
+        }
+      }
+    }
+
+    protected void endBucket() {
+      if (count == 1) {
+        rows.add(only);
+      } else {
+        rows.add(min);
+        rows.add(max);
+      }
+      count = 0;
+      only = null;
+    }
+  }
+
+  /**
+   * Largest-triangle-three-buckets. The first and last rows are kept, and from every bucket in
+   * between the row forming the largest triangle with the row picked from the previous bucket and
+   * the average of the next bucket. Areas of all value columns are added together.
+   */
+  private static class Lttb extends Bucketed {
+    private double[] previous;
+    private List<double[]> pending;
+    private List<double[]> current;
+
+    /**
+     * Constructor.
+     *
+     * @param keyColumns number of leading columns that are not aggregated
+     * @param st start time
+     * @param interval bucket length in seconds
+     */
+    Lttb(int keyColumns, double st, double interval) {
+      super(keyColumns, st, interval);
+      current = new ArrayList<double[]>();
+    }
+
+    protected void addToBucket(double[] row) {
+      if (previous == null) {
+        previous = row;
+        rows.add(row);
+        return;
+      }
+      current.add(row);
+    }
+
+    protected void endBucket() {
+      if (current.isEmpty()) {
+        return;
+      }
+      if (pending != null) {
+        select(pending, average(current));
+      }
+      pending = current;
+      current = new ArrayList<double[]>();
+    }
+
+    public void finish() {
+      super.finish();
+      if (pending != null) {
+
+        // the last row is kept as is, so it stands in for the next bucket of the final bucket
+        double[] last = pending.remove(pending.size() - 1);
+        if (!pending.isEmpty()) {
+          select(pending, last);
+        }
+        rows.add(last);
+        pending = null;
+      }
+    }
+
+    /**
+     * Pick the row of a bucket forming the largest triangle with the previous pick and a point.
+     *
+     * @param bucket candidate rows
+     * @param next average of the next bucket
+     */
+    private void select(List<double[]> bucket, double[] next) {
+      double[] best = bucket.get(0);
+      double bestArea = -1;
+      for (double[] row : bucket) {
+        double area = 0;
+        for (int i = keyColumns; i < row.length; i++) {
+          double a = Math.abs((previous[0] - next[0]) * (row[i] - previous[i])
+              - (previous[0] - row[0]) * (next[i] - previous[i]));
+          if (!Double.isNaN(a)) {
+            area += a;
+          }
+        }
+        if (area > bestArea) {
+          bestArea = area;
+          best = row;
+        }
+      }
+      rows.add(best);
+      previous = best;
+    }
+
+    /**
+     * Average the rows of a bucket, ignoring null values.
+     *
+     * @param bucket rows
+     * @return average row
+     */
+    private double[] average(List<double[]> bucket) {
+      int columns = bucket.get(0).length;
+      double[] avg = new double[columns];
+      for (int i = 0; i < columns; i++) {
+        double sum = 0;
+        int count = 0;
+        for (double[] row : bucket) {
+          if (!Double.isNaN(row[i])) {
+            sum += row[i];
+            count++;
+          }
+        }
+        avg[i] = count == 0 ? Double.NaN : sum / count;
+      }
+      return avg;
+    }
+  }
+}
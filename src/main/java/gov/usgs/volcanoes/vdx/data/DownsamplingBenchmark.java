@@ -0,0 +1,233 @@
+package gov.usgs.volcanoes.vdx.data;
+
+import gov.usgs.volcanoes.core.legacy.Arguments;
+import gov.usgs.volcanoes.core.math.DownsamplingType;
+import gov.usgs.volcanoes.core.util.UtilException;
+import gov.usgs.volcanoes.vdx.db.VDXDatabase;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Command line tool comparing downsampling in SQL, as done by
+ * {@link SQLDataSource#getDownsamplingSQL(String, String, DownsamplingType, int)}, with
+ * downsampling rows in Java as they are streamed from the server by {@link Downsampler}. Reports
+ * elapsed time and rows returned for each method over the whole of a channel table.
+ *
+ * @author Tom Parker
+ */
+public class DownsamplingBenchmark {
+
+  private static final String DEFAULT_CONFIG_FILE = "VDX.config";
+  private static final String DEFAULT_TABLE = "bench_downsample";
+  private static final int INSERT_BATCH = 10000;
+
+  private final VDXDatabase database;
+  private final String table;
+
+  /**
+   * Constructor.
+   *
+   * @param database database connection, already using the benchmark database
+   * @param table channel table with j2ksec and value columns
+   */
+  public DownsamplingBenchmark(VDXDatabase database, String table) {
+    this.database = database;
+    this.table = table;
+  }
+
+  /**
+   * Replace the table with a synthetic channel of random walk values, one row per second.
+   *
+   * @param rows number of rows
+   * @throws SQLException if the table can't be created
+   */
+  public void populate(int rows) throws SQLException {
+    Statement st = database.getStatement();
+    st.execute("DROP TABLE IF EXISTS " + table);
+    st.execute("CREATE TABLE " + table
+        + " (j2ksec DOUBLE PRIMARY KEY, a DOUBLE, b DOUBLE, c DOUBLE)");
+
+    Random random = new Random(0);
+    double[] values = new double[3];
+    for (int i = 0; i < rows; i += INSERT_BATCH) {
+      StringBuilder sql = new StringBuilder("INSERT INTO " + table + " VALUES ");
+      int n = Math.min(INSERT_BATCH, rows - i);
+      for (int j = 0; j < n; j++) {
+        for (int k = 0; k < values.length; k++) {
+          values[k] += random.nextGaussian();
+        }
+        sql.append(j == 0 ? "(" : ",(").append(i + j);
+        for (double v : values) {
+          sql.append(",").append(v);
+        }
+        sql.append(")");
+      }
+      st.execute(sql.toString());
+    }
+  }
+
+  /**
+   * Time SQL and Java downsampling over the whole table and print the results.
+   *
+   * @param dsInt downsampling interval
+   * @throws SQLException if a query fails
+   * @throws UtilException if downsampling can't be set up
+   */
+  public void run(int dsInt) throws SQLException, UtilException {
+    ResultSet rs = database.getStatement().executeQuery(
+        "SELECT MIN(j2ksec), MAX(j2ksec), COUNT(*) FROM " + table);
+    rs.next();
+    double st = rs.getDouble(1);
+    double et = rs.getDouble(2);
+    long count = rs.getLong(3);
+    rs.close();
+    System.out.printf("%s: %d rows, dsInt %d%n", table, count, dsInt);
+
+    String sql = "SELECT j2ksec, a, b, c FROM " + table
+        + " WHERE j2ksec >= ? AND j2ksec <= ? ORDER BY j2ksec";
+    runSql("sql decimate", sql, DownsamplingType.DECIMATE, st, et, dsInt);
+    runSql("sql mean", sql, DownsamplingType.MEAN, st, et, dsInt);
+    for (String method : new String[] {"decimate", "mean", "minmax", "lttb"}) {
+      runJava("java " + method, sql, method, st, et, dsInt);
+    }
+  }
+
+  /**
+   * Time the SQL rewrite of a query.
+   *
+   * @param name label to print
+   * @param sql query
+   * @param ds downsampling type
+   * @param st start time
+   * @param et end time
+   * @param dsInt downsampling interval
+   * @throws SQLException if the query fails
+   * @throws UtilException if the query can't be rewritten
+   */
+  @SuppressWarnings("deprecation")
+  private void runSql(String name, String sql, DownsamplingType ds, double st, double et,
+      int dsInt) throws SQLException, UtilException {
+    final long start = System.currentTimeMillis();
+    PreparedStatement ps = database.getConnection()
+        .prepareStatement(SQLDataSource.getDownsamplingSQL(sql, "j2ksec", ds, dsInt));
+    int p = 1;
+    if (ds.equals(DownsamplingType.MEAN)) {
+      ps.setDouble(p++, st);
+      ps.setInt(p++, dsInt);
+    }
+    ps.setDouble(p++, st);
+    ps.setDouble(p++, et);
+    ResultSet rs = ps.executeQuery();
+    int rows = 0;
+    while (rs.next()) {
+      for (int i = 1; i <= 4; i++) {
+        rs.getDouble(i);
+      }
+      rows++;
+    }
+    rs.close();
+    ps.close();
+    print(name, rows, System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Time a query streamed through a Java downsampler.
+   *
+   * @param name label to print
+   * @param sql query
+   * @param method downsampling method
+   * @param st start time
+   * @param et end time
+   * @param dsInt downsampling interval
+   * @throws SQLException if the query fails
+   * @throws UtilException if the downsampler can't be created
+   */
+  private void runJava(String name, String sql, String method, double st, double et, int dsInt)
+      throws SQLException, UtilException {
+    final long start = System.currentTimeMillis();
+    Downsampler downsampler = Downsampler.create(DownsamplingType.NONE, method, st, dsInt, 1);
+    Connection conn = database.getConnection();
+    PreparedStatement ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+        ResultSet.CONCUR_READ_ONLY);
+    ps.setFetchSize(Integer.MIN_VALUE);
+    ps.setDouble(1, st);
+    ps.setDouble(2, et);
+    ResultSet rs = ps.executeQuery();
+    while (rs.next()) {
+      double[] row = new double[4];
+      for (int i = 0; i < 4; i++) {
+        row[i] = rs.getDouble(i + 1);
+      }
+      downsampler.add(row);
+    }
+    downsampler.finish();
+    rs.close();
+    ps.close();
+    print(name, downsampler.getRows().size(), System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Print one result line.
+   *
+   * @param name label
+   * @param rows rows returned
+   * @param ms elapsed time in milliseconds
+   */
+  private void print(String name, int rows, long ms) {
+    System.out.printf("%-14s %10d rows %8d ms%n", name, rows, ms);
+  }
+
+  /**
+   * Main method, provide command-line interface.
+   *
+   * @param as command line args
+   */
+  public static void main(String[] as) {
+    Set<String> flags = new HashSet<String>();
+    Set<String> kvs = new HashSet<String>();
+    kvs.add("-c");
+    kvs.add("-n");
+    kvs.add("-t");
+    kvs.add("-p");
+    kvs.add("-d");
+    Arguments args = new Arguments(as, flags, kvs);
+
+    String cf = args.get("-c");
+    if (cf == null) {
+      cf = DEFAULT_CONFIG_FILE;
+    }
+    String name = args.get("-n");
+    if (name == null) {
+      System.out.println("<DownsamplingBenchmark> [-c configfile] -n <database> [-t table] "
+          + "[-p populate rows, e.g. 10000000] [-d dsInt]");
+      System.exit(-1);
+    }
+    String table = args.get("-t") == null ? DEFAULT_TABLE : args.get("-t");
+    int dsInt = args.get("-d") == null ? 60 : Integer.parseInt(args.get("-d"));
+
+    VDXDatabase db = VDXDatabase.getVDXDatabase(cf);
+    if (db == null || !db.useDatabase(name)) {
+      System.out.println("Could not connect to VDX database");
+      System.exit(-1);
+    }
+
+    try {
+      DownsamplingBenchmark benchmark = new DownsamplingBenchmark(db, table);
+      if (args.get("-p") != null) {
+        benchmark.populate(Integer.parseInt(args.get("-p")));
+      }
+      benchmark.run(dsInt);
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      db.release();
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package gov.usgs.volcanoes.vdx.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of writing rows in batches: for each batch the rows it held, the rows the database
+ * reported as affected and, if it failed, why. Batches are committed in groups. A batch that fails
+ * on its own is rolled back alone; a failure that rolls back the transaction also fails the earlier
+ * batches of its group.
+ *
+ * @author Tom Parker
+ */
+public class InsertResult {
+
+  private final int rows;
+  private final List<Batch> batches;
+  private int committed;
+
+  /**
+   * One batch of rows.
+   */
+  public static class Batch {
+    private final int firstRow;
+    private final int rows;
+    private final int affected;
+    private String error;
+
+    /**
+     * Constructor.
+     *
+     * @param firstRow index of the first row of the batch
+     * @param rows number of rows
+     * @param affected rows the database reported as affected
+     * @param error reason the batch failed, null if it succeeded
+     */
+    Batch(int firstRow, int rows, int affected, String error) {
+      this.firstRow = firstRow;
+      this.rows = rows;
+      this.affected = affected;
+      this.error = error;
+    }
+
+    /**
+     * Get the index of the first row of the batch.
+     *
+     * @return row index
+     */
+    public int getFirstRow() {
+      return firstRow;
+    }
+
+    /**
+     * Get the number of rows in the batch.
+     *
+     * @return rows
+     */
+    public int getRows() {
+      return rows;
+    }
+
+    /**
+     * Get the number of rows affected as reported by the database, which for MySQL counts 1 for
+     * each row inserted and 2 for each row updated.
+     *
+     * @return affected rows
+     */
+    public int getAffected() {
+      return affected;
+    }
+
+    /**
+     * Get the reason the batch failed.
+     *
+     * @return error message, null if the batch was written
+     */
+    public String getError() {
+      return error;
+    }
+
+    /**
+     * Describe the batch.
+     *
+     * @return rows and outcome
+     */
+    public String toString() {
+      return "rows " + firstRow + "-" + (firstRow + rows - 1) + ": "
+          + (error == null ? affected + " affected" : error);
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param rows number of rows to write
+   */
+  public InsertResult(int rows) {
+    this.rows = rows;
+    batches = new ArrayList<Batch>();
+  }
+
+  /**
+   * Record a batch that was written, but not yet committed.
+   *
+   * @param firstRow index of the first row of the batch
+   * @param rows number of rows
+   * @param affected rows the database reported as affected
+   */
+  public void written(int firstRow, int rows, int affected) {
+    batches.add(new Batch(firstRow, rows, affected, null));
+  }
+
+  /**
+   * Record that all batches written so far were committed.
+   */
+  public void committed() {
+    committed = batches.size();
+  }
+
+  /**
+   * Record a batch that failed, and fail the uncommitted batches rolled back with it.
+   *
+   * @param firstRow index of the first row of the batch
+   * @param rows number of rows
+   * @param error reason
+   */
+  public void failed(int firstRow, int rows, String error) {
+    for (int i = committed; i < batches.size(); i++) {
+      Batch b = batches.get(i);
+      if (b.error == null) {
+        b.error = "rolled back: " + error;
+      }
+    }
+    batches.add(new Batch(firstRow, rows, 0, error));
+    committed = batches.size();
+  }
+
+  /**
+   * Record a batch that failed and was rolled back on its own, leaving the batches before it.
+   *
+   * @param firstRow index of the first row of the batch
+   * @param rows number of rows
+   * @param error reason
+   */
+  public void rejected(int firstRow, int rows, String error) {
+    batches.add(new Batch(firstRow, rows, 0, error));
+  }
+
+  /**
+   * Get the number of rows to write.
+   *
+   * @return rows
+   */
+  public int getRows() {
+    return rows;
+  }
+
+  /**
+   * Get the number of rows in batches that were written.
+   *
+   * @return rows written
+   */
+  public int getWritten() {
+    int written = 0;
+    for (Batch b : batches) {
+      if (b.error == null) {
+        written += b.rows;
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Get the number of rows in batches that failed or were never attempted.
+   *
+   * @return rows not written
+   */
+  public int getFailed() {
+    return rows - getWritten();
+  }
+
+  /**
+   * Check whether all rows were written.
+   *
+   * @return true if no row failed
+   */
+  public boolean isSuccess() {
+    return getFailed() == 0;
+  }
+
+  /**
+   * Get the batches.
+   *
+   * @return batches in row order
+   */
+  public List<Batch> getBatches() {
+    return Collections.unmodifiableList(batches);
+  }
+
+  /**
+   * Get the batches that failed.
+   *
+   * @return failed batches in row order
+   */
+  public List<Batch> getErrors() {
+    List<Batch> errors = new ArrayList<Batch>();
+    for (Batch b : batches) {
+      if (b.error != null) {
+        errors.add(b);
+      }
+    }
+    return errors;
+  }
+
+  /**
+   * Describe the outcome.
+   *
+   * @return rows written and failed
+   */
+  public String toString() {
+    return getWritten() + " of " + rows + " rows written in " + batches.size() + " batches, "
+        + getErrors().size() + " failed";
+  }
+}
@@ -0,0 +1,122 @@
+package gov.usgs.volcanoes.vdx.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of channel, column, rank and translation metadata read by a SQL data source. Entries
+ * expire after a fixed time so changes made by other processes are picked up, and the whole cache
+ * is dropped when the data source writes metadata itself.
+ *
+ * <p>A value loaded while the cache is being invalidated is not stored: callers read the
+ * generation before querying and hand it back to {@link #put(String, Object, long)}.
+ *
+ * @author Tom Parker
+ */
+public class MetadataCache {
+
+  private final long ttl;
+  private final ConcurrentHashMap<String, Entry> entries;
+  private final AtomicLong generation;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+
+  /**
+   * Cached value and the time it was loaded.
+   */
+  private static class Entry {
+    private final Object value;
+    private final long loaded;
+    private final long generation;
+
+    /**
+     * Constructor.
+     *
+     * @param value cached value
+     * @param generation cache generation value was loaded in
+     */
+    Entry(Object value, long generation) {
+      this.value = value;
+      this.generation = generation;
+      loaded = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ttl time in milliseconds an entry stays valid, 0 or less disables the cache
+   */
+  public MetadataCache(long ttl) {
+    this.ttl = ttl;
+    entries = new ConcurrentHashMap<String, Entry>();
+    generation = new AtomicLong();
+    hits = new AtomicLong();
+    misses = new AtomicLong();
+  }
+
+  /**
+   * Get a cached value.
+   *
+   * @param <T> type of value
+   * @param key cache key
+   * @return value, or null if not cached or expired
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(String key) {
+    if (ttl <= 0) {
+      return null;
+    }
+    Entry entry = entries.get(key);
+    if (entry == null || entry.generation != generation.get()
+        || System.currentTimeMillis() - entry.loaded > ttl) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return (T) entry.value;
+  }
+
+  /**
+   * Getter for the current generation, to be read before loading a value.
+   *
+   * @return generation
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Store a value unless the cache was invalidated since it was loaded.
+   *
+   * @param key cache key
+   * @param value value to cache, ignored if null
+   * @param loadedGeneration generation read before the value was loaded
+   */
+  public void put(String key, Object value, long loadedGeneration) {
+    if (ttl <= 0 || value == null || loadedGeneration != generation.get()) {
+      return;
+    }
+    entries.put(key, new Entry(value, loadedGeneration));
+  }
+
+  /**
+   * Drop all cached values.
+   */
+  public void invalidate() {
+    generation.incrementAndGet();
+    entries.clear();
+  }
+
+  /**
+   * Describe cache size and hit rate.
+   *
+   * @return cache statistics
+   */
+  public String toString() {
+    long h = hits.get();
+    long m = misses.get();
+    return String.format("entries=%d; hits=%d; misses=%d; hitRate=%.2f", entries.size(), h, m,
+        h + m == 0 ? 0.0 : (double) h / (h + m));
+  }
+}
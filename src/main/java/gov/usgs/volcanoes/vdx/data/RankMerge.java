@@ -0,0 +1,279 @@
+package gov.usgs.volcanoes.vdx.data;
+
+import gov.usgs.volcanoes.vdx.db.PooledConnection;
+import gov.usgs.volcanoes.vdx.db.QueryGuard;
+import gov.usgs.volcanoes.vdx.db.VDXDatabase;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Best available data read as one query per rank instead of one query over all ranks. Each rank
+ * is queried on its own thread and connection, in time order, and the streams are merged as they
+ * arrive, keeping for every time the row of the highest ranked stream that has one. Only winning
+ * rows are passed on, and reading stops as soon as the caller has enough.
+ *
+ * <p>The caller's connection is returned to the pool and the connections of all streams are
+ * borrowed together before any query starts, so merges never hold connections while waiting for
+ * more. Closing the merge cancels the queries still running.
+ *
+ * @author Tom Parker
+ */
+public class RankMerge {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RankMerge.class);
+  private static final int QUEUE_ROWS = 1024;
+  private static final double[] END = new double[0];
+
+  private final VDXDatabase database;
+  private final Stream[] streams;
+  private final double[][] heads;
+  private boolean started;
+
+  /**
+   * Rows of one rank, read by a worker thread into a bounded queue.
+   */
+  private static class Stream implements Runnable {
+    private final SQLDataSource source;
+    private final VDXDatabase database;
+    private final String dbName;
+    private final String sql;
+    private final Object[] params;
+    private final int rid;
+    private final int limit;
+    private final int columns;
+    private final BlockingQueue<double[]> queue;
+    private final QueryGuard guard;
+    private PooledConnection connection;
+    private PreparedStatement statement;
+    private volatile boolean cancelled;
+    private volatile SQLException error;
+
+    /**
+     * Constructor.
+     *
+     * @param source data source, for null handling
+     * @param database database
+     * @param dbName database name, without prefix
+     * @param sql query for one rank
+     * @param params leading query parameters
+     * @param rid rank id, bound after the leading parameters
+     * @param limit row limit bound after the rank id, 0 if the query has no LIMIT
+     * @param columns number of columns to read
+     */
+    Stream(SQLDataSource source, VDXDatabase database, String dbName, String sql,
+        Object[] params, int rid, int limit, int columns) {
+      this.source = source;
+      this.database = database;
+      this.dbName = dbName;
+      this.sql = sql;
+      this.params = params;
+      this.rid = rid;
+      this.limit = limit;
+      this.columns = columns;
+      queue = new ArrayBlockingQueue<double[]>(QUEUE_ROWS);
+      guard = QueryGuard.current();
+    }
+
+    public void run() {
+      PreparedStatement ps = null;
+      ResultSet rs = null;
+      QueryGuard.bind(guard);
+      database.adopt(connection);
+      try {
+        database.useDatabase(dbName);
+        ps = database.watch(database.getConnection().prepareStatement(sql,
+            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY));
+        synchronized (this) {
+          statement = ps;
+        }
+        if (cancelled) {
+          return;
+        }
+        ps.setFetchSize(Integer.MIN_VALUE);
+        int p = 1;
+        for (Object param : params) {
+          ps.setObject(p++, param);
+        }
+        ps.setInt(p++, rid);
+        if (limit != 0) {
+          ps.setInt(p++, limit);
+        }
+        rs = ps.executeQuery();
+        double last = Double.NaN;
+        while (!cancelled && rs.next()) {
+
+          // a rank has one row for each time, keep the first if it has more
+          double j2ksec = rs.getDouble(1);
+          if (Double.compare(last, j2ksec) == 0) {
+            continue;
+          }
+          last = j2ksec;
+          double[] row = new double[columns];
+          for (int i = 0; i < columns; i++) {
+            row[i] = source.getDoubleNullCheck(rs, i + 1);
+          }
+          offer(row);
+        }
+      } catch (SQLException e) {
+        error = e;
+      } catch (RuntimeException e) {
+        error = new SQLException(e);
+      } finally {
+        synchronized (this) {
+          statement = null;
+        }
+        try {
+          if (rs != null) {
+            rs.close();
+          }
+          if (ps != null) {
+            ps.close();
+          }
+        } catch (SQLException e) {
+          LOGGER.warn("RankMerge.run() close failed. ({})", dbName, e);
+        }
+        database.release();
+        QueryGuard.bind(null);
+        offer(END);
+      }
+    }
+
+    /**
+     * Stop the stream, cancelling its query on the server if it is running, so closing the result
+     * set doesn't read the rest of the rows.
+     */
+    void cancel() {
+      cancelled = true;
+      queue.clear();
+      synchronized (this) {
+        if (statement != null) {
+          try {
+            statement.cancel();
+          } catch (SQLException e) {
+            LOGGER.warn("RankMerge.cancel() failed. ({})", dbName, e);
+          }
+        }
+      }
+    }
+
+    /**
+     * Put a row on the queue, waiting for space unless the stream has been cancelled.
+     *
+     * @param row data row
+     */
+    private void offer(double[] row) {
+      try {
+        while (!cancelled && !queue.offer(row, 100, TimeUnit.MILLISECONDS)) {
+          continue;
+        }
+      } catch (InterruptedException e) {
+        cancelled = true;
+      }
+    }
+
+    /**
+     * Take the next row, waiting for the worker.
+     *
+     * @return data row, null at the end of the stream
+     * @throws SQLException if the query failed
+     */
+    double[] take() throws SQLException {
+      double[] row;
+      try {
+        row = queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while merging ranks.");
+      }
+      if (row == END) {
+        queue.offer(END);
+        if (error != null) {
+          throw error;
+        }
+        return null;
+      }
+      return row;
+    }
+  }
+
+  /**
+   * Constructor. Nothing is queried until the first row is read.
+   *
+   * @param source data source
+   * @param database database
+   * @param dbName database name, without prefix
+   * @param sql query for one rank in time order. Its parameters are the leading parameters, the
+   *        rank id and, if limit is set, the row limit
+   * @param params leading query parameters
+   * @param rids rank ids, highest rank first
+   * @param limit row limit to bind for each rank, 0 if the query has no LIMIT
+   * @param columns number of columns to read, time first
+   */
+  public RankMerge(SQLDataSource source, VDXDatabase database, String dbName, String sql,
+      Object[] params, List<Integer> rids, int limit, int columns) {
+    this.database = database;
+    streams = new Stream[rids.size()];
+    for (int i = 0; i < streams.length; i++) {
+      streams[i] = new Stream(source, database, dbName, sql, params, rids.get(i), limit, columns);
+    }
+    heads = new double[streams.length][];
+  }
+
+  /**
+   * Get the next merged row, starting the queries on the first call.
+   *
+   * @return data row, null when all streams are exhausted
+   * @throws SQLException if a query failed or no connections could be borrowed
+   */
+  public double[] next() throws SQLException {
+    if (!started) {
+      started = true;
+      List<PooledConnection> connections = database.reserve(streams.length);
+      ExecutorService ex = SQLDataSource.getExecutor();
+      for (int i = 0; i < streams.length; i++) {
+        streams[i].connection = connections.get(i);
+        ex.execute(streams[i]);
+      }
+      for (int i = 0; i < streams.length; i++) {
+        heads[i] = streams[i].take();
+      }
+    }
+
+    // earliest time wins, ties go to the first, highest ranked, stream
+    int best = -1;
+    for (int i = 0; i < heads.length; i++) {
+      if (heads[i] != null && (best == -1 || heads[i][0] < heads[best][0])) {
+        best = i;
+      }
+    }
+    if (best == -1) {
+      return null;
+    }
+    double[] row = heads[best];
+    for (int i = 0; i < heads.length; i++) {
+      while (heads[i] != null && Double.compare(heads[i][0], row[0]) == 0) {
+        heads[i] = streams[i].take();
+      }
+    }
+    return row;
+  }
+
+  /**
+   * Stop all queries. Safe to call more than once.
+   */
+  public void close() {
+    for (Stream stream : streams) {
+      stream.cancel();
+    }
+  }
+}
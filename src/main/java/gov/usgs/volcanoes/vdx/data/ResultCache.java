@@ -0,0 +1,245 @@
+package gov.usgs.volcanoes.vdx.data;
+
+import gov.usgs.volcanoes.core.time.J2kSec;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide cache of data rows split into fixed time tiles. A request covering several tiles
+ * reuses the tiles already cached and only queries the missing ones. Tiles that are not yet
+ * entirely in the past are never stored, tiles touched by an insert are dropped, and the least
+ * recently used tiles are evicted when the memory budget is exceeded. Inserts made by other
+ * processes, such as importers without [source].notify, are only seen once a tile expires, after
+ * its time to live.
+ *
+ * @author Tom Parker
+ */
+public class ResultCache {
+
+  private static final ResultCache instance = new ResultCache();
+
+  private long budget;
+  private double tileSize;
+  private double liveMargin;
+  private long ttl;
+
+  private LinkedHashMap<String, Tile> tiles;
+  private long bytes;
+  private long generation;
+
+  private long hits;
+  private long misses;
+  private long stores;
+  private long evictions;
+  private long expirations;
+  private long invalidations;
+
+  /**
+   * Rows of one tile.
+   */
+  private static class Tile {
+    private final String scope;
+    private final long index;
+    private final List<double[]> rows;
+    private final long bytes;
+    private final long stored;
+
+    /**
+     * Constructor.
+     *
+     * @param scope source and channel the rows belong to
+     * @param index tile index
+     * @param rows data rows
+     */
+    Tile(String scope, long index, List<double[]> rows) {
+      this.scope = scope;
+      this.index = index;
+      this.rows = rows;
+      int columns = rows.isEmpty() ? 0 : rows.get(0).length;
+      bytes = 128 + rows.size() * (32L + 8L * columns);
+      stored = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Constructor. The cache is disabled until {@link #configure(long, double, double, double)} is
+   * called.
+   */
+  private ResultCache() {
+    tileSize = 3600;
+    tiles = new LinkedHashMap<String, Tile>(64, 0.75f, true);
+  }
+
+  /**
+   * Get the process-wide cache.
+   *
+   * @return result cache
+   */
+  public static ResultCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Set memory budget and tile geometry, dropping anything already cached.
+   *
+   * @param budgetBytes approximate memory budget in bytes, 0 disables the cache
+   * @param tileSeconds length of a tile in seconds
+   * @param liveSeconds tiles ending less than this many seconds ago are not cached
+   * @param ttlSeconds seconds a tile is served before it is read again, 0 for no limit
+   */
+  public synchronized void configure(long budgetBytes, double tileSeconds, double liveSeconds,
+      double ttlSeconds) {
+    budget = budgetBytes;
+    tileSize = Math.max(60, tileSeconds);
+    liveMargin = Math.max(0, liveSeconds);
+    ttl = (long) (Math.max(0, ttlSeconds) * 1000);
+    clear();
+  }
+
+  /**
+   * Check if the cache is in use.
+   *
+   * @return true if enabled
+   */
+  public synchronized boolean isEnabled() {
+    return budget > 0;
+  }
+
+  /**
+   * Get index of the tile containing a time.
+   *
+   * @param t j2ksec
+   * @return tile index
+   */
+  public synchronized long getTileIndex(double t) {
+    return (long) Math.floor(t / tileSize);
+  }
+
+  /**
+   * Get start time of a tile. A tile includes its start time and excludes the start time of the
+   * next tile.
+   *
+   * @param index tile index
+   * @return j2ksec
+   */
+  public synchronized double getTileStart(long index) {
+    return index * tileSize;
+  }
+
+  /**
+   * Getter for the current generation, to be read before querying tiles.
+   *
+   * @return generation
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Get the rows of a cached tile.
+   *
+   * @param scope source and channel
+   * @param variant request parameters other than time that the rows depend on
+   * @param index tile index
+   * @return rows, which must not be modified, or null if not cached or expired
+   */
+  public synchronized List<double[]> get(String scope, String variant, long index) {
+    String key = scope + "|" + variant + "|" + index;
+    Tile tile = tiles.get(key);
+    if (tile != null && ttl > 0 && System.currentTimeMillis() - tile.stored > ttl) {
+      tiles.remove(key);
+      bytes -= tile.bytes;
+      expirations++;
+      tile = null;
+    }
+    if (tile == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return tile.rows;
+  }
+
+  /**
+   * Store the rows of a tile, unless the tile is still live or an insert invalidated tiles since
+   * the rows were queried.
+   *
+   * @param scope source and channel
+   * @param variant request parameters other than time that the rows depend on
+   * @param index tile index
+   * @param rows rows of the tile, which must not be modified afterwards
+   * @param loadedGeneration generation read before the rows were queried
+   */
+  public synchronized void put(String scope, String variant, long index, List<double[]> rows,
+      long loadedGeneration) {
+    if (budget <= 0 || loadedGeneration != generation) {
+      return;
+    }
+    if (getTileStart(index + 1) > J2kSec.fromDate(new Date()) - liveMargin) {
+      return;
+    }
+    Tile tile = new Tile(scope, index, rows);
+    if (tile.bytes > budget / 4) {
+      return;
+    }
+    Tile old = tiles.put(scope + "|" + variant + "|" + index, tile);
+    if (old != null) {
+      bytes -= old.bytes;
+    }
+    bytes += tile.bytes;
+    stores++;
+    for (Iterator<Tile> it = tiles.values().iterator(); it.hasNext() && bytes > budget;) {
+      bytes -= it.next().bytes;
+      it.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * Drop tiles of a source and channel overlapping a time range.
+   *
+   * @param scope source and channel
+   * @param st start time
+   * @param et end time
+   */
+  public synchronized void invalidate(String scope, double st, double et) {
+    generation++;
+    long first = getTileIndex(st);
+    long last = getTileIndex(et);
+    for (Iterator<Map.Entry<String, Tile>> it = tiles.entrySet().iterator(); it.hasNext();) {
+      Tile tile = it.next().getValue();
+      if (tile.scope.equals(scope) && tile.index >= first && tile.index <= last) {
+        bytes -= tile.bytes;
+        it.remove();
+        invalidations++;
+      }
+    }
+  }
+
+  /**
+   * Drop all tiles.
+   */
+  public synchronized void clear() {
+    generation++;
+    tiles.clear();
+    bytes = 0;
+  }
+
+  /**
+   * Describe cache size and hit rate.
+   *
+   * @return cache statistics
+   */
+  public synchronized String toString() {
+    return String.format(
+        "tiles=%d; bytes=%d; budget=%d; hits=%d; misses=%d; hitRate=%.2f; stores=%d; "
+            + "evictions=%d; expirations=%d; invalidations=%d",
+        tiles.size(), bytes, budget, hits, misses,
+        hits + misses == 0 ? 0.0 : (double) hits / (hits + misses), stores, evictions,
+        expirations, invalidations);
+  }
+}
@@ -0,0 +1,373 @@
+package gov.usgs.volcanoes.vdx.data;
+
+import gov.usgs.volcanoes.vdx.db.VDXDatabase;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Multi-resolution rollups of a channel table. For every level there is a table named after the
+ * channel with an '_r' and the level in seconds appended, holding one row per time bucket (and
+ * rank and translation, where the channel has them). Each row has the number of data rows, the
+ * time of the first of them in t0 and, for every column, its mean under the column's own name plus
+ * count, minimum and maximum in columns suffixed '_n', '_min' and '_max'. The finest level is
+ * computed from the channel table and every other level from the level below it.
+ *
+ * <p>Mean downsampling reads {@link #getMeanSql}, a derived table in the shape of the channel
+ * table, so queries written against a channel table run unchanged against it.
+ *
+ * <p>The rollups table of the database records the channels whose rollups are maintained, and
+ * whether they are complete, which is the case once a backfill has covered all existing data.
+ *
+ * @author Tom Parker
+ */
+public class RollupTables {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RollupTables.class);
+
+  public static final int[] LEVELS = new int[] {60, 600, 3600, 86400};
+
+  public static final int STATE_NONE = -1;
+  public static final int STATE_BUILDING = 0;
+  public static final int STATE_COMPLETE = 1;
+
+  private final VDXDatabase database;
+
+  /**
+   * Constructor.
+   *
+   * @param database database, already using the data source database
+   */
+  public RollupTables(VDXDatabase database) {
+    this.database = database;
+  }
+
+  /**
+   * Get name of a rollup table.
+   *
+   * @param code channel code
+   * @param level bucket length in seconds
+   * @return table name
+   */
+  public static String getTableName(String code, int level) {
+    return code + "_r" + level;
+  }
+
+  /**
+   * Get the coarsest level whose buckets each fall into a single downsampling bucket aligned to
+   * the epoch, which is the case when it divides the interval.
+   *
+   * @param interval downsampling interval in seconds
+   * @return level in seconds, or 0 if there is none
+   */
+  public static int getLevel(int interval) {
+    int level = 0;
+    for (int l : LEVELS) {
+      if (interval % l == 0) {
+        level = l;
+      }
+    }
+    return level;
+  }
+
+  /**
+   * Get the start of the downsampling bucket, aligned to the epoch like the rollup buckets, that
+   * holds a time.
+   *
+   * @param st start time of a request
+   * @param interval downsampling interval in seconds
+   * @return start of the first downsampling bucket
+   */
+  public static double getOrigin(double st, int interval) {
+    return Math.floor(st / interval) * interval;
+  }
+
+  /**
+   * Check whether a time range holds at least one whole bucket of a level.
+   *
+   * @param st start time
+   * @param et end time
+   * @param level rollup level
+   * @return true if there is a whole bucket to read from the rollups
+   */
+  public static boolean covers(double st, double et, int level) {
+    return Math.ceil(st / level) * level < Math.floor(et / level) * level;
+  }
+
+  /**
+   * Build a derived table of the means of a channel over downsampling buckets aligned to the
+   * epoch, see {@link #getOrigin(double, int)}, from the rollups of a level for the rollup buckets
+   * wholly inside the time range and from the channel table for the rows before the first and
+   * after the last of them. Means are weighted by the number of values behind them and stamped
+   * with the time of the first row, as the mean of the data rows would be. Rows with different
+   * translation or rank ids in a bucket give separate rows.
+   *
+   * @param code channel code
+   * @param columns all columns of the channel table
+   * @param translations if the channel table has a tid column
+   * @param ranks if the channel table has a rid column
+   * @param level rollup level, see {@link #getLevel(int)}
+   * @param st start time
+   * @param et end time
+   * @param interval downsampling interval in seconds
+   * @return derived table, without alias
+   */
+  public static String getMeanSql(String code, List<Column> columns, boolean translations,
+      boolean ranks, int level, double st, double et, int interval) {
+    String keys = (translations ? ", tid" : "") + (ranks ? ", rid" : "");
+    final double first = Math.ceil(st / level) * level;
+    final double last = Math.floor(et / level) * level;
+    StringBuilder sql = new StringBuilder("(SELECT MIN(t0) AS j2ksec").append(keys);
+    for (Column column : columns) {
+      String c = column.name;
+      sql.append(", SUM(").append(c).append(" * ").append(c).append("_n) / SUM(").append(c)
+          .append("_n) AS ").append(c);
+    }
+    sql.append(" FROM (SELECT t0").append(keys);
+    for (Column column : columns) {
+      sql.append(", ").append(column.name).append(", ").append(column.name).append("_n");
+    }
+    sql.append(" FROM ").append(getTableName(code, level)).append(" WHERE j2ksec >= ")
+        .append(first).append(" AND j2ksec < ").append(last).append(" UNION ALL SELECT j2ksec")
+        .append(keys);
+    for (Column column : columns) {
+      sql.append(", ").append(column.name).append(", ").append(column.name)
+          .append(" IS NOT NULL");
+    }
+    sql.append(" FROM ").append(code).append(" WHERE j2ksec >= ").append(st)
+        .append(" AND j2ksec < ").append(first).append(" OR j2ksec >= ").append(last)
+        .append(" AND j2ksec <= ").append(et).append(") u GROUP BY FLOOR((t0 - ")
+        .append(getOrigin(st, interval)).append(") / ").append(interval).append(")")
+        .append(keys).append(")");
+    return sql.toString();
+  }
+
+  /**
+   * Get the rollup state of a channel.
+   *
+   * @param code channel code
+   * @return STATE_NONE, STATE_BUILDING or STATE_COMPLETE
+   * @throws SQLException if the query fails
+   */
+  public int getState(String code) throws SQLException {
+    ResultSet rs = database.getStatement().executeQuery("SHOW TABLES LIKE 'rollups'");
+    boolean exists = rs.next();
+    rs.close();
+    if (!exists) {
+      return STATE_NONE;
+    }
+    PreparedStatement ps = database.getPreparedStatement(
+        "SELECT complete FROM rollups WHERE code = ?");
+    ps.setString(1, code);
+    rs = ps.executeQuery();
+    int state = rs.next() ? rs.getInt(1) : STATE_NONE;
+    rs.close();
+    return state;
+  }
+
+  /**
+   * Record the rollup state of a channel.
+   *
+   * @param code channel code
+   * @param state STATE_BUILDING or STATE_COMPLETE
+   * @throws SQLException if the update fails
+   */
+  public void setState(String code, int state) throws SQLException {
+    PreparedStatement ps = database.getPreparedStatement(
+        "REPLACE INTO rollups (code, complete) VALUES (?, ?)");
+    ps.setString(1, code);
+    ps.setInt(2, state);
+    ps.execute();
+  }
+
+  /**
+   * Create the rollup tables of a channel, and the rollups table, if they don't exist.
+   *
+   * @param code channel code
+   * @param columns all columns of the channel table
+   * @param translations if the channel table has a tid column
+   * @param ranks if the channel table has a rid column
+   * @throws SQLException if a table can't be created
+   */
+  public void create(String code, List<Column> columns, boolean translations, boolean ranks)
+      throws SQLException {
+    database.getStatement().execute("CREATE TABLE IF NOT EXISTS rollups "
+        + "(code VARCHAR(64) NOT NULL, complete TINYINT NOT NULL, PRIMARY KEY(code))");
+
+    for (int level : LEVELS) {
+      StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ")
+          .append(getTableName(code, level)).append(" (j2ksec DOUBLE NOT NULL");
+      if (translations) {
+        sql.append(",tid INT DEFAULT 1 NOT NULL");
+      }
+      if (ranks) {
+        sql.append(",rid INT DEFAULT 1 NOT NULL");
+      }
+      sql.append(",n INT NOT NULL,t0 DOUBLE NOT NULL");
+      for (Column column : columns) {
+        sql.append(",").append(column.name).append(" DOUBLE");
+        sql.append(",").append(column.name).append("_n INT");
+        sql.append(",").append(column.name).append("_min DOUBLE");
+        sql.append(",").append(column.name).append("_max DOUBLE");
+      }
+      sql.append(",PRIMARY KEY(j2ksec");
+      if (ranks) {
+        sql.append(",rid");
+      }
+      if (translations) {
+        sql.append(",tid");
+      }
+      sql.append("))");
+      database.getStatement().execute(sql.toString());
+    }
+  }
+
+  /**
+   * Count the data rows of a channel in the buckets lying wholly inside a time range, from the
+   * coarsest level of which at least two buckets fit. As buckets partly in the range are left out,
+   * the channel table has at least this many rows in the range.
+   *
+   * @param code channel code
+   * @param st start time
+   * @param et end time
+   * @param rid rank id, 0 for all ranks
+   * @return lower bound of the number of rows, 0 if the range is too short to tell
+   * @throws SQLException if the query fails
+   */
+  public long countRows(String code, double st, double et, int rid) throws SQLException {
+    int level = 0;
+    for (int l : LEVELS) {
+      if (et - st >= 2 * l) {
+        level = l;
+      }
+    }
+    if (level == 0) {
+      return 0;
+    }
+    String sql = "SELECT SUM(n) FROM " + getTableName(code, level)
+        + " WHERE j2ksec >= ? AND j2ksec <= ?";
+    if (rid != 0) {
+      sql += " AND rid = ?";
+    }
+    PreparedStatement ps = database.getPreparedStatement(sql);
+    ps.setDouble(1, st);
+    ps.setDouble(2, et - level);
+    if (rid != 0) {
+      ps.setInt(3, rid);
+    }
+    ResultSet rs = ps.executeQuery();
+    long rows = rs.next() ? rs.getLong(1) : 0;
+    rs.close();
+    return rows;
+  }
+
+  /**
+   * Recompute every level for the buckets overlapping a time range.
+   *
+   * @param code channel code
+   * @param columns all columns of the channel table
+   * @param translations if the channel table has a tid column
+   * @param ranks if the channel table has a rid column
+   * @param st start of the changed range
+   * @param et end of the changed range
+   * @throws SQLException if a query fails
+   */
+  public void update(String code, List<Column> columns, boolean translations, boolean ranks,
+      double st, double et) throws SQLException {
+    String keys = (translations ? ", tid" : "") + (ranks ? ", rid" : "");
+    for (int i = 0; i < LEVELS.length; i++) {
+      int level = LEVELS[i];
+      final double first = Math.floor(st / level) * level;
+      final double last = Math.floor(et / level) * level + level;
+      String table = getTableName(code, level);
+
+      StringBuilder sql = new StringBuilder("INSERT INTO ").append(table)
+          .append(" (j2ksec").append(keys).append(", n, t0");
+      for (Column column : columns) {
+        sql.append(", ").append(column.name).append(", ").append(column.name).append("_n, ")
+            .append(column.name).append("_min, ").append(column.name).append("_max");
+      }
+      sql.append(") SELECT FLOOR(j2ksec / ").append(level).append(") * ").append(level)
+          .append(" AS t").append(keys);
+      if (i == 0) {
+
+        // finest level, from the data rows
+        sql.append(", COUNT(*), MIN(j2ksec)");
+        for (Column column : columns) {
+          String c = column.name;
+          sql.append(", AVG(").append(c).append("), COUNT(").append(c).append("), MIN(")
+              .append(c).append("), MAX(").append(c).append(")");
+        }
+        sql.append(" FROM ").append(code);
+      } else {
+
+        // coarser levels, from the level below weighted by the number of values
+        sql.append(", SUM(n), MIN(t0)");
+        for (Column column : columns) {
+          String c = column.name;
+          sql.append(", SUM(").append(c).append(" * ").append(c).append("_n) / SUM(").append(c)
+              .append("_n), SUM(").append(c).append("_n), MIN(").append(c).append("_min), MAX(")
+              .append(c).append("_max)");
+        }
+        sql.append(" FROM ").append(getTableName(code, LEVELS[i - 1]));
+      }
+      sql.append(" WHERE j2ksec >= ? AND j2ksec < ? GROUP BY t").append(keys);
+
+      PreparedStatement ps = database.getPreparedStatement(
+          "DELETE FROM " + table + " WHERE j2ksec >= ? AND j2ksec < ?");
+      ps.setDouble(1, first);
+      ps.setDouble(2, last);
+      ps.execute();
+
+      ps = database.getPreparedStatement(sql.toString());
+      ps.setDouble(1, first);
+      ps.setDouble(2, last);
+      ps.execute();
+    }
+  }
+
+  /**
+   * Build the rollups of a channel from all of its existing data, a day at a time. Rollups are
+   * maintained by inserts while the backfill runs and used by queries once it has finished.
+   *
+   * @param code channel code
+   * @param columns all columns of the channel table
+   * @param translations if the channel table has a tid column
+   * @param ranks if the channel table has a rid column
+   * @throws SQLException if a query fails
+   */
+  public void backfill(String code, List<Column> columns, boolean translations, boolean ranks)
+      throws SQLException {
+    create(code, columns, translations, ranks);
+    setState(code, STATE_BUILDING);
+
+    ResultSet rs = database.getStatement().executeQuery(
+        "SELECT MIN(j2ksec), MAX(j2ksec) FROM " + code);
+    rs.next();
+    double st = rs.getDouble(1);
+    boolean empty = rs.wasNull();
+    double et = rs.getDouble(2);
+    rs.close();
+
+    if (!empty) {
+      int day = LEVELS[LEVELS.length - 1];
+      long first = (long) Math.floor(st / day);
+      long last = (long) Math.floor(et / day);
+      for (long d = first; d <= last; d++) {
+        update(code, columns, translations, ranks, d * day, d * day + day - 1);
+        if ((d - first) % 100 == 99) {
+          LOGGER.info("{}: rollups built for {} of {} days", code, d - first + 1,
+              last - first + 1);
+        }
+      }
+    }
+
+    setState(code, STATE_COMPLETE);
+    LOGGER.info("{}: rollups complete", code);
+  }
+}
@@ -9,19 +9,29 @@ import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.vdx.db.VDXDatabase;
+import gov.usgs.volcanoes.vdx.server.BinaryResult;
 import gov.usgs.volcanoes.vdx.server.RequestResult;
+import gov.usgs.volcanoes.vdx.server.StreamingResult;
 import gov.usgs.volcanoes.vdx.server.TextResult;
 
+import java.io.File;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,12 +51,20 @@ public abstract class SQLDataSource implements DataSource {
   protected String vdxName;
   protected String dbName;
 
-  protected Statement st;
-  protected PreparedStatement ps;
-  protected ResultSet rs;
-  protected String sql;
-  protected String sqlCount;
+  private static final int MAX_TILES = 1000;
+  private static final int MAX_TILED_ROWS = 100000;
+  private static final int MAX_PARAMETERS = 65535;
+  private static final String LOAD_TABLE = "vdx_load";
+
+  private static ExecutorService executor;
+
   private int maxrows = 0;
+  private MetadataCache metadata = new MetadataCache(300000);
+  private boolean rollups;
+  private boolean mergeRanks = true;
+  private String notifyAddress;
+  private int insertBatchSize = 1000;
+  private int commitRows = 10000;
 
   /**
    * Initialize the data source. Concrete realization see in the inherited classes
@@ -135,6 +153,26 @@ public abstract class SQLDataSource implements DataSource {
     return size;
   }
 
+  /**
+   * Get the shared pool of threads that run queries in parallel with the thread serving a request,
+   * creating it on first use. Tasks that query a data source must release its connection when done.
+   *
+   * @return executor
+   */
+  public static synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      final AtomicInteger count = new AtomicInteger();
+      executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "VDX/Query-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return executor;
+  }
+
   /**
    * Get error result.
    * 
@@ -157,7 +195,9 @@ public abstract class SQLDataSource implements DataSource {
    * @param dsInt time interval to average values, in seconds
    * @return sql that get only subset of records from original sql
    * @throws UtilException in case of unknown downsampling type
+   * @deprecated data sources downsample rows as they are read with {@link Downsampler}
    */
+  @Deprecated
   public static String getDownsamplingSQL(String sql, String timeColumn, DownsamplingType ds,
       int dsInt) throws UtilException {
     
@@ -227,6 +267,222 @@ public abstract class SQLDataSource implements DataSource {
     // dbName is an additional parameter that VDX classes uses, unlike Winston or Earthworm
     dbName = vdxName + "$" + getType();
     maxrows = StringUtils.stringToInt(params.getString("maxrows"), 0);
+    metadata =
+        new MetadataCache(StringUtils.stringToInt(params.getString("metadataTTL"), 300) * 1000L);
+    rollups = StringUtils.stringToBoolean(params.getString("rollups"), false);
+    mergeRanks = StringUtils.stringToBoolean(params.getString("mergeRanks"), true);
+    notifyAddress = params.getString("notify");
+    insertBatchSize =
+        Math.max(1, StringUtils.stringToInt(params.getString("insertBatchSize"), 1000));
+    commitRows = Math.max(1, StringUtils.stringToInt(params.getString("commitRows"), 10000));
+  }
+
+  /**
+   * Get the key under which inserts into this data source are announced by the
+   * {@link ChangeNotifier}.
+   *
+   * @return database prefix and name
+   */
+  public String getChangeKey() {
+    return database.getDatabasePrefix() + "_" + dbName;
+  }
+
+  /**
+   * Announce rows written to a channel, to subscribers in this process and, if the notify
+   * parameter is set, to a VDX server.
+   *
+   * @param channelCode channel table written
+   * @param st time of the first row written
+   * @param et time of the last row written
+   */
+  protected void announceInsert(String channelCode, double st, double et) {
+    ChangeNotifier.getInstance().publish(getChangeKey());
+    if (notifyAddress != null) {
+      ChangeNotifier.getInstance().forward(notifyAddress, getChangeKey(), channelCode, st, et);
+    }
+  }
+
+  /**
+   * Get rollups flag. Sources whose channel tables hold one row per time of plain numeric
+   * columns, written by defaultInsertData, override this to maintain rollup tables.
+   *
+   * @return rollups flag
+   */
+  public boolean getRollupsFlag() {
+    return false;
+  }
+
+  /**
+   * Check if rollup tables are maintained and used, which can be turned off with the rollups
+   * parameter.
+   *
+   * @return true if rollups are in use
+   */
+  private boolean useRollups() {
+    return rollups && getRollupsFlag();
+  }
+
+  /**
+   * Get the rollup state of a channel, cached with the other metadata.
+   *
+   * @param code channel code
+   * @return RollupTables state
+   * @throws SQLException if the query fails
+   */
+  private int getRollupState(String code) throws SQLException {
+    String key = "rollup|" + code;
+    Integer state = metadata.get(key);
+    if (state == null) {
+      long generation = metadata.getGeneration();
+      state = new RollupTables(database).getState(code);
+      metadata.put(key, state, generation);
+    }
+    return state;
+  }
+
+  /**
+   * Get the rollup query to read instead of a channel table. Only mean downsampling is served from
+   * rollups, once the rollups of the channel are complete, from the coarsest level that divides
+   * the downsampling interval. The downsampler is then aligned to the epoch like the rollups, so
+   * every rollup bucket lies in a single downsampling bucket. Best available data of ranked
+   * channels is merged row by row, which rollups can't reproduce, so it is always read from the
+   * channel table. Must be called after useDatabase.
+   *
+   * @param code channel code
+   * @param downsampler downsampler of the request, may be null, aligned to the epoch if a rollup
+   *        query is returned
+   * @param st start time
+   * @param et end time
+   * @param dsInt downsampling interval in seconds
+   * @param rid rank id of the request, 0 for best available data
+   * @return derived table to use in place of the channel table, without alias, or null to read
+   *         the channel table
+   * @throws SQLException if the rollup state can't be read
+   */
+  protected String getRollupTable(String code, Downsampler downsampler, double st, double et,
+      int dsInt, int rid) throws SQLException {
+    if (!useRollups() || downsampler == null || !downsampler.getMethod().equals("mean")
+        || getRanksFlag() && rid == 0) {
+      return null;
+    }
+    int level = RollupTables.getLevel(dsInt);
+    if (level == 0 || !RollupTables.covers(st, et, level)
+        || getRollupState(code) != RollupTables.STATE_COMPLETE) {
+      return null;
+    }
+    downsampler.align(RollupTables.getOrigin(st, dsInt));
+    return RollupTables.getMeanSql(code, defaultGetColumns(true, false), getTranslationsFlag(),
+        getRanksFlag(), level, st, et, dsInt);
+  }
+
+  /**
+   * Check if the complete rollups of a channel show that a query would read more rows than a
+   * limit, so it can be refused before running it. Must be called after useDatabase.
+   *
+   * @param code channel code
+   * @param st start time
+   * @param et end time
+   * @param rid rank id, 0 for all ranks or if the channel has no ranks
+   * @param limit maximum number of rows
+   * @return true if the channel certainly has more rows in the range than the limit
+   * @throws SQLException if a query fails
+   */
+  protected boolean exceedsRows(String code, double st, double et, int rid, int limit)
+      throws SQLException {
+    if (!useRollups() || getRollupState(code) != RollupTables.STATE_COMPLETE) {
+      return false;
+    }
+    return new RollupTables(database).countRows(code, st, et, rid) > limit;
+  }
+
+  /**
+   * Build rollup tables from existing data.
+   *
+   * @param code channel code, or null for all channels
+   * @return true if successful
+   */
+  public boolean defaultBackfillRollups(String code) {
+    if (!getRollupsFlag()) {
+      LOGGER.error("{} data sources don't support rollups.", getType());
+      return false;
+    }
+    try {
+      database.useDatabase(dbName);
+      List<String> codes = new ArrayList<String>();
+      if (code != null) {
+        codes.add(code);
+      } else {
+        for (Channel channel : defaultGetChannelsList(false)) {
+          codes.add(channel.getCode());
+        }
+      }
+      List<Column> columns = defaultGetColumns(true, false);
+      RollupTables tables = new RollupTables(database);
+      for (String c : codes) {
+        tables.backfill(c, columns, getTranslationsFlag(), getRanksFlag());
+      }
+      invalidateMetadata();
+      return true;
+    } catch (SQLException e) {
+      LOGGER.error("SQLDataSource.defaultBackfillRollups({}) failed. ({}_{})", code,
+          database.getDatabasePrefix(), dbName, e);
+    }
+    return false;
+  }
+
+  /**
+   * Recompute rollups after rows of a channel were written, if the channel has rollups.
+   *
+   * @param code channel code
+   * @param translations if the channel table has a tid column
+   * @param ranks if the channel table has a rid column
+   * @param st first time written
+   * @param et last time written
+   */
+  private void updateRollups(String code, boolean translations, boolean ranks, double st,
+      double et) {
+    if (!useRollups()) {
+      return;
+    }
+    try {
+      database.useDatabase(dbName);
+      if (getRollupState(code) != RollupTables.STATE_NONE) {
+        new RollupTables(database).update(code, defaultGetColumns(true, false), translations,
+            ranks, st, et);
+      }
+    } catch (SQLException e) {
+      LOGGER.error("SQLDataSource.updateRollups({}) failed. ({}_{})", code,
+          database.getDatabasePrefix(), dbName, e);
+    }
+  }
+
+  /**
+   * Getter for the cache of channels, columns, ranks and translations.
+   *
+   * @return metadata cache
+   */
+  public MetadataCache getMetadataCache() {
+    return metadata;
+  }
+
+  /**
+   * Drop cached metadata. Called after this source writes channels, columns, ranks, channel types
+   * or translations.
+   */
+  protected void invalidateMetadata() {
+    metadata.invalidate();
+  }
+
+  /**
+   * Drop all cached result tiles of a channel. Called after the channel's translation changes,
+   * since cached tiles hold translated values.
+   *
+   * @param channelCode channel code
+   */
+  protected void invalidateChannel(String channelCode) {
+    ResultCache.getInstance().invalidate(
+        database.getDatabasePrefix() + "_" + dbName + "|" + channelCode, -Double.MAX_VALUE,
+        Double.MAX_VALUE);
   }
 
   /**
@@ -236,6 +492,27 @@ public abstract class SQLDataSource implements DataSource {
     database.close();
   }
 
+  /**
+   * Verify the database connection, reconnecting if it was lost.
+   *
+   * @return true if the connection is usable
+   */
+  public boolean checkConnection() {
+    if (database == null) {
+      return false;
+    }
+    return database.validate();
+  }
+
+  /**
+   * Return the database connection used by the current thread to the shared pool.
+   */
+  public void releaseConnection() {
+    if (database != null) {
+      database.release();
+    }
+  }
+
   /**
    * Check if VDX database has connection to SQL server.
    * 
@@ -258,6 +535,8 @@ public abstract class SQLDataSource implements DataSource {
    */
   public boolean defaultCreateDatabase(boolean channels, boolean translations, boolean channelTypes,
       boolean ranks, boolean columns, boolean menuColumns) {
+    PreparedStatement ps;
+    String sql;
     try {
 
       // create the database on the database server and specify to use this database for all
@@ -341,6 +620,7 @@ public abstract class SQLDataSource implements DataSource {
       }
       ps.execute(sql + "))");
 
+      invalidateMetadata();
       LOGGER.info("SQLDataSource.defaultCreateDatabase({}_{}) succeeded.",
           database.getDatabasePrefix(), dbName);
       return true;
@@ -400,6 +680,7 @@ public abstract class SQLDataSource implements DataSource {
   public boolean defaultCreateChannel(String channelCode, String channelName, double lon,
       double lat, double height, int active, int tid, boolean channels, boolean translations,
       boolean ranks, boolean columns) {
+    PreparedStatement ps;
 
     try {
 
@@ -487,9 +768,17 @@ public abstract class SQLDataSource implements DataSource {
           sql.append(",KEY index_j2ksec (j2ksec))");
           ps = database.getPreparedStatement(sql.toString());
           ps.execute(sql.toString());
+
+          // a new channel has no data, so its rollups are complete from the start
+          if (useRollups()) {
+            RollupTables tables = new RollupTables(database);
+            tables.create(channelCode, columnsList, translations, ranks);
+            tables.setState(channelCode, RollupTables.STATE_COMPLETE);
+          }
         }
       }
 
+      invalidateMetadata();
       LOGGER.info("SQLDataSource.defaultCreateChannel({},{},{}) succeeded. ({}_{})",
           channelCode, lon, lat, database.getDatabasePrefix(), dbName);
       return true;
@@ -516,6 +805,7 @@ public abstract class SQLDataSource implements DataSource {
    */
   public boolean defaultCreateTiltChannel(Channel channel, int tid, double azimuth,
       boolean channels, boolean translations, boolean ranks, boolean columns) {
+    PreparedStatement ps;
     try {
       defaultCreateChannel(channel, tid, channels, translations, ranks, columns);
 
@@ -535,6 +825,7 @@ public abstract class SQLDataSource implements DataSource {
       ps.setDouble(1, azimuth);
       ps.setInt(2, ch.getCId());
       ps.execute();
+      invalidateMetadata();
       return true;
     } catch (Exception e) {
       LOGGER.error("SQLDataSource.defaultCreateTiltChannel() failed.", e);
@@ -550,6 +841,7 @@ public abstract class SQLDataSource implements DataSource {
    * @return true if success
    */
   public boolean defaultUpdateChannelTranslationId(String channelCode, int tid) {
+    PreparedStatement ps;
     try {
       database.useDatabase(dbName);
       ps = database.getPreparedStatement("UPDATE channels SET tid = ? WHERE code = ?");
@@ -557,6 +849,8 @@ public abstract class SQLDataSource implements DataSource {
       ps.setString(2, channelCode);
       ps.execute();
 
+      invalidateMetadata();
+      invalidateChannel(channelCode);
       LOGGER.info("SQLDataSource.defaultUpdateChannelTranslationID({},{}) succeeded. ({}_{})",
           channelCode, tid, database.getDatabasePrefix(), dbName);
       return true;
@@ -575,6 +869,9 @@ public abstract class SQLDataSource implements DataSource {
    * @return true if success
    */
   public boolean defaultCreateTranslation() {
+    Statement st;
+    ResultSet rs;
+    String sql;
     try {
       database.useDatabase(dbName);
 
@@ -603,10 +900,12 @@ public abstract class SQLDataSource implements DataSource {
 
           // the translations table has a default row inserted which will
           // be tid 1, which corresponds to the default tid in the channels table
-          ps.execute(sql);
-          ps.execute("INSERT INTO translations (name) VALUES ('DEFAULT')");
+          st = database.getStatement();
+          st.execute(sql);
+          st.execute("INSERT INTO translations (name) VALUES ('DEFAULT')");
         }
 
+        invalidateMetadata();
         LOGGER.info("SQLDataSource.defaultCreateTranslation() succeeded. ({}_{})",
             database.getDatabasePrefix(), dbName);
         return true;
@@ -627,6 +926,7 @@ public abstract class SQLDataSource implements DataSource {
    * @return true if successful
    */
   public boolean defaultInsertColumn(Column column) {
+    PreparedStatement ps;
     try {
       database.useDatabase(dbName);
       ps = database.getPreparedStatement("INSERT IGNORE INTO columns (idx, name, description, "
@@ -642,6 +942,7 @@ public abstract class SQLDataSource implements DataSource {
       ps.setBoolean(8, column.accumulate);
       ps.execute();
 
+      invalidateMetadata();
       LOGGER.info("SQLDataSource.defaultInsertColumn({}) succeeded. ({}_{})",
           column.name, database.getDatabasePrefix(), dbName);
       return true;
@@ -659,6 +960,7 @@ public abstract class SQLDataSource implements DataSource {
    * @param column Column return true if successful
    */
   public boolean defaultInsertMenuColumn(Column column) {
+    PreparedStatement ps;
     try {
       database.useDatabase(dbName);
       ps = database.getPreparedStatement("INSERT IGNORE INTO columns_menu (idx, name, description, "
@@ -674,6 +976,7 @@ public abstract class SQLDataSource implements DataSource {
       ps.setBoolean(8, column.accumulate);
       ps.execute();
 
+      invalidateMetadata();
       LOGGER.info("SQLDataSource.defaultInsertPlotColumn({}) succeeded. ({}_{})",
           column.name, database.getDatabasePrefix(), dbName);
       return true;
@@ -692,6 +995,8 @@ public abstract class SQLDataSource implements DataSource {
    * @return last inserted id or -1 if unsuccessful
    */
   public int defaultInsertChannelType(String name) {
+    PreparedStatement ps;
+    ResultSet rs;
     int result = -1;
 
     try {
@@ -707,6 +1012,7 @@ public abstract class SQLDataSource implements DataSource {
       }
       rs.close();
 
+      invalidateMetadata();
       LOGGER.info("SQLDataSource.defaultInsertChannelType({}) succeeded. ({}_{})",
           name, database.getDatabasePrefix(), dbName);
 
@@ -737,6 +1043,8 @@ public abstract class SQLDataSource implements DataSource {
    * @return Rank object using the specified
    */
   public Rank defaultInsertRank(String name, int rank, int userDefault) {
+    PreparedStatement ps;
+    ResultSet rs;
     Rank result = null;
 
     try {
@@ -762,6 +1070,7 @@ public abstract class SQLDataSource implements DataSource {
       ps.setInt(2, rank);
       ps.setInt(3, userDefault);
       ps.execute();
+      invalidateMetadata();
 
       // get the id of the newly inserted rank
       rs = database.getPreparedStatement("SELECT LAST_INSERT_ID()").executeQuery();
@@ -789,6 +1098,7 @@ public abstract class SQLDataSource implements DataSource {
    * @return tid translation id of new translation. -1 if failure
    */
   public int defaultInsertTranslation(String channelCode, GenericDataMatrix gdm) {
+    PreparedStatement ps;
 
     // default local variables
     int tid = 1;
@@ -813,6 +1123,8 @@ public abstract class SQLDataSource implements DataSource {
       ps = database.getPreparedStatement("INSERT INTO translations ("
           + columns.toString() + ") VALUES (" + values.toString() + ")");
       ps.execute();
+      invalidateMetadata();
+      invalidateChannel(channelCode);
       tid = defaultGetTranslation(channelCode, gdm);
 
       LOGGER.info("SQLDataSource.defaultInsertTranslation() succeeded. ({}_{})",
@@ -834,6 +1146,9 @@ public abstract class SQLDataSource implements DataSource {
    * @return channel
    */
   public Channel defaultGetChannel(int cid, boolean channelTypes) {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
     Channel ch = null;
     String code;
     String name;
@@ -843,6 +1158,13 @@ public abstract class SQLDataSource implements DataSource {
     double height;
     int ctid = 0;
 
+    String key = "channel:" + cid + ":" + channelTypes;
+    Channel cached = metadata.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    long generation = metadata.getGeneration();
+
     try {
       database.useDatabase(dbName);
 
@@ -879,6 +1201,7 @@ public abstract class SQLDataSource implements DataSource {
         ch = new Channel(cid, code, name, lon, lat, height, active, ctid);
       }
       rs.close();
+      metadata.put(key, ch, generation);
 
     } catch (Exception e) {
       LOGGER.error("SQLDataSource.defaultGetChannel(cid) failed. ({}_{})",
@@ -896,8 +1219,17 @@ public abstract class SQLDataSource implements DataSource {
    * @return channel
    */
   public Channel defaultGetChannel(String code, boolean channelTypes) {
+    PreparedStatement ps;
+    ResultSet rs;
     Channel ch = null;
 
+    String key = "channelCode:" + code + ":" + channelTypes;
+    Channel cached = metadata.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    long generation = metadata.getGeneration();
+
     try {
       database.useDatabase(dbName);
       ps = database.getPreparedStatement("SELECT cid FROM channels WHERE code = ? ");
@@ -908,6 +1240,7 @@ public abstract class SQLDataSource implements DataSource {
         ch = defaultGetChannel(cid, channelTypes);
       }
       rs.close();
+      metadata.put(key, ch, generation);
 
     } catch (Exception e) {
       LOGGER.error("SQLDataSource.defaultGetChannel(code) failed. ({}_{})",
@@ -924,6 +1257,8 @@ public abstract class SQLDataSource implements DataSource {
    * @return List of Channels
    */
   public List<Channel> defaultGetChannelsList(boolean channelTypes) {
+    ResultSet rs;
+    String sql;
     List<Channel> result = new ArrayList<Channel>();
     Channel ch;
     int active;
@@ -936,6 +1271,13 @@ public abstract class SQLDataSource implements DataSource {
     double height;
     double azimuth;
 
+    String key = "channels:" + channelTypes;
+    List<Channel> cached = metadata.get(key);
+    if (cached != null) {
+      return new ArrayList<Channel>(cached);
+    }
+    long generation = metadata.getGeneration();
+
     try {
       database.useDatabase(dbName);
 
@@ -985,6 +1327,7 @@ public abstract class SQLDataSource implements DataSource {
         result.add(ch);
       }
       rs.close();
+      metadata.put(key, new ArrayList<Channel>(result), generation);
 
     } catch (Exception e) {
       LOGGER.error("SQLDataSource.defaultGetChannelsList() failed. ({}_{})",
@@ -1023,8 +1366,15 @@ public abstract class SQLDataSource implements DataSource {
    * @return List of Strings with : separated values
    */
   public List<String> defaultGetChannelTypes() {
+    ResultSet rs;
     List<String> result = new ArrayList<String>();
 
+    List<String> cached = metadata.get("channelTypes");
+    if (cached != null) {
+      return new ArrayList<String>(cached);
+    }
+    long generation = metadata.getGeneration();
+
     try {
       database.useDatabase(dbName);
       rs = database
@@ -1034,6 +1384,7 @@ public abstract class SQLDataSource implements DataSource {
         result.add(String.format("%d:%s:%d", rs.getInt(1), rs.getString(2), rs.getInt(3)));
       }
       rs.close();
+      metadata.put("channelTypes", new ArrayList<String>(result), generation);
 
     } catch (Exception e) {
       LOGGER.error("SQLDataSource.defaultGetChannelTypes() failed. ({}_{})",
@@ -1060,8 +1411,17 @@ public abstract class SQLDataSource implements DataSource {
    * @return rank
    */
   public Rank defaultGetRank(int rid) {
+    PreparedStatement ps;
+    ResultSet rs;
     Rank result = null;
 
+    String key = "rank:" + rid;
+    Rank cached = metadata.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    long generation = metadata.getGeneration();
+
     try {
       database.useDatabase(dbName);
       ps = database.getPreparedStatement("SELECT rid, name, rank, user_default FROM ranks "
@@ -1072,6 +1432,7 @@ public abstract class SQLDataSource implements DataSource {
         result = new Rank(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getInt(4));
       }
       rs.close();
+      metadata.put(key, result, generation);
 
     } catch (Exception e) {
       LOGGER.error("SQLDataSource.defaultGetRank() failed. ({}_{})",
@@ -1088,8 +1449,17 @@ public abstract class SQLDataSource implements DataSource {
    * @return rank id
    */
   public int defaultGetRankId(int rank) {
+    PreparedStatement ps;
+    ResultSet rs;
     int result = -1;
 
+    String key = "rankId:" + rank;
+    Integer cached = metadata.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    long generation = metadata.getGeneration();
+
     try {
       database.useDatabase(dbName);
       ps = database.getPreparedStatement("SELECT rid FROM ranks WHERE rank = ?");
@@ -1097,6 +1467,7 @@ public abstract class SQLDataSource implements DataSource {
       rs = ps.executeQuery();
       if (rs.next()) {
         result = rs.getInt(1);
+        metadata.put(key, result, generation);
       }
       rs.close();
 
@@ -1114,8 +1485,15 @@ public abstract class SQLDataSource implements DataSource {
    * @return List of Strings with : separated values
    */
   public List<String> defaultGetRanks() {
+    ResultSet rs;
     List<String> result = new ArrayList<String>();
 
+    List<String> cached = metadata.get("ranks");
+    if (cached != null) {
+      return new ArrayList<String>(cached);
+    }
+    long generation = metadata.getGeneration();
+
     try {
       database.useDatabase(dbName);
       rs = database
@@ -1126,6 +1504,7 @@ public abstract class SQLDataSource implements DataSource {
             rs.getInt(4)));
       }
       rs.close();
+      metadata.put("ranks", new ArrayList<String>(result), generation);
 
     } catch (Exception e) {
       LOGGER.error("SQLDataSource.defaultGetRanks() failed. ({}_{})",
@@ -1141,13 +1520,21 @@ public abstract class SQLDataSource implements DataSource {
    * @return number of ranks, default 1
    */
   public int defaultGetNumberOfRanks() {
+    ResultSet rs;
     int result = 1;
 
+    Integer cached = metadata.get("numberOfRanks");
+    if (cached != null) {
+      return cached;
+    }
+    long generation = metadata.getGeneration();
+
     try {
       database.useDatabase(dbName);
       rs = database.getPreparedStatement("SELECT COUNT(*) FROM ranks").executeQuery();
       if (rs.next()) {
         result = rs.getInt(1);
+        metadata.put("numberOfRanks", result, generation);
       }
       rs.close();
 
@@ -1168,6 +1555,9 @@ public abstract class SQLDataSource implements DataSource {
    * @return tid translation id of the translation. -1 if not found.
    */
   public int defaultGetTranslation(String channelCode, GenericDataMatrix gdm) {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
     int result = 1;
 
     try {
@@ -1181,12 +1571,20 @@ public abstract class SQLDataSource implements DataSource {
         sql += "AND " + columnNames[i] + " = " + dm.get(0, i) + " ";
       }
 
+      String key = "translation:" + channelCode + ":" + sql;
+      Integer cached = metadata.get(key);
+      if (cached != null) {
+        return cached;
+      }
+      long generation = metadata.getGeneration();
+
       // build and execute the query
       ps = database.getPreparedStatement("SELECT tid FROM translations WHERE name = ? " + sql);
       ps.setString(1, channelCode);
       rs = ps.executeQuery();
       if (rs.next()) {
         result = rs.getInt(1);
+        metadata.put(key, result, generation);
       }
       rs.close();
 
@@ -1205,8 +1603,17 @@ public abstract class SQLDataSource implements DataSource {
    * @return translation id, 1 if not found
    */
   public int defaultGetChannelTranslationId(String channelCode) {
+    PreparedStatement ps;
+    ResultSet rs;
     int result = 1;
 
+    String key = "channelTid:" + channelCode;
+    Integer cached = metadata.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    long generation = metadata.getGeneration();
+
     try {
       database.useDatabase(dbName);
       ps = database.getPreparedStatement("SELECT tid FROM channels WHERE code = ?");
@@ -1214,6 +1621,7 @@ public abstract class SQLDataSource implements DataSource {
       rs = ps.executeQuery();
       if (rs.next()) {
         result = rs.getInt(1);
+        metadata.put(key, result, generation);
       }
       rs.close();
 
@@ -1225,6 +1633,31 @@ public abstract class SQLDataSource implements DataSource {
     return result;
   }
 
+  /**
+   * lookup the translation ids of all channels at once.
+   * 
+   * @return translation id by channel code, empty if they could not be read
+   */
+  public Map<String, Integer> defaultGetChannelTranslationIds() {
+    ResultSet rs;
+    Map<String, Integer> result = new HashMap<String, Integer>();
+
+    try {
+      database.useDatabase(dbName);
+      rs = database.getPreparedStatement("SELECT code, tid FROM channels").executeQuery();
+      while (rs.next()) {
+        result.put(rs.getString(1), rs.getInt(2));
+      }
+      rs.close();
+
+    } catch (Exception e) {
+      LOGGER.error("SQLDataSource.defaultGetChannelTranslationIds() failed. ({}_{})",
+          database.getDatabasePrefix(), dbName, e);
+    }
+
+    return result;
+  }
+
   /**
    * Get List of columns from the database param menuColumns flag to retrieve database columns or
    * plottable columns.
@@ -1248,6 +1681,9 @@ public abstract class SQLDataSource implements DataSource {
    * @return List of Columns, ordered by index
    */
   public List<Column> defaultGetColumns(boolean allColumns, boolean menuColumns) {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
 
     Column column;
     List<Column> columns = new ArrayList<Column>();
@@ -1263,6 +1699,13 @@ public abstract class SQLDataSource implements DataSource {
       tableName = "columns";
     }
 
+    String key = "columns:" + allColumns + ":" + menuColumns;
+    List<Column> cached = metadata.get(key);
+    if (cached != null) {
+      return new ArrayList<Column>(cached);
+    }
+    long generation = metadata.getGeneration();
+
     try {
       database.useDatabase(dbName);
       sql = "SELECT idx, name, description, unit, checked, active, bypassmanipulations, "
@@ -1300,6 +1743,7 @@ public abstract class SQLDataSource implements DataSource {
         columns.add(column);
       }
       rs.close();
+      metadata.put(key, new ArrayList<Column>(columns), generation);
 
     } catch (Exception e) {
       LOGGER.error("SQLDataSource.defaultGetColumns() failed. ({}_{})",
@@ -1316,6 +1760,9 @@ public abstract class SQLDataSource implements DataSource {
    * @return column, null if not found
    */
   public Column defaultGetColumn(int colid) {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
     Column col = null;
     int idx;
     String name;
@@ -1326,6 +1773,13 @@ public abstract class SQLDataSource implements DataSource {
     boolean bypassmanipulations;
     boolean accumulate;
 
+    String key = "column:" + colid;
+    Column cached = metadata.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    long generation = metadata.getGeneration();
+
     try {
       database.useDatabase(dbName);
 
@@ -1366,6 +1820,7 @@ public abstract class SQLDataSource implements DataSource {
             accumulate);
       }
       rs.close();
+      metadata.put(key, col, generation);
 
     } catch (Exception e) {
       LOGGER.error("SQLDataSource.defaultGetColumn(colid) failed. ({}_{})",
@@ -1382,8 +1837,17 @@ public abstract class SQLDataSource implements DataSource {
    * @return column
    */
   public Column defaultGetColumn(String name) {
+    PreparedStatement ps;
+    ResultSet rs;
     Column col = null;
 
+    String key = "columnName:" + name;
+    Column cached = metadata.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    long generation = metadata.getGeneration();
+
     try {
       database.useDatabase(dbName);
       ps = database.getPreparedStatement("SELECT colid FROM columns WHERE name = ? ");
@@ -1394,6 +1858,7 @@ public abstract class SQLDataSource implements DataSource {
         col = defaultGetColumn(colid);
       }
       rs.close();
+      metadata.put(key, col, generation);
 
     } catch (Exception e) {
       LOGGER.error("SQLDataSource.defaultGetChannel(name) failed. ({}_{})",
@@ -1410,6 +1875,8 @@ public abstract class SQLDataSource implements DataSource {
    * @return List of Strings with : separated values
    */
   public List<String> defaultGetOptions(String type) {
+    ResultSet rs;
+    String sql;
     List<String> result = new ArrayList<String>();
 
     try {
@@ -1439,6 +1906,9 @@ public abstract class SQLDataSource implements DataSource {
    */
   public synchronized Date defaultGetLastDataTime(String channelCode, String nullField,
       boolean pollhist) {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
 
     Date lastDataTime;
 
@@ -1489,11 +1959,44 @@ public abstract class SQLDataSource implements DataSource {
   public GenericDataMatrix defaultGetData(int cid, int rid, double st, double et,
       boolean translations, boolean ranks, int maxrows, DownsamplingType ds, int dsInt)
       throws UtilException {
+    RequestResult result = defaultGetDataResult(cid, rid, st, et, translations, ranks, maxrows,
+        ds, dsInt, null, false);
+    if (result == null) {
+      return null;
+    }
+    return (GenericDataMatrix) ((BinaryResult) result).getData();
+  }
+
+  /**
+   * Get data from database as a result ready to send. Data that is not downsampled or cached can
+   * be streamed to the client in chunks straight from the result set instead of being collected
+   * in memory first.
+   *
+   * @param cid channel id
+   * @param rid rank id
+   * @param st start time
+   * @param et end time
+   * @param translations if the database has translations
+   * @param ranks if the database has ranks
+   * @param maxrows limit on number of rows returned
+   * @param ds Downsampling type
+   * @param dsInt argument for downsampling
+   * @param dsMethod downsampling method overriding ds, see {@link Downsampler}, may be null
+   * @param stream if the client accepts a chunked result
+   * @return BinaryResult containing a GenericDataMatrix, or a StreamingResult that must be closed
+   *         after it is written
+   * @throws UtilException if downsampling fails or returns too many rows
+   */
+  public RequestResult defaultGetDataResult(int cid, int rid, double st, double et,
+      boolean translations, boolean ranks, int maxrows, DownsamplingType ds, int dsInt,
+      String dsMethod, boolean stream) throws UtilException {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
 
     double[] dataRow;
-    List<double[]> pts = new ArrayList<double[]>();
-    GenericDataMatrix result = null;
-    Column column;
+    List<double[]> pts = null;
+    RequestResult result = null;
     int columnsReturned = 0;
 
     try {
@@ -1521,148 +2024,537 @@ public abstract class SQLDataSource implements DataSource {
         columnsReturned = columns.size() + 1;
       }
 
-      // SELECT sql
-      sql = "SELECT j2ksec";
-
-      if (ranks) {
-        sql += ", c.rid";
+      Downsampler downsampler;
+      try {
+        downsampler = Downsampler.create(ds, dsMethod, st, dsInt, ranks ? 2 : 1);
+      } catch (UtilException e) {
+        throw new UtilException("Can't downsample dataset: " + e.getMessage());
+      }
+
+      // means are read from the coarsest suitable rollup when the channel has rollups
+      String rollup = getRollupTable(channel.getCode(), downsampler, st, et, dsInt, rid);
+
+      // rows are assembled from cached time tiles when possible, and downsampled afterwards
+      if (rollup == null && ResultCache.getInstance().isEnabled()) {
+        pts = getTiledData(channel, columns, rid, st, et, translations, ranks,
+            maxrows == 0 || downsampler != null ? MAX_TILED_ROWS
+                : Math.min(tempmaxrows, MAX_TILED_ROWS));
+        if (pts != null && downsampler != null) {
+          for (double[] row : pts) {
+            downsampler.add(row);
+          }
+          downsampler.finish();
+          pts = downsampler.getRows();
+          if (maxrows != 0 && pts.size() > tempmaxrows) {
+            throw new UtilException("Max rows (" + maxrows + " rows) for source '" + dbName
+                + "' exceeded. Please downsample further.");
+          }
+        } else if (pts != null && maxrows != 0 && pts.size() > tempmaxrows) {
+          throw new UtilException("Max rows (" + maxrows + " rows) for source '" + dbName
+              + "' exceeded. Please use downsampling.");
+        }
       }
 
-      for (int i = 0; i < columns.size(); i++) {
-        column = columns.get(i);
-        if (translations) {
-          sql += ",a." + column.name + " * b.c" + column.name + " + b.d" + column.name + " as "
-              + column.name + " ";
+      if (pts == null) {
+        String table = rollup == null ? channel.getCode() : rollup;
+        boolean limited = maxrows != 0 && downsampler == null;
+        String limitMessage = "Max rows (" + maxrows + " rows) for source '" + dbName
+            + "' exceeded. Please use downsampling.";
+
+        // If the dataset has a maxrows paramater, the query reads at most one row more than
+        // allowed and fails as soon as that row arrives. Downsampled queries read every row in
+        // range and check the number of rows left after downsampling instead. Requests that the
+        // rollups show to be too large are rejected without reading any rows.
+        if (limited && exceedsRows(channel.getCode(), st, et, ranks ? rid : 0, tempmaxrows)) {
+          throw new UtilException(limitMessage);
+        }
+
+        // best available data is merged from one query per rank, where there are several
+        RankMerge merge = null;
+        if (ranks && rid == 0) {
+          sql = getDataSql(table, columns, true, translations, ranks) + (limited ? " LIMIT ?" : "");
+          merge = mergeRanks(sql, new Object[] {st, et}, limited ? maxrows : 0, columnsReturned);
+        }
+
+        if (merge != null) {
+          if (stream && downsampler == null) {
+            return streamMerge(merge, maxrows, columnsReturned, limitMessage);
+          }
+          pts = readRows(merge, downsampler, maxrows);
         } else {
-          sql += ",a." + column.name + " ";
+          sql = getDataSql(table, columns, ranks && rid != 0, translations, ranks);
+          if (limited) {
+            sql += " LIMIT ?";
+          }
+
+          if (stream && downsampler == null) {
+            return streamData(sql, st, et, ranks && rid != 0 ? rid : 0,
+                maxrows == 0 ? 0 : tempmaxrows, columnsReturned, limitMessage);
+          }
+
+          ps = downsampler == null ? database.getPreparedStatement(sql)
+              : prepareStreamingStatement(sql);
+          try {
+            int p = 1;
+            ps.setDouble(p++, st);
+            ps.setDouble(p++, et);
+            if (ranks && rid != 0) {
+              ps.setInt(p++, rid);
+            }
+            if (limited) {
+              ps.setInt(p++, tempmaxrows + 1);
+            }
+            rs = ps.executeQuery();
+            pts = readRows(rs, columnsReturned, true, downsampler,
+                maxrows == 0 ? 0 : tempmaxrows);
+            rs.close();
+          } finally {
+            if (downsampler != null) {
+              ps.close();
+            }
+          }
+        }
+        if (pts == null) {
+          throw new UtilException("Max rows (" + maxrows + " rows) for source '" + dbName
+              + "' exceeded. Please "
+              + (downsampler == null ? "use downsampling." : "downsample further."));
         }
       }
 
-      // FROM sql
-      sql += "FROM " + channel.getCode() + " a ";
-      if (translations) {
-        sql += "INNER JOIN translations b on a.tid = b.tid ";
-      }
-      if (ranks) {
-        sql += "INNER JOIN ranks        c on a.rid = c.rid ";
+      // if no data rows were returned, instantiate a data matrix with a single row with all null
+      // values
+      if (pts.size() == 0) {
+        dataRow = new double[columnsReturned];
+        for (int i = 0; i < columnsReturned; i++) {
+          dataRow[i] = Double.NaN;
+        }
+        pts.add(dataRow);
       }
 
-      // WHERE sql
-      sql += "WHERE j2ksec >= ? ";
-      sql += "AND   j2ksec <= ? ";
+      result = new BinaryResult(new GenericDataMatrix(pts));
 
-      sqlCount = "SELECT COUNT(*) FROM (SELECT 1 FROM " + channel.getCode()
-               + " a INNER JOIN ranks c ON a.rid=c.rid ";
-      sqlCount += "WHERE j2ksec >= ? AND j2ksec <= ? ";
+    } catch (SQLException e) {
+      LOGGER.error("SQLDataSource.defaultGetData() failed. ({}_{})",
+          database.getDatabasePrefix(), dbName, e);
+    }
+
+    return result;
+  }
 
-      // BEST AVAILABLE DATA query
-      if (ranks && rid != 0) {
-        sql += "AND   c.rid  = ? ";
-        sqlCount += "AND c.rid = ? ";
+  /**
+   * Run a defaultGetData query without buffering its rows and wrap it in a streaming result. The
+   * query uses its own statement, which is closed together with the result.
+   *
+   * @param sql query built by getDataSql, with LIMIT parameter if limit is set
+   * @param st start time
+   * @param et end time
+   * @param rid rank id to bind, 0 if the query has no rank parameter
+   * @param limit maximum number of rows read, 0 if the query has no LIMIT
+   * @param columnsReturned number of columns in the result set
+   * @param limitMessage error sent to the client when the limit is exceeded
+   * @return streaming result
+   * @throws SQLException if the query fails
+   */
+  private StreamingResult streamData(String sql, double st, double et, int rid, final int limit,
+      final int columnsReturned, final String limitMessage) throws SQLException {
+    final PreparedStatement ps = prepareStreamingStatement(sql);
+    final ResultSet rs;
+    try {
+      int p = 1;
+      ps.setDouble(p++, st);
+      ps.setDouble(p++, et);
+      if (rid != 0) {
+        ps.setInt(p++, rid);
+      }
+      if (limit != 0) {
+        ps.setInt(p++, limit + 1);
       }
+      rs = ps.executeQuery();
+    } catch (SQLException e) {
+      ps.close();
+      throw e;
+    }
 
-      sql += "ORDER BY a.j2ksec ASC";
-      sqlCount += "ORDER BY a.j2ksec ASC";
+    return new StreamingResult(new StreamingResult.RowSource() {
+      private double tempJ2ksec = Double.MAX_VALUE;
+      private int read;
 
-      if (ranks && rid == 0) {
-        sql += ", c.rank DESC";
-        sqlCount += ", c.rank DESC";
+      public int getColumns() {
+        return columnsReturned;
       }
 
-      if (ranks && rid != 0) {
-        try {
-          sql = getDownsamplingSQL(sql, "j2ksec", ds, dsInt);
-        } catch (UtilException e) {
-          throw new UtilException("Can't downsample dataset: " + e.getMessage());
-        }
-      }
-
-      if (maxrows != 0) {
-        sql += " LIMIT " + (tempmaxrows + 1);
-
-        // If the dataset has a maxrows paramater, check that the number of requested rows doesn't
-        // exceed that number prior to running the full query. This can save a decent amount of time
-        // for large queries. Note that this only applies for non-downsampled queries. This is done
-        // for two reasons: 1) If the user is downsampling, they already know they're dealing with 
-        // a lot of data and 2) the way MySQL handles the multiple nested queries that would result 
-        // makes it slower than just doing the full query to begin with.
-        if (ds.equals(DownsamplingType.NONE)) {
-          ps = database.getPreparedStatement(sqlCount + " LIMIT " + (tempmaxrows + 1) + ") as T");
-          ps.setDouble(1, st);
-          ps.setDouble(2, et);
-          if (ranks && rid != 0) {
-            ps.setInt(3, rid);
+      public double[] next() throws SQLException {
+        while (rs.next()) {
+          if (limit != 0 && ++read > limit) {
+            throw new StreamingResult.RefusedException(limitMessage);
           }
-          rs = ps.executeQuery();
-          if (rs.next() && rs.getInt(1) > tempmaxrows) {
-            throw new UtilException("Max rows (" + maxrows + " rows) for source '" + dbName
-                + "' exceeded. Please use downsampling.");
+
+          // keep only the first, highest ranked, row for each j2ksec
+          double j2ksec = rs.getDouble(1);
+          if (Double.compare(tempJ2ksec, j2ksec) != 0) {
+            tempJ2ksec = j2ksec;
+            double[] dataRow = new double[columnsReturned];
+            for (int i = 0; i < columnsReturned; i++) {
+              dataRow[i] = getDoubleNullCheck(rs, i + 1);
+            }
+            return dataRow;
           }
         }
+        return null;
       }
 
-      ps = database.getPreparedStatement(sql);
-      if (ds.equals(DownsamplingType.MEAN)) {
-        ps.setDouble(1, st);
-        ps.setInt(2, dsInt);
-        ps.setDouble(3, st);
-        ps.setDouble(4, et);
-        if (ranks && rid != 0) {
-          ps.setInt(5, rid);
+      public void close() {
+        try {
+          rs.close();
+          ps.close();
+        } catch (SQLException e) {
+          LOGGER.warn("SQLDataSource.streamData() close failed. ({}_{})",
+              database.getDatabasePrefix(), dbName, e);
         }
-      } else {
-        ps.setDouble(1, st);
-        ps.setDouble(2, et);
-        if (ranks && rid != 0) {
-          ps.setInt(3, rid);
+      }
+    });
+  }
+
+  /**
+   * Wrap a rank merge in a streaming result. The merge is closed together with the result.
+   *
+   * @param merge rank merge
+   * @param limit maximum number of rows, 0 for no limit
+   * @param columnsReturned number of columns in each row
+   * @param limitMessage error sent to the client when the limit is exceeded
+   * @return streaming result
+   */
+  private StreamingResult streamMerge(final RankMerge merge, final int limit,
+      final int columnsReturned, final String limitMessage) {
+    return new StreamingResult(new StreamingResult.RowSource() {
+      private int read;
+
+      public int getColumns() {
+        return columnsReturned;
+      }
+
+      public double[] next() throws SQLException {
+        double[] dataRow = merge.next();
+        if (dataRow != null && limit != 0 && ++read > limit) {
+          throw new StreamingResult.RefusedException(limitMessage);
         }
+        return dataRow;
       }
-      rs = ps.executeQuery();
 
-      // Check for the amount of data returned in a downsampled query. Non-downsampled queries are
-      // checked above.
-      if (!ds.equals(DownsamplingType.NONE) && maxrows != 0 && getResultSetSize(rs) > tempmaxrows) {
-        throw new UtilException("Max rows (" + maxrows + " rows) for source '" + dbName
-            + "' exceeded. Please downsample further.");
+      public void close() {
+        merge.close();
       }
+    });
+  }
 
-      double tempJ2ksec = Double.MAX_VALUE;
+  /**
+   * Build the query used by defaultGetData, without downsampling or row limit. Parameters are
+   * start time, end time and, for a single rank, the rank id.
+   *
+   * @param table channel table
+   * @param columns columns to select
+   * @param oneRank if the query is for one rank, with the rank id as parameter, instead of all
+   *        ranks in best available order
+   * @param translations if the database has translations
+   * @param ranks if the database has ranks
+   * @return sql
+   */
+  private String getDataSql(String table, List<Column> columns, boolean oneRank,
+      boolean translations, boolean ranks) {
+    Column column;
 
-      // loop through each result and add to the list
-      while (rs.next()) {
+    // SELECT sql
+    String sql = "SELECT j2ksec";
 
-        // if this is a new j2ksec, then save this data, as it contains the highest rank
-        if (Double.compare(tempJ2ksec, rs.getDouble(1)) != 0) {
+    if (ranks) {
+      sql += ", c.rid";
+    }
 
-          // loop through each of the columns and convert to Double.NaN if it was null in the DB
-          dataRow = new double[columnsReturned];
-          for (int i = 0; i < columnsReturned; i++) {
-            dataRow[i] = getDoubleNullCheck(rs, i + 1);
-          }
-          pts.add(dataRow);
-        }
-        tempJ2ksec = rs.getDouble(1);
+    for (int i = 0; i < columns.size(); i++) {
+      column = columns.get(i);
+      if (translations) {
+        sql += ",a." + column.name + " * b.c" + column.name + " + b.d" + column.name + " as "
+            + column.name + " ";
+      } else {
+        sql += ",a." + column.name + " ";
       }
-      rs.close();
+    }
 
-      // if no data rows were returned, instantiate a data matrix with a single row with all null
-      // values
-      if (pts.size() == 0) {
+    // FROM sql
+    sql += "FROM " + table + " a ";
+    if (translations) {
+      sql += "INNER JOIN translations b on a.tid = b.tid ";
+    }
+    if (ranks) {
+      sql += "INNER JOIN ranks        c on a.rid = c.rid ";
+    }
+
+    // WHERE sql
+    sql += "WHERE j2ksec >= ? ";
+    sql += "AND   j2ksec <= ? ";
+
+    // BEST AVAILABLE DATA query
+    if (ranks && oneRank) {
+      sql += "AND   c.rid  = ? ";
+    }
+
+    sql += "ORDER BY a.j2ksec ASC";
+
+    if (ranks && !oneRank) {
+      sql += ", c.rank DESC";
+    }
+    return sql;
+  }
+
+  /**
+   * Prepare a statement on its own whose rows are fetched from the server one at a time instead of
+   * being read into memory when the query runs. The caller must close it, and nothing else may
+   * use the connection while its result set is open.
+   *
+   * @param sql query
+   * @return prepared statement
+   * @throws SQLException if the statement can't be prepared
+   */
+  protected PreparedStatement prepareStreamingStatement(String sql) throws SQLException {
+    PreparedStatement ps = database.watch(database.getConnection().prepareStatement(sql,
+        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY));
+
+    // Connector/J streams rows one at a time instead of reading the whole result into memory
+    // when the fetch size is Integer.MIN_VALUE
+    ps.setFetchSize(Integer.MIN_VALUE);
+    return ps;
+  }
+
+  /**
+   * Set up best available data as one query per rank, merged in Java, unless there is only one
+   * rank or the mergeRanks parameter turns this off. Must be called after useDatabase.
+   *
+   * @param sql query for one rank in time order. Its parameters are the leading parameters, the
+   *        rank id and, if limit is set, the row limit
+   * @param params leading query parameters
+   * @param limit maximum number of rows, 0 if the query has no LIMIT
+   * @param columnsReturned number of columns to read
+   * @return merge to read with {@link #readRows(RankMerge, Downsampler, int)}, or null to query
+   *         all ranks at once
+   */
+  protected RankMerge mergeRanks(String sql, Object[] params, int limit, int columnsReturned) {
+    if (!mergeRanks) {
+      return null;
+    }
+    List<String> ranks = defaultGetRanks();
+    if (ranks.size() < 2 || ranks.size() > database.getMaxConnections()) {
+      return null;
+    }
+
+    // ranks are listed lowest first, the merge wants the highest first
+    List<Integer> rids = new ArrayList<Integer>();
+    for (String rank : ranks) {
+      rids.add(0, Integer.parseInt(rank.substring(0, rank.indexOf(':'))));
+    }
+    return new RankMerge(this, database, dbName, sql, params, rids, limit == 0 ? 0 : limit + 1,
+        columnsReturned);
+  }
+
+  /**
+   * Read the rows of a data query, converting nulls to NaN, optionally passing them through a
+   * downsampler.
+   *
+   * @param rs result set ordered by time, time in the first column
+   * @param columnsReturned number of columns to read
+   * @param firstPerTime if only the first, highest ranked, row for each time is kept
+   * @param downsampler downsampler, or null to keep all rows
+   * @param limit maximum number of rows read, or returned by the downsampler, 0 for no limit
+   * @return data rows, or null as soon as there are more rows than the limit
+   * @throws SQLException if there's a problem with the ResultSet
+   */
+  protected List<double[]> readRows(ResultSet rs, int columnsReturned, boolean firstPerTime,
+      Downsampler downsampler, int limit) throws SQLException {
+    List<double[]> pts = downsampler == null ? new ArrayList<double[]>() : downsampler.getRows();
+    double[] dataRow;
+    double tempJ2ksec = Double.MAX_VALUE;
+    int read = 0;
+
+    // loop through each result and add to the list
+    while (rs.next()) {
+
+      // without downsampling every row read counts, including lower ranked rows, so the limit
+      // matches a LIMIT clause of limit + 1 on the query
+      if (downsampler == null && limit != 0 && ++read > limit) {
+        return null;
+      }
+
+      // if this is a new j2ksec, then save this data, as it contains the highest rank
+      if (!firstPerTime || Double.compare(tempJ2ksec, rs.getDouble(1)) != 0) {
+
+        // loop through each of the columns and convert to Double.NaN if it was null in the DB
         dataRow = new double[columnsReturned];
         for (int i = 0; i < columnsReturned; i++) {
-          dataRow[i] = Double.NaN;
+          dataRow[i] = getDoubleNullCheck(rs, i + 1);
         }
-        pts.add(dataRow);
+        if (downsampler == null) {
+          pts.add(dataRow);
+        } else {
+          downsampler.add(dataRow);
+          if (limit != 0 && pts.size() > limit) {
+            return null;
+          }
+        }
+      }
+      tempJ2ksec = rs.getDouble(1);
+    }
+    if (downsampler != null) {
+      downsampler.finish();
+      if (limit != 0 && pts.size() > limit) {
+        return null;
       }
+    }
+    return pts;
+  }
 
-      result = new GenericDataMatrix(pts);
+  /**
+   * Read the rows of a rank merge, optionally passing them through a downsampler. The merge is
+   * closed when done.
+   *
+   * @param merge rank merge
+   * @param downsampler downsampler, or null to keep all rows
+   * @param limit maximum number of rows returned, 0 for no limit
+   * @return data rows, or null as soon as there are more rows than the limit
+   * @throws SQLException if a query fails
+   */
+  protected List<double[]> readRows(RankMerge merge, Downsampler downsampler, int limit)
+      throws SQLException {
+    List<double[]> pts = downsampler == null ? new ArrayList<double[]>() : downsampler.getRows();
+    try {
+      double[] dataRow;
+      while ((dataRow = merge.next()) != null) {
+        if (downsampler == null) {
+          pts.add(dataRow);
+        } else {
+          downsampler.add(dataRow);
+        }
+        if (limit != 0 && pts.size() > limit) {
+          return null;
+        }
+      }
+    } finally {
+      merge.close();
+    }
+    if (downsampler != null) {
+      downsampler.finish();
+      if (limit != 0 && pts.size() > limit) {
+        return null;
+      }
+    }
+    return pts;
+  }
 
-    } catch (SQLException e) {
-      LOGGER.error("SQLDataSource.defaultGetData() failed. ({}_{})",
-          database.getDatabasePrefix(), dbName, e);
+  /**
+   * Get data rows between st and et from the result cache, querying the tiles that are not cached
+   * and caching them.
+   *
+   * @param channel channel
+   * @param columns columns to select
+   * @param rid rank id, 0 for best available data
+   * @param st start time
+   * @param et end time
+   * @param translations if the database has translations
+   * @param ranks if the database has ranks
+   * @param limit maximum number of rows to query at once, 0 for no limit
+   * @return data rows, or null if the range spans too many tiles or the rows of the missing tiles
+   *         exceed the limit
+   * @throws SQLException if a query fails
+   */
+  private List<double[]> getTiledData(Channel channel, List<Column> columns, int rid, double st,
+      double et, boolean translations, boolean ranks, int limit) throws SQLException {
+    ResultCache cache = ResultCache.getInstance();
+    long generation = cache.getGeneration();
+    long first = cache.getTileIndex(st);
+    long last = cache.getTileIndex(et);
+    if (last - first >= MAX_TILES) {
+      return null;
     }
 
-    return result;
+    String scope = database.getDatabasePrefix() + "_" + dbName + "|" + channel.getCode();
+    StringBuilder variant = new StringBuilder("data|" + rid + "|" + translations + "|" + ranks);
+    for (Column column : columns) {
+      variant.append("|").append(column.name);
+    }
+
+    // look up all tiles first so missing tiles next to each other are queried together
+    int count = (int) (last - first + 1);
+    List<List<double[]>> tiles = new ArrayList<List<double[]>>(count);
+    for (long index = first; index <= last; index++) {
+      tiles.add(cache.get(scope, variant.toString(), index));
+    }
+
+    int columnsReturned = columns.size() + (ranks ? 2 : 1);
+    String sql = getDataSql(channel.getCode(), columns, ranks && rid != 0, translations, ranks);
+    String rankSql = ranks && rid == 0
+        ? getDataSql(channel.getCode(), columns, true, translations, ranks) : null;
+    if (limit != 0) {
+      sql += " LIMIT ?";
+      rankSql = rankSql == null ? null : rankSql + " LIMIT ?";
+    }
+    for (int i = 0; i < count; i++) {
+      if (tiles.get(i) != null) {
+        continue;
+      }
+      int end = i;
+      while (end + 1 < count && tiles.get(end + 1) == null) {
+        end++;
+      }
+
+      // best available data is merged from one query per rank, where there are several
+      RankMerge merge = rankSql == null ? null : mergeRanks(rankSql, new Object[] {
+          cache.getTileStart(first + i), cache.getTileStart(first + end + 1)}, limit,
+          columnsReturned);
+      List<double[]> rows;
+      if (merge != null) {
+        rows = readRows(merge, null, limit);
+      } else {
+        PreparedStatement ps = database.getPreparedStatement(sql);
+        int p = 1;
+        ps.setDouble(p++, cache.getTileStart(first + i));
+        ps.setDouble(p++, cache.getTileStart(first + end + 1));
+        if (ranks && rid != 0) {
+          ps.setInt(p++, rid);
+        }
+        if (limit != 0) {
+          ps.setInt(p++, limit + 1);
+        }
+        ResultSet rs = ps.executeQuery();
+        rows = readRows(rs, columnsReturned, true, null, limit);
+        rs.close();
+      }
+      if (rows == null) {
+        return null;
+      }
+
+      // split the rows into tiles, dropping rows at the start of the tile after the range
+      for (int j = i; j <= end; j++) {
+        tiles.set(j, new ArrayList<double[]>());
+      }
+      for (double[] row : rows) {
+        long index = cache.getTileIndex(row[0]);
+        if (index >= first + i && index <= first + end) {
+          tiles.get((int) (index - first)).add(row);
+        }
+      }
+      for (int j = i; j <= end; j++) {
+        cache.put(scope, variant.toString(), first + j, tiles.get(j), generation);
+      }
+      i = end;
+    }
+
+    List<double[]> pts = new ArrayList<double[]>();
+    for (List<double[]> tile : tiles) {
+      for (double[] row : tile) {
+        if (row[0] >= st && row[0] <= et) {
+          pts.add(row);
+        }
+      }
+    }
+    return pts;
   }
 
   /**
@@ -1702,99 +2594,408 @@ public abstract class SQLDataSource implements DataSource {
   }
 
   /**
-   * Insert data.
+   * Insert data, or update rows that exist. Rows are written in batches of insertBatchSize rows,
+   * each a single multi-row INSERT, and committed every commitRows rows. A batch that fails is
+   * rolled back to a savepoint taken before it, keeping the batches before it, and its rows are
+   * written again one at a time, so only the rows that fail on their own are lost. The rows after
+   * it are still written.
    * 
    * @param channelCode table name
-   * @param gdm 2d matrix of data
+   * @param gdm 2d matrix of data, NaN values are written as NULL
    * @param translations if the database uses translations
    * @param ranks if the database uses ranks
    * @param rid rank id
+   * @return rows written and failed per batch
    */
-  public void defaultInsertData(String channelCode, GenericDataMatrix gdm, boolean translations,
-      boolean ranks, int rid) {
+  public InsertResult defaultInsertData(String channelCode, GenericDataMatrix gdm,
+      boolean translations, boolean ranks, int rid) {
+    return defaultInsertData(channelCode, gdm, translations, ranks, rid,
+        translations ? defaultGetChannelTranslationId(channelCode) : 1);
+  }
 
-    double value;
-    int tid = 1;
+  /**
+   * Insert data, or update rows that exist, with a translation id the caller already knows.
+   * 
+   * @param channelCode table name
+   * @param gdm 2d matrix of data, NaN values are written as NULL
+   * @param translations if the database uses translations
+   * @param ranks if the database uses ranks
+   * @param rid rank id
+   * @param tid translation id of the channel, used if the database uses translations
+   * @return rows written and failed per batch
+   */
+  public InsertResult defaultInsertData(String channelCode, GenericDataMatrix gdm,
+      boolean translations, boolean ranks, int rid, int tid) {
     String[] columnNames = gdm.getColumnNames();
     DoubleMatrix2D data = gdm.getData();
-    StringBuffer columnBuffer = new StringBuffer();
-    StringBuffer valuesBuffer = new StringBuffer();
-    StringBuffer dupsBuffer = new StringBuffer();
-    StringBuilder output;
-    String base;
+    InsertResult result = new InsertResult(gdm.rows());
+    if (gdm.rows() == 0) {
+      return result;
+    }
+    StringBuilder columnBuffer = new StringBuilder();
+    StringBuilder valuesBuffer = new StringBuilder("(");
+    StringBuilder dupsBuffer = new StringBuilder();
+    int timeColumn = -1;
+    Connection conn = null;
+    boolean autoCommit = true;
 
     try {
       database.useDatabase(dbName);
 
       // build the columns string for a variable number of columns
       for (int i = 0; i < columnNames.length; i++) {
-        if (i == 0) {
-          columnBuffer.append(columnNames[i]);
-          valuesBuffer.append("?");
-        } else {
-          columnBuffer.append("," + columnNames[i]);
-          valuesBuffer.append(",?");
+        if (i > 0) {
+          columnBuffer.append(",");
+          valuesBuffer.append(",");
         }
+        columnBuffer.append(columnNames[i]);
+        valuesBuffer.append("?");
       }
 
       // build the ON UPDATE clause
       for (int i = 0; i < columnNames.length; i++) {
         if (!columnNames[i].equals("j2ksec")) {
-          dupsBuffer.append(columnNames[i] + "=VALUES(" + columnNames[i] + "),");
+          if (dupsBuffer.length() > 0) {
+            dupsBuffer.append(",");
+          }
+          dupsBuffer.append(columnNames[i]).append("=VALUES(").append(columnNames[i]).append(")");
+        } else {
+          timeColumn = i;
         }
       }
 
       // add in translation related information
       if (translations) {
-        tid = defaultGetChannelTranslationId(channelCode);
         columnBuffer.append(",tid");
-        valuesBuffer.append("," + tid);
+        valuesBuffer.append(",").append(tid);
       }
 
       // add in rank related information
       if (ranks) {
         columnBuffer.append(",rid");
-        valuesBuffer.append("," + rid);
+        valuesBuffer.append(",").append(rid);
       }
+      valuesBuffer.append(")");
 
-      sql = "INSERT INTO " + channelCode + " (" + columnBuffer.toString() + ") VALUES ("
-          + valuesBuffer.toString() + ") ";
-      sql += "ON DUPLICATE KEY UPDATE "
-          + dupsBuffer.toString().substring(0, dupsBuffer.toString().length() - 1);
-      base = channelCode + "(";
+      String insert = "INSERT INTO " + channelCode + " (" + columnBuffer + ") VALUES ";
+      String update = " ON DUPLICATE KEY UPDATE " + dupsBuffer;
+      String row = valuesBuffer.toString();
 
-      ps = database.getPreparedStatement(sql);
+      // full batches share one multi-row statement, within the statement's parameter limit
+      int batchRows =
+          Math.max(1, Math.min(insertBatchSize, MAX_PARAMETERS / Math.max(1, columnNames.length)));
+      StringBuilder rowsBuffer = new StringBuilder(row);
+      for (int i = 1; i < batchRows; i++) {
+        rowsBuffer.append(",").append(row);
+      }
+      String batchSql = insert + rowsBuffer + update;
+      String rowSql = insert + row + update;
 
-      // loop through each of the rows and insert data
-      for (int i = 0; i < gdm.rows(); i++) {
-        output = new StringBuilder(base);
+      conn = database.getConnection();
+      if (conn == null) {
+        throw new SQLException("Not connected to VDX.");
+      }
+      autoCommit = conn.getAutoCommit();
+      conn.setAutoCommit(false);
 
-        // loop through each of the columns and set it
-        for (int j = 0; j < columnNames.length; j++) {
+      int uncommitted = 0;
+      for (int first = 0; first < gdm.rows(); first += batchRows) {
+        int n = Math.min(batchRows, gdm.rows() - first);
+        PreparedStatement ps = null;
+        Savepoint savepoint = conn.setSavepoint();
+        try {
+          int affected = 0;
+          if (n == batchRows) {
+            ps = prepareInsert(batchSql);
+            for (int i = 0; i < n; i++) {
+              setInsertRow(ps, i * columnNames.length, data, first + i, columnNames.length);
+            }
+            affected = ps.executeUpdate();
+          } else {
 
-          // check for null values and use the correct setter function if so
-          value = data.getQuick(i, j);
-          if (Double.isNaN(value)) {
-            ps.setNull(j + 1, java.sql.Types.DOUBLE);
+            // the last, short batch sends single-row statements in one JDBC batch
+            ps = prepareInsert(rowSql);
+            for (int i = first; i < first + n; i++) {
+              setInsertRow(ps, 0, data, i, columnNames.length);
+              ps.addBatch();
+            }
+            for (int count : ps.executeBatch()) {
+              affected += Math.max(0, count);
+            }
+          }
+          result.written(first, n, affected);
+          uncommitted += n;
+          if (uncommitted >= commitRows) {
+            conn.commit();
+            result.committed();
+            uncommitted = 0;
+          }
+        } catch (SQLException e) {
+          if (ps != null) {
+            ps.clearBatch();
+          }
+          if (rollback(conn, savepoint)) {
+            uncommitted += insertRows(rowSql, data, first, n, columnNames.length, conn, result);
           } else {
-            ps.setDouble(j + 1, value);
+
+            // the database rolled back the whole transaction, e.g. after a deadlock
+            conn.rollback();
+            result.failed(first, n, e.getMessage());
+            uncommitted = 0;
           }
-          output.append(value).append(",");
         }
-        ps.execute();
-        if (translations) {
-          output.append(tid).append(",");
+      }
+      conn.commit();
+      result.committed();
+
+    } catch (Exception e) {
+      LOGGER.error("SQLDataSource.defaultInsertData() failed. ({}_{})",
+          database.getDatabasePrefix(), dbName, e);
+      if (conn != null) {
+        try {
+          conn.rollback();
+        } catch (SQLException ex) {
+          LOGGER.debug("SQLDataSource.defaultInsertData() rollback failed.", ex);
+        }
+      }
+      int done = 0;
+      for (InsertResult.Batch b : result.getBatches()) {
+        done = b.getFirstRow() + b.getRows();
+      }
+      result.failed(done, gdm.rows() - done, e.getMessage());
+    } finally {
+      if (conn != null) {
+        try {
+          conn.setAutoCommit(autoCommit);
+        } catch (SQLException e) {
+          LOGGER.debug("SQLDataSource.defaultInsertData() autocommit failed.", e);
+        }
+      }
+    }
+    if (!result.isSuccess()) {
+      LOGGER.error("SQLDataSource.defaultInsertData() failed. ({}_{}) {}: {}",
+          database.getDatabasePrefix(), dbName, channelCode, result);
+    }
+
+    // drop cached tiles and recompute rollups covering the rows committed; batches rolled back
+    // carry an error
+    double firstTime = Double.MAX_VALUE;
+    double lastTime = -Double.MAX_VALUE;
+    if (timeColumn >= 0) {
+      for (InsertResult.Batch b : result.getBatches()) {
+        if (b.getError() == null) {
+          for (int i = b.getFirstRow(); i < b.getFirstRow() + b.getRows(); i++) {
+            firstTime = Math.min(firstTime, data.getQuick(i, timeColumn));
+            lastTime = Math.max(lastTime, data.getQuick(i, timeColumn));
+          }
+        }
+      }
+    }
+    if (firstTime <= lastTime) {
+      ResultCache.getInstance().invalidate(
+          database.getDatabasePrefix() + "_" + dbName + "|" + channelCode, firstTime, lastTime);
+      updateRollups(channelCode, translations, ranks, firstTime, lastTime);
+      announceInsert(channelCode, firstTime, lastTime);
+    }
+    return result;
+  }
+
+  /**
+   * Roll back to a savepoint.
+   *
+   * @param conn connection
+   * @param savepoint savepoint
+   * @return false if the savepoint is gone because the transaction was rolled back
+   */
+  private static boolean rollback(Connection conn, Savepoint savepoint) {
+    try {
+      conn.rollback(savepoint);
+      return true;
+    } catch (SQLException e) {
+      LOGGER.debug("SQLDataSource.rollback() failed.", e);
+      return false;
+    }
+  }
+
+  /**
+   * Write the rows of a failed batch one at a time, each rolled back to its own savepoint if it
+   * fails, so a bad row doesn't take the rest of its batch with it.
+   *
+   * @param rowSql single-row insert
+   * @param data rows
+   * @param first index of the first row
+   * @param n number of rows
+   * @param columns number of columns
+   * @param conn connection, not in autocommit mode
+   * @param result where the outcome of each row is recorded
+   * @return number of rows written
+   * @throws SQLException if a row fails and can't be rolled back on its own
+   */
+  private int insertRows(String rowSql, DoubleMatrix2D data, int first, int n, int columns,
+      Connection conn, InsertResult result) throws SQLException {
+    PreparedStatement ps = prepareInsert(rowSql);
+    int written = 0;
+    for (int i = first; i < first + n; i++) {
+      Savepoint savepoint = conn.setSavepoint();
+      try {
+        setInsertRow(ps, 0, data, i, columns);
+        result.written(i, 1, ps.executeUpdate());
+        written++;
+      } catch (SQLException e) {
+        if (!rollback(conn, savepoint)) {
+          throw e;
+        }
+        result.rejected(i, 1, e.getMessage());
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Prepare an insert statement.
+   *
+   * @param sql statement
+   * @return prepared statement
+   * @throws SQLException if the statement can't be prepared
+   */
+  private PreparedStatement prepareInsert(String sql) throws SQLException {
+    PreparedStatement ps = database.getPreparedStatement(sql);
+    if (ps == null) {
+      throw new SQLException("Could not prepare statement.");
+    }
+    return ps;
+  }
+
+  /**
+   * Set the parameters of one row of an insert, writing NaN as NULL.
+   *
+   * @param ps insert statement
+   * @param offset number of parameters before the row
+   * @param data rows
+   * @param row index of the row
+   * @param columns number of columns
+   * @throws SQLException if a parameter can't be set
+   */
+  private static void setInsertRow(PreparedStatement ps, int offset, DoubleMatrix2D data, int row,
+      int columns) throws SQLException {
+    for (int j = 0; j < columns; j++) {
+      double value = data.getQuick(row, j);
+      if (Double.isNaN(value)) {
+        ps.setNull(offset + j + 1, java.sql.Types.DOUBLE);
+      } else {
+        ps.setDouble(offset + j + 1, value);
+      }
+    }
+  }
+
+  /**
+   * Bulk load rows from a staging file, or update rows that exist. The file is loaded with LOAD
+   * DATA LOCAL INFILE into a temporary copy of the channel table, later lines replacing earlier
+   * ones with the same key, and merged into the channel table with a single INSERT ... SELECT ...
+   * ON DUPLICATE KEY UPDATE. The merge is one statement, so it is written or rolled back as a
+   * whole. The server must allow local_infile, and MySQL Connector/J 8 needs
+   * allowLoadLocalInfile=true in vdx.url.
+   *
+   * <p>The temporary table belongs to the calling thread's connection, so channel tables can be
+   * loaded by several threads at once.
+   *
+   * @param channelCode table name
+   * @param file tab separated rows, one per line, NULL written as \N
+   * @param columnNames columns of the file, j2ksec among them
+   * @param translations if the database uses translations
+   * @param ranks if the database uses ranks
+   * @param rid rank id
+   * @param tid translation id, used if the database uses translations
+   * @return rows loaded, written as one batch
+   */
+  public InsertResult defaultLoadData(String channelCode, File file, String[] columnNames,
+      boolean translations, boolean ranks, int rid, int tid) {
+    StringBuilder columnBuffer = new StringBuilder();
+    StringBuilder dupsBuffer = new StringBuilder();
+    StringBuilder setBuffer = new StringBuilder();
+    InsertResult result = null;
+    double firstTime = Double.NaN;
+    double lastTime = Double.NaN;
+    Statement st = null;
+
+    try {
+      database.useDatabase(dbName);
+      st = database.getStatement();
+      if (st == null) {
+        throw new SQLException("Not connected to VDX.");
+      }
+
+      for (int i = 0; i < columnNames.length; i++) {
+        if (i > 0) {
+          columnBuffer.append(",");
         }
-        
-        if (ranks) {
-          output.append(rid).append(",");
+        columnBuffer.append(columnNames[i]);
+        if (!columnNames[i].equals("j2ksec")) {
+          if (dupsBuffer.length() > 0) {
+            dupsBuffer.append(",");
+          }
+          dupsBuffer.append(columnNames[i]).append("=VALUES(").append(columnNames[i]).append(")");
         }
       }
+      final String fileColumns = columnBuffer.toString();
+      if (translations) {
+        columnBuffer.append(",tid");
+        setBuffer.append("tid=").append(tid);
+      }
+      if (ranks) {
+        columnBuffer.append(",rid");
+        setBuffer.append(setBuffer.length() > 0 ? "," : "").append("rid=").append(rid);
+      }
+
+      st.execute("DROP TEMPORARY TABLE IF EXISTS " + LOAD_TABLE);
+      st.execute("CREATE TEMPORARY TABLE " + LOAD_TABLE + " LIKE " + channelCode);
+      String path = file.getAbsolutePath().replace("\\", "\\\\").replace("'", "\\'");
+      st.execute("LOAD DATA LOCAL INFILE '" + path + "' REPLACE INTO TABLE " + LOAD_TABLE
+          + " FIELDS TERMINATED BY '\\t' LINES TERMINATED BY '\\n' (" + fileColumns + ")"
+          + (setBuffer.length() > 0 ? " SET " + setBuffer : ""));
+
+      ResultSet rs =
+          st.executeQuery("SELECT COUNT(*), MIN(j2ksec), MAX(j2ksec) FROM " + LOAD_TABLE);
+      rs.next();
+      result = new InsertResult(rs.getInt(1));
+      if (rs.getInt(1) > 0) {
+        firstTime = rs.getDouble(2);
+        lastTime = rs.getDouble(3);
+      }
+      rs.close();
+
+      String merge = "INSERT INTO " + channelCode + " (" + columnBuffer + ") SELECT "
+          + columnBuffer + " FROM " + LOAD_TABLE
+          + (dupsBuffer.length() > 0 ? " ON DUPLICATE KEY UPDATE " + dupsBuffer : "");
+      result.written(0, result.getRows(), st.executeUpdate(merge));
+      result.committed();
 
     } catch (Exception e) {
-      LOGGER.error("SQLDataSource.defaultInsertData() failed. ({}_{})",
+      LOGGER.error("SQLDataSource.defaultLoadData() failed. ({}_{})",
           database.getDatabasePrefix(), dbName, e);
+      if (result == null) {
+        result = new InsertResult(0);
+      }
+      result.failed(0, result.getRows(), e.getMessage());
+      firstTime = Double.NaN;
+    } finally {
+      if (st != null) {
+        try {
+          st.execute("DROP TEMPORARY TABLE IF EXISTS " + LOAD_TABLE);
+        } catch (SQLException e) {
+          LOGGER.debug("SQLDataSource.defaultLoadData() drop failed.", e);
+        }
+      }
     }
+
+    // drop cached tiles and recompute rollups covering the rows written
+    if (firstTime <= lastTime) {
+      ResultCache.getInstance().invalidate(
+          database.getDatabasePrefix() + "_" + dbName + "|" + channelCode, firstTime, lastTime);
+      updateRollups(channelCode, translations, ranks, firstTime, lastTime);
+      announceInsert(channelCode, firstTime, lastTime);
+    }
+    return result;
   }
 
   /**
@@ -1803,6 +3004,8 @@ public abstract class SQLDataSource implements DataSource {
    * @param md the MetaDatum to be added
    */
   public void insertMetaDatum(MetaDatum md) {
+    PreparedStatement ps;
+    String sql;
     try {
       database.useDatabase(dbName);
 
@@ -1825,6 +3028,8 @@ public abstract class SQLDataSource implements DataSource {
    * @param md the MetaDatum to be updated
    */
   public void updateMetaDatum(MetaDatum md) {
+    PreparedStatement ps;
+    String sql;
     try {
       database.useDatabase(dbName);
 
@@ -1849,6 +3054,9 @@ public abstract class SQLDataSource implements DataSource {
    * @return MetaDatum the desired metadata (null if not found)
    */
   public MetaDatum getMetaDatum(int cmid) {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
     try {
       database.useDatabase(dbName);
       MetaDatum md = null;
@@ -1884,6 +3092,9 @@ public abstract class SQLDataSource implements DataSource {
    * @return the desired metadata (null if an error occurred)
    */
   public List<MetaDatum> getMatchingMetaData(MetaDatum md, boolean cm, String source) {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
     try {
       database.useDatabase(dbName);
       sql = "SELECT MD.*, CH.code, ";
@@ -2061,6 +3272,9 @@ public abstract class SQLDataSource implements DataSource {
    * @return the desired supplementary data (null if an error occurred)
    */
   public List<SuppDatum> getMatchingSuppData(SuppDatum sd, boolean cm) {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
     try {
       database.useDatabase(dbName);
       sql = "SELECT SD.sdid, SD.sdtypeid, SD.st, SD.et, SD.sd_short, SD.sd, CH.code, COL.name, "
@@ -2161,6 +3375,9 @@ public abstract class SQLDataSource implements DataSource {
    * @return ID of the record, -ID if already present, 0 if failed
    */
   public int insertSuppDatum(SuppDatum sd) {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
     try {
       database.useDatabase(dbName);
 
@@ -2208,6 +3425,8 @@ public abstract class SQLDataSource implements DataSource {
    * @return ID of the record, 0 if failed
    */
   public int updateSuppDatum(SuppDatum sd) {
+    PreparedStatement ps;
+    String sql;
     try {
       database.useDatabase(dbName);
 
@@ -2233,6 +3452,8 @@ public abstract class SQLDataSource implements DataSource {
    * @return true if successful, false otherwise
    */
   public boolean insertSuppDatumXref(SuppDatum sd) {
+    PreparedStatement ps;
+    String sql;
     try {
       database.useDatabase(dbName);
       sql = "INSERT INTO supp_data_xref (sdid, cid, colid, rid) VALUES (" + sd.sdid + "," + sd.cid
@@ -2260,6 +3481,9 @@ public abstract class SQLDataSource implements DataSource {
    * @return ID of the datatype, -ID if already present, 0 if failed
    */
   public int insertSuppDataType(SuppDatum sd) {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
     try {
       database.useDatabase(dbName);
 
@@ -2397,6 +3621,9 @@ public abstract class SQLDataSource implements DataSource {
    * @return the desired supplementary data types (null if an error occurred)
    */
   public List<SuppDatum> getSuppDataTypes() {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
 
     List<SuppDatum> types = new ArrayList<SuppDatum>();
     try {
@@ -2429,6 +3656,8 @@ public abstract class SQLDataSource implements DataSource {
    * @return List of Strings with " separated values
    */
   public RequestResult getSuppTypes(boolean drawOnly) {
+    ResultSet rs;
+    String sql;
     List<String> result = new ArrayList<String>();
 
     try {
@@ -3,10 +3,10 @@ package gov.usgs.volcanoes.vdx.data.generic.fixed;
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
 import gov.usgs.volcanoes.core.data.GenericDataMatrix;
 import gov.usgs.volcanoes.core.math.DownsamplingType;
+import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.vdx.data.DataSource;
 import gov.usgs.volcanoes.vdx.data.SQLDataSource;
-import gov.usgs.volcanoes.vdx.server.BinaryResult;
 import gov.usgs.volcanoes.vdx.server.RequestResult;
 import gov.usgs.volcanoes.vdx.server.TextResult;
 
@@ -33,6 +33,7 @@ public class SQLGenericFixedDataSource extends SQLDataSource implements DataSour
   public final boolean channelTypes = false;
   public final boolean ranks = true;
   public final boolean columns = true;
+  public final boolean rollups = true;
   public final boolean menuColumns = false;
 
   /**
@@ -98,6 +99,15 @@ public class SQLGenericFixedDataSource extends SQLDataSource implements DataSour
     return menuColumns;
   }
 
+  /**
+   * Get rollups flag.
+   *
+   * @return rollups flag
+   */
+  public boolean getRollupsFlag() {
+    return rollups;
+  }
+
   /**
    * Initialize data source.
    *
@@ -197,15 +207,13 @@ public class SQLGenericFixedDataSource extends SQLDataSource implements DataSour
       double et = Double.parseDouble(params.get("et"));
       DownsamplingType ds = DownsamplingType.fromString(params.get("ds"));
       int dsInt = Integer.parseInt(params.get("dsInt"));
-      GenericDataMatrix data = null;
+      boolean stream = StringUtils.stringToBoolean(params.get("stream"), false);
       try {
-        data = getGenericFixedData(cid, rid, st, et, getMaxRows(), ds, dsInt);
+        return defaultGetDataResult(cid, rid, st, et, translations, ranks, getMaxRows(), ds,
+            dsInt, params.get("dsMethod"), stream);
       } catch (UtilException e) {
         return getErrorResult(e.getMessage());
       }
-      if (data != null) {
-        return new BinaryResult(data);
-      }
 
     } else if (action.equals("genericMenu")) {
       return new TextResult(getGenericMenu());
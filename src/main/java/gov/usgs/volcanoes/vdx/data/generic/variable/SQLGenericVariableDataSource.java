@@ -4,13 +4,16 @@ import gov.usgs.volcanoes.core.configfile.ConfigFile;
 import gov.usgs.volcanoes.core.data.GenericDataMatrix;
 import gov.usgs.volcanoes.core.math.DownsamplingType;
 import gov.usgs.volcanoes.core.time.J2kSec;
+import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.vdx.data.DataSource;
 import gov.usgs.volcanoes.vdx.data.SQLDataSource;
-import gov.usgs.volcanoes.vdx.server.BinaryResult;
 import gov.usgs.volcanoes.vdx.server.RequestResult;
 import gov.usgs.volcanoes.vdx.server.TextResult;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -134,6 +137,7 @@ public class SQLGenericVariableDataSource extends SQLDataSource implements DataS
    * @return true if successful, false otherwise
    */
   public boolean createDatabase() {
+    Statement st;
 
     try {
       defaultCreateDatabase(channels, translations, channelTypes, ranks, columns, menuColumns);
@@ -206,18 +210,15 @@ public class SQLGenericVariableDataSource extends SQLDataSource implements DataS
       int cid = Integer.parseInt(params.get("cid"));
       double st = Double.parseDouble(params.get("st"));
       double et = Double.parseDouble(params.get("et"));
-      String selectedTypes = params.get("selectedTypes");
       DownsamplingType ds = DownsamplingType.fromString(params.get("ds"));
       int dsInt = Integer.parseInt(params.get("dsInt"));
-      GenericDataMatrix data = null;
+      boolean stream = StringUtils.stringToBoolean(params.get("stream"), false);
       try {
-        data = getGenericVariableData(cid, st, et, selectedTypes, getMaxRows(), ds, dsInt);
+        return defaultGetDataResult(cid, 0, st, et, translations, ranks, getMaxRows(), ds,
+            dsInt, params.get("dsMethod"), stream);
       } catch (UtilException e) {
         return getErrorResult(e.getMessage());
       }
-      if (data != null) {
-        return new BinaryResult(data);
-      }
     } else if (action.equals("supptypes")) {
       return getSuppTypes(true);
 
@@ -251,6 +252,8 @@ public class SQLGenericVariableDataSource extends SQLDataSource implements DataS
    * @return List of DataTypes
    */
   public List<DataType> getDataTypes() {
+    PreparedStatement ps;
+    ResultSet rs;
     List<DataType> result = new ArrayList<DataType>();
     try {
       database.useDatabase(dbName);
@@ -276,6 +279,8 @@ public class SQLGenericVariableDataSource extends SQLDataSource implements DataS
    * @return station id
    */
   public int getStationName(String code) {
+    PreparedStatement ps;
+    ResultSet rs;
     try {
       database.useDatabase(dbName);
       ps = database.getPreparedStatement("SELECT sid FROM stations WHERE code=?");
@@ -298,6 +303,8 @@ public class SQLGenericVariableDataSource extends SQLDataSource implements DataS
    * @return station id
    */
   public int getStationID(String code) {
+    PreparedStatement ps;
+    ResultSet rs;
     try {
       database.useDatabase(dbName);
       ps = database.getPreparedStatement("SELECT sid FROM stations WHERE code=?");
@@ -319,6 +326,7 @@ public class SQLGenericVariableDataSource extends SQLDataSource implements DataS
    * @param dt DataType to add
    */
   public void insertDataType(DataType dt) {
+    PreparedStatement ps;
     try {
       database.useDatabase(dbName);
       ps = database.getPreparedStatement("INSERT IGNORE INTO data_types (type, name) VALUES (?,?)");
@@ -352,6 +360,8 @@ public class SQLGenericVariableDataSource extends SQLDataSource implements DataS
    * @param r is replace record?
    */
   public void insertRecord(Date d, Station station, DataType dt, double dd, boolean r) {
+    Statement st;
+    PreparedStatement ps;
 
     System.out.print(".");
 
@@ -393,6 +403,7 @@ public class SQLGenericVariableDataSource extends SQLDataSource implements DataS
    * @return true if successful, false otherwise
    */
   public boolean createStationTable(String stationTable) {
+    Statement st;
     boolean success = false;
     try {
       database.useDatabase(dbName);
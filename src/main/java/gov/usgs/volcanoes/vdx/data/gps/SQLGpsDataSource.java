@@ -6,13 +6,18 @@ import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.Column;
 import gov.usgs.volcanoes.vdx.data.DataSource;
+import gov.usgs.volcanoes.vdx.data.Downsampler;
 import gov.usgs.volcanoes.vdx.data.Rank;
+import gov.usgs.volcanoes.vdx.data.RankMerge;
 import gov.usgs.volcanoes.vdx.data.SQLDataSource;
 import gov.usgs.volcanoes.vdx.server.BinaryResult;
 import gov.usgs.volcanoes.vdx.server.RequestResult;
 import gov.usgs.volcanoes.vdx.server.TextResult;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -142,6 +147,7 @@ public class SQLGpsDataSource extends SQLDataSource implements DataSource {
    * @return true if successful, false otherwise
    */
   public boolean createDatabase() {
+    Statement st;
 
     try {
       defaultCreateDatabase(channels, translations, channelTypes, ranks, columns, menuColumns);
@@ -226,7 +232,7 @@ public class SQLGpsDataSource extends SQLDataSource implements DataSource {
       int dsInt = Integer.parseInt(params.get("dsInt"));
       GpsData data = null;
       try {
-        data = getGpsData(cid, rid, st, et, getMaxRows(), ds, dsInt);
+        data = getGpsData(cid, rid, st, et, getMaxRows(), ds, dsInt, params.get("dsMethod"));
       } catch (UtilException e) {
         return getErrorResult(e.getMessage());
       }
@@ -277,6 +283,27 @@ public class SQLGpsDataSource extends SQLDataSource implements DataSource {
    */
   public GpsData getGpsData(int cid, int rid, double st, double et, int maxrows,
       DownsamplingType ds, int dsInt) throws UtilException {
+    return getGpsData(cid, rid, st, et, maxrows, ds, dsInt, null);
+  }
+
+  /**
+   * Get GpsData.
+   *
+   * @param cid channel id
+   * @param rid rank id
+   * @param st start time
+   * @param et end time
+   * @param maxrows maximum number of rows returned
+   * @param ds downsampling type
+   * @param dsInt downsampling argument
+   * @param dsMethod downsampling method overriding ds, see {@link Downsampler}, may be null
+   * @return GpsData
+   */
+  public GpsData getGpsData(int cid, int rid, double st, double et, int maxrows,
+      DownsamplingType ds, int dsInt, String dsMethod) throws UtilException {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
 
     DataPoint dp;
     GpsData result = null;
@@ -303,106 +330,84 @@ public class SQLGpsDataSource extends SQLDataSource implements DataSource {
           + "AND    (c.j2ksec0 + c.j2ksec1) / 2 >= ? "
           + "AND    (c.j2ksec0 + c.j2ksec1) / 2 <= ? ";
 
-      sqlCount = "SELECT COUNT(*) FROM (SELECT 1 FROM solutions a "
-          + "INNER JOIN channels b ON a.cid = b.cid "
-          + "INNER JOIN sources c ON a.sid = c.sid "
-          + "INNER JOIN ranks d ON c.rid = d.rid "
-          + "WHERE b.cid = ? "
-          + "AND (c.j2ksec0 + c.j2ksec1) / 2 >= ? "
-          + "AND (c.j2ksec0 + c.j2ksec1) / 2 <= ? ";
+      Downsampler downsampler;
+      try {
+        downsampler = Downsampler.create(ds, dsMethod, st, dsInt, 2);
+      } catch (UtilException e) {
+        throw new UtilException("Can't downsample dataset: " + e.getMessage());
+      }
 
-      if (rid != 0) {
-        sql += "AND   d.rid = ? ";
-        sqlCount += "AND d.rid = ? ";
+      // If the dataset has a maxrows paramater, the query reads at most one row more than allowed
+      // and fails as soon as that row arrives. Downsampled queries read every row in range and
+      // check the number of rows left after downsampling instead.
+      boolean limited = maxrows != 0 && downsampler == null;
+
+      // best available data is merged from one query per rank, where there are several
+      RankMerge merge = null;
+      if (rid == 0) {
+        merge = mergeRanks(sql + "AND   d.rid = ? ORDER BY 1 ASC" + (limited ? " LIMIT ?" : ""),
+            new Object[] {cid, st, et}, limited ? maxrows : 0, 11);
       }
 
-      sql += "ORDER BY 1 ASC, d.rank DESC";
-      sqlCount += "ORDER BY 1 ASC, d.rank DESC";
+      List<double[]> rows;
+      if (merge != null) {
+        rows = readRows(merge, downsampler, maxrows);
+      } else {
+        if (rid != 0) {
+          sql += "AND   d.rid = ? ";
+        }
 
-      if (rid != 0) {
-        try {
-          sql = getDownsamplingSQL(sql, "(j2ksec0 + j2ksec1) / 2", ds, dsInt);
-        } catch (UtilException e) {
-          throw new UtilException("Can't downsample dataset: " + e.getMessage());
+        sql += "ORDER BY 1 ASC, d.rank DESC";
+
+        if (limited) {
+          sql += " LIMIT ?";
         }
-      }
 
-      if (maxrows != 0) {
-        sql += " LIMIT " + (tempmaxrows + 1);
-
-        // If the dataset has a maxrows paramater, check that the number of requested rows doesn't
-        // exceed that number prior to running the full query. This can save a decent amount of time
-        // for large queries. Note that this only applies for non-downsampled queries. This is done
-        // for two reasons: 1) If the user is downsampling, they already know they're dealing with
-        // a lot of data and 2) the way MySQL handles the multiple nested queries that would result
-        // makes it slower than just doing the full query to begin with.
-        if (ds.equals(DownsamplingType.NONE)) {
-          ps = database.getPreparedStatement(sqlCount + " LIMIT " + (tempmaxrows + 1) + ") as T");
-          ps.setInt(1, cid);
-          ps.setDouble(2, st);
-          ps.setDouble(3, et);
+        ps = downsampler == null ? database.getPreparedStatement(sql)
+            : prepareStreamingStatement(sql);
+        try {
+          int p = 1;
+          ps.setInt(p++, cid);
+          ps.setDouble(p++, st);
+          ps.setDouble(p++, et);
           if (rid != 0) {
-            ps.setInt(4, rid);
+            ps.setInt(p++, rid);
           }
-          rs = ps.executeQuery();
-          if (rs.next() && rs.getInt(1) > tempmaxrows) {
-            throw new UtilException("Max rows (" + maxrows + " rows) for data source '" + vdxName
-                + "' exceeded. Please use downsampling.");
+          if (limited) {
+            ps.setInt(p++, tempmaxrows + 1);
           }
-        }
-      }
+          rs = ps.executeQuery();
 
-      ps = database.getPreparedStatement(sql);
-      if (ds.equals(DownsamplingType.MEAN)) {
-        ps.setDouble(1, st);
-        ps.setInt(2, dsInt);
-        ps.setInt(3, cid);
-        ps.setDouble(4, st);
-        ps.setDouble(5, et);
-        if (rid != 0) {
-          ps.setInt(6, rid);
-        }
-      } else {
-        ps.setInt(1, cid);
-        ps.setDouble(2, st);
-        ps.setDouble(3, et);
-        if (rid != 0) {
-          ps.setInt(4, rid);
+          // keep the highest ranked row for each j2ksec
+          rows = readRows(rs, 11, true, downsampler, maxrows == 0 ? 0 : tempmaxrows);
+          rs.close();
+        } finally {
+          if (downsampler != null) {
+            ps.close();
+          }
         }
       }
-      rs = ps.executeQuery();
-
-      // Check for the amount of data returned in a downsampled query.
-      // Non-downsampled queries are checked above.
-      if (!ds.equals(DownsamplingType.NONE) && maxrows != 0 && getResultSetSize(rs) > tempmaxrows) {
+      if (rows == null) {
         throw new UtilException("Max rows (" + maxrows + " rows) for source '" + vdxName
-            + "' exceeded. Please downsample further.");
+            + "' exceeded. Please "
+            + (downsampler == null ? "use downsampling." : "downsample further."));
       }
 
-      double tempJ2ksec = Double.MAX_VALUE;
-
-      // loop through each result and add to the list
-      while (rs.next()) {
-
-        // if this is a new j2ksec, then save this data, as it contains the highest rank
-        if (Double.compare(tempJ2ksec, rs.getDouble(1)) != 0) {
-          dp = new DataPoint();
-          dp.timeVal = getDoubleNullCheck(rs, 1);
-          dp.rankVal = getDoubleNullCheck(rs, 2);
-          dp.xcoord = getDoubleNullCheck(rs, 3);
-          dp.ycoord = getDoubleNullCheck(rs, 4);
-          dp.zcoord = getDoubleNullCheck(rs, 5);
-          dp.sxx = getDoubleNullCheck(rs, 6);
-          dp.syy = getDoubleNullCheck(rs, 7);
-          dp.szz = getDoubleNullCheck(rs, 8);
-          dp.sxy = getDoubleNullCheck(rs, 9);
-          dp.sxz = getDoubleNullCheck(rs, 10);
-          dp.syz = getDoubleNullCheck(rs, 11);
-          dataPoints.add(dp);
-        }
-        tempJ2ksec = rs.getDouble(1);
+      for (double[] row : rows) {
+        dp = new DataPoint();
+        dp.timeVal = row[0];
+        dp.rankVal = row[1];
+        dp.xcoord = row[2];
+        dp.ycoord = row[3];
+        dp.zcoord = row[4];
+        dp.sxx = row[5];
+        dp.syy = row[6];
+        dp.szz = row[7];
+        dp.sxy = row[8];
+        dp.sxz = row[9];
+        dp.syz = row[10];
+        dataPoints.add(dp);
       }
-      rs.close();
 
       if (dataPoints.size() == 0) {
         dp = new DataPoint();
@@ -442,6 +447,8 @@ public class SQLGpsDataSource extends SQLDataSource implements DataSource {
    * @return source id on success, -1 on failure
    */
   public int insertSource(String name, String hash, double t0, double t1, int rid) {
+    PreparedStatement ps;
+    ResultSet rs;
     int sid = -1;
 
     try {
@@ -517,6 +524,8 @@ public class SQLGpsDataSource extends SQLDataSource implements DataSource {
    * @return source id on success, -1 on failure
    */
   public int insertSourceSimple(String name, double t0, double t1, int rid) {
+    PreparedStatement ps;
+    ResultSet rs;
     int sid = -1;
 
     try {
@@ -577,6 +586,7 @@ public class SQLGpsDataSource extends SQLDataSource implements DataSource {
    * @param dp data point
    */
   public void insertSolution(int sid, int cid, DataPoint dp) {
+    PreparedStatement ps;
 
     try {
       database.useDatabase(dbName);
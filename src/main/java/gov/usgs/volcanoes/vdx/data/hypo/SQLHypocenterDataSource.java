@@ -9,7 +9,10 @@ import gov.usgs.volcanoes.vdx.server.BinaryResult;
 import gov.usgs.volcanoes.vdx.server.RequestResult;
 import gov.usgs.volcanoes.vdx.server.TextResult;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -158,6 +161,9 @@ public class SQLHypocenterDataSource extends SQLDataSource implements DataSource
    * @return true if successful, false otherwise
    */
   public boolean createDatabase() {
+    Statement st;
+    PreparedStatement ps;
+    String sql;
 
     try {
       defaultCreateDatabase(channels, translations, channelTypes, ranks, columns, menuColumns);
@@ -324,18 +330,22 @@ public class SQLHypocenterDataSource extends SQLDataSource implements DataSource
       double minHerr, double maxHerr, double minVerr, double maxVerr, String rmk, double minStDst,
       double maxStDst, double maxGap, double centerLat, double centerLon, double radius,
       int maxrows) throws UtilException {
+    ResultSet rs;
 
     List<Hypocenter> pts = new ArrayList<Hypocenter>();
 
     if (radius > 0.0) {
-      getHypocenterData(rid, st, et, minDepth, maxDepth, minMag, maxMag, minNPhases, maxNPhases,
-          minRms, maxRms, minHerr, maxHerr, minVerr, maxVerr, rmk, minStDst, maxStDst, maxGap,
-          centerLat, centerLon, radius, maxrows);
+      rs = getHypocenterData(rid, st, et, minDepth, maxDepth, minMag, maxMag, minNPhases,
+          maxNPhases, minRms, maxRms, minHerr, maxHerr, minVerr, maxVerr, rmk, minStDst, maxStDst,
+          maxGap, centerLat, centerLon, radius, maxrows);
     } else {
-      getHypocenterData(rid, st, et, west, east, south, north, minDepth, maxDepth, minMag,
+      rs = getHypocenterData(rid, st, et, west, east, south, north, minDepth, maxDepth, minMag,
           maxMag, minNPhases, maxNPhases, minRms, maxRms, minHerr, maxHerr, minVerr,
           maxVerr, rmk, minStDst, maxStDst, maxGap, maxrows);
     }
+    if (rs == null) {
+      return new HypocenterList(pts);
+    }
 
     double j2ksec;
     double lat;
@@ -356,8 +366,16 @@ public class SQLHypocenterDataSource extends SQLDataSource implements DataSource
     String tempEid = "";
 
     try {
+      int tempmaxrows = rid != 0 ? maxrows : maxrows * defaultGetNumberOfRanks();
+
       // loop through each result and add to the list
+      int read = 0;
       while (rs.next()) {
+        if (maxrows != 0 && ++read > tempmaxrows) {
+          rs.close();
+          throw new UtilException(
+              "Max rows (" + maxrows + " rows) for data source '" + vdxName + "' exceeded.");
+        }
 
         // if this is a new eid, then save this data, as it contains the highest rank
         if (!tempEid.equals(rs.getString(18))) {
@@ -435,13 +453,17 @@ public class SQLHypocenterDataSource extends SQLDataSource implements DataSource
    * @param maxStDst max distance from closest station
    * @param maxGap max gap filter
    * @param maxrows maximum nbr of rows returned
+   * @return result set ordered by eid, with at most one row more than the row limit, null on
+   *         failure
    */
-  public void getHypocenterData(int rid, double st, double et, double west, double east,
+  public ResultSet getHypocenterData(int rid, double st, double et, double west, double east,
       double south, double north, double minDepth, double maxDepth, double minMag,
       double maxMag, Integer minNPhases, Integer maxNPhases, double minRms,
       double maxRms, double minHerr, double maxHerr, double minVerr, double maxVerr,
       String rmk, double minStDst, double maxStDst, double maxGap, int maxrows)
       throws UtilException {
+    PreparedStatement ps;
+    String sql;
 
     try {
 
@@ -455,8 +477,6 @@ public class SQLHypocenterDataSource extends SQLDataSource implements DataSource
         tempmaxrows = maxrows * defaultGetNumberOfRanks();
       }
 
-      sqlCount = "SELECT COUNT(*) FROM (SELECT 1 ";
-
       // build the sql
       sql = "SELECT a.j2ksec, a.rid, a.lat, a.lon, a.depth, a.prefmag, ";
       sql += "       a.ampmag, a.codamag, a.nphases, a.azgap, a.dmin, a.rms, ";
@@ -485,7 +505,7 @@ public class SQLHypocenterDataSource extends SQLDataSource implements DataSource
 
       // remarks filtering options
       if (!rmk.equals("")) {
-        sql += "AND    a.rmk = '" + rmk + "' ";
+        sql += "AND    a.rmk = ? ";
       }
 
       // BEST AVAILABLE DATA query
@@ -499,75 +519,50 @@ public class SQLHypocenterDataSource extends SQLDataSource implements DataSource
         sql = sql + ", c.rank DESC";
       }
 
+      // If the dataset has a maxrows paramater, the caller reads at most one row more than
+      // allowed and fails as soon as that row arrives.
       if (maxrows != 0) {
-        sql += " LIMIT " + (tempmaxrows + 1);
-
-        // If the dataset has a maxrows paramater, check that the number of requested rows doesn't
-        // exceed that number prior to running the full query. This can save a decent amount of time
-        // for large queries.
-        ps = database
-            .getPreparedStatement(sqlCount + sql.substring(sql.indexOf("FROM")) + ") as T");
-        ps.setDouble(1, st);
-        ps.setDouble(2, et);
-        ps.setDouble(3, west);
-        ps.setDouble(4, east);
-        ps.setDouble(5, south);
-        ps.setDouble(6, north);
-        ps.setDouble(7, minDepth);
-        ps.setDouble(8, maxDepth);
-        ps.setDouble(9, minMag);
-        ps.setDouble(10, maxMag);
-        ps.setInt(11, minNPhases);
-        ps.setInt(12, maxNPhases);
-        ps.setDouble(13, minRms);
-        ps.setDouble(14, maxRms);
-        ps.setDouble(15, minHerr);
-        ps.setDouble(16, maxHerr);
-        ps.setDouble(17, minVerr);
-        ps.setDouble(18, maxVerr);
-        ps.setDouble(19, minStDst);
-        ps.setDouble(20, maxStDst);
-        ps.setDouble(21, maxGap);
-        if (ranks && rid != 0) {
-          ps.setInt(22, rid);
-        }
-        rs = ps.executeQuery();
-        if (rs.next() && rs.getInt(1) > tempmaxrows) {
-          throw new UtilException(
-              "Max rows (" + maxrows + " rows) for data source '" + vdxName + "' exceeded.");
-        }
+        sql += " LIMIT ?";
       }
 
       ps = database.getPreparedStatement(sql);
-      ps.setDouble(1, st);
-      ps.setDouble(2, et);
-      ps.setDouble(3, west);
-      ps.setDouble(4, east);
-      ps.setDouble(5, south);
-      ps.setDouble(6, north);
-      ps.setDouble(7, minDepth);
-      ps.setDouble(8, maxDepth);
-      ps.setDouble(9, minMag);
-      ps.setDouble(10, maxMag);
-      ps.setInt(11, minNPhases);
-      ps.setInt(12, maxNPhases);
-      ps.setDouble(13, minRms);
-      ps.setDouble(14, maxRms);
-      ps.setDouble(15, minHerr);
-      ps.setDouble(16, maxHerr);
-      ps.setDouble(17, minVerr);
-      ps.setDouble(18, maxVerr);
-      ps.setDouble(19, minStDst);
-      ps.setDouble(20, maxStDst);
-      ps.setDouble(21, maxGap);
+      int p = 1;
+      ps.setDouble(p++, st);
+      ps.setDouble(p++, et);
+      ps.setDouble(p++, west);
+      ps.setDouble(p++, east);
+      ps.setDouble(p++, south);
+      ps.setDouble(p++, north);
+      ps.setDouble(p++, minDepth);
+      ps.setDouble(p++, maxDepth);
+      ps.setDouble(p++, minMag);
+      ps.setDouble(p++, maxMag);
+      ps.setInt(p++, minNPhases);
+      ps.setInt(p++, maxNPhases);
+      ps.setDouble(p++, minRms);
+      ps.setDouble(p++, maxRms);
+      ps.setDouble(p++, minHerr);
+      ps.setDouble(p++, maxHerr);
+      ps.setDouble(p++, minVerr);
+      ps.setDouble(p++, maxVerr);
+      ps.setDouble(p++, minStDst);
+      ps.setDouble(p++, maxStDst);
+      ps.setDouble(p++, maxGap);
+      if (!rmk.equals("")) {
+        ps.setString(p++, rmk);
+      }
       if (ranks && rid != 0) {
-        ps.setInt(22, rid);
+        ps.setInt(p++, rid);
+      }
+      if (maxrows != 0) {
+        ps.setInt(p++, tempmaxrows + 1);
       }
-      rs = ps.executeQuery();
+      return ps.executeQuery();
 
     } catch (SQLException e) {
       LOGGER.error("SQLHypocenterDataSource.getHypocenterData() failed.", e);
     }
+    return null;
   }
 
   /**
@@ -597,12 +592,16 @@ public class SQLHypocenterDataSource extends SQLDataSource implements DataSource
    * @param centerLon longitude of center point
    * @param radius radius to search within
    * @param maxrows maximum nbr of rows returned
+   * @return result set ordered by eid, with at most one row more than the row limit, null on
+   *         failure
    */
-  public void getHypocenterData(int rid, double st, double et, double minDepth,
+  public ResultSet getHypocenterData(int rid, double st, double et, double minDepth,
       double maxDepth, double minMag, double maxMag, Integer minNPhases, Integer maxNPhases,
       double minRms, double maxRms, double minHerr, double maxHerr, double minVerr,
       double maxVerr, String rmk, double minStDst, double maxStDst, double maxGap,
       double centerLat, double centerLon, double radius, int maxrows) throws UtilException {
+    PreparedStatement ps;
+    String sql;
 
     try {
 
@@ -616,8 +615,6 @@ public class SQLHypocenterDataSource extends SQLDataSource implements DataSource
         tempmaxrows = maxrows * defaultGetNumberOfRanks();
       }
 
-      sqlCount = "SELECT COUNT(*) FROM (SELECT 1 ";
-
       // build the sql
       sql = "SELECT a.j2ksec, a.rid, a.lat, a.lon, a.depth, a.prefmag, ";
       sql += "       a.ampmag, a.codamag, a.nphases, a.azgap, a.dmin, a.rms, ";
@@ -644,7 +641,7 @@ public class SQLHypocenterDataSource extends SQLDataSource implements DataSource
 
       // remarks filtering options
       if (!rmk.equals("")) {
-        sql += "AND    a.rmk = '" + rmk + "' ";
+        sql += "AND    a.rmk = ? ";
       }
 
       // BEST AVAILABLE DATA query
@@ -659,79 +656,50 @@ public class SQLHypocenterDataSource extends SQLDataSource implements DataSource
         sql = sql + ", c.rank DESC";
       }
 
+      // If the dataset has a maxrows paramater, the caller reads at most one row more than
+      // allowed and fails as soon as that row arrives.
       if (maxrows != 0) {
-        sql += " LIMIT " + (tempmaxrows + 1);
-
-        // If the dataset has a maxrows paramater, check that the number of requested rows doesn't
-        // exceed that number prior to running the full query. This can save a decent amount of time
-        // for large queries.
-        ps = database
-            .getPreparedStatement(sqlCount + sql.substring(sql.indexOf("FROM")) + ") as T");
-        ps.setDouble(1, centerLat);
-        ps.setDouble(2, centerLon);
-        ps.setDouble(3, centerLat);
-        ps.setDouble(4, st);
-        ps.setDouble(5, et);
-        ps.setDouble(6, minDepth);
-        ps.setDouble(7, maxDepth);
-        ps.setDouble(8, minMag);
-        ps.setDouble(9, maxMag);
-        ps.setInt(10, minNPhases);
-        ps.setInt(11, maxNPhases);
-        ps.setDouble(12, minRms);
-        ps.setDouble(13, maxRms);
-        ps.setDouble(14, minHerr);
-        ps.setDouble(15, maxHerr);
-        ps.setDouble(16, minVerr);
-        ps.setDouble(17, maxVerr);
-        ps.setDouble(18, minStDst);
-        ps.setDouble(19, maxStDst);
-        ps.setDouble(20, maxGap);
-        if (ranks && rid != 0) {
-          ps.setInt(21, rid);
-          ps.setDouble(22, radius);
-        } else {
-          ps.setDouble(21, radius);
-        }
-        rs = ps.executeQuery();
-        if (rs.next() && rs.getInt(1) > tempmaxrows) {
-          throw new UtilException(
-              "Max rows (" + maxrows + " rows) for data source '" + vdxName + "' exceeded.");
-        }
+        sql += " LIMIT ?";
       }
 
       ps = database.getPreparedStatement(sql);
-      ps.setDouble(1, centerLat);
-      ps.setDouble(2, centerLon);
-      ps.setDouble(3, centerLat);
-      ps.setDouble(4, st);
-      ps.setDouble(5, et);
-      ps.setDouble(6, minDepth);
-      ps.setDouble(7, maxDepth);
-      ps.setDouble(8, minMag);
-      ps.setDouble(9, maxMag);
-      ps.setInt(10, minNPhases);
-      ps.setInt(11, maxNPhases);
-      ps.setDouble(12, minRms);
-      ps.setDouble(13, maxRms);
-      ps.setDouble(14, minHerr);
-      ps.setDouble(15, maxHerr);
-      ps.setDouble(16, minVerr);
-      ps.setDouble(17, maxVerr);
-      ps.setDouble(18, minStDst);
-      ps.setDouble(19, maxStDst);
-      ps.setDouble(20, maxGap);
+      int p = 1;
+      ps.setDouble(p++, centerLat);
+      ps.setDouble(p++, centerLon);
+      ps.setDouble(p++, centerLat);
+      ps.setDouble(p++, st);
+      ps.setDouble(p++, et);
+      ps.setDouble(p++, minDepth);
+      ps.setDouble(p++, maxDepth);
+      ps.setDouble(p++, minMag);
+      ps.setDouble(p++, maxMag);
+      ps.setInt(p++, minNPhases);
+      ps.setInt(p++, maxNPhases);
+      ps.setDouble(p++, minRms);
+      ps.setDouble(p++, maxRms);
+      ps.setDouble(p++, minHerr);
+      ps.setDouble(p++, maxHerr);
+      ps.setDouble(p++, minVerr);
+      ps.setDouble(p++, maxVerr);
+      ps.setDouble(p++, minStDst);
+      ps.setDouble(p++, maxStDst);
+      ps.setDouble(p++, maxGap);
+      if (!rmk.equals("")) {
+        ps.setString(p++, rmk);
+      }
       if (ranks && rid != 0) {
-        ps.setInt(21, rid);
-        ps.setDouble(22, radius);
-      } else {
-        ps.setDouble(21, radius);
+        ps.setInt(p++, rid);
       }
-      rs = ps.executeQuery();
+      ps.setDouble(p++, radius);
+      if (maxrows != 0) {
+        ps.setInt(p++, tempmaxrows + 1);
+      }
+      return ps.executeQuery();
 
     } catch (SQLException e) {
       LOGGER.error("SQLHypocenterDataSource.getHypocenterData() failed.", e);
     }
+    return null;
   }
 
   /**
@@ -740,6 +708,8 @@ public class SQLHypocenterDataSource extends SQLDataSource implements DataSource
    * @param hc Hypocenter
    */
   public int insertHypocenter(Hypocenter hc) {
+    PreparedStatement ps;
+    String sql;
 
     int result = -1;
 
@@ -8,7 +8,10 @@ import gov.usgs.volcanoes.vdx.server.BinaryResult;
 import gov.usgs.volcanoes.vdx.server.RequestResult;
 import gov.usgs.volcanoes.vdx.server.TextResult;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -133,6 +136,8 @@ public class SQLLightningDataSource extends SQLDataSource implements DataSource
    * @return true if successful, false otherwise
    */
   public boolean createDatabase() {
+    Statement st;
+    String sql;
 
     try {
       defaultCreateDatabase(channels, translations, channelTypes, ranks, columns, menuColumns);
@@ -215,6 +220,9 @@ public class SQLLightningDataSource extends SQLDataSource implements DataSource
   public StrokeList getStrokeData(int rid, double st, double et, double west, double east,
       double south, double north,
       int maxrows) throws UtilException {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
 
     List<Stroke> pts = new ArrayList<Stroke>();
     StrokeList result = null;
@@ -231,8 +239,6 @@ public class SQLLightningDataSource extends SQLDataSource implements DataSource
         tempmaxrows = maxrows * defaultGetNumberOfRanks();
       }
 
-      sqlCount = "SELECT COUNT(*) FROM (SELECT 1 ";
-
       // build the sql
       sql = "SELECT a.j2ksec, a.rid, a.lat, a.lon, a.stationsDetected, a.residual";
       sql += " FROM   strokes a, ranks c ";
@@ -259,30 +265,10 @@ public class SQLLightningDataSource extends SQLDataSource implements DataSource
         sql = sql + ", c.rank DESC";
       }
 
+      // If the dataset has a maxrows paramater, the query reads at most one row more than allowed
+      // and fails as soon as that row arrives.
       if (maxrows != 0) {
-        sql += " LIMIT " + (tempmaxrows + 1);
-
-        // If the dataset has a maxrows paramater, check that the number
-        // of requested rows doesn't
-        // exceed that number prior to running the full query. This can
-        // save a decent amount of time
-        // for large queries.
-        ps = database
-            .getPreparedStatement(sqlCount + sql.substring(sql.indexOf("FROM")) + ") as T");
-        ps.setDouble(1, st);
-        ps.setDouble(2, et);
-        ps.setDouble(3, west);
-        ps.setDouble(4, east);
-        ps.setDouble(5, south);
-        ps.setDouble(6, north);
-        if (ranks && rid != 0) {
-          ps.setInt(7, rid);
-        }
-        rs = ps.executeQuery();
-        if (rs.next() && rs.getInt(1) > tempmaxrows) {
-          throw new UtilException(
-              "Max rows (" + maxrows + " rows) for data source '" + vdxName + "' exceeded.");
-        }
+        sql += " LIMIT ?";
       }
 
       ps = database.getPreparedStatement(sql);
@@ -292,8 +278,12 @@ public class SQLLightningDataSource extends SQLDataSource implements DataSource
       ps.setDouble(4, east);
       ps.setDouble(5, south);
       ps.setDouble(6, north);
+      int p = 7;
       if (ranks && rid != 0) {
-        ps.setInt(7, rid);
+        ps.setInt(p++, rid);
+      }
+      if (maxrows != 0) {
+        ps.setInt(p++, tempmaxrows + 1);
       }
 
       rs = ps.executeQuery();
@@ -305,7 +295,13 @@ public class SQLLightningDataSource extends SQLDataSource implements DataSource
       int stationsDetected;
 
       // loop through each result and add to the list
+      int read = 0;
       while (rs.next()) {
+        if (maxrows != 0 && ++read > tempmaxrows) {
+          rs.close();
+          throw new UtilException(
+              "Max rows (" + maxrows + " rows) for data source '" + vdxName + "' exceeded.");
+        }
 
         // if this is a new eid, then save this data, as it contains the
         // highest rank
@@ -347,6 +343,8 @@ public class SQLLightningDataSource extends SQLDataSource implements DataSource
    * @param hc Hypocenter
    */
   public int insertStrike(Stroke hc) {
+    PreparedStatement ps;
+    String sql;
 
     int result = -1;
 
@@ -10,11 +10,14 @@ import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.Column;
 import gov.usgs.volcanoes.vdx.data.DataSource;
+import gov.usgs.volcanoes.vdx.data.Downsampler;
 import gov.usgs.volcanoes.vdx.data.SQLDataSource;
 import gov.usgs.volcanoes.vdx.server.BinaryResult;
 import gov.usgs.volcanoes.vdx.server.RequestResult;
 import gov.usgs.volcanoes.vdx.server.TextResult;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
@@ -221,7 +224,8 @@ public class SQLEwRsamDataSource extends SQLDataSource implements DataSource {
       int dsInt = Integer.parseInt(params.get("dsInt"));
       RSAMData data = null;
       try {
-        data = getEwRsamData(cid, st, et, plotType, getMaxRows(), ds, dsInt);
+        data = getEwRsamData(cid, st, et, plotType, getMaxRows(), ds, dsInt,
+            params.get("dsMethod"));
       } catch (UtilException e) {
         return getErrorResult(e.getMessage());
       }
@@ -251,6 +255,9 @@ public class SQLEwRsamDataSource extends SQLDataSource implements DataSource {
    * @return String List containing VALUES and/or EVENTS
    */
   public List<String> getTypes() {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
 
     List<String> result = new ArrayList<String>();
 
@@ -293,6 +300,27 @@ public class SQLEwRsamDataSource extends SQLDataSource implements DataSource {
    */
   public RSAMData getEwRsamData(int cid, double st, double et, String plotType, int maxrows,
       DownsamplingType ds, int dsInt) throws UtilException {
+    return getEwRsamData(cid, st, et, plotType, maxrows, ds, dsInt, null);
+  }
+
+  /**
+   * Get RSAM data.
+   *
+   * @param cid channel id
+   * @param st start time
+   * @param et end time
+   * @param plotType type of plot (EVENTS or VALUES)
+   * @param maxrows maximum nbr of rows returned
+   * @param ds type of downsampling
+   * @param dsInt downsampling argument
+   * @param dsMethod downsampling method overriding ds, see {@link Downsampler}, may be null
+   * @return the RSAM data
+   */
+  public RSAMData getEwRsamData(int cid, double st, double et, String plotType, int maxrows,
+      DownsamplingType ds, int dsInt, String dsMethod) throws UtilException {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
 
     double[] dataRow;
     List<double[]> pts = new ArrayList<double[]>();
@@ -306,105 +334,71 @@ public class SQLEwRsamDataSource extends SQLDataSource implements DataSource {
       // which is part of the name of the table to query
       Channel ch = defaultGetChannel(cid, channelTypes);
 
-      sqlCount = "SELECT COUNT(*) FROM (SELECT 1 ";
-
       if (plotType.equals("VALUES")) {
 
+        // table names can't be bound as statement parameters
         sql = "SELECT j2ksec, rsam ";
-        sql += "FROM   ?_values ";
+        sql += "FROM   " + ch.getCode() + "_values ";
         sql += "WHERE  j2ksec >= ? and j2ksec <= ? ";
         sql += "ORDER BY j2ksec";
 
-        sqlCount += sql.substring(sql.indexOf("FROM"));
-
+        Downsampler downsampler;
         try {
-          sql = getDownsamplingSQL(sql, "j2ksec", ds, dsInt);
+          downsampler = Downsampler.create(ds, dsMethod, st, dsInt, 1);
         } catch (UtilException e) {
           throw new UtilException("Can't downsample dataset: " + e.getMessage());
         }
 
-        if (maxrows != 0) {
-          sql += " LIMIT " + (maxrows + 1);
-
-          // If the dataset has a maxrows paramater, check that the number of requested rows doesn't
-          // exceed that number prior to running the full query. This can save a decent amount of
-          // time for large queries. Note that this only applies for non-downsampled queries. This
-          // is done for two reasons: 1) If the user is downsampling, they already know they're
-          // dealing with a lot of data and 2) the way MySQL handles the multiple nested queries
-          // that would result makes it slower than just doing the full query to begin with.
-          if (ds.equals(DownsamplingType.NONE)) {
-            ps = database.getPreparedStatement(sqlCount + " LIMIT " + (maxrows + 1) + ") as T");
-            ps.setString(1, ch.getCode());
-            ps.setDouble(2, st);
-            ps.setDouble(3, et);
-            rs = ps.executeQuery();
-            if (rs.next() && rs.getInt(1) > maxrows) {
-              throw new UtilException("Max rows (" + maxrows + " rows) for data source '" + vdxName
-                  + "' exceeded. Please use downsampling.");
-            }
-          }
+        // If the dataset has a maxrows paramater, the query reads at most one row more than
+        // allowed and fails as soon as that row arrives. Downsampled queries read every row in
+        // range and check the number of rows left after downsampling instead.
+        if (maxrows != 0 && downsampler == null) {
+          sql += " LIMIT ?";
         }
 
-        ps = database.getPreparedStatement(sql);
-        if (ds.equals(DownsamplingType.MEAN)) {
-          ps.setDouble(1, st);
-          ps.setInt(2, dsInt);
-          ps.setString(3, ch.getCode());
-          ps.setDouble(4, st);
-          ps.setDouble(5, et);
-        } else {
-          ps.setString(1, ch.getCode());
-          ps.setDouble(2, st);
-          ps.setDouble(3, et);
-        }
-        rs = ps.executeQuery();
+        ps = downsampler == null ? database.getPreparedStatement(sql)
+            : prepareStreamingStatement(sql);
+        try {
+          int p = 1;
+          ps.setDouble(p++, st);
+          ps.setDouble(p++, et);
+          if (maxrows != 0 && downsampler == null) {
+            ps.setInt(p++, maxrows + 1);
+          }
+          rs = ps.executeQuery();
 
-        // Check for the amount of data returned in a downsampled query.
-        // Non-downsampled queries are checked above.
-        if (!ds.equals(DownsamplingType.NONE) && maxrows != 0 && getResultSetSize(rs) > maxrows) {
-          throw new UtilException("Max rows (" + maxrows + " rows) for source '" + vdxName
-              + "' exceeded. Please downsample further.");
+          // iterate through all results and create a double array to store the data
+          pts = readRows(rs, 2, false, downsampler, maxrows);
+          rs.close();
+        } finally {
+          if (downsampler != null) {
+            ps.close();
+          }
         }
-
-        pts = new ArrayList<double[]>();
-
-        // iterate through all results and create a double array to store the data
-        while (rs.next()) {
-          dataRow = new double[2];
-          dataRow[0] = getDoubleNullCheck(rs, 1);
-          dataRow[1] = getDoubleNullCheck(rs, 2);
-          pts.add(dataRow);
+        if (pts == null) {
+          throw new UtilException("Max rows (" + maxrows + " rows) for source '" + vdxName
+              + "' exceeded. Please "
+              + (downsampler == null ? "use downsampling." : "downsample further."));
         }
-        rs.close();
 
       } else if (plotType.equals("EVENTS")) {
 
         sql = "SELECT j2ksec, rsam ";
-        sql += "FROM   ?_events ";
+        sql += "FROM   " + ch.getCode() + "_events ";
         sql += "WHERE  j2ksec >= ? and j2ksec <= ? and rsam != 0";
 
+        // If the dataset has a maxrows paramater, the query reads at most one row more than
+        // allowed and fails as soon as that row arrives.
         if (maxrows != 0) {
-          sql += " LIMIT " + (maxrows + 1);
-
-          // If the dataset has a maxrows paramater, check that the number of requested rows doesn't
-          // exceed that number prior to running the full query. This can save a decent amount of
-          // time for large queries.
-          ps = database
-              .getPreparedStatement(sqlCount + sql.substring(sql.indexOf("FROM")) + ") as T");
-          ps.setString(1, ch.getCode());
-          ps.setDouble(2, st);
-          ps.setDouble(3, et);
-          rs = ps.executeQuery();
-          if (rs.next() && rs.getInt(1) > maxrows) {
-            throw new UtilException(
-                "Max rows (" + maxrows + " rows) for data source '" + vdxName + "' exceeded.");
-          }
+          sql += " LIMIT ?";
         }
 
         ps = database.getPreparedStatement(sql);
-        ps.setString(1, ch.getCode());
-        ps.setDouble(2, st);
-        ps.setDouble(3, et);
+        ps.setDouble(1, st);
+        ps.setDouble(2, et);
+        if (maxrows != 0) {
+          ps.setInt(3, maxrows + 1);
+        }
         rs = ps.executeQuery();
 
         // setup the initial value
@@ -415,7 +409,13 @@ public class SQLEwRsamDataSource extends SQLDataSource implements DataSource {
         pts.add(dataRow);
 
         // this puts the data in the format
+        int read = 0;
         while (rs.next()) {
+          if (maxrows != 0 && ++read > maxrows) {
+            rs.close();
+            throw new UtilException(
+                "Max rows (" + maxrows + " rows) for data source '" + vdxName + "' exceeded.");
+          }
           double t = rs.getDouble(1);
           double c = rs.getDouble(2);
           for (int i = 0; i < c; i++) {
@@ -449,6 +449,8 @@ public class SQLEwRsamDataSource extends SQLDataSource implements DataSource {
    */
   public void insertData(String channelCode, GenericDataMatrix gdm, boolean translations,
       boolean ranks, int rid) {
+    PreparedStatement ps;
+    String sql;
 
     try {
       database.useDatabase(dbName);
@@ -473,6 +475,9 @@ public class SQLEwRsamDataSource extends SQLDataSource implements DataSource {
         ps.setDouble(2, data.getQuick(i, 1));
         ps.execute();
       }
+      if (data.rows() > 0) {
+        announceInsert(channelCode, data.getQuick(0, 0), data.getQuick(data.rows() - 1, 0));
+      }
 
     } catch (Exception e) {
       LOGGER.error("SQLEwRsamDataSource.insertData()", e);
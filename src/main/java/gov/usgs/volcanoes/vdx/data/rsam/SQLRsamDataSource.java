@@ -7,14 +7,21 @@ import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.Column;
 import gov.usgs.volcanoes.vdx.data.DataSource;
+import gov.usgs.volcanoes.vdx.data.Downsampler;
 import gov.usgs.volcanoes.vdx.data.SQLDataSource;
+import gov.usgs.volcanoes.vdx.db.QueryGuard;
 import gov.usgs.volcanoes.vdx.server.BinaryResult;
 import gov.usgs.volcanoes.vdx.server.RequestResult;
 import gov.usgs.volcanoes.vdx.server.TextResult;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +43,7 @@ public class SQLRsamDataSource extends SQLDataSource implements DataSource {
   public static final boolean channelTypes = false;
   public static final boolean ranks = false;
   public static final boolean columns = true;
+  public static final boolean rollups = true;
   public static final boolean menuColumns = false;
 
   public static final Column[] DATA_COLUMNS = new Column[]{
@@ -104,6 +112,15 @@ public class SQLRsamDataSource extends SQLDataSource implements DataSource {
     return menuColumns;
   }
 
+  /**
+   * Get rollups flag.
+   *
+   * @return rollups flag
+   */
+  public boolean getRollupsFlag() {
+    return rollups;
+  }
+
   /**
    * Initialize data source.
    *
@@ -172,6 +189,8 @@ public class SQLRsamDataSource extends SQLDataSource implements DataSource {
    * @return true if successful
    */
   public boolean create10MinAvgView(String channelCode) {
+    PreparedStatement ps;
+    String sql;
     try {
       database.useDatabase(dbName);
       sql = "create view v_" + channelCode + "_10_min_avg "
@@ -214,7 +233,7 @@ public class SQLRsamDataSource extends SQLDataSource implements DataSource {
       int dsInt = Integer.parseInt(params.get("dsInt"));
       RSAMData data = null;
       try {
-        data = getRsamData(cid, st, et, getMaxRows(), ds, dsInt);
+        data = getRsamData(cid, st, et, getMaxRows(), ds, dsInt, params.get("dsMethod"));
       } catch (UtilException e) {
         return getErrorResult(e.getMessage());
       }
@@ -263,6 +282,26 @@ public class SQLRsamDataSource extends SQLDataSource implements DataSource {
    */
   public RSAMData getRsamData(int cid, double st, double et, int maxrows, DownsamplingType ds,
       int dsInt) throws UtilException {
+    return getRsamData(cid, st, et, maxrows, ds, dsInt, null);
+  }
+
+  /**
+   * Get RSAM data.
+   *
+   * @param cid channel id
+   * @param st start time
+   * @param et end time
+   * @param maxrows maximum nbr of rows returned
+   * @param ds type of downsampling
+   * @param dsInt downsampling argument
+   * @param dsMethod downsampling method overriding ds, see {@link Downsampler}, may be null
+   * @return RSAM data
+   */
+  public RSAMData getRsamData(int cid, double st, double et, int maxrows, DownsamplingType ds,
+      int dsInt, String dsMethod) throws UtilException {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
 
     double[] dataRow;
     List<double[]> pts = new ArrayList<double[]>();
@@ -274,71 +313,62 @@ public class SQLRsamDataSource extends SQLDataSource implements DataSource {
       // look up the channel code from the channels table, which is the name of the table to query
       Channel ch = defaultGetChannel(cid, channelTypes);
 
+      Downsampler downsampler;
+      try {
+        downsampler = Downsampler.create(ds, dsMethod, st, dsInt, 1);
+      } catch (UtilException e) {
+        throw new UtilException("Can't downsample dataset: " + e.getMessage());
+      }
+
+      // means are read from the coarsest suitable rollup when the channel has rollups
+      String table = getRollupTable(ch.getCode(), downsampler, st, et, dsInt, 0);
+      if (table == null) {
+        table = ch.getCode();
+      }
+
       // build the sql
       sql = "SELECT j2ksec, rsam ";
-      sql += "FROM   " + ch.getCode() + " ";
+      sql += "FROM   " + table + " a ";
       sql += "WHERE  j2ksec >= ? ";
       sql += "AND    j2ksec <= ? ";
       sql += "ORDER BY j2ksec";
 
-      sqlCount = "SELECT COUNT(*) FROM (SELECT 1 ";
-      sqlCount += sql.substring(sql.indexOf("FROM"));
-
-      try {
-        sql = getDownsamplingSQL(sql, "j2ksec", ds, dsInt);
-      } catch (UtilException e) {
-        throw new UtilException("Can't downsample dataset: " + e.getMessage());
-      }
-
-      if (maxrows != 0) {
-        sql += " LIMIT " + (maxrows + 1);
-
-        // If the dataset has a maxrows paramater, check that the number of requested rows doesn't
-        // exceed that number prior to running the full query. This can save a decent amount of time
-        // for large queries. Note that this only applies for non-downsampled queries. This is done
-        // for two reasons: 1) If the user is downsampling, they already know they're dealing with
-        // a lot of data and 2) the way MySQL handles the multiple nested queries that would result
-        // makes it slower than just doing the full query to begin with.
-        if (ds.equals(DownsamplingType.NONE)) {
-          ps = database.getPreparedStatement(sqlCount + " LIMIT " + (maxrows + 1) + ") as T");
-          ps.setDouble(1, st);
-          ps.setDouble(2, et);
-          rs = ps.executeQuery();
-          if (rs.next() && rs.getInt(1) > maxrows) {
-            throw new UtilException("Max rows (" + maxrows + " rows) for data source '" + vdxName
-                + "' exceeded. Please use downsampling.");
-          }
+      // If the dataset has a maxrows paramater, the query reads at most one row more than allowed
+      // and fails as soon as that row arrives. Downsampled queries read every row in range and
+      // check the number of rows left after downsampling instead.
+      if (maxrows != 0 && downsampler == null) {
+        if (exceedsRows(ch.getCode(), st, et, 0, maxrows)) {
+          throw new UtilException("Max rows (" + maxrows + " rows) for data source '" + vdxName
+              + "' exceeded. Please use downsampling.");
         }
+        sql += " LIMIT ?";
       }
 
-      ps = database.getPreparedStatement(sql);
-      if (ds.equals(DownsamplingType.MEAN)) {
-        ps.setDouble(1, st);
-        ps.setInt(2, dsInt);
-        ps.setDouble(3, st);
-        ps.setDouble(4, et);
-      } else {
-        ps.setDouble(1, st);
-        ps.setDouble(2, et);
+      ps = downsampler == null ? database.getPreparedStatement(sql)
+          : prepareStreamingStatement(sql);
+      try {
+        int p = 1;
+        ps.setDouble(p++, st);
+        ps.setDouble(p++, et);
+        if (maxrows != 0 && downsampler == null) {
+          ps.setInt(p++, maxrows + 1);
+        }
+        rs = ps.executeQuery();
+
+        // iterate through all results and create a double array to store the data,
+        // index 1 is the j2ksec
+        pts = readRows(rs, 2, false, downsampler, maxrows);
+        rs.close();
+      } finally {
+        if (downsampler != null) {
+          ps.close();
+        }
       }
-      rs = ps.executeQuery();
-
-      // Check for the amount of data returned in a downsampled query.
-      // Non-downsampled queries are checked above.
-      if (!ds.equals(DownsamplingType.NONE) && maxrows != 0 && getResultSetSize(rs) > maxrows) {
+      if (pts == null) {
         throw new UtilException("Max rows (" + maxrows + " rows) for source '" + vdxName
-            + "' exceeded. Please downsample further.");
-      }
-
-      // iterate through all results and create a double array to store the data,
-      // index 1 is the j2ksec
-      while (rs.next()) {
-        dataRow = new double[2];
-        dataRow[0] = getDoubleNullCheck(rs, 1);
-        dataRow[1] = getDoubleNullCheck(rs, 2);
-        pts.add(dataRow);
+            + "' exceeded. Please "
+            + (downsampler == null ? "use downsampling." : "downsample further."));
       }
-      rs.close();
 
       if (pts.size() == 0) {
         dataRow = new double[2];
@@ -357,23 +387,50 @@ public class SQLRsamDataSource extends SQLDataSource implements DataSource {
   }
 
   /**
-   * Get RatSAM data.
+   * Get RatSAM data. The two channels are queried at the same time, the second on a pooled
+   * connection of its own.
    *
    * @param maxrows maximum nbr of rows returned
    * @param ds type of downsampling
    * @param dsInt downsampling argument
    * @return RatSAM data
    */
-  public RSAMData getRatSamData(String ch, double st, double et, int maxrows, DownsamplingType ds,
-      int dsInt) throws UtilException {
+  public RSAMData getRatSamData(String ch, final double st, final double et, final int maxrows,
+      final DownsamplingType ds, final int dsInt) throws UtilException {
     RSAMData result1 = null;
     RSAMData result2 = null;
 
     String[] channels = ch.split(",");
     int ch1 = Integer.valueOf(channels[0]);
-    int ch2 = Integer.valueOf(channels[1]);
-    result1 = getRsamData(ch1, st, et, maxrows, ds, dsInt);
-    result2 = getRsamData(ch2, st, et, maxrows, ds, dsInt);
+    final int ch2 = Integer.valueOf(channels[1]);
+    final QueryGuard guard = QueryGuard.current();
+    Future<RSAMData> future2 = getExecutor().submit(new Callable<RSAMData>() {
+      public RSAMData call() throws UtilException {
+        QueryGuard.bind(guard);
+        try {
+          return getRsamData(ch2, st, et, maxrows, ds, dsInt);
+        } finally {
+          releaseConnection();
+          QueryGuard.bind(null);
+        }
+      }
+    });
+    try {
+      result1 = getRsamData(ch1, st, et, maxrows, ds, dsInt);
+      result2 = future2.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UtilException("Interrupted while reading RatSAM data.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof UtilException) {
+        throw (UtilException) e.getCause();
+      }
+      LOGGER.error("SQLRsamDataSource.getRatSamData() failed. ({}_{})", vdxName, dbName,
+          e.getCause());
+      throw new UtilException("Failed to read RatSAM data.");
+    } finally {
+      future2.cancel(false);
+    }
 
     return result1.getRatSAM(result2);
   }
@@ -6,11 +6,16 @@ import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.Column;
 import gov.usgs.volcanoes.vdx.data.DataSource;
+import gov.usgs.volcanoes.vdx.data.Downsampler;
+import gov.usgs.volcanoes.vdx.data.RankMerge;
 import gov.usgs.volcanoes.vdx.data.SQLDataSource;
 import gov.usgs.volcanoes.vdx.server.BinaryResult;
 import gov.usgs.volcanoes.vdx.server.RequestResult;
 import gov.usgs.volcanoes.vdx.server.TextResult;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -35,6 +40,7 @@ public class SQLTiltDataSource extends SQLDataSource implements DataSource {
   public static final boolean channelTypes = false;
   public static final boolean ranks = true;
   public static final boolean columns = true;
+  public static final boolean rollups = true;
   public static final boolean menuColumns = true;
 
   public static final Column[] DATA_COLUMNS = new Column[]{
@@ -121,6 +127,15 @@ public class SQLTiltDataSource extends SQLDataSource implements DataSource {
     return menuColumns;
   }
 
+  /**
+   * Get rollups flag.
+   *
+   * @return rollups flag
+   */
+  public boolean getRollupsFlag() {
+    return rollups;
+  }
+
   /**
    * Initialize data source.
    */
@@ -153,6 +168,7 @@ public class SQLTiltDataSource extends SQLDataSource implements DataSource {
    * @return true if successful, false otherwise
    */
   public boolean createDatabase() {
+    Statement st;
 
     try {
       defaultCreateDatabase(channels, translations, channelTypes, ranks, columns, menuColumns);
@@ -236,7 +252,7 @@ public class SQLTiltDataSource extends SQLDataSource implements DataSource {
       double et = Double.parseDouble(params.get("et"));
       DownsamplingType ds = DownsamplingType.fromString(params.get("ds"));
       int dsInt = Integer.parseInt(params.get("dsInt"));
-      return getTiltData(cid, rid, st, et, getMaxRows(), ds, dsInt);
+      return getTiltData(cid, rid, st, et, getMaxRows(), ds, dsInt, params.get("dsMethod"));
 
     } else if (action.equals("supptypes")) {
       return getSuppTypes(true);
@@ -265,6 +281,27 @@ public class SQLTiltDataSource extends SQLDataSource implements DataSource {
    */
   public RequestResult getTiltData(int cid, int rid, double st, double et, int maxrows,
       DownsamplingType ds, int dsInt) {
+    return getTiltData(cid, rid, st, et, maxrows, ds, dsInt, null);
+  }
+
+  /**
+   * Get Tilt Station data.
+   *
+   * @param cid channel id
+   * @param rid rank id
+   * @param st start time
+   * @param et end time
+   * @param maxrows maximum number of rows returned
+   * @param ds downsampling type
+   * @param dsInt downsampling argument
+   * @param dsMethod downsampling method overriding ds, see {@link Downsampler}, may be null
+   * @return request result
+   */
+  public RequestResult getTiltData(int cid, int rid, double st, double et, int maxrows,
+      DownsamplingType ds, int dsInt, String dsMethod) {
+    PreparedStatement ps;
+    ResultSet rs;
+    String sql;
 
     double[] dataRow;
     List<double[]> pts = new ArrayList<double[]>();
@@ -287,6 +324,19 @@ public class SQLTiltDataSource extends SQLDataSource implements DataSource {
       // look up the channel code from the channels table, which is the name of the table to query
       Channel channel = defaultGetChannel(cid, channelTypes);
 
+      Downsampler downsampler;
+      try {
+        downsampler = Downsampler.create(ds, dsMethod, st, dsInt, 2);
+      } catch (UtilException e) {
+        return getErrorResult("Can't downsample dataset: " + e.getMessage());
+      }
+
+      // means are read from the coarsest suitable rollup when the channel has rollups
+      String table = getRollupTable(channel.getCode(), downsampler, st, et, dsInt, rid);
+      if (table == null) {
+        table = channel.getCode();
+      }
+
       // build the sql
       sql = "SELECT j2ksec, c.rid, "
           + "   COS(RADIANS(b.azimuth))  * (xTilt * cxTilt + dxTilt) "
@@ -297,103 +347,77 @@ public class SQLTiltDataSource extends SQLDataSource implements DataSource {
           + "   boxTemp  * cboxTemp  + dboxTemp,  "
           + "   instVolt * cinstVolt + dinstVolt, "
           + "   rainfall * crainfall + drainfall  "
-          + "FROM " + channel.getCode() + " a "
+          + "FROM " + table + " a "
           + "   INNER JOIN translations  b ON a.tid = b.tid "
           + "   INNER JOIN ranks         c ON a.rid = c.rid "
           + "WHERE  j2ksec >= ? "
           + "AND    j2ksec <= ? ";
 
-      sqlCount = "SELECT COUNT(*) FROM (SELECT 1 FROM " + channel.getCode()
-          + " a INNER JOIN ranks c on a.rid = c.rid ";
-      sqlCount += "WHERE j2ksec >= ? AND j2ksec <= ? ";
-
-      // BEST AVAILABLE DATA QUERY
-      if (ranks && rid != 0) {
-        sql += "AND   c.rid = ? ";
-        sqlCount += "AND c.rid = ? ";
+      // If the dataset has a maxrows paramater, the query reads at most one row more than allowed
+      // and fails as soon as that row arrives. Downsampled queries read every row in range and
+      // check the number of rows left after downsampling instead.
+      boolean limited = maxrows != 0 && downsampler == null;
+      if (limited && exceedsRows(channel.getCode(), st, et, ranks ? rid : 0, tempmaxrows)) {
+        return getErrorResult("Max rows (" + maxrows + " rows) for data source '" + vdxName
+            + "' exceeded. Please use downsampling.");
       }
 
-      sql += "ORDER BY j2ksec ASC";
-      sqlCount += "ORDER BY j2ksec ASC";
-
+      // best available data is merged from one query per rank, where there are several
+      RankMerge merge = null;
       if (ranks && rid == 0) {
-        sql += ", c.rank DESC";
-        sqlCount += ", c.rank DESC";
-      }
-
-      if (ranks && rid != 0) {
-        try {
-          sql = getDownsamplingSQL(sql, "j2ksec", ds, dsInt);
-        } catch (UtilException e) {
-          return getErrorResult("Can't downsample dataset: " + e.getMessage());
-        }
-      }
-
-      if (maxrows != 0) {
-        sql += " LIMIT " + (tempmaxrows + 1);
-
-        // If the dataset has a maxrows paramater, check that the number of requested rows doesn't
-        // exceed that number prior to running the full query. This can save a decent amount of time
-        // for large queries. Note that this only applies for non-downsampled queries. This is done
-        // for two reasons: 1) If the user is downsampling, they already know they're dealing with
-        // a lot of data and 2) the way MySQL handles the multiple nested queries that would result
-        // makes it slower than just doing the full query to begin with.
-        if (ds.equals(DownsamplingType.NONE)) {
-          ps = database.getPreparedStatement(sqlCount + " LIMIT " + (tempmaxrows + 1) + ") as T");
-          ps.setDouble(1, st);
-          ps.setDouble(2, et);
-          if (ranks && rid != 0) {
-            ps.setInt(3, rid);
-          }
-          rs = ps.executeQuery();
-          if (rs.next() && rs.getInt(1) > tempmaxrows) {
-            return getErrorResult("Max rows (" + maxrows + " rows) for data source '" + vdxName
-                + "' exceeded. Please use downsampling.");
-          }
-        }
+        merge = mergeRanks(sql + "AND   c.rid = ? ORDER BY j2ksec ASC"
+            + (limited ? " LIMIT ?" : ""), new Object[] {st, et}, limited ? maxrows : 0,
+            columnsReturned);
       }
 
-      ps = database.getPreparedStatement(sql);
-      if (ds.equals(DownsamplingType.MEAN)) {
-        ps.setDouble(1, st);
-        ps.setInt(2, dsInt);
-        ps.setDouble(3, st);
-        ps.setDouble(4, et);
-        if (ranks && rid != 0) {
-          ps.setInt(5, rid);
-        }
+      if (merge != null) {
+        pts = readRows(merge, downsampler, maxrows);
       } else {
-        ps.setDouble(1, st);
-        ps.setDouble(2, et);
+
+        // BEST AVAILABLE DATA QUERY
         if (ranks && rid != 0) {
-          ps.setInt(3, rid);
+          sql += "AND   c.rid = ? ";
         }
-      }
-      rs = ps.executeQuery();
 
-      // Check for the amount of data returned in a downsampled query.
-      // Non-downsampled queries are checked above.
-      if (!ds.equals(DownsamplingType.NONE) && maxrows != 0 && getResultSetSize(rs) > tempmaxrows) {
-        throw new UtilException("Max rows (" + maxrows + " rows) for source '" + vdxName
-            + "' exceeded. Please downsample further.");
-      }
+        sql += "ORDER BY j2ksec ASC";
 
-      double tempJ2ksec = Double.MAX_VALUE;
+        if (ranks && rid == 0) {
+          sql += ", c.rank DESC";
+        }
 
-      // loop through each result and add to the list
-      while (rs.next()) {
+        if (limited) {
+          sql += " LIMIT ?";
+        }
 
-        // if this is a new j2ksec, then save this data, as it contains the highest rank
-        if (Double.compare(tempJ2ksec, rs.getDouble(1)) != 0) {
-          dataRow = new double[columnsReturned];
-          for (int i = 0; i < columnsReturned; i++) {
-            dataRow[i] = getDoubleNullCheck(rs, i + 1);
+        ps = downsampler == null ? database.getPreparedStatement(sql)
+            : prepareStreamingStatement(sql);
+        try {
+          int p = 1;
+          ps.setDouble(p++, st);
+          ps.setDouble(p++, et);
+          if (ranks && rid != 0) {
+            ps.setInt(p++, rid);
+          }
+          if (limited) {
+            ps.setInt(p++, tempmaxrows + 1);
+          }
+          rs = ps.executeQuery();
+
+          // keep the highest ranked row for each j2ksec
+          pts = readRows(rs, columnsReturned, true, downsampler,
+              maxrows == 0 ? 0 : tempmaxrows);
+          rs.close();
+        } finally {
+          if (downsampler != null) {
+            ps.close();
           }
-          pts.add(dataRow);
         }
-        tempJ2ksec = rs.getDouble(1);
       }
-      rs.close();
+      if (pts == null) {
+        return getErrorResult("Max rows (" + maxrows + " rows) for source '" + vdxName
+            + "' exceeded. Please "
+            + (downsampler == null ? "use downsampling." : "downsample further."));
+      }
 
       if (pts.size() == 0) {
         dataRow = new double[columnsReturned];
@@ -417,6 +441,7 @@ public class SQLTiltDataSource extends SQLDataSource implements DataSource {
    * @return List of Strings with : separated values
    */
   public List<String> getAzimuths() {
+    ResultSet rs;
     List<String> result = new ArrayList<String>();
 
     try {
@@ -442,6 +467,8 @@ public class SQLTiltDataSource extends SQLDataSource implements DataSource {
    * @return azimuth of station, 0 for not found
    */
   public double getNominalAzimuth(String channelCode) {
+    PreparedStatement ps;
+    ResultSet rs;
     double result = 0.0;
 
     try {
@@ -0,0 +1,478 @@
+package gov.usgs.volcanoes.vdx.db;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of connections to one database server, shared by every VDXDatabase in the process
+ * using the same driver and url. Connections are validated when borrowed, idle connections above
+ * the minimum size are closed after the idle timeout, and a borrower asking for a database gets an
+ * idle connection already using it when there is one.
+ *
+ * @author Tom Parker
+ */
+public class ConnectionPool {
+
+  static final int STATEMENT_HIT = 0;
+  static final int STATEMENT_MISS = 1;
+  static final int STATEMENT_EVICTED = 2;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
+  private static final Map<String, ConnectionPool> pools = new HashMap<String, ConnectionPool>();
+  private static ScheduledExecutorService maintenance;
+
+  private static int defaultMinSize = 1;
+  private static int defaultMaxSize = 20;
+  private static long defaultIdleTimeout = 300000;
+  private static long defaultBorrowTimeout = 10000;
+  private static int defaultStatementCacheSize = 100;
+
+  private String url;
+  private int minSize;
+  private int maxSize;
+  private long idleTimeout;
+  private long borrowTimeout;
+  private int statementCacheSize;
+
+  private LinkedList<PooledConnection> idle;
+  private int total;
+  private boolean closed;
+
+  private long borrowed;
+  private long affinityHits;
+  private long created;
+  private long evicted;
+  private long invalid;
+  private long timeouts;
+  private AtomicLong[] statementStats;
+
+  /**
+   * Constructor.
+   *
+   * @param u database url
+   */
+  private ConnectionPool(String u) {
+    url = u;
+    minSize = defaultMinSize;
+    maxSize = defaultMaxSize;
+    idleTimeout = defaultIdleTimeout;
+    borrowTimeout = defaultBorrowTimeout;
+    statementCacheSize = defaultStatementCacheSize;
+    idle = new LinkedList<PooledConnection>();
+    statementStats = new AtomicLong[] {new AtomicLong(), new AtomicLong(), new AtomicLong()};
+  }
+
+  /**
+   * Set size and timeouts of pools created after this call.
+   *
+   * @param min connections kept open even when idle
+   * @param max maximum number of open connections
+   * @param idleMs idle time in milliseconds after which a connection above min is closed
+   * @param borrowMs time in milliseconds to wait for a connection when all are in use
+   */
+  public static synchronized void setDefaults(int min, int max, long idleMs, long borrowMs) {
+    defaultMaxSize = Math.max(1, max);
+    defaultMinSize = Math.max(0, Math.min(min, defaultMaxSize));
+    defaultIdleTimeout = idleMs;
+    defaultBorrowTimeout = borrowMs;
+  }
+
+  /**
+   * Raise the maximum size of pools created after this call, for processes using more threads
+   * than the default size allows.
+   *
+   * @param max maximum number of open connections needed
+   */
+  public static synchronized void ensureDefaultMaxSize(int max) {
+    defaultMaxSize = Math.max(defaultMaxSize, max);
+  }
+
+  /**
+   * Set number of prepared statements cached per connection for pools created after this call.
+   *
+   * @param size cache size, at least 8
+   */
+  public static synchronized void setStatementCacheSize(int size) {
+    defaultStatementCacheSize = Math.max(8, size);
+  }
+
+  /**
+   * Get the pool for a database server, creating it if needed.
+   *
+   * @param driver class name for database driver
+   * @param url database url
+   * @return connection pool
+   */
+  public static synchronized ConnectionPool getPool(String driver, String url) {
+    String key = driver + "|" + url;
+    ConnectionPool pool = pools.get(key);
+    if (pool == null) {
+      pool = new ConnectionPool(url);
+      pools.put(key, pool);
+      startMaintenance(pool);
+    }
+    return pool;
+  }
+
+  /**
+   * Get all pools in the process.
+   *
+   * @return list of pools
+   */
+  public static synchronized List<ConnectionPool> getPools() {
+    return new ArrayList<ConnectionPool>(pools.values());
+  }
+
+  /**
+   * Close all pools. Connections in use are closed when they are returned.
+   */
+  public static synchronized void closeAll() {
+    for (ConnectionPool pool : pools.values()) {
+      pool.close();
+    }
+    pools.clear();
+    if (maintenance != null) {
+      maintenance.shutdownNow();
+      maintenance = null;
+    }
+  }
+
+  /**
+   * Schedule idle eviction and minimum size upkeep for a pool.
+   *
+   * @param pool connection pool
+   */
+  private static void startMaintenance(final ConnectionPool pool) {
+    if (maintenance == null) {
+      maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "VDX/ConnectionPool");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    long period = Math.max(1000, pool.idleTimeout / 4);
+    maintenance.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          pool.maintain();
+        } catch (Exception e) {
+          LOGGER.error("ConnectionPool.maintain() failed.", e);
+        }
+      }
+    }, 0, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Borrow a validated connection, waiting if all connections are in use.
+   *
+   * @param database full database name the caller is about to use, may be null
+   * @return connection, which must be returned with {@link #release(PooledConnection)}
+   * @throws SQLException if no connection could be obtained
+   */
+  public PooledConnection borrow(String database) throws SQLException {
+    while (true) {
+      PooledConnection pc = reserve(database);
+      if (pc == null) {
+        try {
+          return open();
+        } catch (SQLException e) {
+          synchronized (this) {
+            total--;
+            notifyAll();
+          }
+          throw e;
+        }
+      }
+      if (pc.isValid()) {
+        return pc;
+      }
+      synchronized (this) {
+        invalid++;
+      }
+      discard(pc);
+    }
+  }
+
+  /**
+   * Borrow several validated connections at once, waiting until all of them are available, so a
+   * caller needing them together never holds some while waiting for the others.
+   *
+   * @param database full database name the caller is about to use, may be null
+   * @param n number of connections
+   * @return connections, each of which must be returned with {@link #release(PooledConnection)}
+   * @throws SQLException if the pool can't hold that many, or on timeout or connection failure
+   */
+  public List<PooledConnection> borrow(String database, int n) throws SQLException {
+    List<PooledConnection> connections = new ArrayList<PooledConnection>();
+    int opening = reserveAll(database, n, connections);
+    for (Iterator<PooledConnection> it = connections.iterator(); it.hasNext();) {
+      PooledConnection pc = it.next();
+      if (!pc.isValid()) {
+
+        // the reserved room is reused for a new connection
+        pc.close();
+        it.remove();
+        opening++;
+        synchronized (this) {
+          invalid++;
+        }
+      }
+    }
+    try {
+      while (opening > 0) {
+        connections.add(open());
+        opening--;
+      }
+    } catch (SQLException e) {
+      for (PooledConnection pc : connections) {
+        release(pc);
+      }
+      synchronized (this) {
+        total -= opening;
+        notifyAll();
+      }
+      throw e;
+    }
+    return connections;
+  }
+
+  /**
+   * Take idle connections, and reserve room for new ones where there are too few, once there are
+   * enough of both for all.
+   *
+   * @param database preferred full database name, may be null
+   * @param n number of connections
+   * @param taken list receiving the idle connections taken
+   * @return number of connections the caller should open
+   * @throws SQLException if the pool can't hold that many, or timed out or interrupted waiting
+   */
+  private synchronized int reserveAll(String database, int n, List<PooledConnection> taken)
+      throws SQLException {
+    if (n > maxSize) {
+      throw new SQLException(n + " connections requested from a pool of " + maxSize + ".");
+    }
+    long deadline = System.currentTimeMillis() + borrowTimeout;
+    while (idle.size() + maxSize - total < n) {
+      long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0) {
+        timeouts++;
+        throw new SQLException(
+            "Timed out after " + borrowTimeout + " ms waiting for database connections.");
+      }
+      try {
+        wait(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for database connections.");
+      }
+    }
+    borrowed += n;
+    for (Iterator<PooledConnection> it = idle.iterator(); it.hasNext() && taken.size() < n;) {
+      PooledConnection pc = it.next();
+      if (database == null || database.equals(pc.getDatabase())) {
+        it.remove();
+        taken.add(pc);
+      }
+    }
+    while (taken.size() < n && !idle.isEmpty()) {
+      taken.add(idle.removeFirst());
+    }
+    total += n - taken.size();
+    return n - taken.size();
+  }
+
+  /**
+   * Get the largest number of connections the pool opens.
+   *
+   * @return maximum size
+   */
+  public synchronized int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Take an idle connection, or reserve room for a new one if there is none.
+   *
+   * @param database preferred full database name, may be null
+   * @return idle connection, or null if caller should open a new one
+   * @throws SQLException if timed out or interrupted waiting
+   */
+  private synchronized PooledConnection reserve(String database) throws SQLException {
+    long deadline = System.currentTimeMillis() + borrowTimeout;
+    while (idle.isEmpty() && total >= maxSize) {
+      long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0) {
+        timeouts++;
+        throw new SQLException(
+            "Timed out after " + borrowTimeout + " ms waiting for a database connection.");
+      }
+      try {
+        wait(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for a database connection.");
+      }
+    }
+    borrowed++;
+    if (idle.isEmpty()) {
+      total++;
+      return null;
+    }
+    if (database != null) {
+      for (Iterator<PooledConnection> it = idle.iterator(); it.hasNext();) {
+        PooledConnection pc = it.next();
+        if (database.equals(pc.getDatabase())) {
+          it.remove();
+          affinityHits++;
+          return pc;
+        }
+      }
+    }
+    return idle.removeFirst();
+  }
+
+  /**
+   * Open a new connection. Caller must already have reserved room for it.
+   *
+   * @return new connection
+   * @throws SQLException if connection fails
+   */
+  private PooledConnection open() throws SQLException {
+    DriverManager.setLoginTimeout(3);
+    PooledConnection pc =
+        new PooledConnection(DriverManager.getConnection(url), this, statementCacheSize);
+    synchronized (this) {
+      created++;
+    }
+    return pc;
+  }
+
+  /**
+   * Return a borrowed connection to the pool.
+   *
+   * @param pc connection
+   */
+  public void release(PooledConnection pc) {
+    synchronized (this) {
+      if (!closed) {
+        pc.setLastUsed(System.currentTimeMillis());
+        idle.addFirst(pc);
+        notifyAll();
+        return;
+      }
+    }
+    discard(pc);
+  }
+
+  /**
+   * Close a borrowed connection that is no longer usable instead of returning it.
+   *
+   * @param pc connection
+   */
+  public void discard(PooledConnection pc) {
+    pc.close();
+    synchronized (this) {
+      total--;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Close connections idle longer than the idle timeout while keeping the minimum size, then
+   * open connections up to the minimum size.
+   */
+  void maintain() {
+    List<PooledConnection> expired = new ArrayList<PooledConnection>();
+    int missing;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      long cutoff = System.currentTimeMillis() - idleTimeout;
+      for (Iterator<PooledConnection> it = idle.descendingIterator();
+          it.hasNext() && total - expired.size() > minSize;) {
+        PooledConnection pc = it.next();
+        if (pc.getLastUsed() < cutoff) {
+          it.remove();
+          expired.add(pc);
+        }
+      }
+      total -= expired.size();
+      evicted += expired.size();
+      missing = minSize - total;
+      total += Math.max(0, missing);
+    }
+    for (PooledConnection pc : expired) {
+      pc.close();
+    }
+    for (int i = 0; i < missing; i++) {
+      try {
+        release(open());
+      } catch (SQLException e) {
+        synchronized (this) {
+          total -= missing - i;
+          notifyAll();
+        }
+        LOGGER.warn("Could not open database connection: {}", e.getMessage());
+        break;
+      }
+    }
+  }
+
+  /**
+   * Count a prepared statement cache event.
+   *
+   * @param event one of STATEMENT_HIT, STATEMENT_MISS or STATEMENT_EVICTED
+   */
+  void countStatement(int event) {
+    statementStats[event].incrementAndGet();
+  }
+
+  /**
+   * Close idle connections and stop accepting returned ones.
+   */
+  private synchronized void close() {
+    closed = true;
+    for (PooledConnection pc : idle) {
+      pc.close();
+    }
+    total -= idle.size();
+    idle.clear();
+    notifyAll();
+  }
+
+  /**
+   * Describe pool size and usage counters.
+   *
+   * @return pool statistics
+   */
+  public synchronized String toString() {
+    int statements = 0;
+    for (PooledConnection pc : idle) {
+      statements += pc.getStatementCount();
+    }
+    return String.format(
+        "connections=%d; idle=%d; max=%d; borrowed=%d; affinityHits=%d; created=%d; evicted=%d; "
+            + "invalid=%d; timeouts=%d; idleStatements=%d; statementHits=%d; statementMisses=%d; "
+            + "statementEvictions=%d",
+        total, idle.size(), maxSize, borrowed, affinityHits, created, evicted, invalid, timeouts,
+        statements, statementStats[STATEMENT_HIT].get(), statementStats[STATEMENT_MISS].get(),
+        statementStats[STATEMENT_EVICTED].get());
+  }
+}
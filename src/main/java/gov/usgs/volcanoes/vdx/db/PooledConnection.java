@@ -0,0 +1,168 @@
+package gov.usgs.volcanoes.vdx.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A connection owned by a {@link ConnectionPool}, together with its statements and the database
+ * it is currently using. Prepared statements are kept in a bounded cache; the least recently used
+ * statement is closed when the cache is full.
+ *
+ * @author Tom Parker
+ */
+public class PooledConnection {
+
+  private Connection connection;
+  private Statement statement;
+  private Map<String, PreparedStatement> preparedStatements;
+  private ConnectionPool pool;
+  private String database;
+  private long lastUsed;
+
+  /**
+   * Constructor.
+   *
+   * @param c open connection
+   * @param p pool owning the connection
+   * @param cacheSize maximum number of cached prepared statements
+   * @throws SQLException if statement can't be created
+   */
+  PooledConnection(Connection c, ConnectionPool p, final int cacheSize) throws SQLException {
+    connection = c;
+    pool = p;
+    statement = connection.createStatement();
+    preparedStatements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+        if (size() <= cacheSize) {
+          return false;
+        }
+        try {
+          eldest.getValue().close();
+        } catch (SQLException e) {
+          // statement is being thrown away
+        }
+        pool.countStatement(ConnectionPool.STATEMENT_EVICTED);
+        return true;
+      }
+    };
+    lastUsed = System.currentTimeMillis();
+  }
+
+  /**
+   * Getter for connection.
+   *
+   * @return connection
+   */
+  public Connection getConnection() {
+    return connection;
+  }
+
+  /**
+   * Getter for statement.
+   *
+   * @return statement
+   */
+  public Statement getStatement() {
+    return statement;
+  }
+
+  /**
+   * Prepare statement for sql, reusing one prepared earlier on this connection.
+   *
+   * @param sql statement to prepare
+   * @return prepared statement
+   * @throws SQLException if statement can't be prepared
+   */
+  public PreparedStatement prepare(String sql) throws SQLException {
+    PreparedStatement ps = preparedStatements.get(sql);
+    if (ps == null) {
+      pool.countStatement(ConnectionPool.STATEMENT_MISS);
+      ps = connection.prepareStatement(sql);
+      preparedStatements.put(sql, ps);
+    } else {
+      pool.countStatement(ConnectionPool.STATEMENT_HIT);
+    }
+    return ps;
+  }
+
+  /**
+   * Getter for number of cached prepared statements.
+   *
+   * @return cache size
+   */
+  public int getStatementCount() {
+    return preparedStatements.size();
+  }
+
+  /**
+   * Getter for the database selected with USE, or null if none or unknown.
+   *
+   * @return full database name
+   */
+  public String getDatabase() {
+    return database;
+  }
+
+  /**
+   * Record the database selected with USE.
+   *
+   * @param db full database name
+   */
+  public void setDatabase(String db) {
+    database = db;
+  }
+
+  /**
+   * Getter for time connection was last returned to the pool.
+   *
+   * @return time in milliseconds
+   */
+  long getLastUsed() {
+    return lastUsed;
+  }
+
+  /**
+   * Setter for time connection was last returned to the pool.
+   *
+   * @param t time in milliseconds
+   */
+  void setLastUsed(long t) {
+    lastUsed = t;
+  }
+
+  /**
+   * Check that connection still answers. Connector/J turns this query into a protocol-level ping.
+   *
+   * @return true if connection is usable
+   */
+  boolean isValid() {
+    try {
+      statement.execute("/* ping */ SELECT 1");
+      return true;
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Close connection and its statements.
+   */
+  void close() {
+    try {
+      for (PreparedStatement ps : preparedStatements.values()) {
+        ps.close();
+      }
+      preparedStatements.clear();
+      statement.close();
+      connection.close();
+    } catch (SQLException e) {
+      // connection is being thrown away
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package gov.usgs.volcanoes.vdx.db;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Time limit and cancellation of the queries run for one request. Statements handed out by
+ * {@link VDXDatabase} on a thread with a guard are recorded, and a watchdog thread cancels them,
+ * which has the MySQL driver kill the running query, once the request runs longer than its timeout
+ * or its client has gone away. A cancelled guard refuses further statements, so the request ends
+ * quickly instead of starting its next query.
+ *
+ * @author Tom Parker
+ */
+public class QueryGuard {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueryGuard.class);
+  private static final long CHECK_INTERVAL = 1000;
+  private static final ThreadLocal<QueryGuard> current = new ThreadLocal<QueryGuard>();
+  private static final Set<QueryGuard> active =
+      Collections.newSetFromMap(new IdentityHashMap<QueryGuard, Boolean>());
+  private static ScheduledExecutorService watchdog;
+
+  /** Not cancelled. */
+  public static final int RUNNING = 0;
+
+  /** Cancelled because the request ran longer than its timeout. */
+  public static final int TIMED_OUT = 1;
+
+  /** Cancelled because the client went away. */
+  public static final int DISCONNECTED = 2;
+
+  private final long deadline;
+  private Probe probe;
+  private final Set<Statement> statements;
+  private int state;
+  private boolean ended;
+
+  /**
+   * Check whether the client of a request is still there.
+   */
+  public interface Probe {
+
+    /**
+     * Check the client.
+     *
+     * @return true if the client has gone away
+     */
+    boolean isGone();
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param timeout milliseconds the request may run, 0 for no limit
+   * @param probe client check, may be null
+   */
+  private QueryGuard(long timeout, Probe probe) {
+    deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+    this.probe = probe;
+    statements = Collections.newSetFromMap(new IdentityHashMap<Statement, Boolean>());
+  }
+
+  /**
+   * Start guarding the queries of the current thread.
+   *
+   * @param timeout milliseconds the request may run, 0 for no limit
+   * @param probe client check, may be null
+   * @return guard, to be ended with {@link #end()}
+   */
+  public static QueryGuard begin(long timeout, Probe probe) {
+    QueryGuard guard = new QueryGuard(timeout, probe);
+    current.set(guard);
+    if (timeout > 0 || probe != null) {
+      synchronized (active) {
+        active.add(guard);
+        if (watchdog == null) {
+          watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "VDX/QueryGuard");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+          watchdog.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+              check();
+            }
+          }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+    return guard;
+  }
+
+  /**
+   * Get the guard of the current thread.
+   *
+   * @return guard, or null if queries of this thread are not guarded
+   */
+  public static QueryGuard current() {
+    return current.get();
+  }
+
+  /**
+   * Guard the queries of the current thread, a helper of the thread that began the guard, with
+   * the same guard. Pass null to stop.
+   *
+   * @param guard guard, may be null
+   */
+  public static void bind(QueryGuard guard) {
+    if (guard == null) {
+      current.remove();
+    } else {
+      current.set(guard);
+    }
+  }
+
+  /**
+   * Cancel guards that ran out of time or whose client went away.
+   */
+  private static void check() {
+    List<QueryGuard> guards;
+    synchronized (active) {
+      guards = new ArrayList<QueryGuard>(active);
+    }
+    long now = System.currentTimeMillis();
+    for (QueryGuard guard : guards) {
+      try {
+        if (now > guard.deadline) {
+          guard.cancel(TIMED_OUT);
+        } else {
+          synchronized (guard) {
+            if (!guard.ended && guard.probe != null && guard.probe.isGone()) {
+              guard.cancel(DISCONNECTED);
+            }
+          }
+        }
+      } catch (RuntimeException e) {
+        LOGGER.warn("QueryGuard.check() failed.", e);
+      }
+    }
+  }
+
+  /**
+   * Record a statement about to be executed.
+   *
+   * @param st statement
+   * @throws SQLException if the guard has been cancelled
+   */
+  public synchronized void add(Statement st) throws SQLException {
+    if (state != RUNNING) {
+      throw new SQLException("Query cancelled.");
+    }
+    if (!ended) {
+      statements.add(st);
+    }
+  }
+
+  /**
+   * Cancel the recorded statements.
+   *
+   * @param reason TIMED_OUT or DISCONNECTED
+   */
+  public synchronized void cancel(int reason) {
+    if (ended || state != RUNNING) {
+      return;
+    }
+    state = reason;
+    for (Statement st : statements) {
+      try {
+        st.cancel();
+      } catch (SQLException e) {
+        LOGGER.debug("QueryGuard.cancel() failed.", e);
+      }
+    }
+  }
+
+  /**
+   * Stop checking whether the client has gone away, e.g. while the result is being written to it.
+   * The timeout still applies.
+   */
+  public synchronized void detachProbe() {
+    probe = null;
+  }
+
+  /**
+   * Get the state of the guard.
+   *
+   * @return RUNNING, TIMED_OUT or DISCONNECTED
+   */
+  public synchronized int getState() {
+    return state;
+  }
+
+  /**
+   * Stop guarding. The statements may be used by other requests afterwards, so they are never
+   * cancelled after this returns.
+   */
+  public void end() {
+    synchronized (this) {
+      ended = true;
+      statements.clear();
+    }
+    synchronized (active) {
+      active.remove(this);
+    }
+    if (current.get() == this) {
+      current.remove();
+    }
+  }
+}
@@ -16,13 +16,13 @@ import gov.usgs.volcanoes.vdx.data.tensorstrain.SQLTensorstrainDataSource;
 import gov.usgs.volcanoes.vdx.data.tilt.SQLTiltDataSource;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -30,8 +30,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Keeps SQL database-related information needed to make connection.
- * Not thread-safe.
+ * Keeps SQL database-related information needed to make connection. Connections are borrowed
+ * from a process-wide {@link ConnectionPool}; each thread works on its own connection, held
+ * until {@link #release()} is called.
  * TODO: refactor so VDXDatabase and WinstonDatabase derive from a common source.
  *
  * @author Dan Cervelli
@@ -43,18 +44,16 @@ public class VDXDatabase {
   private static final String CURRENT_SCHEMA_VERSION = "1.0.0";
   private static final String DEFAULT_DATABASE_PREFIX = "V";
 
-  private Connection connection;
-  private Statement statement;
+  private ConnectionPool pool;
+  private ThreadLocal<PooledConnection> lease = new ThreadLocal<PooledConnection>();
 
-  private boolean connected;
+  private volatile boolean connected;
 
   private String dbDriver;
   private String dbUrl;
 
   private String dbPrefix = DEFAULT_DATABASE_PREFIX;
 
-  private Map<String, PreparedStatement> preparedStatements;
-
   /**
    * Constructor.
    *
@@ -69,7 +68,6 @@ public class VDXDatabase {
     if (prefix != null) {
       dbPrefix = prefix;
     }
-    preparedStatements = new HashMap<String, PreparedStatement>();
     connect();
   }
 
@@ -104,43 +102,117 @@ public class VDXDatabase {
   }
 
   /**
-   * Performs database connection.
+   * Performs database connection, borrowing a connection from the pool for the current thread.
    */
   public void connect() {
     connected = false;
     try {
       Class.forName(dbDriver).newInstance();
-      DriverManager.setLoginTimeout(3);
-      connection = DriverManager.getConnection(dbUrl);
-      statement = connection.createStatement();
+      pool = ConnectionPool.getPool(dbDriver, dbUrl);
+      invalidate();
+      current();
       connected = true;
-      preparedStatements.clear();
     } catch (ClassNotFoundException e) {
       LOGGER.error("Could not load the database driver, check your CLASSPATH.", e);
       System.exit(-1);
     } catch (Exception e) {
-      connection = null;
-      statement = null;
       LOGGER.error("Could not connect to VDX.", e);
       connected = false;
     }
   }
 
   /**
-   * Close database connection.
+   * Get the connection leased by the current thread, borrowing one if needed.
+   *
+   * @return pooled connection
+   * @throws SQLException if no connection could be obtained
    */
-  public void close() {
-    if (!checkConnect()) {
-      return;
+  private PooledConnection current() throws SQLException {
+    return current(null);
+  }
+
+  /**
+   * Get the connection leased by the current thread, borrowing one if needed.
+   *
+   * @param db full database name about to be used, may be null
+   * @return pooled connection
+   * @throws SQLException if no connection could be obtained
+   */
+  private PooledConnection current(String db) throws SQLException {
+    PooledConnection pc = lease.get();
+    if (pc == null) {
+      if (pool == null) {
+        throw new SQLException("Not connected to VDX.");
+      }
+      pc = pool.borrow(db);
+      lease.set(pc);
+    }
+    return pc;
+  }
+
+  /**
+   * Return the current thread's connection to the pool. It will be borrowed again on next use.
+   */
+  public void release() {
+    PooledConnection pc = lease.get();
+    if (pc != null) {
+      lease.remove();
+      pool.release(pc);
     }
+  }
 
-    try {
-      statement.close();
-      connection.close();
-      connected = false;
-    } catch (Exception e) {
-      LOGGER.warn("Error closing database.  This is unusual, but not critical.");
+  /**
+   * Borrow several connections at once, for work spread over other threads. The current thread's
+   * connection is returned first, so the caller doesn't hold one while waiting for the others.
+   *
+   * @param n number of connections
+   * @return connections, each to be handed to a thread with {@link #adopt(PooledConnection)}
+   * @throws SQLException if the connections could not be obtained
+   */
+  public List<PooledConnection> reserve(int n) throws SQLException {
+    release();
+    if (pool == null) {
+      throw new SQLException("Not connected to VDX.");
     }
+    return pool.borrow(null, n);
+  }
+
+  /**
+   * Make a connection borrowed with {@link #reserve(int)} the current thread's connection, until
+   * {@link #release()} is called.
+   *
+   * @param pc connection
+   */
+  public void adopt(PooledConnection pc) {
+    release();
+    lease.set(pc);
+  }
+
+  /**
+   * Get the largest number of connections that can be borrowed at once.
+   *
+   * @return maximum pool size, 0 if not connected
+   */
+  public int getMaxConnections() {
+    return pool == null ? 0 : pool.getMaxSize();
+  }
+
+  /**
+   * Throw away the current thread's connection, e.g. after an error.
+   */
+  private void invalidate() {
+    PooledConnection pc = lease.get();
+    if (pc != null) {
+      lease.remove();
+      pool.discard(pc);
+    }
+  }
+
+  /**
+   * Close database connection. The connection goes back to the shared pool.
+   */
+  public void close() {
+    release();
   }
 
   /**
@@ -158,7 +230,7 @@ public class VDXDatabase {
    * @return true if connected
    */
   public boolean checkConnect(final boolean verbose) {
-    if (connected) {
+    if (connected && lease.get() != null) {
       return true;
     } else {
       try {
@@ -175,6 +247,7 @@ public class VDXDatabase {
     }
   }
 
+
   /**
    * Check if connection active.
    *
@@ -184,24 +257,62 @@ public class VDXDatabase {
     return connected;
   }
 
+  /**
+   * Check that the pool can provide a working connection, replacing the current thread's
+   * connection if it no longer answers.
+   *
+   * @return true if connection is usable
+   */
+  public boolean validate() {
+    boolean leased = lease.get() != null;
+    try {
+      if (leased && !lease.get().isValid()) {
+        LOGGER.warn("Database connection lost, will reconnect.");
+        invalidate();
+      }
+      current();
+      return true;
+    } catch (SQLException e) {
+      LOGGER.warn("Could not get database connection: {}", e.getMessage());
+    } finally {
+      if (!leased) {
+        release();
+      }
+    }
+    return false;
+  }
+
+
   /**
    * Getter for database connection.
    *
    * @return connection
    */
   public Connection getConnection() {
-    return connection;
+    try {
+      return current().getConnection();
+    } catch (SQLException e) {
+      LOGGER.error("Could not get database connection.", e);
+    }
+    return null;
   }
 
+
   /**
    * Getter for statement.
    *
    * @return statement
    */
   public Statement getStatement() {
-    return statement;
+    try {
+      return watch(current().getStatement());
+    } catch (SQLException e) {
+      LOGGER.error("Could not get database connection.", e);
+    }
+    return null;
   }
 
+
   /**
    * Execute given sql.
    *
@@ -213,13 +324,13 @@ public class VDXDatabase {
     try {
       b = new Retriable<Boolean>() {
         public void attemptFix() {
-          close();
+          invalidate();
           connect();
         }
 
         public boolean attempt() throws UtilException {
           try {
-            statement.execute(sql);
+            current().getStatement().execute(sql);
             result = Boolean.valueOf(true);
             return true;
           } catch (SQLException e) {
@@ -246,13 +357,13 @@ public class VDXDatabase {
     try {
       rs = new Retriable<ResultSet>() {
         public void attemptFix() {
-          close();
+          invalidate();
           connect();
         }
 
         public boolean attempt() {
           try {
-            result = statement.executeQuery(sql);
+            result = current().getStatement().executeQuery(sql);
             return true;
           } catch (SQLException e) {
             LOGGER.error("executeQuery() failed, SQL: {}", sql, e);
@@ -300,24 +411,25 @@ public class VDXDatabase {
   }
 
   /**
-   * Select database to use inside SQL server.
+   * Select database to use inside SQL server. USE is skipped if the current connection already
+   * uses the database.
    *
    * @param db database name (without prefix)
    * @return true if success
    */
   public boolean useDatabase(String db) {
     db = dbPrefix + "_" + db;
+    try {
+      current(db);
+    } catch (SQLException e) {
+      LOGGER.debug("Could not borrow connection for {}", db);
+    }
     if (!checkConnect()) {
       return false;
     }
 
     try {
-      /*
-       * try { statement.execute("USE " + db); } catch (SQLException e) {
-       * logger.log(Level.SEVERE, "Could not connect to " + db +
-       * ", attempting to reconnect ..."); close(); connect(); }
-       */
-      statement.execute("USE " + db);
+      use(db);
       return true;
     } catch (SQLException e) {
       if (e.getMessage().indexOf("Unknown database") != -1) {
@@ -329,6 +441,22 @@ public class VDXDatabase {
     return false;
   }
 
+  /**
+   * Issue USE on the current thread's connection unless it already uses the database.
+   *
+   * @param db full database name
+   * @throws SQLException if USE fails
+   */
+  private void use(String db) throws SQLException {
+    PooledConnection pc = current(db);
+    if (!db.equals(pc.getDatabase())) {
+      pc.setDatabase(null);
+      pc.getStatement().execute("USE " + db);
+      pc.setDatabase(db);
+    }
+  }
+
+
   /**
    * Select VALVE 2 database to use inside SQL server.
    *
@@ -342,13 +470,13 @@ public class VDXDatabase {
 
     try {
       try {
-        statement.execute("USE " + db);
+        use(db);
       } catch (SQLException e) {
         LOGGER.error("Lost connection to VALVE 2 database, attempting to reconnect.");
-        close();
+        invalidate();
         connect();
       }
-      statement.execute("USE " + db);
+      use(db);
       return true;
     } catch (SQLException e) {
       if (e.getMessage().indexOf("Unknown database") != -1) {
@@ -373,13 +501,13 @@ public class VDXDatabase {
     try {
       boolean failed = false;
       try {
-        getStatement().execute("USE " + getDatabasePrefix() + "_ROOT");
+        use(getDatabasePrefix() + "_ROOT");
       } catch (Exception e) {
         failed = true;
       }
       if (failed) {
         getStatement().execute("CREATE DATABASE " + getDatabasePrefix() + "_ROOT");
-        getStatement().execute("USE " + getDatabasePrefix() + "_ROOT");
+        use(getDatabasePrefix() + "_ROOT");
         createTables();
       }
       return true;
@@ -389,6 +517,23 @@ public class VDXDatabase {
     return false;
   }
 
+  /**
+   * Record a statement with the {@link QueryGuard} of the current thread, if it has one, so it can
+   * be cancelled.
+   *
+   * @param <T> statement type
+   * @param st statement about to be executed
+   * @return the statement
+   * @throws SQLException if the queries of the current request have been cancelled
+   */
+  public <T extends Statement> T watch(T st) throws SQLException {
+    QueryGuard guard = QueryGuard.current();
+    if (guard != null) {
+      guard.add(st);
+    }
+    return st;
+  }
+
   /**
    * Prepare statement for sql.
    *
@@ -397,12 +542,7 @@ public class VDXDatabase {
    */
   public PreparedStatement getPreparedStatement(String sql) {
     try {
-      PreparedStatement ps = preparedStatements.get(sql);
-      if (ps == null) {
-        ps = connection.prepareStatement(sql);
-        preparedStatements.put(sql, ps);
-      }
-      return ps;
+      return watch(current().prepare(sql));
     } catch (Exception e) {
       LOGGER.error("Could not prepare statement.", e);
     }
@@ -457,6 +597,8 @@ public class VDXDatabase {
     kvs.add("-c");
     kvs.add("-n");
     kvs.add("-a");
+    kvs.add("-t");
+    kvs.add("-ch");
     Arguments args = new Arguments(as, flags, kvs);
 
     String cf = args.get("-c");
@@ -484,6 +626,8 @@ public class VDXDatabase {
       System.out.println("createtilt");
       System.out.println("createtensorstrain");
       System.out.println("createlightning");
+      System.out.println("rollup -t <type> [-ch <channel>]  (build rollups of existing data; "
+          + "type is genericfixed, rsam, tilt or tensorstrain)");
     } else {
       action = action.toLowerCase();
       if (action.equals("createvdx")) {
@@ -502,6 +646,13 @@ public class VDXDatabase {
         SQLDataSource sds = sources.get(action);
         if (sds != null) {
           createDatabase(params, args, sds);
+        } else if (action.equals("rollup") && args.get("-t") != null
+            && sources.get("create" + args.get("-t").toLowerCase()) != null) {
+          sds = sources.get("create" + args.get("-t").toLowerCase());
+          createDatabase(params, args, sds);
+          if (!sds.defaultBackfillRollups(args.get("-ch"))) {
+            System.exit(-1);
+          }
         } else {
           System.out.println("I don't know how to " + action);
         }
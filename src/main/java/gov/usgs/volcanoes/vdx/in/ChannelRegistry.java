@@ -0,0 +1,224 @@
+package gov.usgs.volcanoes.vdx.in;
+
+import gov.usgs.volcanoes.core.data.GenericDataMatrix;
+import gov.usgs.volcanoes.vdx.data.Channel;
+import gov.usgs.volcanoes.vdx.data.InsertResult;
+import gov.usgs.volcanoes.vdx.data.SQLDataSource;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The channels of a data source and their translation ids, as seen by importers. They are read
+ * once when the registry of a data source is first used, so importing a line costs no metadata
+ * queries: a channel missing from the data source is created the first time it is seen, and
+ * inserts carry the translation id of their channel instead of looking it up.
+ *
+ * <p>Registries are shared by all importers of a process writing to the same database, so
+ * importers running on several threads create a new channel only once. Changes made to the
+ * channels by other processes are only seen after {@link #reload()}.
+ *
+ * @author Tom Parker
+ */
+public class ChannelRegistry {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChannelRegistry.class);
+
+  private static final Map<String, ChannelRegistry> registries =
+      new HashMap<String, ChannelRegistry>();
+
+  private final SQLDataSource dataSource;
+  private final Map<String, Channel> channels;
+  private final Map<String, Integer> translationIds;
+  private final Set<String> failed;
+
+  /**
+   * Constructor.
+   *
+   * @param dataSource data source the channels belong to
+   */
+  private ChannelRegistry(SQLDataSource dataSource) {
+    this.dataSource = dataSource;
+    channels = new HashMap<String, Channel>();
+    translationIds = new HashMap<String, Integer>();
+    failed = new HashSet<String>();
+    reload();
+  }
+
+  /**
+   * Get the registry of the database of a data source, reading its channels if this is the first
+   * use.
+   *
+   * @param dataSource data source
+   * @return registry
+   */
+  public static ChannelRegistry forDataSource(SQLDataSource dataSource) {
+    synchronized (registries) {
+      ChannelRegistry registry = registries.get(dataSource.getChangeKey());
+      if (registry == null) {
+        registry = new ChannelRegistry(dataSource);
+        registries.put(dataSource.getChangeKey(), registry);
+      }
+      return registry;
+    }
+  }
+
+  /**
+   * Get the data source the channels belong to.
+   *
+   * @return data source
+   */
+  public SQLDataSource getDataSource() {
+    return dataSource;
+  }
+
+  /**
+   * Read the channels and translation ids from the data source again, and retry channels that
+   * could not be created.
+   */
+  public synchronized void reload() {
+    channels.clear();
+    translationIds.clear();
+    failed.clear();
+    if (!dataSource.getChannelsFlag()) {
+      return;
+    }
+    for (Channel ch : dataSource.defaultGetChannelsList(dataSource.getChannelTypesFlag())) {
+      channels.put(ch.getCode(), ch);
+    }
+    if (dataSource.getTranslationsFlag()) {
+      translationIds.putAll(dataSource.defaultGetChannelTranslationIds());
+    }
+    LOGGER.info("{} channels registered for {}", channels.size(), dataSource.getType());
+  }
+
+  /**
+   * Get a channel.
+   *
+   * @param code channel code
+   * @return channel, null if the data source doesn't have it
+   */
+  public synchronized Channel getChannel(String code) {
+    return channels.get(code);
+  }
+
+  /**
+   * Get all channels.
+   *
+   * @return channels of the data source
+   */
+  public synchronized List<Channel> getChannels() {
+    return new ArrayList<Channel>(channels.values());
+  }
+
+  /**
+   * Get a channel, creating it with the default translation id of 1 if it doesn't exist.
+   *
+   * @param code channel code, also used as its name
+   * @return channel, null if it could not be created
+   */
+  public Channel ensureChannel(String code) {
+    return ensureChannel(new Channel(0, code, code, Double.NaN, Double.NaN, Double.NaN, 1),
+        Double.NaN);
+  }
+
+  /**
+   * Get a channel, creating it with the default translation id of 1 if it doesn't exist. A
+   * channel that can't be created is not tried again until the registry is reloaded.
+   *
+   * @param channel channel to create
+   * @param azimuth nominal azimuth of a tilt channel, NaN to create a plain channel
+   * @return channel as stored, null if it could not be created
+   */
+  public synchronized Channel ensureChannel(Channel channel, double azimuth) {
+    String code = channel.getCode();
+    Channel ch = channels.get(code);
+    if (ch != null || failed.contains(code)) {
+      return ch;
+    }
+    boolean created;
+    if (!Double.isNaN(azimuth)) {
+      created = dataSource.defaultCreateTiltChannel(channel, 1, azimuth,
+          dataSource.getChannelsFlag(), dataSource.getTranslationsFlag(),
+          dataSource.getRanksFlag(), dataSource.getColumnsFlag());
+    } else {
+      created = dataSource.defaultCreateChannel(channel, 1, dataSource.getChannelsFlag(),
+          dataSource.getTranslationsFlag(), dataSource.getRanksFlag(),
+          dataSource.getColumnsFlag());
+    }
+    if (created) {
+      ch = dataSource.defaultGetChannel(code, dataSource.getChannelTypesFlag());
+    }
+    if (ch == null) {
+      LOGGER.error("channel {} could not be created in {}", code, dataSource.getType());
+      failed.add(code);
+      return null;
+    }
+    channels.put(code, ch);
+    translationIds.put(code, 1);
+    return ch;
+  }
+
+  /**
+   * Get the translation id of a channel.
+   *
+   * @param code channel code
+   * @return translation id, 1 if the channel has none
+   */
+  public synchronized int getTranslationId(String code) {
+    Integer tid = translationIds.get(code);
+    return tid == null ? 1 : tid;
+  }
+
+  /**
+   * Set the translation id of a channel, updating the data source if it changed.
+   *
+   * @param code channel code
+   * @param tid translation id
+   */
+  public synchronized void setTranslationId(String code, int tid) {
+    if (tid != getTranslationId(code) && dataSource.defaultUpdateChannelTranslationId(code, tid)) {
+      translationIds.put(code, tid);
+    }
+  }
+
+  /**
+   * Insert data into a channel with the translation id it currently has.
+   *
+   * @param code channel code
+   * @param gdm data, the first column being j2ksec
+   * @param rid rank id
+   * @return rows written and failed per batch
+   */
+  public InsertResult insert(String code, GenericDataMatrix gdm, int rid) {
+    return dataSource.defaultInsertData(code, gdm, dataSource.getTranslationsFlag(),
+        dataSource.getRanksFlag(), rid, getTranslationId(code));
+  }
+
+  /**
+   * Bulk load a staging file into a channel with the translation id it currently has. The
+   * connection used is returned to the pool afterwards, so this can be called from worker threads.
+   *
+   * @param code channel code
+   * @param file tab separated rows
+   * @param columnNames columns of the file
+   * @param rid rank id
+   * @return rows loaded
+   */
+  public InsertResult load(String code, File file, String[] columnNames, int rid) {
+    try {
+      return dataSource.defaultLoadData(code, file, columnNames, dataSource.getTranslationsFlag(),
+          dataSource.getRanksFlag(), rid, getTranslationId(code));
+    } finally {
+      dataSource.releaseConnection();
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package gov.usgs.volcanoes.vdx.in;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The fields of an import file line, as named by an importer's fields parameter, compiled once per
+ * file or channel instead of looked up by name on every line. Besides the data columns, a field
+ * may be IGNORE, CHANNEL or one of the TIMESTAMP fields whose values, joined by spaces, form the
+ * time of the line.
+ *
+ * @author Tom Parker
+ */
+public class FieldLayout {
+
+  /** Field that is skipped. */
+  public static final int IGNORE = 0;
+
+  /** Field holding the channel code. */
+  public static final int CHANNEL = 1;
+
+  /** Field holding the time, or a part of it. */
+  public static final int TIMESTAMP = 2;
+
+  /** Field holding a data column. */
+  public static final int DATA = 3;
+
+  private final int[] kinds;
+  private final String[] columns;
+  private final int[] dataFields;
+  private final int channelField;
+
+  /**
+   * Constructor.
+   *
+   * @param fields comma separated field names
+   */
+  public FieldLayout(String fields) {
+    String[] names = fields.split(",");
+    kinds = new int[names.length];
+    columns = new String[names.length];
+    List<Integer> data = new ArrayList<Integer>();
+    int channel = -1;
+    for (int i = 0; i < names.length; i++) {
+      String name = names[i].trim();
+      columns[i] = name;
+      if (name.equals("IGNORE")) {
+        kinds[i] = IGNORE;
+      } else if (name.equals("CHANNEL")) {
+        kinds[i] = CHANNEL;
+        if (channel == -1) {
+          channel = i;
+        }
+      } else if (name.equals("TIMESTAMP")) {
+        kinds[i] = TIMESTAMP;
+      } else {
+        kinds[i] = DATA;
+        data.add(i);
+      }
+    }
+    dataFields = new int[data.size()];
+    for (int i = 0; i < dataFields.length; i++) {
+      dataFields[i] = data.get(i);
+    }
+    channelField = channel;
+  }
+
+  /**
+   * Get the number of fields.
+   *
+   * @return number of fields a line must have at least
+   */
+  public int size() {
+    return kinds.length;
+  }
+
+  /**
+   * Get the kind of a field.
+   *
+   * @param i field index
+   * @return IGNORE, CHANNEL, TIMESTAMP or DATA
+   */
+  public int getKind(int i) {
+    return kinds[i];
+  }
+
+  /**
+   * Get the index of the first CHANNEL field.
+   *
+   * @return field index, -1 if there is none
+   */
+  public int getChannelField() {
+    return channelField;
+  }
+
+  /**
+   * Get the indexes of the data fields.
+   *
+   * @return field indexes in line order
+   */
+  public int[] getDataFields() {
+    return dataFields;
+  }
+
+  /**
+   * Get the column name of a field.
+   *
+   * @param i field index
+   * @return name
+   */
+  public String getColumn(int i) {
+    return columns[i];
+  }
+
+  /**
+   * Select the data fields written to a data source: those whose column it has, in line order.
+   *
+   * @param dataSourceColumns names of the columns of the data source
+   * @return field indexes
+   */
+  public int[] select(String[] dataSourceColumns) {
+    List<String> wanted = Arrays.asList(dataSourceColumns);
+    List<Integer> selected = new ArrayList<Integer>();
+    for (int i : dataFields) {
+      for (String c : wanted) {
+        if (c.equals(columns[i])) {
+          selected.add(i);
+        }
+      }
+    }
+    int[] result = new int[selected.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = selected.get(i);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,298 @@
+package gov.usgs.volcanoes.vdx.in;
+
+import gov.usgs.volcanoes.vdx.db.ConnectionPool;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports a list of files on several threads. Every worker thread has its own importer, set up
+ * from the same config, and takes the next file from the list when it is done with one. Rows the
+ * importers write through {@link TableWriter#write} are queued per channel table and written on
+ * the writer's own threads, in order for each table, within a memory budget that makes the
+ * workers wait when the database falls behind. Files are started in list order, and the writes
+ * to each table are applied in file order, so rows of the same channel and time in different
+ * files end up as if the files had been imported one after another.
+ *
+ * <p>When all files are done the driver logs rows, bytes and time per file and in total.
+ *
+ * @author Tom Parker
+ */
+public class ImportDriver {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ImportDriver.class);
+  private static final int DEFAULT_BUDGET_MB = 64;
+
+  /** Help for the threads argument of importers. */
+  public static final String THREADS_HELP =
+      "  -t  number of files imported at once, default the number of cores";
+
+  private final int threads;
+  private final int budgetMb;
+  private final List<Importer> importers;
+
+  /**
+   * Rows and time of one file.
+   */
+  public static class FileStats {
+    private final String name;
+    private final int index;
+    private final long bytes;
+    private long start;
+    private long parsed;
+    private long done;
+    private long written;
+
+    /**
+     * Constructor.
+     *
+     * @param name file name
+     * @param index position of the file in the list
+     */
+    FileStats(String name, int index) {
+      this.name = name;
+      this.index = index;
+      bytes = new File(name).length();
+    }
+
+    /**
+     * Get the position of the file in the list.
+     *
+     * @return index, from 0
+     */
+    int getIndex() {
+      return index;
+    }
+
+    /**
+     * Record the start of the import.
+     */
+    synchronized void start() {
+      start = System.currentTimeMillis();
+    }
+
+    /**
+     * Record the end of parsing.
+     */
+    synchronized void parsed() {
+      parsed = System.currentTimeMillis();
+      done = Math.max(done, parsed);
+    }
+
+    /**
+     * Record rows written.
+     *
+     * @param rows rows
+     */
+    synchronized void written(int rows) {
+      written += rows;
+      done = Math.max(done, System.currentTimeMillis());
+    }
+
+    /**
+     * Get the time from the start until the last row was written.
+     *
+     * @return milliseconds
+     */
+    synchronized long getElapsed() {
+      return Math.max(1, done - start);
+    }
+
+    /**
+     * Describe the import of the file.
+     *
+     * @return rows, bytes and rates
+     */
+    public synchronized String toString() {
+      long ms = getElapsed();
+      return name + ": " + written + " rows, " + bytes + " bytes in " + ms + " ms (parsed in "
+          + Math.max(0, parsed - start) + " ms), " + written * 1000 / ms + " rows/s, "
+          + bytes / ms + " kB/s";
+    }
+  }
+
+  /**
+   * Constructor. Call before the first importer is initialized, so the connection pool is sized
+   * for the threads: each worker holds a connection per data source of its importer, and each
+   * writer thread one while it writes.
+   *
+   * @param threads number of files imported at once, and of writer threads
+   * @param budgetMb megabytes of rows that may wait for a writer, 0 for the default
+   */
+  public ImportDriver(int threads, int budgetMb) {
+    this.threads = Math.max(1, threads);
+    this.budgetMb = budgetMb > 0 ? budgetMb : DEFAULT_BUDGET_MB;
+    importers = new ArrayList<Importer>();
+    if (this.threads > 1) {
+      ConnectionPool.ensureDefaultMaxSize(this.threads * 4 + 2);
+    }
+  }
+
+  /**
+   * Parse a number of threads given on the command line.
+   *
+   * @param arg value of the argument, null for the default
+   * @return threads, the number of processors by default
+   */
+  public static int getThreads(String arg) {
+    if (arg == null) {
+      return Runtime.getRuntime().availableProcessors();
+    }
+    try {
+      return Math.max(1, Integer.parseInt(arg));
+    } catch (NumberFormatException e) {
+      LOGGER.error("bad number of threads {}, using 1", arg);
+      return 1;
+    }
+  }
+
+  /**
+   * Parse a write budget given on the command line.
+   *
+   * @param arg value of the argument in megabytes, null for the default
+   * @return megabytes, 0 for the default
+   */
+  public static int getBudget(String arg) {
+    if (arg == null) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Integer.parseInt(arg));
+    } catch (NumberFormatException e) {
+      LOGGER.error("bad write budget {}, using {} MB", arg, DEFAULT_BUDGET_MB);
+      return 0;
+    }
+  }
+
+  /**
+   * Get the importers used, the first one being the importer passed to
+   * {@link #process(Importer, String, String, boolean, List)}.
+   *
+   * @return importers
+   */
+  public List<Importer> getImporters() {
+    return Collections.unmodifiableList(importers);
+  }
+
+  /**
+   * Import files. The worker threads after the first get a new importer of the same class,
+   * initialized with the same arguments.
+   *
+   * @param importer initialized importer
+   * @param importerClass name of importer class
+   * @param configFile configuration file
+   * @param verbose true for info, false for severe
+   * @param files files to import
+   */
+  public void process(Importer importer, String importerClass, String configFile,
+      boolean verbose, List<String> files) {
+    long start = System.currentTimeMillis();
+    final List<FileStats> stats = new ArrayList<FileStats>();
+    final ConcurrentLinkedQueue<FileStats> todo = new ConcurrentLinkedQueue<FileStats>();
+    for (String file : files) {
+      FileStats fs = new FileStats(file, stats.size());
+      stats.add(fs);
+      todo.add(fs);
+    }
+
+    int workers = Math.min(threads, files.size());
+    importers.add(importer);
+    if (workers <= 1) {
+      run(importer, null, todo);
+    } else {
+      for (int i = 1; i < workers; i++) {
+        Importer other = newImporter(importer, importerClass, configFile, verbose);
+        if (other == null) {
+          break;
+        }
+        importers.add(other);
+      }
+      final TableWriter writer = new TableWriter(threads, budgetMb);
+      List<Thread> running = new ArrayList<Thread>();
+      for (int i = 0; i < importers.size(); i++) {
+        final Importer worker = importers.get(i);
+        Thread t = new Thread(new Runnable() {
+          public void run() {
+            ImportDriver.this.run(worker, writer, todo);
+          }
+        }, "ImportDriver-" + (i + 1));
+        t.start();
+        running.add(t);
+      }
+      for (Thread t : running) {
+        try {
+          t.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      writer.close();
+      LOGGER.info("{} threads, {}", importers.size(), writer);
+    }
+
+    long rows = 0;
+    long bytes = 0;
+    for (FileStats fs : stats) {
+      LOGGER.info("{}", fs);
+      rows += fs.written;
+      bytes += fs.bytes;
+    }
+    long ms = Math.max(1, System.currentTimeMillis() - start);
+    LOGGER.info("{} files: {} rows, {} bytes in {} ms, {} rows/s, {} kB/s", stats.size(), rows,
+        bytes, ms, rows * 1000 / ms, bytes / ms);
+  }
+
+  /**
+   * Import files from the list until it is empty.
+   *
+   * @param importer importer of this thread
+   * @param writer table writer, null to write inline
+   * @param todo files not yet started
+   */
+  private void run(Importer importer, TableWriter writer, ConcurrentLinkedQueue<FileStats> todo) {
+    FileStats file;
+    while ((file = todo.poll()) != null) {
+      TableWriter.begin(writer, file);
+      file.start();
+      try {
+        importer.process(file.name);
+      } catch (RuntimeException e) {
+        LOGGER.error("ImportDriver.run({}) failed.", file.name, e);
+      } finally {
+        file.parsed();
+        TableWriter.end();
+        if (writer != null) {
+          writer.parsed(file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Make another importer like the given one.
+   *
+   * @param importer initialized importer
+   * @param importerClass name of importer class
+   * @param configFile configuration file
+   * @param verbose true for info, false for severe
+   * @return new importer, null if it could not be made
+   */
+  private static Importer newImporter(Importer importer, String importerClass, String configFile,
+      boolean verbose) {
+    try {
+      Importer other = importer.getClass().newInstance();
+      other.initialize(importerClass, configFile, verbose);
+      return other;
+    } catch (Exception e) {
+      LOGGER.error("ImportDriver.newImporter({}) failed.", importerClass, e);
+      return null;
+    }
+  }
+}
@@ -11,16 +11,28 @@ import gov.usgs.volcanoes.core.util.ResourceReader;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.Column;
+import gov.usgs.volcanoes.vdx.data.InsertResult;
 import gov.usgs.volcanoes.vdx.data.Rank;
 import gov.usgs.volcanoes.vdx.data.SQLDataSource;
 import gov.usgs.volcanoes.vdx.data.SQLDataSourceHandler;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +47,16 @@ public class ImportFile extends Import implements Importer {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ImportFile.class);
   public ResourceReader rr;
+  private int batchRows = 10000;
+  private Map<String, FieldLayout> layouts = new HashMap<String, FieldLayout>();
+  private Map<String, Set<String>> dataSourceChannelSets = new HashMap<String, Set<String>>();
+  private boolean bulk;
+  private File bulkDir;
+  private int bulkThreads;
+  private long bulkStart;
+  private long stagedRows;
+  private Map<String, List<StagingBuffer>> staging =
+      new LinkedHashMap<String, List<StagingBuffer>>();
 
   /**
    * takes a config file as a parameter and parses it to prepare for importing.
@@ -95,6 +117,13 @@ public class ImportFile extends Import implements Importer {
     headerlines = StringUtils.stringToInt(params.getString("headerlines"), 0);
     delimiter = StringUtils.stringToString(params.getString("delimiter"), ",");
     LOGGER.info("filemask:{}/headerlines:{}/delimiter:{}", filemask, headerlines, delimiter);
+    batchRows = StringUtils.stringToInt(params.getString("batchRows"), 10000);
+    layouts = new HashMap<String, FieldLayout>();
+    dataSourceChannelSets = new HashMap<String, Set<String>>();
+    String dir = params.getString("bulkDir");
+    bulkDir = dir == null ? null : new File(dir);
+    bulkThreads = Math.max(1, StringUtils.stringToInt(params.getString("bulkThreads"),
+        Math.min(4, Runtime.getRuntime().availableProcessors())));
 
     // Import Fields
     fields = StringUtils.stringToString(params.getString("fields"), "");
@@ -254,22 +283,18 @@ public class ImportFile extends Import implements Importer {
           }
 
           // if the channel doesn't exist then create it with the default tid of 1
-          if (sqlDataSource
-              .defaultGetChannel(channel.getCode(), sqlDataSource.getChannelTypesFlag()) == null) {
+          ChannelRegistry registry = ChannelRegistry.forDataSource(sqlDataSource);
+          if (registry.getChannel(channel.getCode()) == null) {
+            azimuthNom = Double.NaN;
             if (sqlDataSource.getType().equals("tilt")) {
               azimuthNom = StringUtils.stringToDouble(channelParams.getString("azimuth"), 0);
-              sqlDataSource.defaultCreateTiltChannel(channel, 1, azimuthNom,
-                  sqlDataSource.getChannelsFlag(), sqlDataSource.getTranslationsFlag(),
-                  sqlDataSource.getRanksFlag(), sqlDataSource.getColumnsFlag());
-            } else {
-              sqlDataSource.defaultCreateChannel(channel, 1,
-                  sqlDataSource.getChannelsFlag(), sqlDataSource.getTranslationsFlag(),
-                  sqlDataSource.getRanksFlag(), sqlDataSource.getColumnsFlag());
             }
 
             // retrieve the new channel and store it off
-            channel = sqlDataSource
-                .defaultGetChannel(channel.getCode(), sqlDataSource.getChannelTypesFlag());
+            channel = registry.ensureChannel(channel, azimuthNom);
+            if (channel == null) {
+              continue;
+            }
             channelMap.put(channelCode, channel);
           }
 
@@ -320,9 +345,7 @@ public class ImportFile extends Import implements Importer {
             if (tid == 1) {
               tid = sqlDataSource.defaultInsertTranslation(channel.getCode(), gdm);
             }
-            if (tid != sqlDataSource.defaultGetChannelTranslationId(channel.getCode())) {
-              sqlDataSource.defaultUpdateChannelTranslationId(channel.getCode(), tid);
-            }
+            registry.setTranslationId(channel.getCode(), tid);
           }
         }
       }
@@ -330,20 +353,17 @@ public class ImportFile extends Import implements Importer {
   }
 
   /**
-   * Parse file from url (resource locator or file name).
+   * Parse file from url (resource locator or file name). Each line is split by a reused
+   * {@link LineTokenizer} according to the precompiled {@link FieldLayout} of its channel, and its
+   * rows are collected per data source and channel and inserted batchRows at a time.
    */
   public void process(String filename) {
-
+    Map<String, RowBuffer> buffers = new LinkedHashMap<String, RowBuffer>();
     try {
 
       // instantiate variables used by this method
-      HashMap<Integer, ColumnValue> columnValueMap = new HashMap<Integer, ColumnValue>();
-      ColumnValue columnValue;
-      String name;
       String line;
-      int count;
       int lineNumber;
-      double value;
       boolean channelCodeFromFilename = false;
 
       // check that the file exists
@@ -372,7 +392,7 @@ public class ImportFile extends Import implements Importer {
       // reset the channel code, as it will be derived from the filename,
       // and not the config file, or the contents of the file
       channelCode = "";
-      fieldMap = defaultFieldMap;
+      FieldLayout layout = getLayout(fields);
 
       // if a filename mask is defined, then get the channel code from it
       if (filemask.length() > 0) {
@@ -396,18 +416,9 @@ public class ImportFile extends Import implements Importer {
           return;
         }
 
-        // LOGGER.log(Level.INFO, "channelCode:" + channelCode + " (from filename)");
-
         // indicate the channel code came from the file name and look up it's fields if they exist
         channelCodeFromFilename = true;
-        channelFields = channelFieldMap.get(channelCode);
-        if (channelFields != null) {
-          fieldArray = channelFields.split(",");
-          fieldMap = new HashMap<Integer, String>();
-          for (int i = 0; i < fieldArray.length; i++) {
-            fieldMap.put(i, fieldArray[i].trim());
-          }
-        }
+        layout = getChannelLayout(channelCode);
       }
 
       // if any header lines are defined then skip them
@@ -420,23 +431,24 @@ public class ImportFile extends Import implements Importer {
       }
 
       // we are now at the first row of data.  time to import!
+      LineTokenizer tokenizer = new LineTokenizer(delimiter);
       StringBuilder tsValue = new StringBuilder();
+      double[] values = new double[layout.size()];
+      String lineChannel = null;
+      String timestamp = null;
+      RowBuffer[] targets = null;
+      String targetChannel = null;
+      FieldLayout targetLayout = null;
       while (line != null) {
 
         // increment the line number variable
         lineNumber++;
 
-        // split the data row into an ordered list. be sure to use the two argument split,
-        // as some lines may have many trailing delimiters
-        Pattern p = Pattern.compile(delimiter);
-        String[] valueArray = p.split(line, -1);
-        HashMap<Integer, String> valueMap = new HashMap<Integer, String>();
-        for (int i = 0; i < valueArray.length; i++) {
-          valueMap.put(i, valueArray[i].replaceAll("[\'\"]", "").trim());
-        }
+        // split the data row, keeping trailing empty values
+        int valueCount = tokenizer.tokenize(line);
 
         // make sure the data row matches the defined data columns
-        if (fieldMap.size() > valueMap.size()) {
+        if (layout.size() > valueCount) {
           LOGGER.error("line {} has too few values", lineNumber);
           line = rr.nextLine();
           continue;
@@ -444,72 +456,48 @@ public class ImportFile extends Import implements Importer {
 
         // if the channel code has not been defined in the filename, then it is in the line
         if (!channelCodeFromFilename) {
-
-          // default the channel code to empty
-          channelCode = "";
-
-          // look up the channel code in the line
-          for (int i = 0; i < fieldMap.size(); i++) {
-            name = fieldMap.get(i);
-            if (name.equals("CHANNEL")) {
-              channelCode = valueMap.get(i);
-              break;
-            }
-          }
-
-          // validate the channel code
-          if (channelCode.length() == 0) {
+          int channelField = layout.getChannelField();
+          if (channelField == -1 || tokenizer.isEmpty(channelField)) {
             LOGGER.error("line {} does not contain a channel code", lineNumber);
             line = rr.nextLine();
             continue;
+          }
 
-          } else {
-
-            // look up the field definition for this channel code
-            channelFields = channelFieldMap.get(channelCode);
-            if (channelFields != null) {
-              fieldArray = channelFields.split(",");
-              fieldMap = new HashMap<Integer, String>();
-              for (int i = 0; i < fieldArray.length; i++) {
-                fieldMap.put(i, fieldArray[i].trim());
-              }
-            } else {
-              fieldMap = defaultFieldMap;
-            }
+          // look up the field definition for this channel code when it changes
+          if (!tokenizer.matches(channelField, lineChannel)) {
+            lineChannel = tokenizer.get(channelField);
+            layout = getChannelLayout(lineChannel);
+          }
+          channelCode = lineChannel;
+          if (layout.size() > valueCount) {
+            LOGGER.error("line {} has too few values", lineNumber);
+            line = rr.nextLine();
+            continue;
           }
         }
 
         // try to parse the values from this data line
-        count = 0;
+        if (values.length < layout.size()) {
+          values = new double[layout.size()];
+        }
         tsValue.setLength(0);
         try {
-          for (int i = 0; i < fieldMap.size(); i++) {
-            name = fieldMap.get(i);
-
-            // skip IGNORE columns
-            if (name.equals("IGNORE")) {
-              continue;
-
-              // parse out the CHANNEL
-            } else if (name.equals("CHANNEL")) {
-              channelCode = valueMap.get(i);
-              continue;
-
-              // parse out the TIMESTAMP
-            } else if (name.equals("TIMESTAMP")) {
-              tsValue.append(valueMap.get(i)).append(" ");
-              continue;
-
-              // elements that are neither IGNORE nor CHANNELS nor TIMESTAMPS are DATA
-            } else {
-              if (valueMap.get(i).length() == 0 || valueMap.get(i).equalsIgnoreCase("NAN")) {
-                value = Double.NaN;
-              } else {
-                value = Double.parseDouble(valueMap.get(i));
-              }
-              columnValue = new ColumnValue(name, value);
-              columnValueMap.put(count, columnValue);
-              count++;
+          for (int i = 0; i < layout.size(); i++) {
+            switch (layout.getKind(i)) {
+              case FieldLayout.CHANNEL:
+                if (!tokenizer.matches(i, channelCode)) {
+                  channelCode = tokenizer.get(i);
+                }
+                break;
+              case FieldLayout.TIMESTAMP:
+                tokenizer.appendTo(i, tsValue);
+                tsValue.append(' ');
+                break;
+              case FieldLayout.DATA:
+                values[i] = tokenizer.getDouble(i);
+                break;
+              default:
+                break;
             }
           }
 
@@ -531,7 +519,6 @@ public class ImportFile extends Import implements Importer {
         } else {
           channelCode = channelCode.replace('\\', '$').replace('/', '$').replace('.', '$')
               .replace(' ', '$');
-          ;
         }
 
         // make sure that the timestamp has something in it
@@ -541,128 +528,271 @@ public class ImportFile extends Import implements Importer {
           continue;
         }
 
-        // convert the time zone of the input date and convert to j2ksec
-        try {
-          String timestamp = tsValue.toString().trim();
-          date = dateIn.parse(timestamp);
-          j2ksec = J2kSec.fromDate(date);
-        } catch (ParseException e) {
-          LOGGER.error("line {} timestamp parse error", lineNumber);
-          line = rr.nextLine();
-          continue;
+        // convert the time zone of the input date and convert to j2ksec, unless it is the time of
+        // the previous line
+        String ts = tsValue.toString().trim();
+        if (!ts.equals(timestamp)) {
+          try {
+            date = dateIn.parse(ts);
+            j2ksec = J2kSec.fromDate(date);
+            timestamp = ts;
+          } catch (ParseException e) {
+            LOGGER.error("line {} timestamp parse error", lineNumber);
+            timestamp = null;
+            line = rr.nextLine();
+            continue;
+          }
         }
 
-        // log the line to the log file that is being imported,
-        // now that all potential errors have been caught
+        // add the line to the rows of each data source it belongs to, which are looked up again
+        // only when the channel changes
+        if (targets == null || !channelCode.equals(targetChannel) || layout != targetLayout) {
+          targets = getBuffers(buffers, channelCode, layout, lineNumber);
+          targetChannel = channelCode;
+          targetLayout = layout;
+        }
+        for (RowBuffer buffer : targets) {
+          buffer.add(j2ksec, values);
+        }
 
-        ColumnValue tsColumn = new ColumnValue("j2ksec", j2ksec);
+        // go to the next line
+        line = rr.nextLine();
+      }
 
-        // iterate through each data source that was defined and assign data from this line to it
-        for (int i = 0; i < dataSourceList.size(); i++) {
+      // close the resource
+      rr.close();
 
-          // get the data source name and it's associated sql data source
-          dataSource = dataSourceList.get(i);
-          channels = dataSourceChannelMap.get(dataSource);
+      // catch exceptions
+    } catch (Exception e) {
+      LOGGER.error("ImportFile.process({}) failed.", filename, e);
+    } finally {
+
+      // write the rows collected, including those read before a failure
+      long written = 0;
+      long flushed = 0;
+      for (RowBuffer buffer : buffers.values()) {
+        buffer.flush();
+        written += buffer.getWritten();
+        flushed += buffer.getFlushed();
+      }
+      if (bulk) {
 
-          // lookup in the channels map to see if we are filtering on stations
-          boolean channelMemberOfDataSource = false;
-          if (channels.length() > 0) {
-            dsChannelArray = channels.split(",");
-            for (int j = 0; j < dsChannelArray.length; j++) {
-              if (dsChannelArray[j].equals(channelCode)) {
-                channelMemberOfDataSource = true;
-                continue;
-              }
-            }
-            if (!channelMemberOfDataSource) {
-              continue;
-            }
+        // staging buffers are shared by all files, so count this file's rows as the increase
+        long staged = 0;
+        for (List<StagingBuffer> files : staging.values()) {
+          for (StagingBuffer file : files) {
+            staged += file.getWritten();
           }
+        }
+        LOGGER.info("{} rows staged for {} channels", staged - stagedRows, buffers.size());
+        stagedRows = staged;
+      } else if (TableWriter.current() != null) {
+        LOGGER.info("{} rows queued for {} channels", flushed, buffers.size());
+      } else {
+        LOGGER.info("{} rows written to {} channels", written, buffers.size());
+      }
+    }
+  }
 
-          // check that the sql data source was initialized properly above
-          sqlDataSource = sqlDataSourceMap.get(dataSource);
-          if (sqlDataSource == null) {
-            LOGGER.error("line {} data source {} not initialized", lineNumber, dataSource);
-            continue;
-          }
+  /**
+   * Use bulk loads: rows of all files are appended to a staging file per channel table, which
+   * {@link #loadStaged()} loads once every file has been read.
+   *
+   * @param b true for bulk loads
+   */
+  public void setBulk(boolean b) {
+    bulk = b;
+    bulkStart = System.currentTimeMillis();
+  }
 
-          // channel for this data source.  create it if it doesn't exist
-          if (sqlDataSource.getChannelsFlag()) {
-            if (sqlDataSource.defaultGetChannel(channelCode, sqlDataSource.getChannelTypesFlag())
-                == null) {
-              sqlDataSource.defaultCreateChannel(
-                  new Channel(0, channelCode, channelCode, Double.NaN, Double.NaN, Double.NaN, 1),
-                  1,
-                  sqlDataSource.getChannelsFlag(), sqlDataSource.getTranslationsFlag(),
-                  sqlDataSource.getRanksFlag(), sqlDataSource.getColumnsFlag());
+  /**
+   * Load the staging files of a bulk import, bulkThreads channel tables at a time. The staging
+   * files of one channel table are loaded in the order they were started, so later rows still win.
+   */
+  public void loadStaged() {
+    if (staging.isEmpty()) {
+      return;
+    }
+    final long start = System.currentTimeMillis();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(bulkThreads, staging.size()));
+    Map<String, Future<List<InsertResult>>> loads =
+        new LinkedHashMap<String, Future<List<InsertResult>>>();
+    for (Map.Entry<String, List<StagingBuffer>> entry : staging.entrySet()) {
+      final List<StagingBuffer> files = entry.getValue();
+      loads.put(entry.getKey(), pool.submit(new Callable<List<InsertResult>>() {
+        public List<InsertResult> call() throws Exception {
+          List<InsertResult> results = new ArrayList<InsertResult>();
+          for (StagingBuffer file : files) {
+            InsertResult result = file.load();
+            if (result != null) {
+              results.add(result);
             }
           }
-
-          // columns for this data source
-          columns = dataSourceColumnMap.get(dataSource);
-          columnArray = columns.split(",");
-          HashMap<Integer, String> dsColumnMap = new HashMap<Integer, String>();
-          for (int j = 0; j < columnArray.length; j++) {
-            dsColumnMap.put(j, columnArray[j]);
+          return results;
+        }
+      }));
+    }
+    pool.shutdown();
+
+    long loaded = 0;
+    long failed = 0;
+    for (Map.Entry<String, Future<List<InsertResult>>> entry : loads.entrySet()) {
+      try {
+        for (InsertResult result : entry.getValue().get()) {
+          loaded += result.getWritten();
+          failed += result.getFailed();
+          if (!result.isSuccess()) {
+            LOGGER.error("bulk load of {} failed: {}", entry.getKey(), result.getErrors());
           }
+        }
+      } catch (Exception e) {
+        LOGGER.error("bulk load of {} failed.", entry.getKey(), e);
+      }
+    }
+    staging.clear();
 
-          // rank for this data source.  this should already exist in the database
-          if (sqlDataSource.getRanksFlag()) {
-            rid = dataSourceRidMap.get(dataSource);
-          } else {
-            rid = 1;
-          }
+    long now = System.currentTimeMillis();
+    LOGGER.info("{} rows loaded into {} channel tables in {} ms ({} rows/s), {} failed", loaded,
+        loads.size(), now - start, loaded * 1000 / Math.max(1, now - start), failed);
+    LOGGER.info("{} rows staged and loaded in {} ms ({} rows/s)", loaded, now - bulkStart,
+        loaded * 1000 / Math.max(1, now - bulkStart));
+  }
 
-          // create a data entry map for this data source, with the columns that it wants
-          HashMap<Integer, ColumnValue> dataSourceEntryMap = new HashMap<Integer, ColumnValue>();
-          count = 0;
-          dataSourceEntryMap.put(count, tsColumn);
-          count++;
-
-          // store the remaining data columns
-          for (int j = 0; j < columnValueMap.size(); j++) {
-            columnValue = columnValueMap.get(j);
-            name = columnValue.columnName;
-            value = columnValue.columnValue;
-            for (int k = 0; k < dsColumnMap.size(); k++) {
-              if (name.equals(dsColumnMap.get(k))) {
-                dataSourceEntryMap.put(count, columnValue);
-                count++;
-              }
-            }
-          }
+  /**
+   * Get the compiled layout of a fields parameter.
+   *
+   * @param f comma separated field names
+   * @return field layout
+   */
+  private FieldLayout getLayout(String f) {
+    FieldLayout layout = layouts.get(f);
+    if (layout == null) {
+      layout = new FieldLayout(f);
+      layouts.put(f, layout);
+    }
+    return layout;
+  }
 
-          // put the list of entries a double matrix and create a column names array
-          DoubleMatrix2D dm = DoubleFactory2D.dense.make(1, dataSourceEntryMap.size());
-          String[] columnNames = new String[dataSourceEntryMap.size()];
-          for (int j = 0; j < dataSourceEntryMap.size(); j++) {
-            columnValue = dataSourceEntryMap.get(j);
-            name = columnValue.columnName;
-            value = columnValue.columnValue;
-            columnNames[j] = name;
-            dm.setQuick(0, j, value);
-          }
+  /**
+   * Get the layout of the lines of a channel: its own fields if configured, otherwise the default.
+   *
+   * @param code channel code
+   * @return field layout
+   */
+  private FieldLayout getChannelLayout(String code) {
+    String channelFields = channelFieldMap.get(code);
+    return getLayout(channelFields == null ? fields : channelFields);
+  }
 
-          // assign the double matrix and column names to a generic data matrix
-          GenericDataMatrix gdm = new GenericDataMatrix(dm);
-          gdm.setColumnNames(columnNames);
+  /**
+   * Get the channels a data source is limited to.
+   *
+   * @param ds data source name
+   * @return channel codes, or null if the data source takes all channels
+   */
+  private Set<String> getDataSourceChannels(String ds) {
+    if (!dataSourceChannelSets.containsKey(ds)) {
+      String dsChannels = dataSourceChannelMap.get(ds);
+      Set<String> members = null;
+      if (dsChannels != null && dsChannels.length() > 0) {
+        members = new HashSet<String>(Arrays.asList(dsChannels.split(",")));
+      }
+      dataSourceChannelSets.put(ds, members);
+    }
+    return dataSourceChannelSets.get(ds);
+  }
 
-          // insert the data to the database
-          sqlDataSource.defaultInsertData(channelCode, gdm, sqlDataSource.getTranslationsFlag(),
-              sqlDataSource.getRanksFlag(), rid);
-        }
+  /**
+   * Get the row buffers of the data sources a channel is written to, creating them as needed.
+   *
+   * @param buffers row buffers of the file by data source and channel
+   * @param code channel code
+   * @param layout layout of the lines of the channel
+   * @param lineNumber line being imported, for messages
+   * @return row buffers
+   */
+  private RowBuffer[] getBuffers(Map<String, RowBuffer> buffers, String code, FieldLayout layout,
+      int lineNumber) {
+    List<RowBuffer> targets = new ArrayList<RowBuffer>();
+    for (int i = 0; i < dataSourceList.size(); i++) {
+      dataSource = dataSourceList.get(i);
 
-        // go to the next line
-        line = rr.nextLine();
+      // lookup in the channels map to see if we are filtering on stations
+      Set<String> members = getDataSourceChannels(dataSource);
+      if (members != null && !members.contains(code)) {
+        continue;
       }
 
-      // close the resource
-      rr.close();
+      String key = dataSource + "|" + code;
+      RowBuffer buffer = buffers.get(key);
+      if (buffer == null || buffer.getLayout() != layout) {
+        if (buffer != null) {
+          buffer.flush();
+        }
+        buffer = createBuffer(dataSource, code, layout, lineNumber);
+        if (buffer == null) {
+          continue;
+        }
+        buffers.put(key, buffer);
+      }
+      targets.add(buffer);
+    }
+    return targets.toArray(new RowBuffer[targets.size()]);
+  }
 
-      // catch exceptions
-    } catch (Exception e) {
-      LOGGER.error("ImportFile.process({}) failed.", filename, e);
+  /**
+   * Prepare to write the rows of a channel to a data source, creating the channel if needed.
+   *
+   * @param ds data source name
+   * @param code channel code
+   * @param layout layout of the lines of the channel
+   * @param lineNumber line being imported, for messages
+   * @return row buffer, or null if the data source can't be written
+   */
+  private RowBuffer createBuffer(String ds, String code, FieldLayout layout, int lineNumber) {
+
+    // check that the sql data source was initialized properly above
+    sqlDataSource = sqlDataSourceMap.get(ds);
+    if (sqlDataSource == null) {
+      LOGGER.error("line {} data source {} not initialized", lineNumber, ds);
+      return null;
+    }
+    String dsColumns = dataSourceColumnMap.get(ds);
+    if (dsColumns == null) {
+      LOGGER.error("line {} data source {} has no columns", lineNumber, ds);
+      return null;
+    }
+
+    // channel for this data source.  create it if it doesn't exist
+    ChannelRegistry registry = ChannelRegistry.forDataSource(sqlDataSource);
+    if (sqlDataSource.getChannelsFlag() && registry.ensureChannel(code) == null) {
+      LOGGER.error("line {} channel {} not available in data source {}", lineNumber, code, ds);
+      return null;
+    }
+
+    // rank for this data source.  this should already exist in the database
+    int dsRid = sqlDataSource.getRanksFlag() ? dataSourceRidMap.get(ds) : 1;
+    int[] selected = layout.select(dsColumns.split(","));
+    if (!bulk) {
+      return new RowBuffer(registry, code, dsRid, layout, selected, batchRows);
     }
+
+    // a bulk import keeps appending to the staging file of the channel table across files
+    String key = ds + "|" + code;
+    List<StagingBuffer> files = staging.get(key);
+    if (files == null) {
+      files = new ArrayList<StagingBuffer>();
+      staging.put(key, files);
+    }
+    if (files.isEmpty() || files.get(files.size() - 1).getLayout() != layout) {
+      try {
+        files.add(new StagingBuffer(registry, code, dsRid, layout, selected, batchRows, bulkDir));
+      } catch (IOException e) {
+        LOGGER.error("line {} staging file for {} in {} failed.", lineNumber, code, ds, e);
+        return null;
+      }
+    }
+    return files.get(files.size() - 1);
   }
 
   /**
@@ -675,17 +805,23 @@ public class ImportFile extends Import implements Importer {
     if (message != null) {
       System.err.println(message);
     }
-    System.err.println(importerClass + " -c configfile filelist");
+    System.err.println(importerClass + " -c configfile [-b | -t threads] [-m MB] filelist");
+    System.err.println("  -b  bulk load the files with LOAD DATA LOCAL INFILE");
+    System.err.println(ImportDriver.THREADS_HELP);
+    System.err.println("  -m  megabytes of rows waiting to be written, default 64");
   }
 
   /**
    * Main method. Command line syntax: -h, --help print help message -c config file name -v verbose
-   * mode files ...
+   * mode -b bulk load files -t threads -m write budget in MB ...
    */
   public static void main(String[] as) {
 
     ImportFile importer = new ImportFile();
 
+    flags.add("-b");
+    keys.add("-t");
+    keys.add("-m");
     Arguments args = new Arguments(as, flags, keys);
 
     if (args.flagged("-h")) {
@@ -698,17 +834,25 @@ public class ImportFile extends Import implements Importer {
       System.exit(-1);
     }
 
+    // size the connection pool for the threads before the first connection is made; bulk loads
+    // keep one importer so the staging files of a table stay in file order
+    int threads = args.flagged("-b") ? 1 : ImportDriver.getThreads(args.get("-t"));
+    ImportDriver driver = new ImportDriver(threads, ImportDriver.getBudget(args.get("-m")));
+
     importer.initialize(importer.getClass().getName(), args.get("-c"), args.flagged("-v"));
 
+    importer.setBulk(args.flagged("-b"));
     List<String> files = args.unused();
-    for (String file : files) {
-      importer.process(file);
-    }
+    driver.process(importer, importer.getClass().getName(), args.get("-c"), args.flagged("-v"),
+        files);
+    importer.loadStaged();
 
     // Stop the CurrentTime thread so that ImportFile can exit cleanly.
     importer.currentTime.stopUpdating();
 
-    importer.deinitialize();
+    for (Importer i : driver.getImporters()) {
+      i.deinitialize();
+    }
   }
 }
 
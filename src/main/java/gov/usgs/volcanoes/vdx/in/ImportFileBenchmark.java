@@ -0,0 +1,310 @@
+package gov.usgs.volcanoes.vdx.in;
+
+import cern.colt.matrix.DoubleFactory2D;
+import cern.colt.matrix.DoubleMatrix2D;
+
+import gov.usgs.volcanoes.core.data.GenericDataMatrix;
+import gov.usgs.volcanoes.core.legacy.Arguments;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+/**
+ * Command line tool comparing the line parsing of {@link ImportFile} as it was, splitting each line
+ * with a newly compiled pattern into maps of cleaned strings and building a one row matrix per
+ * line, with the {@link LineTokenizer} and {@link FieldLayout} pipeline that collects rows into
+ * batch matrices. Both read the same file and do everything but write to the database.
+ *
+ * @author Tom Parker
+ */
+public class ImportFileBenchmark {
+
+  private static final String FIELDS = "CHANNEL,TIMESTAMP,a,b,c,d,IGNORE";
+  private static final String[] COLUMNS = {"a", "b", "c", "d"};
+  private static final int BATCH_ROWS = 10000;
+
+  private final File file;
+  private final SimpleDateFormat dateIn;
+
+  /**
+   * Constructor.
+   *
+   * @param file comma separated file of FIELDS lines
+   */
+  public ImportFileBenchmark(File file) {
+    this.file = file;
+    dateIn = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    dateIn.setTimeZone(TimeZone.getTimeZone("GMT"));
+  }
+
+  /**
+   * Write a synthetic file of one line per second for a few channels.
+   *
+   * @param lines number of lines
+   * @throws IOException if the file can't be written
+   */
+  public void populate(int lines) throws IOException {
+    SimpleDateFormat dateOut = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    dateOut.setTimeZone(TimeZone.getTimeZone("GMT"));
+    Random random = new Random(0);
+    long t0 = 1262304000000L;
+    BufferedWriter out = new BufferedWriter(new FileWriter(file));
+    try {
+      for (int i = 0; i < lines; i++) {
+        out.write("CH" + (i % 4) + ",\"" + dateOut.format(new Date(t0 + (i / 4) * 1000L)) + "\"");
+        for (int k = 0; k < COLUMNS.length; k++) {
+          out.write("," + Math.round(random.nextGaussian() * 1000000) / 10000.0);
+        }
+        out.write(",x\n");
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Time both pipelines and print the results.
+   *
+   * @throws IOException if the file can't be read
+   */
+  public void run() throws IOException {
+    for (int pass = 0; pass < 2; pass++) {
+      long start = System.currentTimeMillis();
+      long rows = runLegacy();
+      print("legacy", rows, System.currentTimeMillis() - start);
+      start = System.currentTimeMillis();
+      rows = runTokenizer();
+      print("tokenizer", rows, System.currentTimeMillis() - start);
+    }
+  }
+
+  /**
+   * Parse the file the way ImportFile used to.
+   *
+   * @return rows parsed
+   * @throws IOException if the file can't be read
+   */
+  private long runLegacy() throws IOException {
+    String[] fieldArray = FIELDS.split(",");
+    Map<Integer, String> fieldMap = new HashMap<Integer, String>();
+    for (int i = 0; i < fieldArray.length; i++) {
+      fieldMap.put(i, fieldArray[i]);
+    }
+    long rows = 0;
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        Pattern p = Pattern.compile(",");
+        String[] valueArray = p.split(line, -1);
+        Map<Integer, String> valueMap = new HashMap<Integer, String>();
+        for (int i = 0; i < valueArray.length; i++) {
+          valueMap.put(i, valueArray[i].replaceAll("[\'\"]", "").trim());
+        }
+        StringBuilder ts = new StringBuilder();
+        Map<Integer, ColumnValue> columnValueMap = new HashMap<Integer, ColumnValue>();
+        int count = 0;
+        for (int i = 0; i < fieldMap.size(); i++) {
+          String name = fieldMap.get(i);
+          if (name.equals("TIMESTAMP")) {
+            ts.append(valueMap.get(i)).append(" ");
+          } else if (!name.equals("IGNORE") && !name.equals("CHANNEL")) {
+            String v = valueMap.get(i);
+            double value = v.length() == 0 || v.equalsIgnoreCase("NAN") ? Double.NaN
+                : Double.parseDouble(v);
+            columnValueMap.put(count++, new ColumnValue(name, value));
+          }
+        }
+        double j2ksec = parseTime(ts.toString().trim());
+        Map<Integer, ColumnValue> entries = new HashMap<Integer, ColumnValue>();
+        entries.put(0, new ColumnValue("j2ksec", j2ksec));
+        String[] columnArray = "a,b,c,d".split(",");
+        for (int j = 0; j < columnValueMap.size(); j++) {
+          for (String c : columnArray) {
+            if (c.equals(columnValueMap.get(j).columnName)) {
+              entries.put(entries.size(), columnValueMap.get(j));
+            }
+          }
+        }
+        DoubleMatrix2D dm = DoubleFactory2D.dense.make(1, entries.size());
+        String[] columnNames = new String[entries.size()];
+        for (int j = 0; j < entries.size(); j++) {
+          columnNames[j] = entries.get(j).columnName;
+          dm.setQuick(0, j, entries.get(j).columnValue);
+        }
+        GenericDataMatrix gdm = new GenericDataMatrix(dm);
+        gdm.setColumnNames(columnNames);
+        rows += gdm.rows();
+      }
+    } finally {
+      in.close();
+    }
+    return rows;
+  }
+
+  /**
+   * Parse the file the way ImportFile does now.
+   *
+   * @return rows parsed
+   * @throws IOException if the file can't be read
+   */
+  private long runTokenizer() throws IOException {
+    FieldLayout layout = new FieldLayout(FIELDS);
+    int[] selected = layout.select(COLUMNS);
+    LineTokenizer tokenizer = new LineTokenizer(",");
+    double[] values = new double[layout.size()];
+    StringBuilder ts = new StringBuilder();
+    Map<String, double[][]> batches = new HashMap<String, double[][]>();
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    Set<String> channels = new HashSet<String>();
+    String channel = null;
+    double[][] batch = null;
+    String timestamp = null;
+    double j2ksec = Double.NaN;
+    long rows = 0;
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        tokenizer.tokenize(line);
+        ts.setLength(0);
+        for (int i = 0; i < layout.size(); i++) {
+          switch (layout.getKind(i)) {
+            case FieldLayout.CHANNEL:
+              if (!tokenizer.matches(i, channel)) {
+                channel = tokenizer.get(i);
+                channels.add(channel);
+                batch = batches.get(channel);
+                if (batch == null) {
+                  batch = new double[BATCH_ROWS][selected.length + 1];
+                  batches.put(channel, batch);
+                  counts.put(channel, 0);
+                }
+              }
+              break;
+            case FieldLayout.TIMESTAMP:
+              tokenizer.appendTo(i, ts);
+              ts.append(' ');
+              break;
+            case FieldLayout.DATA:
+              values[i] = tokenizer.getDouble(i);
+              break;
+            default:
+              break;
+          }
+        }
+        String t = ts.toString().trim();
+        if (!t.equals(timestamp)) {
+          j2ksec = parseTime(t);
+          timestamp = t;
+        }
+        int n = counts.get(channel);
+        batch[n][0] = j2ksec;
+        for (int k = 0; k < selected.length; k++) {
+          batch[n][k + 1] = values[selected[k]];
+        }
+        n++;
+        if (n == BATCH_ROWS) {
+          rows += toMatrix(batch, n).rows();
+          n = 0;
+        }
+        counts.put(channel, n);
+      }
+      for (String c : channels) {
+        rows += toMatrix(batches.get(c), counts.get(c)).rows();
+      }
+    } finally {
+      in.close();
+    }
+    return rows;
+  }
+
+  /**
+   * Build the matrix written by one insert, as a RowBuffer does.
+   *
+   * @param batch rows
+   * @param n number of rows
+   * @return matrix
+   */
+  private static GenericDataMatrix toMatrix(double[][] batch, int n) {
+    DoubleMatrix2D dm = DoubleFactory2D.dense.make(n, batch[0].length);
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < batch[i].length; j++) {
+        dm.setQuick(i, j, batch[i][j]);
+      }
+    }
+    return new GenericDataMatrix(dm);
+  }
+
+  /**
+   * Parse a timestamp.
+   *
+   * @param ts timestamp
+   * @return seconds since the epoch
+   */
+  private double parseTime(String ts) {
+    try {
+      return dateIn.parse(ts).getTime() / 1000.0;
+    } catch (ParseException e) {
+      return Double.NaN;
+    }
+  }
+
+  /**
+   * Print one result line.
+   *
+   * @param name label
+   * @param rows rows parsed
+   * @param ms elapsed time in milliseconds
+   */
+  private void print(String name, long rows, long ms) {
+    System.out.printf("%-10s %10d rows %8d ms %10.0f rows/s%n", name, rows, ms,
+        rows * 1000.0 / Math.max(1, ms));
+  }
+
+  /**
+   * Main method, provide command-line interface.
+   *
+   * @param as command line args
+   */
+  public static void main(String[] as) {
+    Set<String> flags = new HashSet<String>();
+    Set<String> kvs = new HashSet<String>();
+    kvs.add("-f");
+    kvs.add("-l");
+    Arguments args = new Arguments(as, flags, kvs);
+    int lines = args.get("-l") == null ? 5000000 : Integer.parseInt(args.get("-l"));
+
+    try {
+      File file;
+      if (args.get("-f") != null) {
+        file = new File(args.get("-f"));
+      } else {
+        file = File.createTempFile("importbench", ".csv");
+        file.deleteOnExit();
+      }
+      ImportFileBenchmark benchmark = new ImportFileBenchmark(file);
+      if (args.get("-f") == null || !file.exists()) {
+        System.out.printf("writing %d lines to %s%n", lines, file);
+        benchmark.populate(lines);
+      }
+      benchmark.run();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+}
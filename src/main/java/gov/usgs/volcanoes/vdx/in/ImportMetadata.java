@@ -30,7 +30,7 @@ import org.slf4j.LoggerFactory;
  * @author Scott B. Hunter, ISTI
  * @author Bill Tollett
  */
-public class ImportMetadata {
+public class ImportMetadata implements Importer {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ImportMetadata.class);
   private static Set<String> flags;
@@ -47,6 +47,7 @@ public class ImportMetadata {
     flags = new HashSet<String>();
     keys  = new HashSet<String>();
     keys.add("-c");
+    keys.add("-t");
     flags.add("-h");
   }
 
@@ -61,6 +62,17 @@ public class ImportMetadata {
     processConfigFile(configFile);
   }
 
+  /**
+   * Initialize importer. Suppdata and metadata are always logged, so verbose is ignored.
+   *
+   * @param importerClass name of importer class
+   * @param configFile configuration file
+   * @param verbose true for info, false for severe
+   */
+  public void initialize(String importerClass, String configFile, boolean verbose) {
+    initialize(importerClass, configFile);
+  }
+
   /**
    * Deinitialize importer.
    */
@@ -326,11 +338,13 @@ public class ImportMetadata {
     if (message == null) {
       System.err.println(message);
     }
-    System.err.println(importerClass + " [-c configfile] filelist");
+    System.err.println(importerClass + " [-c configfile] [-t threads] filelist");
+    System.err.println(ImportDriver.THREADS_HELP);
   }
 
   /**
-   * Main method. Command line syntax: -h, --help print help message -c config file name files ...
+   * Main method. Command line syntax: -h, --help print help message -c config file name -t threads
+   * files ...
    */
   public static void main(String[] as) {
     ImportMetadata importer = new ImportMetadata();
@@ -347,13 +361,16 @@ public class ImportMetadata {
       configFile = args.get("-c");
     }
 
+    // size the connection pool for the threads before the first connection is made
+    ImportDriver driver = new ImportDriver(ImportDriver.getThreads(args.get("-t")), 0);
+
     importer.initialize(importer.getClass().getName(), configFile);
     List<String> files = args.unused();
-    for (String file : files) {
-      importer.process(file);
-    }
+    driver.process(importer, importer.getClass().getName(), configFile, false, files);
 
-    importer.deinitialize();
+    for (Importer i : driver.getImporters()) {
+      i.deinitialize();
+    }
 
   }
 
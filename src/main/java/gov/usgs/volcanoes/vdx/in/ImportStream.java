@@ -342,22 +342,18 @@ public class ImportStream extends Import implements Importer {
           }
 
           // if the channel doesn't exist then create it with the default tid of 1
-          if (sqlDataSource
-              .defaultGetChannel(channel.getCode(), sqlDataSource.getChannelTypesFlag()) == null) {
+          ChannelRegistry registry = ChannelRegistry.forDataSource(sqlDataSource);
+          if (registry.getChannel(channel.getCode()) == null) {
+            azimuthNom = Double.NaN;
             if (sqlDataSource.getType().equals("tilt")) {
               azimuthNom = StringUtils.stringToDouble(channelParams.getString("azimuth"), 0);
-              sqlDataSource.defaultCreateTiltChannel(channel, 1, azimuthNom,
-                  sqlDataSource.getChannelsFlag(), sqlDataSource.getTranslationsFlag(),
-                  sqlDataSource.getRanksFlag(), sqlDataSource.getColumnsFlag());
-            } else {
-              sqlDataSource.defaultCreateChannel(channel, 1,
-                  sqlDataSource.getChannelsFlag(), sqlDataSource.getTranslationsFlag(),
-                  sqlDataSource.getRanksFlag(), sqlDataSource.getColumnsFlag());
             }
 
             // retrieve the new channel and store it off
-            channel = sqlDataSource
-                .defaultGetChannel(channel.getCode(), sqlDataSource.getChannelTypesFlag());
+            channel = registry.ensureChannel(channel, azimuthNom);
+            if (channel == null) {
+              continue;
+            }
             channelMap.put(channelCode, channel);
           }
 
@@ -408,9 +404,7 @@ public class ImportStream extends Import implements Importer {
             if (tid == 1) {
               tid = sqlDataSource.defaultInsertTranslation(channel.getCode(), gdm);
             }
-            if (tid != sqlDataSource.defaultGetChannelTranslationId(channel.getCode())) {
-              sqlDataSource.defaultUpdateChannelTranslationId(channel.getCode(), tid);
-            }
+            registry.setTranslationId(channel.getCode(), tid);
           }
         }
       }
@@ -667,15 +661,9 @@ public class ImportStream extends Import implements Importer {
           }
 
           // channel for this data source.  create it if it doesn't exist
-          if (sqlDataSource.getChannelsFlag()) {
-            if (sqlDataSource.defaultGetChannel(channelCode, sqlDataSource.getChannelTypesFlag())
-                == null) {
-              sqlDataSource.defaultCreateChannel(
-                  new Channel(0, channelCode, channelCode, Double.NaN, Double.NaN, Double.NaN, 1),
-                  1,
-                  sqlDataSource.getChannelsFlag(), sqlDataSource.getTranslationsFlag(),
-                  sqlDataSource.getRanksFlag(), sqlDataSource.getColumnsFlag());
-            }
+          ChannelRegistry registry = ChannelRegistry.forDataSource(sqlDataSource);
+          if (sqlDataSource.getChannelsFlag() && registry.ensureChannel(channelCode) == null) {
+            continue;
           }
 
           // columns for this data source
@@ -728,8 +716,7 @@ public class ImportStream extends Import implements Importer {
           gdm.setColumnNames(columnNames);
 
           // insert the data to the database
-          sqlDataSource.defaultInsertData(channelCode, gdm, sqlDataSource.getTranslationsFlag(),
-              sqlDataSource.getRanksFlag(), rid);
+          registry.insert(channelCode, gdm, rid);
         }
       }
     }
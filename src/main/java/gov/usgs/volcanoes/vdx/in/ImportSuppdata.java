@@ -24,7 +24,7 @@ import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class ImportSuppdata {
+public class ImportSuppdata implements Importer {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ImportSuppdata.class);
   private static Set<String> flags;
@@ -42,6 +42,7 @@ public class ImportSuppdata {
     flags = new HashSet<String>();
     keys = new HashSet<String>();
     keys.add("-c");
+    keys.add("-t");
     flags.add("-h");
     flags.add("-cm");
     flags.add("-v");
@@ -59,6 +60,17 @@ public class ImportSuppdata {
     processConfigFile(configFile);
   }
 
+  /**
+   * Initialize importer. Suppdata and metadata are always logged, so verbose is ignored.
+   *
+   * @param importerClass name of importer class
+   * @param configFile configuration file
+   * @param verbose true for info, false for severe
+   */
+  public void initialize(String importerClass, String configFile, boolean verbose) {
+    initialize(importerClass, configFile);
+  }
+
   /**
    * Deinitialize importer.
    */
@@ -112,7 +124,7 @@ public class ImportSuppdata {
 
       // Build map of channels
       channelMap = new HashMap<String, Integer>();
-      for (Channel ch : ds.defaultGetChannelsList(false)) {
+      for (Channel ch : ChannelRegistry.forDataSource(ds).getChannels()) {
         channelMap.put(ch.getCode(), ch.getCId());
       }
       LOGGER.info("Channels mapped: " + channelMap.size());
@@ -456,7 +468,8 @@ public class ImportSuppdata {
   }
 
   /**
-   * Main method. Command line syntax: -h, --help print help message -c config file name files ...
+   * Main method. Command line syntax: -h, --help print help message -c config file name -t threads
+   * files ...
    */
   public static void main(String[] as) {
     ImportSuppdata importer = new ImportSuppdata();
@@ -473,13 +486,16 @@ public class ImportSuppdata {
       configFile = args.get("-c");
     }
 
+    // size the connection pool for the threads before the first connection is made
+    ImportDriver driver = new ImportDriver(ImportDriver.getThreads(args.get("-t")), 0);
+
     importer.initialize(importer.getClass().getName(), configFile);
     List<String> files = args.unused();
-    for (String file : files) {
-      importer.process(file);
-    }
+    driver.process(importer, importer.getClass().getName(), configFile, false, files);
 
-    importer.deinitialize();
+    for (Importer i : driver.getImporters()) {
+      i.deinitialize();
+    }
 
   }
 
@@ -0,0 +1,247 @@
+package gov.usgs.volcanoes.vdx.in;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits delimited lines into fields without copying them. A tokenizer is reused for every line of
+ * a file: it records where each field starts and ends in the line, and fields are read as strings
+ * or parsed as numbers straight from the line. Like the split it replaces, fields keep trailing
+ * empty values, and surrounding whitespace and quote characters are not part of a value.
+ *
+ * <p>Delimiters are regular expressions, as in importer configurations. Single character and other
+ * literal delimiters are found by a plain scan, anything else with a precompiled pattern.
+ *
+ * @author Tom Parker
+ */
+public class LineTokenizer {
+
+  private static final String REGEX_META = "\\[](){}.*+?^$|";
+  private static final double[] POW10 = new double[23];
+  private static final int MAX_FAST_DIGITS = 15;
+
+  static {
+    POW10[0] = 1;
+    for (int i = 1; i < POW10.length; i++) {
+      POW10[i] = POW10[i - 1] * 10;
+    }
+  }
+
+  private final String literal;
+  private final Matcher matcher;
+  private String line;
+  private int count;
+  private int[] starts;
+  private int[] ends;
+
+  /**
+   * Constructor.
+   *
+   * @param delimiter delimiter regular expression
+   */
+  public LineTokenizer(String delimiter) {
+    if (isLiteral(delimiter)) {
+      literal = delimiter;
+      matcher = null;
+    } else {
+      literal = null;
+      matcher = Pattern.compile(delimiter).matcher("");
+    }
+    starts = new int[16];
+    ends = new int[16];
+  }
+
+  /**
+   * Check whether a regular expression only matches itself.
+   *
+   * @param regex regular expression
+   * @return true if it contains no special characters
+   */
+  private static boolean isLiteral(String regex) {
+    if (regex.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < regex.length(); i++) {
+      if (REGEX_META.indexOf(regex.charAt(i)) != -1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Split a line.
+   *
+   * @param s line
+   * @return number of fields
+   */
+  public int tokenize(String s) {
+    line = s;
+    count = 0;
+    int start = 0;
+    if (literal != null) {
+      int d;
+      while ((d = s.indexOf(literal, start)) != -1) {
+        add(start, d);
+        start = d + literal.length();
+      }
+    } else {
+      matcher.reset(s);
+      while (matcher.find()) {
+
+        // like String.split, a zero width match at the start makes no empty first field
+        if (matcher.end() == 0) {
+          continue;
+        }
+        add(start, matcher.start());
+        start = matcher.end();
+      }
+    }
+    add(start, s.length());
+    return count;
+  }
+
+  /**
+   * Record a field, trimmed of whitespace and quotes.
+   *
+   * @param start index of the first character
+   * @param end index after the last character
+   */
+  private void add(int start, int end) {
+    if (count == starts.length) {
+      starts = Arrays.copyOf(starts, count * 2);
+      ends = Arrays.copyOf(ends, count * 2);
+    }
+    while (start < end && isBlank(line.charAt(start))) {
+      start++;
+    }
+    while (end > start && isBlank(line.charAt(end - 1))) {
+      end--;
+    }
+    starts[count] = start;
+    ends[count] = end;
+    count++;
+  }
+
+  /**
+   * Check whether a character is trimmed from values.
+   *
+   * @param c character
+   * @return true for whitespace and quotes
+   */
+  private static boolean isBlank(char c) {
+    return c <= ' ' || c == '\'' || c == '"';
+  }
+
+  /**
+   * Get the number of fields of the last line.
+   *
+   * @return number of fields
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Check whether a field is empty.
+   *
+   * @param i field index
+   * @return true if the field has no value
+   */
+  public boolean isEmpty(int i) {
+    return starts[i] == ends[i];
+  }
+
+  /**
+   * Get a field as a string, without quote characters.
+   *
+   * @param i field index
+   * @return value
+   */
+  public String get(int i) {
+    String s = line.substring(starts[i], ends[i]);
+    if (s.indexOf('\'') != -1 || s.indexOf('"') != -1) {
+      s = s.replace("'", "").replace("\"", "").trim();
+    }
+    return s;
+  }
+
+  /**
+   * Check whether a field has a value, without making a string of it.
+   *
+   * @param i field index
+   * @param s value
+   * @return true if the field is equal to the value
+   */
+  public boolean matches(int i, String s) {
+    int length = ends[i] - starts[i];
+    return s != null && s.length() == length && line.regionMatches(starts[i], s, 0, length);
+  }
+
+  /**
+   * Append a field to a buffer.
+   *
+   * @param i field index
+   * @param sb buffer
+   */
+  public void appendTo(int i, StringBuilder sb) {
+    sb.append(line, starts[i], ends[i]);
+  }
+
+  /**
+   * Parse a field as a number. Plain decimals of up to 15 significant digits are parsed directly,
+   * with the same result as {@link Double#parseDouble(String)}; other forms are handed to it.
+   *
+   * @param i field index
+   * @return value, NaN if the field is empty or NaN
+   * @throws NumberFormatException if the field is not a number
+   */
+  public double getDouble(int i) {
+    int p = starts[i];
+    int end = ends[i];
+    if (p == end) {
+      return Double.NaN;
+    }
+    boolean negative = false;
+    char c = line.charAt(p);
+    if (c == '-' || c == '+') {
+      negative = c == '-';
+      p++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int fraction = -1;
+    boolean any = false;
+    for (; p < end; p++) {
+      c = line.charAt(p);
+      if (c >= '0' && c <= '9') {
+        any = true;
+        if (digits > 0 || c != '0') {
+          digits++;
+        }
+        mantissa = mantissa * 10 + (c - '0');
+        if (fraction >= 0) {
+          fraction++;
+        }
+      } else if (c == '.' && fraction < 0) {
+        fraction = 0;
+      } else {
+        break;
+      }
+      if (digits > MAX_FAST_DIGITS || fraction >= POW10.length) {
+        break;
+      }
+    }
+    if (p < end || !any) {
+
+      // exponents, long mantissas, NaN and anything unusual
+      String s = get(i);
+      return s.equalsIgnoreCase("NAN") ? Double.NaN : Double.parseDouble(s);
+    }
+
+    // both operands are exact, so the quotient is correctly rounded
+    double value = fraction > 0 ? mantissa / POW10[fraction] : mantissa;
+    return negative ? -value : value;
+  }
+}
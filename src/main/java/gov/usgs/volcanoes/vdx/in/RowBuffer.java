@@ -0,0 +1,200 @@
+package gov.usgs.volcanoes.vdx.in;
+
+import cern.colt.matrix.DoubleFactory2D;
+import cern.colt.matrix.DoubleMatrix2D;
+
+import gov.usgs.volcanoes.core.data.GenericDataMatrix;
+import gov.usgs.volcanoes.vdx.data.InsertResult;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rows of one channel of one data source collected from import file lines, written to the data
+ * source as one matrix once enough have accumulated, so inserts are batched instead of made line
+ * by line. The first column of every row is j2ksec. Inserts go through {@link TableWriter}, so
+ * they are queued if the importing thread has a table writer.
+ *
+ * @author Tom Parker
+ */
+public class RowBuffer {
+
+  private static final int INITIAL_ROWS = 64;
+
+  private final ChannelRegistry registry;
+  private final String channelCode;
+  private final int rid;
+  private final FieldLayout layout;
+  private final int[] fields;
+  private final String[] columnNames;
+  private final int capacity;
+  private double[][] rows;
+  private int count;
+  private long flushed;
+  private final AtomicLong written = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param registry channels of the data source to write to
+   * @param channelCode channel to write to
+   * @param rid rank id
+   * @param layout layout of the lines the rows come from
+   * @param fields indexes of the fields written, see {@link FieldLayout#select(String[])}
+   * @param capacity number of rows written at once; the buffer starts small and grows up to it
+   */
+  public RowBuffer(ChannelRegistry registry, String channelCode, int rid, FieldLayout layout,
+      int[] fields, int capacity) {
+    this.registry = registry;
+    this.channelCode = channelCode;
+    this.rid = rid;
+    this.layout = layout;
+    this.fields = fields;
+    columnNames = new String[fields.length + 1];
+    columnNames[0] = "j2ksec";
+    for (int i = 0; i < fields.length; i++) {
+      columnNames[i + 1] = layout.getColumn(fields[i]);
+    }
+    this.capacity = Math.max(1, capacity);
+    rows = new double[Math.min(this.capacity, INITIAL_ROWS)][];
+  }
+
+  /**
+   * Get the layout the rows are taken from.
+   *
+   * @return field layout
+   */
+  public FieldLayout getLayout() {
+    return layout;
+  }
+
+  /**
+   * Add a row, writing the buffer if it is full.
+   *
+   * @param j2ksec time of the row
+   * @param values values of all fields of the line, by field index
+   */
+  public void add(double j2ksec, double[] values) {
+    if (count == rows.length) {
+      rows = Arrays.copyOf(rows, Math.min(capacity, rows.length * 2));
+    }
+    double[] row = rows[count];
+    if (row == null) {
+      row = new double[columnNames.length];
+      rows[count] = row;
+    }
+    row[0] = j2ksec;
+    for (int i = 0; i < fields.length; i++) {
+      row[i + 1] = values[fields[i]];
+    }
+    count++;
+    if (count == capacity) {
+      flush();
+    }
+  }
+
+  /**
+   * Write the rows collected so far.
+   *
+   * @return outcome of the insert, null if there was nothing to write or the insert was queued
+   */
+  public InsertResult flush() {
+    if (count == 0) {
+      return null;
+    }
+    int n = count;
+    count = 0;
+    flushed += n;
+    return write(rows, n);
+  }
+
+  /**
+   * Write rows to the data source. The rows are copied, so the buffer can be reused right away.
+   *
+   * @param rows rows, j2ksec first
+   * @param n number of rows to write
+   * @return outcome of the insert, null if it was queued
+   */
+  protected InsertResult write(double[][] rows, int n) {
+    DoubleMatrix2D dm = DoubleFactory2D.dense.make(n, columnNames.length);
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < columnNames.length; j++) {
+        dm.setQuick(i, j, rows[i][j]);
+      }
+    }
+    final GenericDataMatrix gdm = new GenericDataMatrix(dm);
+    gdm.setColumnNames(columnNames);
+    final InsertResult[] result = new InsertResult[1];
+    TableWriter.write(registry.getDataSource(), channelCode, n, 8L * n * columnNames.length,
+        new Runnable() {
+          public void run() {
+            result[0] = registry.insert(channelCode, gdm, rid);
+            written.addAndGet(result[0].getWritten());
+          }
+        });
+    return result[0];
+  }
+
+  /**
+   * Count rows written by a subclass.
+   *
+   * @param n rows written
+   */
+  protected void addWritten(long n) {
+    written.addAndGet(n);
+  }
+
+  /**
+   * Get the registry of the data source written to.
+   *
+   * @return channel registry
+   */
+  public ChannelRegistry getRegistry() {
+    return registry;
+  }
+
+  /**
+   * Get the channel written to.
+   *
+   * @return channel code
+   */
+  public String getChannelCode() {
+    return channelCode;
+  }
+
+  /**
+   * Get the rank id written.
+   *
+   * @return rank id
+   */
+  public int getRid() {
+    return rid;
+  }
+
+  /**
+   * Get the names of the columns written, j2ksec first.
+   *
+   * @return column names
+   */
+  public String[] getColumnNames() {
+    return columnNames;
+  }
+
+  /**
+   * Get the number of rows written so far.
+   *
+   * @return rows written
+   */
+  public long getWritten() {
+    return written.get();
+  }
+
+  /**
+   * Get the number of rows handed to {@link #write} so far, written or queued.
+   *
+   * @return rows flushed
+   */
+  public long getFlushed() {
+    return flushed;
+  }
+}
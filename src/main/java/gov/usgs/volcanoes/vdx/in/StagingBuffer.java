@@ -0,0 +1,108 @@
+package gov.usgs.volcanoes.vdx.in;
+
+import gov.usgs.volcanoes.vdx.data.InsertResult;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Rows of one channel of one data source collected for a bulk load. Instead of being inserted, full
+ * batches are appended to a staging file of tab separated values, already in the columns of the
+ * channel table, with j2ksec times and NaN written as \N. The file is written to the channel table
+ * in one go by {@link #load()}.
+ *
+ * @author Tom Parker
+ */
+public class StagingBuffer extends RowBuffer {
+
+  private final File file;
+  private Writer out;
+
+  /**
+   * Constructor.
+   *
+   * @param registry channels of the data source to write to
+   * @param channelCode channel to write to
+   * @param rid rank id
+   * @param layout layout of the lines the rows come from
+   * @param fields indexes of the fields written, see {@link FieldLayout#select(String[])}
+   * @param capacity number of rows written to the staging file at once
+   * @param dir directory of the staging file, null for the default temporary directory
+   * @throws IOException if the staging file can't be created
+   */
+  public StagingBuffer(ChannelRegistry registry, String channelCode, int rid, FieldLayout layout,
+      int[] fields, int capacity, File dir) throws IOException {
+    super(registry, channelCode, rid, layout, fields, capacity);
+    file = File.createTempFile("vdx-" + channelCode.replaceAll("[^A-Za-z0-9_]", "_") + "-",
+        ".tsv", dir);
+    file.deleteOnExit();
+    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "US-ASCII"),
+        1 << 16);
+  }
+
+  /**
+   * Append rows to the staging file.
+   *
+   * @param rows rows, j2ksec first
+   * @param n number of rows to write
+   * @return rows staged
+   */
+  @Override
+  protected InsertResult write(double[][] rows, int n) {
+    InsertResult result = new InsertResult(n);
+    try {
+      if (out == null) {
+        throw new IOException("staging file " + file + " is closed");
+      }
+      for (int i = 0; i < n; i++) {
+        double[] row = rows[i];
+        for (int j = 0; j < row.length; j++) {
+          if (j > 0) {
+            out.write('\t');
+          }
+          if (Double.isNaN(row[j]) || Double.isInfinite(row[j])) {
+            out.write("\\N");
+          } else {
+            out.write(Double.toString(row[j]));
+          }
+        }
+        out.write('\n');
+      }
+      result.written(0, n, n);
+      result.committed();
+      addWritten(n);
+      TableWriter.count(n);
+    } catch (IOException e) {
+      result.failed(0, n, e.getMessage());
+    }
+    return result;
+  }
+
+  /**
+   * Write the staging file to the channel table and delete it.
+   *
+   * @return rows loaded, null if nothing was staged
+   * @throws IOException if the staging file can't be completed
+   */
+  public InsertResult load() throws IOException {
+    flush();
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+    try {
+      if (getWritten() == 0) {
+        return null;
+      }
+      return getRegistry().load(getChannelCode(), file, getColumnNames(), getRid());
+    } finally {
+      if (!file.delete()) {
+        file.deleteOnExit();
+      }
+    }
+  }
+}
@@ -0,0 +1,357 @@
+package gov.usgs.volcanoes.vdx.in;
+
+import gov.usgs.volcanoes.vdx.data.SQLDataSource;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes to channel tables on a pool of threads, so importers can go on parsing while rows are
+ * written. Every table has its own queue, run by one thread at a time; different tables are
+ * written in parallel. The writes to a table happen in file order, and in the order they were
+ * submitted within a file: a queue holds back the writes of a file until every earlier file has
+ * been parsed, so overlapping rows of different files end up as if the files had been imported
+ * one after another.
+ *
+ * <p>Queued writes count against a memory budget, and submitting blocks while the budget is used
+ * up, which keeps fast parsers from running ahead of the database. The earliest file still being
+ * parsed never waits, since the writes holding the budget may be waiting for it.
+ *
+ * <p>Importers submit through {@link #write}, which uses the writer set for the current thread by
+ * {@link #begin} and writes inline on threads without one.
+ *
+ * @author Tom Parker
+ */
+public class TableWriter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TableWriter.class);
+  private static final ThreadLocal<TableWriter> current = new ThreadLocal<TableWriter>();
+  private static final ThreadLocal<ImportDriver.FileStats> currentFile =
+      new ThreadLocal<ImportDriver.FileStats>();
+
+  private final ExecutorService pool;
+  private final int budgetKb;
+  private final Map<String, TableQueue> queues;
+  private final Set<Integer> parsed;
+  private int used;
+  private int frontier;
+  private int pending;
+  private long blocked;
+  private long blockedMs;
+
+  /**
+   * Writes queued for one table, in file order.
+   */
+  private class TableQueue implements Runnable {
+    private final String key;
+    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+    private boolean scheduled;
+
+    /**
+     * Constructor.
+     *
+     * @param key data source and table
+     */
+    TableQueue(String key) {
+      this.key = key;
+    }
+
+    /**
+     * Queue a write after the writes of the same and earlier files. Called with the queues locked.
+     *
+     * @param entry write
+     */
+    void add(Entry entry) {
+      ListIterator<Entry> it = entries.listIterator(entries.size());
+      while (it.hasPrevious()) {
+        if (it.previous().index <= entry.index) {
+          it.next();
+          break;
+        }
+      }
+      it.add(entry);
+    }
+
+    /**
+     * Hand the queue to the pool if its oldest write may run: no earlier file can add to the
+     * queue any more. Called with the queues locked.
+     */
+    void schedule() {
+      if (!scheduled && !entries.isEmpty() && entries.peek().index <= frontier) {
+        scheduled = true;
+        pool.execute(this);
+      }
+    }
+
+    /**
+     * Run the oldest write, then hand the queue back to the pool if more may run, so busy tables
+     * take turns with the others.
+     */
+    public void run() {
+      Entry entry;
+      synchronized (queues) {
+        entry = entries.peek();
+      }
+      try {
+        entry.run();
+      } finally {
+        synchronized (queues) {
+          entries.poll();
+          pending--;
+          used -= entry.permits;
+          scheduled = false;
+          if (entries.isEmpty()) {
+            queues.remove(key);
+          } else {
+            schedule();
+          }
+          queues.notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * One queued write.
+   */
+  private static class Entry {
+    private final SQLDataSource dataSource;
+    private final Runnable task;
+    private final int rows;
+    private final int permits;
+    private final ImportDriver.FileStats file;
+    private final int index;
+
+    /**
+     * Constructor.
+     *
+     * @param dataSource data source written, its connection is released after the write
+     * @param task write
+     * @param rows rows written
+     * @param permits budget held, in kilobytes
+     * @param file file the rows come from, may be null
+     * @param index position of the file in the import
+     */
+    Entry(SQLDataSource dataSource, Runnable task, int rows, int permits,
+        ImportDriver.FileStats file, int index) {
+      this.dataSource = dataSource;
+      this.task = task;
+      this.rows = rows;
+      this.permits = permits;
+      this.file = file;
+      this.index = index;
+    }
+
+    /**
+     * Write and account for the rows.
+     */
+    void run() {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        LOGGER.error("TableWriter write failed.", e);
+      } finally {
+        dataSource.releaseConnection();
+        if (file != null) {
+          file.written(rows);
+        }
+      }
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param threads number of writer threads
+   * @param budgetMb megabytes of rows that may be queued
+   */
+  public TableWriter(int threads, int budgetMb) {
+    budgetKb = Math.max(1, budgetMb) * 1024;
+    queues = new HashMap<String, TableQueue>();
+    parsed = new HashSet<Integer>();
+    final AtomicInteger count = new AtomicInteger();
+    pool = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "TableWriter-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Make a writer and file the current ones of this thread.
+   *
+   * @param writer table writer, null to write inline
+   * @param file file being imported, null if none
+   */
+  public static void begin(TableWriter writer, ImportDriver.FileStats file) {
+    current.set(writer);
+    currentFile.set(file);
+  }
+
+  /**
+   * Clear the writer and file of this thread.
+   */
+  public static void end() {
+    current.remove();
+    currentFile.remove();
+  }
+
+  /**
+   * Get the writer of this thread.
+   *
+   * @return table writer, null if writes are inline
+   */
+  public static TableWriter current() {
+    return current.get();
+  }
+
+  /**
+   * Write to a table, queued on the writer of this thread or inline if it has none.
+   *
+   * @param dataSource data source written
+   * @param table table written
+   * @param rows number of rows written
+   * @param bytes approximate memory held by the write until it runs
+   * @param task write
+   */
+  public static void write(SQLDataSource dataSource, String table, int rows, long bytes,
+      Runnable task) {
+    TableWriter writer = current.get();
+    if (writer != null) {
+      writer.submit(dataSource, table, rows, bytes, task);
+      return;
+    }
+    task.run();
+    count(rows);
+  }
+
+  /**
+   * Count rows written inline against the file being imported on this thread, if any.
+   *
+   * @param rows number of rows written
+   */
+  public static void count(int rows) {
+    ImportDriver.FileStats file = currentFile.get();
+    if (file != null) {
+      file.written(rows);
+    }
+  }
+
+  /**
+   * Queue a write behind the earlier writes to the same table, waiting for room in the budget
+   * unless it comes from the earliest file still being parsed.
+   *
+   * @param dataSource data source written
+   * @param table table written
+   * @param rows number of rows written
+   * @param bytes approximate memory held by the write until it runs
+   * @param task write
+   */
+  public void submit(SQLDataSource dataSource, String table, int rows, long bytes,
+      Runnable task) {
+    int permits = (int) Math.max(1, Math.min(budgetKb, (bytes + 1023) / 1024));
+    ImportDriver.FileStats file = currentFile.get();
+    String key = dataSource.getChangeKey() + "|" + table;
+    Entry inline = null;
+    synchronized (queues) {
+      int index = file == null ? frontier : file.getIndex();
+      if (used > 0 && used + permits > budgetKb && index > frontier) {
+        long start = System.currentTimeMillis();
+        try {
+          while (used > 0 && used + permits > budgetKb && index > frontier) {
+            queues.wait();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          inline = new Entry(dataSource, task, rows, 0, null, index);
+        } finally {
+          blocked++;
+          blockedMs += System.currentTimeMillis() - start;
+        }
+      }
+      if (inline == null) {
+        used += permits;
+        TableQueue queue = queues.get(key);
+        if (queue == null) {
+          queue = new TableQueue(key);
+          queues.put(key, queue);
+        }
+        queue.add(new Entry(dataSource, task, rows, permits, file, index));
+        pending++;
+        queue.schedule();
+      }
+    }
+    if (inline != null) {
+      LOGGER.warn("interrupted waiting for the import budget, writing {} inline", table);
+      inline.run();
+    }
+  }
+
+  /**
+   * Record that a file has been parsed, so it submits no more writes, and release the writes of
+   * the files after it that only waited for that.
+   *
+   * @param file file parsed
+   */
+  public void parsed(ImportDriver.FileStats file) {
+    synchronized (queues) {
+      parsed.add(file.getIndex());
+      while (parsed.remove(frontier)) {
+        frontier++;
+      }
+      for (TableQueue queue : queues.values()) {
+        queue.schedule();
+      }
+      queues.notifyAll();
+    }
+  }
+
+  /**
+   * Wait until every queued write has run.
+   */
+  public void await() {
+    synchronized (queues) {
+      while (pending > 0) {
+        try {
+          queues.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Wait for the queued writes and stop the writer threads.
+   */
+  public void close() {
+    await();
+    pool.shutdown();
+  }
+
+  /**
+   * Describe how often the budget held back importers.
+   *
+   * @return budget and waits
+   */
+  public String toString() {
+    synchronized (queues) {
+      return "budget " + budgetKb / 1024 + " MB, importers waited " + blocked + " times for "
+          + blockedMs + " ms";
+    }
+  }
+}
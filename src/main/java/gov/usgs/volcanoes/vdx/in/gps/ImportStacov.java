@@ -11,10 +11,14 @@ import gov.usgs.volcanoes.vdx.data.Rank;
 import gov.usgs.volcanoes.vdx.data.SQLDataSource;
 import gov.usgs.volcanoes.vdx.data.SQLDataSourceDescriptor;
 import gov.usgs.volcanoes.vdx.data.SQLDataSourceHandler;
+import gov.usgs.volcanoes.vdx.data.gps.DataPoint;
 import gov.usgs.volcanoes.vdx.data.gps.Gps;
 import gov.usgs.volcanoes.vdx.data.gps.SQLGpsDataSource;
 import gov.usgs.volcanoes.vdx.data.gps.SolutionPoint;
+import gov.usgs.volcanoes.vdx.in.ChannelRegistry;
+import gov.usgs.volcanoes.vdx.in.ImportDriver;
 import gov.usgs.volcanoes.vdx.in.Importer;
+import gov.usgs.volcanoes.vdx.in.TableWriter;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -98,7 +102,7 @@ public class ImportStacov implements Importer {
 
   public String channels;
   public String[] channelArray;
-  public Map<String, Channel> channelMap;
+  private ChannelRegistry channelRegistry;
   public Channel channel;
   public String channelCode;
   public String channelName;
@@ -230,12 +234,8 @@ public class ImportStacov implements Importer {
       rid = tempRank.getId();
     }
 
-    // get the list of channels and create a hash map keyed with the channel code
-    List<Channel> chs = sqlDataSource.getChannelsList();
-    channelMap = new HashMap<String, Channel>();
-    for (Channel ch : chs) {
-      channelMap.put(ch.getCode(), ch);
-    }
+    // get the channels, shared with the importers of other threads
+    channelRegistry = ChannelRegistry.forDataSource(sqlDataSource);
   }
 
   /**
@@ -334,7 +334,7 @@ public class ImportStacov implements Importer {
 
       // attempt to insert this source.
       // this method will tell if this file has already been imported
-      int sid = sqlDataSource
+      final int sid = sqlDataSource
           .insertSource(new File(filename).getName(), md5, j2ksec0, j2ksec1, rid);
       if (sid == -1) {
         LOGGER.error("skipping: {} (hash already exists)", filename);
@@ -399,18 +399,26 @@ public class ImportStacov implements Importer {
         spt.dp.syy = spt.dp.syy * spt.dp.syy;
         spt.dp.szz = spt.dp.szz * spt.dp.szz;
 
-        channel = channelMap.get(spt.channel);
+        channel = channelRegistry.getChannel(spt.channel);
 
         // if the channel isn't in the channel list from the db then it needs to be created
         if (channel == null) {
           llh = Gps.xyz2llh(spt.dp.xcoord, spt.dp.ycoord, spt.dp.zcoord);
-          sqlDataSource.createChannel(spt.channel, spt.channel, llh[0], llh[1], llh[2], 1);
-          channel = sqlDataSource.getChannel(spt.channel);
-          channelMap.put(spt.channel, channel);
+          channel = channelRegistry.ensureChannel(
+              new Channel(0, spt.channel, spt.channel, llh[0], llh[1], llh[2], 1), Double.NaN);
+          if (channel == null) {
+            continue;
+          }
         }
 
-        // insert the solution into the db
-        sqlDataSource.insertSolution(sid, channel.getCId(), spt.dp);
+        // insert the solution into the db, after the earlier solutions
+        final int cid = channel.getCId();
+        final DataPoint dp = spt.dp;
+        TableWriter.write(sqlDataSource, "solutions", 1, 128, new Runnable() {
+          public void run() {
+            sqlDataSource.insertSolution(sid, cid, dp);
+          }
+        });
       }
 
     } catch (Exception e) {
@@ -427,12 +435,13 @@ public class ImportStacov implements Importer {
     if (message == null) {
       System.err.println(message);
     }
-    System.err.println(importerClass + " -c configfile filelist");
+    System.err.println(importerClass + " -c configfile [-t threads] filelist");
+    System.err.println(ImportDriver.THREADS_HELP);
   }
 
   /**
    * Main method. Command line syntax: -h, --help print help message -c config file name -v verbose
-   * mode files ...
+   * mode -t threads files ...
    *
    * @param as command line args
    */
@@ -440,6 +449,7 @@ public class ImportStacov implements Importer {
 
     ImportStacov importer = new ImportStacov();
 
+    keys.add("-t");
     Arguments args = new Arguments(as, flags, keys);
 
     if (args.flagged("-h")) {
@@ -452,13 +462,16 @@ public class ImportStacov implements Importer {
       System.exit(-1);
     }
 
+    ImportDriver driver = new ImportDriver(ImportDriver.getThreads(args.get("-t")), 0);
+
     importer.initialize(importer.getClass().getName(), args.get("-c"), args.flagged("-v"));
 
     List<String> files = args.unused();
-    for (String file : files) {
-      importer.process(file);
-    }
+    driver.process(importer, importer.getClass().getName(), args.get("-c"), args.flagged("-v"),
+        files);
 
-    importer.deinitialize();
+    for (Importer i : driver.getImporters()) {
+      i.deinitialize();
+    }
   }
 }
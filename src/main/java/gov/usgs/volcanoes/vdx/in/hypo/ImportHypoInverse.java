@@ -13,7 +13,9 @@ import gov.usgs.volcanoes.vdx.data.SQLDataSourceDescriptor;
 import gov.usgs.volcanoes.vdx.data.SQLDataSourceHandler;
 import gov.usgs.volcanoes.vdx.data.hypo.Hypocenter;
 import gov.usgs.volcanoes.vdx.data.hypo.SQLHypocenterDataSource;
+import gov.usgs.volcanoes.vdx.in.ImportDriver;
 import gov.usgs.volcanoes.vdx.in.Importer;
+import gov.usgs.volcanoes.vdx.in.TableWriter;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -229,7 +231,6 @@ public class ImportHypoInverse implements Importer {
   public void process(String filename) {
 
     // initialize variables local to this method
-    int result;
     double j2ksec;
     double lat;
     double lon;
@@ -406,10 +407,14 @@ public class ImportHypoInverse implements Importer {
           magtype = null;
         }
 
-        Hypocenter hc = new Hypocenter(j2ksec, eid, rid, lat, lon, depth, prefmag, ampmag, codamag,
-            nphases, azgap, dmin, rms, nstimes, herr, verr, magtype, rmk);
-        result = sqlDataSource.insertHypocenter(hc);
-        LOGGER.info("{}:{}", result, hc.toString());
+        final Hypocenter hc = new Hypocenter(j2ksec, eid, rid, lat, lon, depth, prefmag, ampmag,
+            codamag, nphases, azgap, dmin, rms, nstimes, herr, verr, magtype, rmk);
+        TableWriter.write(sqlDataSource, "hypocenters", 1, line.length(), new Runnable() {
+          public void run() {
+            int result = sqlDataSource.insertHypocenter(hc);
+            LOGGER.info("{}:{}", result, hc.toString());
+          }
+        });
 
         // move to the next line in the file
         line = rr.nextLine();
@@ -432,12 +437,13 @@ public class ImportHypoInverse implements Importer {
     if (message == null) {
       System.err.println(message);
     }
-    System.err.println(importerClass + " -c configfile filelist");
+    System.err.println(importerClass + " -c configfile [-t threads] filelist");
+    System.err.println(ImportDriver.THREADS_HELP);
   }
 
   /**
    * Main method. Command line syntax: -h, --help print help message -c config file name -v verbose
-   * mode files ...
+   * mode -t threads files ...
    *
    * @param as command line args
    */
@@ -445,6 +451,7 @@ public class ImportHypoInverse implements Importer {
 
     ImportHypoInverse importer = new ImportHypoInverse();
 
+    keys.add("-t");
     Arguments args = new Arguments(as, flags, keys);
 
     if (args.flagged("-h")) {
@@ -457,13 +464,16 @@ public class ImportHypoInverse implements Importer {
       System.exit(-1);
     }
 
+    ImportDriver driver = new ImportDriver(ImportDriver.getThreads(args.get("-t")), 0);
+
     importer.initialize(importer.getClass().getName(), args.get("-c"), args.flagged("-v"));
 
     List<String> files = args.unused();
-    for (String file : files) {
-      importer.process(file);
-    }
+    driver.process(importer, importer.getClass().getName(), args.get("-c"), args.flagged("-v"),
+        files);
 
-    importer.deinitialize();
+    for (Importer i : driver.getImporters()) {
+      i.deinitialize();
+    }
   }
 }
@@ -25,10 +25,10 @@ import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.time.Time;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.vdx.Version;
-import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.SQLDataSourceDescriptor;
 import gov.usgs.volcanoes.vdx.data.SQLDataSourceHandler;
 import gov.usgs.volcanoes.vdx.data.rsam.SQLRsamDataSource;
+import gov.usgs.volcanoes.vdx.in.ChannelRegistry;
 import gov.usgs.volcanoes.winston.in.ew.ChannelStatus;
 import gov.usgs.volcanoes.winston.in.ew.Options;
 import gov.usgs.volcanoes.winston.in.ew.OptionsFilter;
@@ -43,11 +43,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -152,7 +150,7 @@ public class ImportEwRsam extends Thread {
   public SQLDataSourceDescriptor sqlDataSourceDescriptor;
 
   protected ImportGeneric importGeneric;
-  private final Set<String> existingChannels;
+  private ChannelRegistry channelRegistry;
   private final Map<String, ConcurrentLinkedQueue<TraceBuf>> channelTraceBufs;
 
   protected final Logger logger;
@@ -226,7 +224,6 @@ public class ImportEwRsam extends Thread {
     inputTimer = new CodeTimer("inputTimer", false);
     channelTraceBufs = new ConcurrentHashMap<String, ConcurrentLinkedQueue<TraceBuf>>(
         200, 0.75f, 1);
-    existingChannels = Collections.synchronizedSet(new HashSet<String>());
 
     logger = Log.getLogger("gov.usgs.volcanoes.vdx");
     logger.setLevel(Level.parse(DEFAULT_LOG_LEVEL));
@@ -369,6 +366,7 @@ public class ImportEwRsam extends Thread {
       System.exit(-1);
     }
     sqlDataSource = (SQLRsamDataSource) sqlDataSourceDescriptor.getSQLDataSource();
+    channelRegistry = ChannelRegistry.forDataSource(sqlDataSource);
   }
 
   protected void processDefaultOptions() {
@@ -564,16 +562,12 @@ public class ImportEwRsam extends Thread {
     // String code = tb.toWinstonString();
     String code = tb.station() + "$" + tb.channel() + "$" + tb.network();
 
-    if (!existingChannels.contains(code)
-        && sqlDataSource.defaultGetChannel(code, sqlDataSource.getChannelTypesFlag()) == null) {
+    if (channelRegistry.getChannel(code) == null) {
       logger.info("Creating new channel '" + code + "' in VDX database.");
-      Channel channel = new Channel(0, code, code, Double.NaN, Double.NaN, Double.NaN, 1);
-      sqlDataSource.defaultCreateChannel(channel, 1,
-          sqlDataSource.getChannelsFlag(), sqlDataSource.getTranslationsFlag(),
-          sqlDataSource.getRanksFlag(), sqlDataSource.getColumnsFlag());
-      sqlDataSource.create10MinAvgView(code);
+      if (channelRegistry.ensureChannel(code) != null) {
+        sqlDataSource.create10MinAvgView(code);
+      }
     }
-    existingChannels.add(code);
 
     ArrayList<TraceBuf> tbs = new ArrayList<TraceBuf>(q.size());
     while (!q.isEmpty()) {
@@ -592,8 +586,7 @@ public class ImportEwRsam extends Thread {
       dm.setQuick(0, 1, tb.samples()[0]);
       GenericDataMatrix gdm = new GenericDataMatrix(dm);
       gdm.setColumnNames(new String[]{"j2ksec", "rsam"});
-      sqlDataSource.defaultInsertData(code, gdm, sqlDataSource.getTranslationsFlag(),
-          sqlDataSource.getRanksFlag(), 0);
+      channelRegistry.insert(code, gdm, 0);
       logger.log(Level.FINE,
           code + " " + J2kSec.toDateString(tb.getStartTimeJ2K()) + " rsam:" + tb.samples()[0]);
       totalTraceBufsWritten++;
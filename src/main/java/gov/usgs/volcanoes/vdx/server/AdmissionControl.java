@@ -0,0 +1,364 @@
+package gov.usgs.volcanoes.vdx.server;
+
+import gov.usgs.volcanoes.core.util.StringUtils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Admission of getdata requests by estimated cost. Running requests share a global cost budget,
+ * each client address may run a limited number of requests at once and start a limited number per
+ * second, and requests that don't fit wait with the cheapest first, so a small interactive query
+ * overtakes a waiting bulk export. Requests that can't start within the maximum wait, or exceed
+ * their client's rate, are rejected with the number of seconds after which to retry.
+ *
+ * <p>The cost of a request is the number of channel days it reads, divided by how much it is
+ * downsampled and multiplied by a weight for the source type or the source's costWeight parameter.
+ * Requests other than data reads cost nothing but still count against the client limits.
+ *
+ * <p>A batch is admitted against the client limits once, as a whole; its requests are then
+ * admitted against the budget only.
+ *
+ * @author Tom Parker
+ */
+public class AdmissionControl {
+
+  private static final double DAY = 86400;
+  private static final int MAX_CLIENTS = 1024;
+  private static final Map<String, Double> TYPE_WEIGHTS = new HashMap<String, Double>();
+
+  static {
+    TYPE_WEIGHTS.put("hypocenters", 4.0);
+    TYPE_WEIGHTS.put("lightning", 4.0);
+    TYPE_WEIGHTS.put("gps", 0.1);
+  }
+
+  private static AdmissionControl instance = new AdmissionControl(0, 0, 0, 0);
+
+  private final double budget;
+  private final long maxWait;
+  private final int clientConcurrency;
+  private final double clientRate;
+
+  private final PriorityQueue<Ticket> waiting;
+  private final Map<String, Client> clients;
+  private double running;
+  private long sequence;
+  private long admitted;
+  private long queued;
+  private long rejected;
+
+  /**
+   * A request waiting for or holding admission.
+   */
+  public static class Ticket implements Comparable<Ticket> {
+    private final String client;
+    private final double cost;
+    private final long sequence;
+    private final boolean limited;
+
+    /**
+     * Constructor.
+     *
+     * @param client client address
+     * @param cost estimated cost
+     * @param sequence arrival order
+     * @param limited if the request counts against its client's limits
+     */
+    Ticket(String client, double cost, long sequence, boolean limited) {
+      this.client = client;
+      this.cost = cost;
+      this.sequence = sequence;
+      this.limited = limited;
+    }
+
+    /**
+     * Order by cost, then by arrival.
+     *
+     * @param o other ticket
+     * @return comparison
+     */
+    public int compareTo(Ticket o) {
+      int c = Double.compare(cost, o.cost);
+      return c != 0 ? c : Long.compare(sequence, o.sequence);
+    }
+  }
+
+  /**
+   * Running requests and rate tokens of one client address.
+   */
+  private static class Client {
+    private int running;
+    private int waiting;
+    private double tokens;
+    private long refilled;
+  }
+
+  /**
+   * Thrown when a request is not admitted.
+   */
+  public static class RejectedException extends Exception {
+    private static final long serialVersionUID = 1L;
+    private final int retryAfter;
+
+    /**
+     * Constructor.
+     *
+     * @param msg reason
+     * @param retryAfter seconds after which to retry
+     */
+    RejectedException(String msg, int retryAfter) {
+      super(msg);
+      this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Get the seconds after which to retry.
+     *
+     * @return seconds
+     */
+    public int getRetryAfter() {
+      return retryAfter;
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param budget total cost of requests running at once, 0 for no limit
+   * @param maxWait seconds a request may wait for admission
+   * @param clientConcurrency requests one client address may run at once, 0 for no limit
+   * @param clientRate requests one client address may start per second, 0 for no limit
+   */
+  public AdmissionControl(double budget, int maxWait, int clientConcurrency, double clientRate) {
+    this.budget = budget;
+    this.maxWait = maxWait * 1000L;
+    this.clientConcurrency = clientConcurrency;
+    this.clientRate = clientRate;
+    waiting = new PriorityQueue<Ticket>();
+    clients = new HashMap<String, Client>();
+  }
+
+  /**
+   * Get the admission control used by getdata.
+   *
+   * @return admission control
+   */
+  public static AdmissionControl getInstance() {
+    return instance;
+  }
+
+  /**
+   * Set the admission control used by getdata.
+   *
+   * @param ac admission control
+   */
+  public static void setInstance(AdmissionControl ac) {
+    instance = ac;
+  }
+
+  /**
+   * Estimate the cost of a request.
+   *
+   * @param params request parameters
+   * @param type type of the data source
+   * @param weight costWeight parameter of the source, null for the type's weight
+   * @return cost in weighted channel days
+   */
+  public static double estimate(Map<String, String> params, String type, String weight) {
+    String action = params.get("action");
+    if (action == null || !(action.equals("data") || action.equals("ratdata"))) {
+      return 0;
+    }
+    double st = StringUtils.stringToDouble(params.get("st"), Double.NaN);
+    double et = StringUtils.stringToDouble(params.get("et"), Double.NaN);
+    double days = Double.isNaN(st) || Double.isNaN(et) ? 1 : Math.max(0, et - st) / DAY;
+    String ch = params.get("ch");
+    int channels = ch == null ? 1 : ch.split(",").length;
+
+    // downsampling to one row per dsInt seconds reads as much but returns far less
+    String ds = params.get("ds");
+    int dsInt = StringUtils.stringToInt(params.get("dsInt"), 0);
+    double reduction = 1;
+    if (dsInt > 60 && (params.get("dsMethod") != null
+        || (ds != null && !ds.equalsIgnoreCase("none")))) {
+      reduction = Math.sqrt(dsInt / 60.0);
+    }
+
+    Double typeWeight = TYPE_WEIGHTS.get(type);
+    double w = StringUtils.stringToDouble(weight, typeWeight == null ? 1 : typeWeight);
+    return channels * days * w / reduction;
+  }
+
+  /**
+   * Wait for admission of a request. Every admitted ticket must be released.
+   *
+   * @param client client address
+   * @param cost estimated cost
+   * @return ticket
+   * @throws RejectedException if the client's rate is exceeded or the wait is too long
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public Ticket admit(String client, double cost) throws RejectedException,
+      InterruptedException {
+    return admit(client, cost, true);
+  }
+
+  /**
+   * Wait for admission of a request. Every admitted ticket must be released.
+   *
+   * @param client client address
+   * @param cost estimated cost
+   * @param limited false for a request of a batch that was admitted against the client limits
+   *        already, which then only waits for the budget
+   * @return ticket
+   * @throws RejectedException if the client's rate is exceeded or the wait is too long
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized Ticket admit(String client, double cost, boolean limited)
+      throws RejectedException, InterruptedException {
+    if (clients.size() >= MAX_CLIENTS) {
+      prune();
+    }
+    Client c = clients.get(client);
+    long now = System.currentTimeMillis();
+    if (c == null) {
+      c = new Client();
+      c.tokens = getBurst();
+      c.refilled = now;
+      clients.put(client, c);
+    }
+    if (limited && clientRate > 0) {
+      c.tokens = Math.min(getBurst(), c.tokens + (now - c.refilled) * clientRate / 1000);
+      c.refilled = now;
+      if (c.tokens < 1) {
+        rejected++;
+        throw new RejectedException("rate limit exceeded",
+            (int) Math.ceil((1 - c.tokens) / clientRate));
+      }
+      c.tokens--;
+    }
+
+    Ticket ticket =
+        new Ticket(client, budget > 0 ? Math.min(cost, budget) : cost, sequence++, limited);
+    waiting.add(ticket);
+    c.waiting++;
+    long deadline = now + maxWait;
+    boolean waited = false;
+    try {
+      while (!mayStart(ticket)) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          rejected++;
+          throw new RejectedException("server busy", (int) Math.max(1, maxWait / 1000));
+        }
+        waited = true;
+        wait(remaining);
+      }
+    } finally {
+      waiting.remove(ticket);
+      c.waiting--;
+      notifyAll();
+    }
+    if (waited) {
+      queued++;
+    }
+    admitted++;
+    running += ticket.cost;
+    if (limited) {
+      c.running++;
+    }
+    return ticket;
+  }
+
+  /**
+   * Check whether a waiting request may start: it fits the budget and its client's limit, and no
+   * cheaper request that its client's limit allows to start is waiting before it.
+   *
+   * @param ticket waiting ticket
+   * @return true if the request may start
+   */
+  private boolean mayStart(Ticket ticket) {
+    if (!clientAllows(ticket)) {
+      return false;
+    }
+    if (budget > 0 && running > 0 && running + ticket.cost > budget) {
+      return false;
+    }
+    Iterator<Ticket> it = waiting.iterator();
+    while (it.hasNext()) {
+      Ticket other = it.next();
+      if (other.compareTo(ticket) < 0 && clientAllows(other)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check whether the client of a request may start another one.
+   *
+   * @param ticket waiting ticket
+   * @return true if the request is not limited or its client is below its concurrency limit
+   */
+  private boolean clientAllows(Ticket ticket) {
+    Client c = clients.get(ticket.client);
+    return !ticket.limited || clientConcurrency <= 0 || c == null
+        || c.running < clientConcurrency;
+  }
+
+  /**
+   * Get the number of requests a client may start at once after being idle.
+   *
+   * @return rate tokens of an idle client
+   */
+  private double getBurst() {
+    return Math.max(1, clientRate);
+  }
+
+  /**
+   * Forget clients with nothing running or waiting whose rate tokens have been refilled, which
+   * are no different from new clients.
+   */
+  private void prune() {
+    long now = System.currentTimeMillis();
+    Iterator<Client> it = clients.values().iterator();
+    while (it.hasNext()) {
+      Client c = it.next();
+      if (c.running == 0 && c.waiting == 0
+          && c.tokens + (now - c.refilled) * clientRate / 1000 >= getBurst()) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Release an admitted request.
+   *
+   * @param ticket ticket returned by admit
+   */
+  public synchronized void release(Ticket ticket) {
+    running -= ticket.cost;
+    if (running < 1e-9) {
+      running = 0;
+    }
+    Client c = clients.get(ticket.client);
+    if (c != null && ticket.limited) {
+      c.running--;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Describe running and waiting requests.
+   *
+   * @return statistics
+   */
+  public synchronized String toString() {
+    return String.format("cost %.1f of %s running, %d waiting, %d admitted, %d queued, "
+        + "%d rejected", running, budget > 0 ? String.format("%.1f", budget) : "unlimited",
+        waiting.size(), admitted, queued, rejected);
+  }
+}
@@ -18,17 +18,17 @@ import org.apache.log4j.Level;
 public abstract class BaseCommand implements Command {
 
   protected NetTools netTools;
-  protected ServerHandler handler;
+  protected CommandContext handler;
 
   protected Map<String, String> inParams;
 
   /**
    * Constructor.
    *
-   * @param sh server handler
+   * @param sh server handler, or other context running the command
    * @param nt net tools
    */
-  public BaseCommand(ServerHandler sh, NetTools nt) {
+  public BaseCommand(CommandContext sh, NetTools nt) {
     handler = sh;
     netTools = nt;
   }
@@ -41,10 +41,21 @@ public abstract class BaseCommand implements Command {
    * @param channel socket channel
    */
   public void sendError(String msg, String cmd, SocketChannel channel) {
-    netTools.writeString("error: " + msg + "\n", channel);
+    netTools.writeString(errorPrefix() + msg + "\n", channel);
     handler.log(Level.DEBUG, String.format("[%s] error: %s", cmd, msg), channel);
   }
 
+  /**
+   * Get the start of an error line. Errors of requests sent with an id name the id, so clients
+   * that have several requests outstanding on one connection can tell which one failed.
+   *
+   * @return "error: " or "error: id=[id]; "
+   */
+  protected String errorPrefix() {
+    String id = inParams == null ? null : inParams.get("id");
+    return id == null ? "error: " : "error: id=" + id + "; ";
+  }
+
   /**
    * Parse command and comstruct parameters map.
    *
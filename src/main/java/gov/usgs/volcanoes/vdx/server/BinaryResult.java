@@ -1,8 +1,8 @@
 package gov.usgs.volcanoes.vdx.server;
 
-import gov.usgs.volcanoes.core.Zip;
 import gov.usgs.volcanoes.core.data.BinaryDataSet;
 import gov.usgs.volcanoes.core.legacy.net.NetTools;
+import gov.usgs.volcanoes.vdx.Compression;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
@@ -14,6 +14,8 @@ import java.nio.channels.SocketChannel;
  */
 public class BinaryResult extends RequestResult {
 
+  private static int compressionThreshold = 1024;
+
   protected BinaryDataSet data;
 
   private transient ByteBuffer compressedBytes;
@@ -28,6 +30,15 @@ public class BinaryResult extends RequestResult {
     data = d;
   }
 
+  /**
+   * Set size below which results are sent uncompressed to clients that accept it.
+   *
+   * @param bytes threshold in bytes
+   */
+  public static void setCompressionThreshold(int bytes) {
+    compressionThreshold = bytes;
+  }
+
   /**
    * Yield the data.
    *
@@ -41,10 +52,13 @@ public class BinaryResult extends RequestResult {
    * Get result ready for writing.
    */
   public void prepare() {
-    ByteBuffer buffer = data.toBinary();
-    byte[] cb = Zip.compress(buffer.array(), 1);
-    compressedBytes = ByteBuffer.wrap(cb);
+    byte[] raw = data.toBinary().array();
+    Compression compression = Compression.negotiate(codecs, raw.length, compressionThreshold);
+    compressedBytes = ByteBuffer.wrap(compression.compress(raw, 0, raw.length));
     set("bytes", Integer.toString(compressedBytes.limit()));
+    if (codecs != null) {
+      set("codec", compression.toString());
+    }
   }
 
   /**
@@ -0,0 +1,71 @@
+package gov.usgs.volcanoes.vdx.server;
+
+import gov.usgs.volcanoes.core.legacy.net.NetTools;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Net tools that collect everything written into memory instead of writing to the channel. A
+ * multiplexed connection has several commands running at once, so each builds its complete
+ * response here and the selector thread writes the responses one after another.
+ *
+ * @author Tom Parker
+ */
+public class BufferingNetTools extends NetTools {
+
+  private final ByteArrayOutputStream out;
+
+  /**
+   * Constructor.
+   */
+  public BufferingNetTools() {
+    out = new ByteArrayOutputStream();
+  }
+
+  /**
+   * Append a string.
+   *
+   * @param s string to write
+   * @param channel ignored
+   * @return number of bytes written
+   */
+  @Override
+  public int writeString(String s, SocketChannel channel) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.write(bytes, 0, bytes.length);
+    return bytes.length;
+  }
+
+  /**
+   * Append the remaining bytes of a buffer.
+   *
+   * @param bb buffer to write
+   * @param channel ignored
+   * @return number of bytes written
+   */
+  @Override
+  public int writeByteBuffer(ByteBuffer bb, SocketChannel channel) {
+    int length = bb.remaining();
+    if (bb.hasArray()) {
+      out.write(bb.array(), bb.arrayOffset() + bb.position(), length);
+      bb.position(bb.limit());
+    } else {
+      byte[] bytes = new byte[length];
+      bb.get(bytes);
+      out.write(bytes, 0, length);
+    }
+    return length;
+  }
+
+  /**
+   * Get everything written so far.
+   *
+   * @return buffer ready to be written
+   */
+  public ByteBuffer toByteBuffer() {
+    return ByteBuffer.wrap(out.toByteArray());
+  }
+}
@@ -0,0 +1,340 @@
+package gov.usgs.volcanoes.vdx.server;
+
+import gov.usgs.volcanoes.vdx.data.DataSource;
+import gov.usgs.volcanoes.vdx.data.DataSourceDescriptor;
+import gov.usgs.volcanoes.vdx.data.DataSourceHandler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Precomputed answers to the requests clients make to build their menus: the menu itself and the
+ * lists of channels, ranks, columns, azimuths and supplemental data types of each source. They are
+ * built when the server starts, rebuilt in the background and when data sources are reloaded, and
+ * served from memory without touching a data source.
+ *
+ * <p>The catalog has a version that changes whenever a rebuild finds different content. Clients
+ * that send the version they hold get an empty unchanged=true answer while it is current.
+ *
+ * @author Tom Parker
+ */
+public class Catalog {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Catalog.class);
+  private static final String[] LISTS =
+      {"channels", "channelTypes", "ranks", "columns", "azimuths", "supptypes"};
+  private static final Set<String> PLAIN_PARAMS =
+      new HashSet<String>(Arrays.asList("source", "action", "id", "codecs", "stream", "version"));
+
+  private static volatile Catalog instance;
+
+  private final DataSourceHandler dataSourceHandler;
+  private final Object refreshLock;
+  private volatile Snapshot snapshot;
+  private ScheduledExecutorService refresher;
+
+  /**
+   * Catalog content at one version.
+   */
+  private static class Snapshot {
+    private final long version;
+    private final Map<String, String> menuLines;
+    private final Map<String, List<String>> lists;
+    private final Map<String, String> types;
+    private final ByteBuffer menu;
+    private final SharedResult menuResult;
+    private final Map<String, SharedResult> results;
+
+    /**
+     * Constructor. Encodes the menu and lists.
+     *
+     * @param version version
+     * @param menuLines menu line of each source, in configuration order
+     * @param lists lines of each source|action list
+     * @param types type of each source
+     */
+    Snapshot(long version, Map<String, String> menuLines, Map<String, List<String>> lists,
+        Map<String, String> types) {
+      this.version = version;
+      this.menuLines = menuLines;
+      this.lists = lists;
+      this.types = types;
+      StringBuilder sb = new StringBuilder();
+      for (String line : menuLines.values()) {
+        sb.append(line).append('\n');
+      }
+      menu = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+      TextResult menuText = new TextResult(new ArrayList<String>(menuLines.values()));
+      menuText.set("version", Long.toString(version));
+      menuText.prepare();
+      menuResult = SharedResult.of(menuText);
+      results = new HashMap<String, SharedResult>();
+      for (Map.Entry<String, List<String>> e : lists.entrySet()) {
+        TextResult result = new TextResult(e.getValue());
+        result.set("type", types.get(e.getKey().substring(0, e.getKey().indexOf('|'))));
+        result.set("version", Long.toString(version));
+        result.prepare();
+        results.put(e.getKey(), SharedResult.of(result));
+      }
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param dsh data sources to describe
+   */
+  public Catalog(DataSourceHandler dsh) {
+    dataSourceHandler = dsh;
+    refreshLock = new Object();
+  }
+
+  /**
+   * Get the catalog of the running server.
+   *
+   * @return catalog, or null if none was set
+   */
+  public static Catalog getInstance() {
+    return instance;
+  }
+
+  /**
+   * Set the catalog of the running server.
+   *
+   * @param catalog catalog
+   */
+  public static void setInstance(Catalog catalog) {
+    instance = catalog;
+  }
+
+  /**
+   * Build the catalog now and rebuild it in the background.
+   *
+   * @param interval seconds between rebuilds, 0 to rebuild only on reload
+   */
+  public void start(int interval) {
+    refresh();
+    if (interval <= 0) {
+      return;
+    }
+    refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "VDX/Catalog");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    refresher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          refresh();
+        } catch (Exception e) {
+          LOGGER.error("Catalog.refresh() failed.", e);
+        }
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stop rebuilding in the background.
+   */
+  public void stop() {
+    if (refresher != null) {
+      refresher.shutdownNow();
+    }
+  }
+
+  /**
+   * Rebuild the menu and lists from the data sources. A source that is unavailable keeps what was
+   * last read from it.
+   */
+  public void refresh() {
+    synchronized (refreshLock) {
+      Snapshot old = snapshot;
+      Map<String, String> menuLines = new LinkedHashMap<String, String>();
+      Map<String, List<String>> lists = new HashMap<String, List<String>>();
+      Map<String, String> types = new HashMap<String, String>();
+      for (DataSourceDescriptor dsd : dataSourceHandler.getDataSources()) {
+        String name = dsd.getName();
+        DataSource ds = dsd.getDataSource();
+        if (ds == null) {
+          if (old != null && old.menuLines.containsKey(name)) {
+            menuLines.put(name, old.menuLines.get(name));
+            types.put(name, old.types.get(name));
+            for (String action : LISTS) {
+              List<String> lines = old.lists.get(name + "|" + action);
+              if (lines != null) {
+                lists.put(name + "|" + action, lines);
+              }
+            }
+          }
+          continue;
+        }
+        try {
+          String type = ds.getType();
+          types.put(name, type);
+          menuLines.put(name, "source=" + dsd.getClassName() + "; description="
+              + dsd.getDescription() + "; type=" + type + ";");
+          for (String action : LISTS) {
+            String key = name + "|" + action;
+            List<String> lines;
+            try {
+              lines = readList(ds, name, action);
+            } catch (RuntimeException e) {
+              LOGGER.warn("Catalog.refresh() failed. ({}_{})", name, action, e);
+              lines = old == null ? null : old.lists.get(key);
+            }
+            if (lines != null) {
+              lists.put(key, lines);
+            }
+          }
+        } finally {
+          dsd.putDataSource();
+        }
+      }
+
+      if (old != null && old.menuLines.equals(menuLines) && old.lists.equals(lists)
+          && old.types.equals(types)) {
+        return;
+      }
+      long version = old == null ? System.currentTimeMillis() / 1000 : old.version + 1;
+      snapshot = new Snapshot(version, menuLines, lists, types);
+      LOGGER.info("catalog: version {}, {} sources, {} lists", version, menuLines.size(),
+          lists.size());
+    }
+  }
+
+  /**
+   * Read one list from a data source.
+   *
+   * @param ds data source
+   * @param name source name
+   * @param action list action
+   * @return lines, or null if the source has no such list
+   */
+  private static List<String> readList(DataSource ds, String name, String action) {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("source", name);
+    params.put("action", action);
+    RequestResult result = ds.getData(params);
+    if (result instanceof TextResult && !result.error) {
+      return Collections.unmodifiableList(
+          new ArrayList<String>(((TextResult) result).getStrings()));
+    }
+    return null;
+  }
+
+  /**
+   * Get the current snapshot, building it if the catalog wasn't started.
+   *
+   * @return snapshot
+   */
+  private Snapshot getSnapshot() {
+    Snapshot s = snapshot;
+    if (s == null) {
+      refresh();
+      s = snapshot;
+    }
+    return s;
+  }
+
+  /**
+   * Get the current version.
+   *
+   * @return version
+   */
+  public long getVersion() {
+    return getSnapshot().version;
+  }
+
+  /**
+   * Get the menu, one line per source, as sent to clients that don't ask for a version.
+   *
+   * @return encoded menu, to be duplicated before writing
+   */
+  public ByteBuffer getMenu() {
+    return getSnapshot().menu;
+  }
+
+  /**
+   * Get the menu with a header carrying the version and number of lines.
+   *
+   * @param version version the client holds, may be null
+   * @return menu, or an empty result with unchanged=true if the client's version is current
+   */
+  public RequestResult getMenu(String version) {
+    Snapshot s = getSnapshot();
+    if (Long.toString(s.version).equals(version)) {
+      return unchanged(s, null);
+    }
+    return s.menuResult.copy();
+  }
+
+  /**
+   * Get the precomputed answer to a getdata request for a list.
+   *
+   * @param params request parameters
+   * @return result with type and version set, or null if the request is not for a known list
+   */
+  public RequestResult getList(Map<String, String> params) {
+    if (!PLAIN_PARAMS.containsAll(params.keySet())) {
+      return null;
+    }
+    Snapshot s = getSnapshot();
+    String key = params.get("source") + "|" + params.get("action");
+    SharedResult result = s.results.get(key);
+    if (result == null) {
+      return null;
+    }
+    if (Long.toString(s.version).equals(params.get("version"))) {
+      return unchanged(s, result.getParameters().get("type"));
+    }
+    return result.copy();
+  }
+
+  /**
+   * Create the answer to a client that holds the current version.
+   *
+   * @param s current snapshot
+   * @param type result type, may be null
+   * @return empty result with unchanged=true
+   */
+  private static RequestResult unchanged(Snapshot s, String type) {
+    TextResult unchanged = new TextResult(new ArrayList<String>());
+    if (type != null) {
+      unchanged.set("type", type);
+    }
+    unchanged.set("version", Long.toString(s.version));
+    unchanged.set("unchanged", "true");
+    unchanged.prepare();
+    return unchanged;
+  }
+
+  /**
+   * Describe the catalog.
+   *
+   * @return version and size
+   */
+  public String toString() {
+    Snapshot s = snapshot;
+    return s == null ? "not built"
+        : "version " + s.version + ", " + s.menuLines.size() + " sources, " + s.lists.size()
+            + " lists";
+  }
+}
@@ -0,0 +1,59 @@
+package gov.usgs.volcanoes.vdx.server;
+
+import gov.usgs.volcanoes.vdx.data.DataSourceHandler;
+import gov.usgs.volcanoes.vdx.db.QueryGuard;
+
+import java.nio.channels.SocketChannel;
+
+import org.apache.log4j.Level;
+
+/**
+ * What a command needs from whatever runs it: a handler thread of the classic server, or the
+ * non-blocking server.
+ *
+ * @author Tom Parker
+ */
+public interface CommandContext {
+
+  /**
+   * Yield data source handler.
+   *
+   * @return data source handler shared by the server
+   */
+  DataSourceHandler getDataSourceHandler();
+
+  /**
+   * Write log message.
+   *
+   * @param level level of message
+   * @param msg message text
+   * @param channel channel the message is about
+   */
+  void log(Level level, String msg, SocketChannel channel);
+
+  /**
+   * Get a check whether the client of a channel has gone away, used to cancel its queries. Called
+   * while a command is between reading its request and writing its result.
+   *
+   * @param channel client channel
+   * @return client check, or null if it can't be checked
+   */
+  QueryGuard.Probe getProbe(SocketChannel channel);
+
+  /**
+   * Wait for a slot of the concurrency limit of a data source, for queries a command runs apart
+   * from its own, e.g. the requests of a batch. Every slot taken must be given back with
+   * {@link #leaveSource(String)}.
+   *
+   * @param source data source name
+   * @throws InterruptedException if interrupted while waiting; no slot is taken then
+   */
+  void enterSource(String source) throws InterruptedException;
+
+  /**
+   * Give back a slot taken with {@link #enterSource(String)}.
+   *
+   * @param source data source name
+   */
+  void leaveSource(String source);
+}
@@ -1,16 +1,31 @@
 package gov.usgs.volcanoes.vdx.server;
 
 import gov.usgs.volcanoes.core.CodeTimer;
+import gov.usgs.volcanoes.core.data.GenericDataMatrix;
 import gov.usgs.volcanoes.core.legacy.net.NetTools;
+import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.vdx.ExportConfig;
 import gov.usgs.volcanoes.vdx.data.DataSource;
 import gov.usgs.volcanoes.vdx.data.DataSourceDescriptor;
 import gov.usgs.volcanoes.vdx.data.DataSourceHandler;
+import gov.usgs.volcanoes.vdx.db.QueryGuard;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Level;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Comand to retrieve data. Contains 'source' parameter do determine data source, and parameters set
@@ -20,16 +35,129 @@ import org.apache.log4j.Level;
  */
 public class GetDataCommand extends BaseCommand {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(GetDataCommand.class);
+  private static final int BATCH_THREADS = 8;
+
+  private static final Map<String, Flight> flights = new HashMap<String, Flight>();
+  private static final AtomicLong executed = new AtomicLong();
+  private static final AtomicLong coalesced = new AtomicLong();
+  private static boolean coalescing = true;
+  private static int queryTimeout;
+  private static int batchThreads = 16;
+  private static ExecutorService batchExecutor;
+
+  private boolean batchItem;
+
+  /**
+   * One execution of a data request, shared by identical requests that arrive while it runs.
+   */
+  private static class Flight {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile SharedResult result;
+    private volatile String resultType;
+    private volatile boolean shared;
+    private volatile String error;
+
+    /**
+     * Hand the result to the waiting requests.
+     *
+     * @param r prepared result, null if there was no data
+     * @param type result type
+     */
+    void share(SharedResult r, String type) {
+      result = r;
+      resultType = type;
+      shared = true;
+      done.countDown();
+    }
+
+    /**
+     * Hand an error to the waiting requests.
+     *
+     * @param message error message
+     */
+    void fail(String message) {
+      error = message;
+      shared = true;
+      done.countDown();
+    }
+
+    /**
+     * Release the waiting requests; if nothing was shared they run on their own.
+     */
+    void finish() {
+      done.countDown();
+    }
+  }
+
   /**
    * Constructor.
    *
-   * @param sh server handler
+   * @param sh server handler, or other context running the command
    * @param nt net tools
    */
-  public GetDataCommand(ServerHandler sh, NetTools nt) {
+  public GetDataCommand(CommandContext sh, NetTools nt) {
     super(sh, nt);
   }
 
+  /**
+   * Turn sharing of identical concurrent requests on or off.
+   *
+   * @param enable true to share
+   */
+  public static void setCoalescing(boolean enable) {
+    coalescing = enable;
+  }
+
+  /**
+   * Set the time data requests may run before their queries are cancelled, unless their source
+   * sets queryTimeout.
+   *
+   * @param seconds timeout, 0 for no limit
+   */
+  public static void setQueryTimeout(int seconds) {
+    queryTimeout = seconds;
+  }
+
+  /**
+   * Set the number of threads that run the requests of batches, shared by all batches. Takes
+   * effect when the first batch arrives.
+   *
+   * @param threads number of threads
+   */
+  public static synchronized void setBatchThreads(int threads) {
+    batchThreads = threads;
+  }
+
+  /**
+   * Get the pool of threads that run the requests of batches, creating it on first use. Requests
+   * beyond its size wait in its queue.
+   *
+   * @return executor
+   */
+  private static synchronized ExecutorService getBatchExecutor() {
+    if (batchExecutor == null) {
+      final AtomicInteger count = new AtomicInteger();
+      batchExecutor = Executors.newFixedThreadPool(batchThreads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "VDX/Batch-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return batchExecutor;
+  }
+
+  /**
+   * Describe how many data requests were executed and how many shared another's execution.
+   *
+   * @return statistics
+   */
+  public static String getStatistics() {
+    return executed.get() + " executed, " + coalesced.get() + " coalesced";
+  }
+
   /**
    * Perform command actions, write result to channel.
    *
@@ -44,44 +172,485 @@ public class GetDataCommand extends BaseCommand {
       sendError("source not specified", "getdata", channel);
       return;
     }
+    if (inParams.get("batch") != null) {
+      doBatch((String) info, channel, ct);
+      return;
+    }
     DataSourceHandler dsh = handler.getDataSourceHandler();
     String resultType;
-    RequestResult result;
+    RequestResult result = null;
     String action = inParams.get("action");
     if (action != null && action.equals("exportinfo")) {
-      ExportConfig ec = dsh.getExportConfig(source);
       resultType = action;
-      if (ec == null || !ec.isClosed()) {
-        int ncl = Integer.parseInt(inParams.get("numCommentLines"));
-        ArrayList<String> args = new ArrayList<String>(ncl + 4);
-        args.add(inParams.get("exportable"));
-        args.add(inParams.get("width.0"));
-        args.add(inParams.get("width.1"));
-        //args.add( ""+ncl );
-        for (int i = 1; i <= ncl; i++) {
-          args.add(inParams.get("cmt." + i));
+      // export configs are shared by all handlers
+      synchronized (dsh) {
+        ExportConfig ec = dsh.getExportConfig(source);
+        if (ec == null || !ec.isClosed()) {
+          int ncl = Integer.parseInt(inParams.get("numCommentLines"));
+          ArrayList<String> args = new ArrayList<String>(ncl + 4);
+          args.add(inParams.get("exportable"));
+          args.add(inParams.get("width.0"));
+          args.add(inParams.get("width.1"));
+          //args.add( ""+ncl );
+          for (int i = 1; i <= ncl; i++) {
+            args.add(inParams.get("cmt." + i));
+          }
+          ExportConfig newEc = new ExportConfig(args);
+          if (ec == null) {
+            ec = newEc;
+            dsh.putExportConfig(source, ec);
+          } else {
+            ec.underride(newEc);
+          }
+          ec.setClosed();
         }
-        ExportConfig newEc = new ExportConfig(args);
-        if (ec == null) {
-          ec = newEc;
-          dsh.putExportConfig(source, ec);
-        } else {
-          ec.underride(newEc);
-        }
-        ec.setClosed();
+        result = new TextResult(ec.toStringList());
       }
-      result = new TextResult(ec.toStringList());
+      writeResult(result, resultType, (String) info, channel, ct);
     } else {
+      if (inParams.get("since") != null && !applySince(channel)) {
+        return;
+      }
       DataSourceDescriptor dsd = dsh.getDataSourceDescriptor(inParams.get("source"));
-      DataSource ds = dsd.getDataSource();
+      if (dsd == null) {
+        sendError("unknown source", "getdata", channel);
+        return;
+      }
+
+      // menu lists are answered from memory
+      Catalog catalog = Catalog.getInstance();
+      RequestResult listed = catalog == null ? null : catalog.getList(inParams);
+      if (listed != null) {
+        writeResult(listed, listed.getParameters().get("type"), (String) info, channel, ct);
+        return;
+      }
+      if (!coalescing) {
+        getData(dsd, null, (String) info, channel, ct);
+        return;
+      }
+
+      // identical requests arriving while one runs wait for its result instead of running again
+      String key = getFlightKey();
+      Flight flight;
+      boolean leader = false;
+      synchronized (flights) {
+        flight = flights.get(key);
+        if (flight == null) {
+          flight = new Flight();
+          flights.put(key, flight);
+          leader = true;
+        }
+      }
+      if (leader) {
+        try {
+          getData(dsd, flight, (String) info, channel, ct);
+        } finally {
+          synchronized (flights) {
+            flights.remove(key);
+          }
+          flight.finish();
+        }
+        return;
+      }
+      try {
+        flight.done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        sendError("interrupted", "getdata", channel);
+        return;
+      }
+      if (flight.shared && flight.error != null) {
+        coalesced.incrementAndGet();
+        sendError(flight.error, "getdata", channel);
+      } else if (flight.shared) {
+        coalesced.incrementAndGet();
+        writeResult(flight.result == null ? null : flight.result.copy(), flight.resultType,
+            (String) info, channel, ct);
+      } else {
+        getData(dsd, null, (String) info, channel, ct);
+      }
+    }
+  }
+
+  /**
+   * Get the key under which identical requests are coalesced: the parameters in name order,
+   * without those that don't change the result.
+   *
+   * @return key
+   */
+  private String getFlightKey() {
+    Map<String, String> params = new TreeMap<String, String>(inParams);
+    params.remove("id");
+    params.remove("stream");
+    return params.toString();
+  }
+
+  /**
+   * Query the data source and write the result.
+   *
+   * @param dsd data source descriptor
+   * @param flight execution to share a non-streaming result with, may be null
+   * @param info params
+   * @param channel where to write to
+   * @param ct timer started when the command was received
+   */
+  private void getData(DataSourceDescriptor dsd, Flight flight, String info,
+      SocketChannel channel, CodeTimer ct) {
+    DataSource ds = dsd.getDataSource();
+    if (ds == null) {
+      sendError("source unavailable", "getdata", channel);
+      return;
+    }
+    RequestResult result = null;
+    int timeout = queryTimeout;
+    String weight = null;
+    if (dsd.getParams() != null) {
+      timeout = StringUtils.stringToInt(dsd.getParams().getString("queryTimeout"), timeout);
+      weight = dsd.getParams().getString("costWeight");
+    }
+
+    AdmissionControl admission = AdmissionControl.getInstance();
+    AdmissionControl.Ticket ticket;
+    try {
+      ticket = admission.admit(getClientAddress(channel),
+          AdmissionControl.estimate(inParams, ds.getType(), weight), !batchItem);
+    } catch (AdmissionControl.RejectedException e) {
 
-      result = ds.getData(inParams);
+      // the limit may be this client's alone, so the waiting requests try on their own
+      sendError("busy: retry-after=" + e.getRetryAfter() + "; " + e.getMessage(), "getdata",
+          channel);
+      dsd.putDataSource();
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      sendError("interrupted", "getdata", channel);
       dsd.putDataSource();
-      resultType = ds.getType();
+      return;
     }
+
+    // batch items must not probe the channel, their batch writes to it meanwhile
+    QueryGuard guard = QueryGuard.begin(timeout * 1000L,
+        batchItem ? null : handler.getProbe(channel));
+    try {
+      executed.incrementAndGet();
+      try {
+        result = ds.getData(inParams);
+      } catch (RuntimeException e) {
+
+        // a cancelled query may fail anywhere in the data source
+        if (guard.getState() == QueryGuard.RUNNING) {
+          throw e;
+        }
+      } finally {
+
+        // a streaming result runs its query while it is written, so the timeout stays in force
+        // until it is closed; the client is written to meanwhile, so it isn't probed
+        if (result instanceof StreamingResult) {
+          guard.detachProbe();
+        } else {
+          guard.end();
+        }
+      }
+      if (guard.getState() == QueryGuard.TIMED_OUT) {
+        String message = "timeout: query ran longer than " + timeout + " s";
+        if (flight != null) {
+          flight.fail(message);
+        }
+        sendError(message, "getdata", channel);
+        return;
+      } else if (guard.getState() == QueryGuard.DISCONNECTED) {
+        handler.log(Level.DEBUG, "[getdata] client gone, query cancelled", channel);
+        return;
+      }
+      String resultType = ds.getType();
+      if (flight != null && !(result instanceof StreamingResult)) {
+        SharedResult shared = null;
+        if (result != null) {
+          prepareResult(result, resultType);
+          shared = SharedResult.of(result);
+        }
+        flight.share(shared, resultType);
+        result = shared == null ? null : shared.copy();
+      }
+
+      // a streaming result reads from the data source while it is written, so the data source
+      // is not returned until then
+      writeResult(result, resultType, info, channel, ct);
+    } finally {
+      if (result instanceof StreamingResult) {
+        ((StreamingResult) result).close();
+      }
+      guard.end();
+      admission.release(ticket);
+      dsd.putDataSource();
+    }
+  }
+
+  /**
+   * Get the address of the client, which admission control limits as one client.
+   *
+   * @param channel client channel, may be null
+   * @return client address
+   */
+  private static String getClientAddress(SocketChannel channel) {
+    if (channel == null || channel.socket().getInetAddress() == null) {
+      return "unknown";
+    }
+    return channel.socket().getInetAddress().getHostAddress();
+  }
+
+  /**
+   * Run a batch of requests concurrently and write their results in order. The batch parameter
+   * names the parameters that differ between requests, each a comma separated list with one value
+   * per request or a single value for all. E.g. batch=ch;ch=1,2,3 reads three channels of one
+   * source, batch=source,ch;source=a,b;ch=4,7 one channel of each of two sources.
+   *
+   * <p>The response is an ok line with type=batch and the number of results, followed by each
+   * result exactly as a single getdata command would have written it.
+   *
+   * @param info params
+   * @param channel where to write to
+   * @param ct timer started when the command was received
+   */
+  private void doBatch(String info, final SocketChannel channel, CodeTimer ct) {
+    String[] keys = inParams.get("batch").split(",");
+    String[][] values = new String[keys.length][];
+    int count = 1;
+    for (int k = 0; k < keys.length; k++) {
+      String value = inParams.get(keys[k]);
+      if (value == null) {
+        sendError("batch parameter " + keys[k] + " not specified", "getdata", channel);
+        return;
+      }
+      values[k] = value.split(",");
+      if (values[k].length > 1) {
+        if (count > 1 && values[k].length != count) {
+          sendError("batch parameters differ in length", "getdata", channel);
+          return;
+        }
+        count = values[k].length;
+      }
+    }
+
+    final String[] commands = new String[count];
+    final String[] sources = new String[count];
+    for (int i = 0; i < count; i++) {
+      Map<String, String> params = new HashMap<String, String>(inParams);
+      params.remove("batch");
+      params.remove("id");
+      params.remove("stream");
+      for (int k = 0; k < keys.length; k++) {
+        params.put(keys[k], values[k].length == 1 ? values[k][0] : values[k][i]);
+      }
+      commands[i] = "getdata: " + StringUtils.mapToString(params);
+      sources[i] = params.get("source");
+    }
+
+    // the batch counts once against the client's limits, its requests only against the budget
+    AdmissionControl admission = AdmissionControl.getInstance();
+    AdmissionControl.Ticket ticket;
+    try {
+      ticket = admission.admit(getClientAddress(channel), 0);
+    } catch (AdmissionControl.RejectedException e) {
+      sendError("busy: retry-after=" + e.getRetryAfter() + "; " + e.getMessage(), "getdata",
+          channel);
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      sendError("interrupted", "getdata", channel);
+      return;
+    }
+    try {
+      runBatch(commands, sources, info, channel, ct);
+    } finally {
+      admission.release(ticket);
+    }
+  }
+
+  /**
+   * Run the requests of a batch and write their results in order.
+   *
+   * @param commands full command line of each request
+   * @param sources data source of each request, null where not specified
+   * @param info params of the batch
+   * @param channel where to write to
+   * @param ct timer started when the command was received
+   */
+  private void runBatch(final String[] commands, final String[] sources, String info,
+      final SocketChannel channel, CodeTimer ct) {
+    int count = commands.length;
+
+    // a few workers take requests in order, so results near the front complete first. Each
+    // request waits for a slot of its source like a single getdata command would
+    final ByteBuffer[] results = new ByteBuffer[count];
+    final CountDownLatch[] done = new CountDownLatch[count];
+    for (int i = 0; i < count; i++) {
+      done[i] = new CountDownLatch(1);
+    }
+    final AtomicInteger next = new AtomicInteger();
+    ExecutorService executor = getBatchExecutor();
+    for (int w = 0; w < Math.min(count, BATCH_THREADS); w++) {
+      executor.execute(new Runnable() {
+        public void run() {
+          int i;
+          while ((i = next.getAndIncrement()) < commands.length) {
+            BufferingNetTools nt = new BufferingNetTools();
+            try {
+              runItem(commands[i], sources[i], nt, channel);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              nt.writeString("error: interrupted\n", channel);
+            } catch (Exception e) {
+              LOGGER.error("GetDataCommand.doBatch() failed. ({})", commands[i], e);
+              nt = new BufferingNetTools();
+              nt.writeString("error: " + e.getMessage() + "\n", channel);
+            }
+            results[i] = nt.toByteBuffer();
+            done[i].countDown();
+          }
+        }
+      });
+    }
+
+    Map<String, String> header = new HashMap<String, String>();
+    header.put("type", "batch");
+    header.put("count", Integer.toString(count));
+    if (inParams.get("id") != null) {
+      header.put("id", inParams.get("id"));
+    }
+    netTools.writeString("ok: " + StringUtils.mapToString(header) + "\n", channel);
+    try {
+      for (int i = 0; i < count; i++) {
+        done[i].await();
+        netTools.writeByteBuffer(results[i], channel);
+        results[i] = null;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      next.set(count);
+      return;
+    }
+    ct.stop();
+    handler.log(Level.DEBUG,
+        String.format("batch of %d (%1.2f ms): [%s]", count, ct.getRunTimeMillis(), info),
+        channel);
+  }
+
+  /**
+   * Run one request of a batch within a slot of its source.
+   *
+   * @param command full command line
+   * @param source data source name, null if not specified
+   * @param nt where the result is collected
+   * @param channel client channel
+   * @throws InterruptedException if interrupted while waiting for a slot
+   */
+  private void runItem(String command, String source, NetTools nt, SocketChannel channel)
+      throws InterruptedException {
+    GetDataCommand item = new GetDataCommand(handler, nt);
+    item.batchItem = true;
+    if (source == null) {
+      item.doCommand(command, channel);
+      return;
+    }
+    handler.enterSource(source);
+    try {
+      item.doCommand(command, channel);
+    } finally {
+      handler.leaveSource(source);
+    }
+  }
+
+  /**
+   * Limit the request to rows after the since cursor, by moving the start time up to just after
+   * it. Such requests are small, so they are never streamed.
+   *
+   * @param channel where to write an error to
+   * @return false if the cursor is invalid and an error was sent
+   */
+  protected boolean applySince(SocketChannel channel) {
+    double since;
+    try {
+      since = Double.parseDouble(inParams.get("since"));
+    } catch (NumberFormatException e) {
+      sendError("invalid since", "getdata", channel);
+      return false;
+    }
+    double from = Math.nextUp(since);
+    if (StringUtils.stringToDouble(inParams.get("st"), -Double.MAX_VALUE) < from) {
+      inParams.put("st", Double.toString(from));
+    }
+    inParams.remove("stream");
+    return true;
+  }
+
+  /**
+   * Check whether a result holds rows. Data sources answer a time series without rows with a
+   * single row of NaN, which holds none.
+   *
+   * @param result result of the request, may be null
+   * @return false if there is no result or it is a time series without rows
+   */
+  protected boolean hasRows(RequestResult result) {
+    if (result == null) {
+      return false;
+    }
+    if (result instanceof BinaryResult
+        && ((BinaryResult) result).getData() instanceof GenericDataMatrix) {
+      GenericDataMatrix gdm = (GenericDataMatrix) ((BinaryResult) result).getData();
+      return gdm.rows() > 0 && !Double.isNaN(gdm.getEndTime());
+    }
+    return true;
+  }
+
+  /**
+   * Get the cursor to return with the result of a request with a since cursor: the time of the
+   * last row, or the old cursor if there are no rows.
+   *
+   * @param result result of the request, may be null
+   * @return new cursor, or null if the result is not a time series
+   */
+  protected String getCursor(RequestResult result) {
+    if (result instanceof BinaryResult
+        && ((BinaryResult) result).getData() instanceof GenericDataMatrix) {
+      GenericDataMatrix gdm = (GenericDataMatrix) ((BinaryResult) result).getData();
+      return hasRows(result) ? Double.toString(gdm.getEndTime()) : inParams.get("since");
+    }
+    return null;
+  }
+
+  /**
+   * Set the parameters a result shares with all requests that ask for it, and encode it.
+   *
+   * @param result result
+   * @param resultType type of result
+   */
+  private void prepareResult(RequestResult result, String resultType) {
+    result.set("type", resultType);
+    String cursor = inParams.get("since") == null ? null : getCursor(result);
+    if (cursor != null) {
+      result.set("cursor", cursor);
+    }
+    result.setCodecs(inParams.get("codecs"));
+    result.prepare();
+  }
+
+  /**
+   * Write result to channel.
+   *
+   * @param result result to write, may be null
+   * @param resultType type of result
+   * @param info params
+   * @param channel where to write to
+   * @param ct timer started when the command was received
+   */
+  protected void writeResult(RequestResult result, String resultType, String info,
+      SocketChannel channel, CodeTimer ct) {
     if (result != null) {
-      result.set("type", resultType);
-      result.prepare();
+      prepareResult(result, resultType);
+      if (inParams.get("id") != null) {
+        result.set("id", inParams.get("id"));
+      }
       result.writeHeader(netTools, channel);
       result.writeBody(netTools, channel);
       ct.stop();
@@ -89,7 +658,7 @@ public class GetDataCommand extends BaseCommand {
           String.format("%s (%1.2f ms): [%s]", inParams.get("source"), ct.getRunTimeMillis(), info),
           channel);
     } else {
-      netTools.writeString("error: no data\n", channel);
+      netTools.writeString(errorPrefix() + "no data\n", channel);
       handler.log(Level.DEBUG, "[getdata] returned nothing", channel);
     }
   }
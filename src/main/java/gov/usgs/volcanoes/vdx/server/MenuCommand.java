@@ -20,15 +20,17 @@ public class MenuCommand extends BaseCommand {
   /**
    * Constructor.
    *
-   * @param sh server handler
+   * @param sh server handler, or other context running the command
    * @param nt net tools
    */
-  public MenuCommand(ServerHandler sh, NetTools nt) {
+  public MenuCommand(CommandContext sh, NetTools nt) {
     super(sh, nt);
   }
 
   /**
-   * Perform command actions, write result to channel.
+   * Perform command actions, write result to channel. The menu comes from the catalog when the
+   * server has one; clients that send a version parameter get it with an ok header, or only the
+   * header if their version is current.
    *
    * @param info params
    * @param channel where to write to
@@ -36,13 +38,35 @@ public class MenuCommand extends BaseCommand {
   public void doCommand(Object info, SocketChannel channel) {
     handler.log(Level.DEBUG, "[menu]", channel);
     parseParams((String) info);
+    Catalog catalog = Catalog.getInstance();
+    if (catalog != null) {
+      String version = inParams == null ? null : inParams.get("version");
+      if (version == null) {
+        netTools.writeByteBuffer(catalog.getMenu().duplicate(), channel);
+      } else {
+        RequestResult result = catalog.getMenu(version);
+        result.writeHeader(netTools, channel);
+        result.writeBody(netTools, channel);
+      }
+      return;
+    }
+
     DataSourceHandler dsh = handler.getDataSourceHandler();
     List<DataSourceDescriptor> dsds = dsh.getDataSources();
     for (DataSourceDescriptor dsd : dsds) {
       DataSource ds = dsd.getDataSource();
+      if (ds == null) {
+        continue;
+      }
+      String type;
+      try {
+        type = ds.getType();
+      } finally {
+        dsd.putDataSource();
+      }
       netTools.writeString(
           "source=" + dsd.getClassName() + "; description=" + dsd.getDescription() + "; "
-              + "type=" + ds.getType() + ";", channel);
+              + "type=" + type + ";", channel);
 
       netTools.writeString("\n", channel);
     }
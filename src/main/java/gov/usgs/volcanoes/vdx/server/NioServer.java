@@ -0,0 +1,788 @@
+package gov.usgs.volcanoes.vdx.server;
+
+import gov.usgs.volcanoes.core.legacy.net.NetTools;
+import gov.usgs.volcanoes.core.util.StringUtils;
+import gov.usgs.volcanoes.vdx.data.DataSourceDescriptor;
+import gov.usgs.volcanoes.vdx.data.DataSourceHandler;
+import gov.usgs.volcanoes.vdx.db.QueryGuard;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Level;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking VDX server core. One selector thread accepts connections and reads commands, and
+ * each complete command runs on a bounded pool of worker threads, so a slow query only holds a
+ * worker rather than a handler with all the connections queued behind it.
+ *
+ * <p>While a command runs its connection is taken off the selector and switched to blocking mode,
+ * so results are written exactly as by the handler threads of the classic server. Commands that
+ * arrive meanwhile on the same connection wait and run in order afterwards.
+ *
+ * <p>A connection becomes multiplexed with its first getdata command that carries an id parameter.
+ * From then on it stays on the selector: its commands run concurrently, each response is built in
+ * memory and queued on the connection, and the selector thread writes whole responses in the order
+ * they complete. The id is echoed in the response header, or in the error line, so the client can
+ * match responses to requests. At most vdx.nio.connectionConcurrency commands of a multiplexed
+ * connection run at once; further commands stay unread until one of them is done.
+ *
+ * <p>getdata commands of one data source run at most [source].concurrency at a time, by default
+ * vdx.nio.sourceConcurrency. Commands beyond the limit wait without holding a worker, so one
+ * expensive source can't starve the others. Commands waiting for admission by
+ * {@link AdmissionControl} do hold their worker, which is why one connection may only run a few
+ * commands at once.
+ *
+ * @author Tom Parker
+ */
+public class NioServer implements CommandContext {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(NioServer.class);
+  private static final int BUFFER_SIZE = 8192;
+  private static final int MAX_COMMAND_LENGTH = 1024 * 1024;
+
+  private final VDX vdx;
+  private final int port;
+  private final int maxConnections;
+  private final int sourceConcurrency;
+  private final int connectionConcurrency;
+  private final ThreadPoolExecutor executor;
+  private final Queue<Connection> finished;
+  private final Queue<Connection> responded;
+  private final Map<String, Gate> gates;
+  private final AtomicInteger connections;
+  private final Map<SocketChannel, Connection> open;
+  private Selector selector;
+
+  /**
+   * Buffered input and, if multiplexed, queued responses of one client connection.
+   */
+  private static class Connection {
+    private final SocketChannel channel;
+    private final Queue<ByteBuffer> out;
+    private final AtomicInteger running = new AtomicInteger();
+    private ByteBuffer in;
+    private String command;
+    private volatile boolean multiplexed;
+
+    /**
+     * Constructor.
+     *
+     * @param channel client channel
+     */
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+      out = new ConcurrentLinkedQueue<ByteBuffer>();
+      in = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Make room for more input, doubling the buffer if it is full.
+     *
+     * @return false if the buffer is full and may not grow any more
+     */
+    boolean grow() {
+      if (in.hasRemaining()) {
+        return true;
+      }
+      if (in.capacity() >= MAX_COMMAND_LENGTH) {
+        return false;
+      }
+      ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+      in.flip();
+      bigger.put(in);
+      in = bigger;
+      return true;
+    }
+
+    /**
+     * Take the next complete command off the input.
+     *
+     * @return command without line end, or null if none is complete
+     */
+    String nextCommand() {
+      for (int i = 0; i < in.position(); i++) {
+        if (in.get(i) == '\n') {
+          String command = new String(in.array(), 0, i, StandardCharsets.UTF_8).trim();
+          int rest = in.position() - i - 1;
+          System.arraycopy(in.array(), i + 1, in.array(), 0, rest);
+          in.position(rest);
+          return command;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Running and waiting commands of one data source.
+   */
+  private static class Gate {
+    private int limit;
+    private final Queue<Runnable> waiting;
+    private int running;
+
+    /**
+     * Constructor.
+     *
+     * @param limit maximum number of commands running at once
+     */
+    Gate(int limit) {
+      this.limit = limit;
+      waiting = new LinkedList<Runnable>();
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param vdx server whose data sources and log are used
+   * @param port port to listen on
+   * @param threads number of worker threads
+   * @param sourceConcurrency default limit of commands running at once per data source
+   * @param connectionConcurrency limit of commands running at once per multiplexed connection
+   * @param maxConnections maximum number of open connections, 0 for no limit
+   */
+  public NioServer(VDX vdx, int port, int threads, int sourceConcurrency,
+      int connectionConcurrency, int maxConnections) {
+    this.vdx = vdx;
+    this.port = port;
+    this.sourceConcurrency = sourceConcurrency;
+    this.connectionConcurrency = connectionConcurrency;
+    this.maxConnections = maxConnections;
+    finished = new ConcurrentLinkedQueue<Connection>();
+    responded = new ConcurrentLinkedQueue<Connection>();
+    gates = new HashMap<String, Gate>();
+    connections = new AtomicInteger();
+    open = new ConcurrentHashMap<SocketChannel, Connection>();
+
+    final AtomicInteger count = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "VDX/Worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Yield data source handler.
+   *
+   * @return data source handler shared by the server
+   */
+  public DataSourceHandler getDataSourceHandler() {
+    return vdx.getDataSourceHandler();
+  }
+
+  /**
+   * Write log message.
+   *
+   * @param level level of message
+   * @param msg message text
+   * @param channel channel the message is about
+   */
+  public void log(Level level, String msg, SocketChannel channel) {
+    vdx.log(level, msg, channel);
+  }
+
+  /**
+   * Get a check whether the client of a channel has gone away. Connections closed by a multiplexed
+   * client are noticed by the selector. A connection running a command is off the selector, so it
+   * is read without blocking, keeping anything the client sent for its next command.
+   *
+   * @param channel client channel
+   * @return client check, or null for unknown channels
+   */
+  public QueryGuard.Probe getProbe(SocketChannel channel) {
+    final Connection conn = open.get(channel);
+    if (conn == null) {
+      return null;
+    }
+    return new QueryGuard.Probe() {
+      public boolean isGone() {
+        if (!conn.channel.isOpen()) {
+          return true;
+        }
+        if (conn.multiplexed) {
+          return false;
+        }
+        synchronized (conn) {
+          try {
+            conn.channel.configureBlocking(false);
+            try {
+              return conn.grow() && conn.channel.read(conn.in) == -1;
+            } finally {
+              conn.channel.configureBlocking(true);
+            }
+          } catch (IOException e) {
+            return true;
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Wait for a slot of a data source, queued with the commands waiting for it. Unknown sources
+   * take no slot; the command answers with an error.
+   *
+   * @param source data source name
+   * @throws InterruptedException if interrupted while waiting; no slot is taken then
+   */
+  public void enterSource(String source) throws InterruptedException {
+    final Gate gate = getGate(source);
+    if (gate == null) {
+      return;
+    }
+    final CountDownLatch admitted = new CountDownLatch(1);
+    Runnable wake = new Runnable() {
+      public void run() {
+        admitted.countDown();
+      }
+    };
+    synchronized (gate) {
+      if (gate.running < gate.limit) {
+        gate.running++;
+        return;
+      }
+      gate.waiting.add(wake);
+    }
+    try {
+      admitted.await();
+    } catch (InterruptedException e) {
+      boolean queued;
+      synchronized (gate) {
+        queued = gate.waiting.remove(wake);
+      }
+
+      // the slot was handed over already, pass it on
+      if (!queued) {
+        leave(gate);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Give back a slot of a data source.
+   *
+   * @param source data source name
+   */
+  public void leaveSource(String source) {
+    Gate gate;
+    synchronized (gates) {
+      gate = gates.get(source);
+    }
+    if (gate != null) {
+      leave(gate);
+    }
+  }
+
+  /**
+   * Accept connections and read commands until the thread is interrupted.
+   *
+   * @throws IOException if the server socket can't be opened
+   */
+  public void run() throws IOException {
+    selector = Selector.open();
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.socket().setReuseAddress(true);
+    server.socket().bind(new InetSocketAddress(port));
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+    LOGGER.info("listening on port {} (non-blocking, {} workers)", port,
+        executor.getMaximumPoolSize());
+
+    List<Connection> ready = new ArrayList<Connection>();
+    while (!Thread.currentThread().isInterrupted()) {
+      selector.select();
+
+      // connections whose command has finished go back on the selector
+      Connection done;
+      while ((done = finished.poll()) != null) {
+        try {
+          done.channel.configureBlocking(false);
+          takeCommands(done, done.channel.register(selector, SelectionKey.OP_READ, done), ready);
+        } catch (IOException e) {
+          close(done);
+        }
+      }
+
+      // multiplexed connections with responses to write or room for more commands
+      while ((done = responded.poll()) != null) {
+        SelectionKey key = done.channel.keyFor(selector);
+        if (key != null && key.isValid()) {
+          key.interestOps(readOps(done) | SelectionKey.OP_WRITE);
+          takeCommands(done, key, ready);
+        }
+      }
+
+      Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+      while (it.hasNext()) {
+        SelectionKey key = it.next();
+        it.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        if (key.isAcceptable()) {
+          accept(server);
+          continue;
+        }
+        Connection conn = (Connection) key.attachment();
+        if (key.isWritable()) {
+          write(conn, key);
+        }
+        if (key.isValid() && key.isReadable() && read(conn)) {
+          takeCommands(conn, key, ready);
+        }
+      }
+
+      // cancelled keys are only dropped by the next select, which must happen before the
+      // channels can be made blocking. Keys it finds ready are still ready at the next select.
+      if (!ready.isEmpty()) {
+        selector.selectNow();
+        selector.selectedKeys().clear();
+        for (Connection conn : ready) {
+          dispatch(conn);
+        }
+        ready.clear();
+      }
+    }
+    executor.shutdownNow();
+    server.close();
+    selector.close();
+  }
+
+  /**
+   * Accept a pending connection.
+   *
+   * @param server server channel
+   */
+  private void accept(ServerSocketChannel server) {
+    try {
+      SocketChannel channel = server.accept();
+      if (channel == null) {
+        return;
+      }
+      if (maxConnections > 0 && connections.get() >= maxConnections) {
+        LOGGER.warn("connection limit {} reached, dropping {}", maxConnections,
+            channel.socket().getRemoteSocketAddress());
+        channel.close();
+        return;
+      }
+      connections.incrementAndGet();
+      channel.configureBlocking(false);
+      Connection conn = new Connection(channel);
+      open.put(channel, conn);
+      channel.register(selector, SelectionKey.OP_READ, conn);
+      vdx.log(Level.DEBUG, "connection opened", channel);
+    } catch (IOException e) {
+      LOGGER.warn("NioServer.accept() failed.", e);
+    }
+  }
+
+  /**
+   * Read what is available from a connection.
+   *
+   * @param conn connection
+   * @return false if the connection was closed
+   */
+  private boolean read(Connection conn) {
+    try {
+      if (!conn.grow()) {
+        LOGGER.warn("command too long, closing connection");
+        close(conn);
+        return false;
+      }
+      if (conn.channel.read(conn.in) == -1) {
+        close(conn);
+        return false;
+      }
+    } catch (IOException e) {
+      close(conn);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Start the complete commands read from a connection. Commands of a multiplexed connection start
+   * right away, as long as the connection is below its limit, after which the connection isn't read
+   * until one of them is done; otherwise the first command takes the connection off the selector
+   * and the rest wait until it is done.
+   *
+   * @param conn connection
+   * @param key selection key of the connection
+   * @param ready connections to dispatch once their keys are dropped
+   */
+  private void takeCommands(Connection conn, SelectionKey key, List<Connection> ready) {
+    String command;
+    while (true) {
+      if (readOps(conn) == 0) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        return;
+      }
+      command = conn.nextCommand();
+      if (command == null) {
+        return;
+      }
+      Map<String, String> params = parseGetData(command);
+      if (!conn.multiplexed && params != null && params.get("id") != null) {
+        conn.multiplexed = true;
+      }
+      if (conn.multiplexed) {
+        conn.running.incrementAndGet();
+        dispatchBuffered(conn, command, params);
+      } else {
+        conn.command = command;
+        key.cancel();
+        ready.add(conn);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Get whether to read a connection: not while a multiplexed connection runs as many commands as
+   * it may.
+   *
+   * @param conn connection
+   * @return OP_READ, or 0 not to read
+   */
+  private int readOps(Connection conn) {
+    if (conn.multiplexed && conn.running.get() >= connectionConcurrency) {
+      return 0;
+    }
+    return SelectionKey.OP_READ;
+  }
+
+  /**
+   * Write queued responses of a multiplexed connection, as far as the channel takes them.
+   *
+   * @param conn connection
+   * @param key selection key of the connection
+   */
+  private void write(Connection conn, SelectionKey key) {
+    try {
+      ByteBuffer bb;
+      while ((bb = conn.out.peek()) != null) {
+        conn.channel.write(bb);
+        if (bb.hasRemaining()) {
+          return;
+        }
+        conn.out.poll();
+      }
+      key.interestOps(readOps(conn));
+
+      // a response may have been queued after the queue was found empty
+      if (!conn.out.isEmpty()) {
+        key.interestOps(readOps(conn) | SelectionKey.OP_WRITE);
+      }
+    } catch (IOException e) {
+      key.cancel();
+      close(conn);
+    }
+  }
+
+  /**
+   * Parse the parameters of a getdata command.
+   *
+   * @param command full command line
+   * @return parameters, or null if this is not a getdata command
+   */
+  private static Map<String, String> parseGetData(String command) {
+    int ci = command.indexOf(':');
+    if (ci == -1 || !command.substring(0, ci).trim().equals("getdata")) {
+      return null;
+    }
+    return StringUtils.stringToMap(command.substring(ci + 1));
+  }
+
+  /**
+   * Get the data source whose slot a command waits for. A batch waits for none itself; each of its
+   * requests waits for a slot of its own source.
+   *
+   * @param params getdata parameters, or null for other commands
+   * @return data source name, or null if the command isn't limited per source
+   */
+  private static String gateSource(Map<String, String> params) {
+    if (params == null || params.get("batch") != null) {
+      return null;
+    }
+    return params.get("source");
+  }
+
+  /**
+   * Run a command of a multiplexed connection, collecting its response and queuing it for the
+   * selector thread to write.
+   *
+   * @param conn connection
+   * @param command full command line
+   * @param params getdata parameters, or null for other commands
+   */
+  private void dispatchBuffered(final Connection conn, final String command,
+      Map<String, String> params) {
+    int ci = command.indexOf(':');
+    final String name = (ci == -1 ? command : command.substring(0, ci)).trim();
+    execute(gateSource(params), new Runnable() {
+      public void run() {
+        BufferingNetTools netTools = new BufferingNetTools();
+        try {
+          runCommand(name, command, conn.channel, netTools);
+        } catch (Exception e) {
+          LOGGER.error("NioServer.dispatchBuffered() failed. ({})", command, e);
+        }
+        ByteBuffer response = netTools.toByteBuffer();
+        if (response.hasRemaining() && conn.channel.isOpen()) {
+          conn.out.add(response);
+        }
+
+        // the selector writes the response and takes the commands held back meanwhile
+        conn.running.decrementAndGet();
+        if (conn.channel.isOpen()) {
+          responded.add(conn);
+          selector.wakeup();
+        }
+      }
+    });
+  }
+
+  /**
+   * Run the pending command of a connection, whose key has been dropped from the selector.
+   *
+   * @param conn connection
+   */
+  private void dispatch(final Connection conn) {
+    final String command = conn.command;
+    conn.command = null;
+    try {
+      conn.channel.configureBlocking(true);
+    } catch (IOException e) {
+      close(conn);
+      return;
+    }
+
+    int ci = command.indexOf(':');
+    final String name = (ci == -1 ? command : command.substring(0, ci)).trim();
+    Map<String, String> params = parseGetData(command);
+
+    execute(gateSource(params), new Runnable() {
+      public void run() {
+        try {
+          runCommand(name, command, conn.channel, new NetTools());
+        } catch (Exception e) {
+          LOGGER.error("NioServer.dispatch() failed. ({})", command, e);
+        } finally {
+          if (conn.channel.isOpen()) {
+            finished.add(conn);
+            selector.wakeup();
+          } else {
+            open.remove(conn.channel);
+            connections.decrementAndGet();
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Run one command on the current thread.
+   *
+   * @param name command name
+   * @param command full command line
+   * @param channel channel to write the result to
+   * @param netTools net tools that write to the channel
+   */
+  private void runCommand(String name, String command, SocketChannel channel,
+      NetTools netTools) {
+    if (name.equals("getdata")) {
+      new GetDataCommand(this, netTools).doCommand(command, channel);
+    } else if (name.equals("subscribe")) {
+      new SubscribeCommand(this, netTools).doCommand(command, channel);
+    } else if (name.equals("notify")) {
+      new NotifyCommand(this, netTools).doCommand(command, channel);
+    } else if (name.equals("menu")) {
+      new MenuCommand(this, netTools).doCommand(command, channel);
+    } else if (name.equals("version")) {
+      netTools.writeString("version=1.0.0\n", channel);
+      vdx.log(Level.DEBUG, "version", channel);
+    } else {
+      vdx.log(Level.DEBUG, "unknown command: " + name, channel);
+    }
+  }
+
+  /**
+   * Run a task on the worker pool, waiting for a free slot of its data source first.
+   *
+   * @param source data source name, null for commands not limited per source
+   * @param task task
+   */
+  private void execute(String source, final Runnable task) {
+    final Gate gate = source == null ? null : getGate(source);
+    if (gate == null) {
+      executor.execute(task);
+      return;
+    }
+    Runnable gated = new Runnable() {
+      public void run() {
+        try {
+          task.run();
+        } finally {
+          leave(gate);
+        }
+      }
+    };
+    synchronized (gate) {
+      if (gate.running >= gate.limit) {
+        gate.waiting.add(gated);
+        return;
+      }
+      gate.running++;
+    }
+    executor.execute(gated);
+  }
+
+  /**
+   * Give back a slot of a gate. The slot passes to the next waiting command, unless the limit was
+   * lowered.
+   *
+   * @param gate gate
+   */
+  private void leave(Gate gate) {
+    Runnable next = null;
+    synchronized (gate) {
+      if (gate.running <= gate.limit) {
+        next = gate.waiting.poll();
+      }
+      if (next == null) {
+        gate.running--;
+      }
+    }
+    if (next != null) {
+      executor.execute(next);
+    }
+  }
+
+  /**
+   * Get the gate of a data source, creating it on first use. Gates are only made for configured
+   * data sources, so names sent by clients can't grow the map.
+   *
+   * @param source data source name
+   * @return gate, or null if the data source isn't configured
+   */
+  private Gate getGate(String source) {
+    synchronized (gates) {
+      Gate gate = gates.get(source);
+      if (gate == null) {
+        if (vdx.getDataSourceHandler().getDataSourceDescriptor(source) == null) {
+          return null;
+        }
+        gate = new Gate(getLimit(source));
+        gates.put(source, gate);
+      }
+      return gate;
+    }
+  }
+
+  /**
+   * Get the configured limit of commands running at once for a data source.
+   *
+   * @param source data source name
+   * @return limit, at least 1
+   */
+  private int getLimit(String source) {
+    int limit = sourceConcurrency;
+    DataSourceDescriptor dsd = vdx.getDataSourceHandler().getDataSourceDescriptor(source);
+    if (dsd != null && dsd.getParams() != null) {
+      limit = StringUtils.stringToInt(dsd.getParams().getString("concurrency"), limit);
+    }
+    return Math.max(1, limit);
+  }
+
+  /**
+   * Read the per source limits again, e.g. after data sources were reloaded. Running and waiting
+   * commands are kept and counted against the new limits; waiting commands start at once if a
+   * limit was raised.
+   */
+  public void resetLimits() {
+    synchronized (gates) {
+      for (Map.Entry<String, Gate> entry : gates.entrySet()) {
+        Gate gate = entry.getValue();
+        int limit = getLimit(entry.getKey());
+        synchronized (gate) {
+          gate.limit = limit;
+          while (gate.running < gate.limit && !gate.waiting.isEmpty()) {
+            gate.running++;
+            executor.execute(gate.waiting.poll());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Close a connection.
+   *
+   * @param conn connection
+   */
+  private void close(Connection conn) {
+    try {
+      vdx.log(Level.DEBUG, "connection closed", conn.channel);
+      open.remove(conn.channel);
+      conn.channel.close();
+    } catch (IOException e) {
+      LOGGER.debug("NioServer.close() failed.", e);
+    }
+    connections.decrementAndGet();
+  }
+
+  /**
+   * Describe connections, workers and waiting commands.
+   *
+   * @return statistics
+   */
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(connections.get()).append(" connections, ").append(executor.getActiveCount())
+        .append(" of ").append(executor.getMaximumPoolSize()).append(" workers busy, ")
+        .append(executor.getQueue().size()).append(" commands queued");
+    synchronized (gates) {
+      for (Map.Entry<String, Gate> entry : gates.entrySet()) {
+        Gate gate = entry.getValue();
+        synchronized (gate) {
+          if (gate.running > 0 || !gate.waiting.isEmpty()) {
+            sb.append(", ").append(entry.getKey()).append(": ").append(gate.running)
+                .append(" running, ").append(gate.waiting.size()).append(" waiting");
+          }
+        }
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,83 @@
+package gov.usgs.volcanoes.vdx.server;
+
+import gov.usgs.volcanoes.core.legacy.net.NetTools;
+import gov.usgs.volcanoes.core.util.StringUtils;
+import gov.usgs.volcanoes.vdx.data.ChangeNotifier;
+import gov.usgs.volcanoes.vdx.data.ResultCache;
+
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.log4j.Level;
+
+/**
+ * Command sent by importers in other processes after writing data, see
+ * {@link ChangeNotifier#forward(String, String, String, double, double)}. Drops cached tiles
+ * covering the rows written and wakes subscribers of the data source. Nothing is written back.
+ * Only trusted peers, the local host and those set by {@link #setTrusted(Set)}, may notify;
+ * others are ignored.
+ *
+ * @author Tom Parker
+ */
+public class NotifyCommand extends BaseCommand {
+
+  private static volatile Set<InetAddress> trusted = new HashSet<InetAddress>();
+
+  /**
+   * Constructor.
+   *
+   * @param sh server handler, or other context running the command
+   * @param nt net tools
+   */
+  public NotifyCommand(CommandContext sh, NetTools nt) {
+    super(sh, nt);
+  }
+
+  /**
+   * Set the peers besides the local host that may notify.
+   *
+   * @param peers trusted addresses
+   */
+  public static void setTrusted(Set<InetAddress> peers) {
+    trusted = new HashSet<InetAddress>(peers);
+  }
+
+  /**
+   * Check whether the peer of a channel may notify.
+   *
+   * @param channel channel the command came from
+   * @return true for the local host and trusted peers
+   */
+  private static boolean isTrusted(SocketChannel channel) {
+    InetAddress peer = channel == null ? null : channel.socket().getInetAddress();
+    return peer != null && (peer.isLoopbackAddress() || trusted.contains(peer));
+  }
+
+  /**
+   * Announce the insert.
+   *
+   * @param info params
+   * @param channel channel the command came from
+   */
+  public void doCommand(Object info, SocketChannel channel) {
+    if (!isTrusted(channel)) {
+      handler.log(Level.WARN, "[notify] refused from untrusted peer", channel);
+      return;
+    }
+    parseParams((String) info);
+    String key = inParams == null ? null : inParams.get("key");
+    if (key == null) {
+      return;
+    }
+    String ch = inParams.get("ch");
+    double st = StringUtils.stringToDouble(inParams.get("st"), Double.NaN);
+    double et = StringUtils.stringToDouble(inParams.get("et"), Double.NaN);
+    if (ch != null && st <= et) {
+      ResultCache.getInstance().invalidate(key + "|" + ch, st, et);
+    }
+    ChangeNotifier.getInstance().publish(key);
+    handler.log(Level.DEBUG, String.format("[notify] %s|%s", key, ch), channel);
+  }
+}
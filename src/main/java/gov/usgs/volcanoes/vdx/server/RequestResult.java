@@ -16,6 +16,7 @@ public abstract class RequestResult {
 
   protected boolean error;
   protected Map<String, String> parameters;
+  protected String codecs;
 
   /**
    * Constructor.
@@ -44,6 +45,15 @@ public abstract class RequestResult {
     parameters.put(k, v);
   }
 
+  /**
+   * Set compression codecs accepted by the client.
+   *
+   * @param codecs comma separated codecs, most preferred first, or null if the client did not say
+   */
+  public void setCodecs(String codecs) {
+    this.codecs = codecs;
+  }
+
   /**
    * Set error.
    *
@@ -3,6 +3,7 @@ package gov.usgs.volcanoes.vdx.server;
 import gov.usgs.volcanoes.core.legacy.net.CommandHandler;
 import gov.usgs.volcanoes.core.legacy.net.NetTools;
 import gov.usgs.volcanoes.vdx.data.DataSourceHandler;
+import gov.usgs.volcanoes.vdx.db.QueryGuard;
 
 import java.nio.channels.SocketChannel;
 
@@ -15,7 +16,7 @@ import org.apache.log4j.Level;
  *
  * @author Dan Cervelli
  */
-public class ServerHandler extends CommandHandler {
+public class ServerHandler extends CommandHandler implements CommandContext {
 
   private static AtomicInteger instances = new AtomicInteger(0);
   private VDX vdx;
@@ -31,7 +32,7 @@ public class ServerHandler extends CommandHandler {
     super(s, "VDX/ServerHandler-" + instances.getAndIncrement());
     vdx = s;
     netTools = new NetTools();
-    dataSourceHandler = new DataSourceHandler(vdx.getDbDriver(), vdx.getDbUrl(), vdx.getPrefix());
+    dataSourceHandler = vdx.getDataSourceHandler();
     setupCommandHandlers();
   }
 
@@ -49,12 +50,42 @@ public class ServerHandler extends CommandHandler {
 
     addCommand("menu", new MenuCommand(this, netTools));
     addCommand("getdata", new GetDataCommand(this, netTools));
+    addCommand("subscribe", new SubscribeCommand(this, netTools));
+    addCommand("notify", new NotifyCommand(this, netTools));
+  }
+
+  /**
+   * Clients of the classic server can't be checked without taking input from the command handler,
+   * so their queries are only limited by the timeout.
+   *
+   * @param channel client channel
+   * @return null
+   */
+  public QueryGuard.Probe getProbe(SocketChannel channel) {
+    return null;
+  }
+
+  /**
+   * Wait for a slot of a data source. The classic server has no limits per source; its handler
+   * threads limit the number of commands running at once.
+   *
+   * @param source data source name
+   */
+  public void enterSource(String source) {
+  }
+
+  /**
+   * Give back a slot of a data source.
+   *
+   * @param source data source name
+   */
+  public void leaveSource(String source) {
   }
 
   /**
    * Yield data source handler.
    *
-   * @return data source handler computed from vdx parameters
+   * @return data source handler shared by all handlers of the server
    */
   public DataSourceHandler getDataSourceHandler() {
     return dataSourceHandler;
@@ -0,0 +1,64 @@
+package gov.usgs.volcanoes.vdx.server;
+
+import gov.usgs.volcanoes.core.legacy.net.NetTools;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+
+/**
+ * A prepared result whose body has already been encoded and compressed, so it can be written to
+ * any number of clients. Each client gets its own copy, with its own header parameters, sharing the
+ * body bytes.
+ *
+ * @author Tom Parker
+ */
+public class SharedResult extends RequestResult {
+
+  private final ByteBuffer body;
+
+  /**
+   * Constructor.
+   *
+   * @param error true if the result is an error
+   * @param parameters header parameters, copied
+   * @param body encoded body
+   */
+  private SharedResult(boolean error, Map<String, String> parameters, ByteBuffer body) {
+    super();
+    this.error = error;
+    this.parameters.putAll(parameters);
+    this.body = body;
+  }
+
+  /**
+   * Encode the body of a result.
+   *
+   * @param result prepared result, not streaming
+   * @return shareable result
+   */
+  public static SharedResult of(RequestResult result) {
+    BufferingNetTools nt = new BufferingNetTools();
+    result.writeBody(nt, null);
+    return new SharedResult(result.error, result.getParameters(), nt.toByteBuffer());
+  }
+
+  /**
+   * Get a copy for one client.
+   *
+   * @return copy with its own parameters
+   */
+  public SharedResult copy() {
+    return new SharedResult(error, parameters, body);
+  }
+
+  /**
+   * Write data.
+   *
+   * @param netTools tools to use for writing
+   * @param channel channel to write to
+   */
+  protected void writeBody(NetTools netTools, SocketChannel channel) {
+    netTools.writeByteBuffer(body.duplicate(), channel);
+  }
+}
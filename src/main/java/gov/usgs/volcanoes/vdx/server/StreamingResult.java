@@ -0,0 +1,211 @@
+package gov.usgs.volcanoes.vdx.server;
+
+import gov.usgs.volcanoes.core.legacy.net.NetTools;
+import gov.usgs.volcanoes.vdx.Compression;
+import gov.usgs.volcanoes.vdx.db.QueryGuard;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary result whose rows are read, encoded and compressed a chunk at a time while they are
+ * written, so memory use does not grow with the number of rows.
+ *
+ * <p>The body is a sequence of chunks. Each chunk is a 4-byte length followed by that many bytes
+ * of GenericDataMatrix binary, compressed with the codec named in the 'codec' parameter: row
+ * count, column count and the rows as doubles. A length of 0 ends the body. A length of -1 means
+ * reading the rows failed part way and everything received must be discarded. A length of -2
+ * means the request was refused part way, for instance because it exceeded the row limit or its
+ * time limit, and is followed by the 4-byte length of an error message and the message in UTF-8.
+ *
+ * @author Tom Parker
+ */
+public class StreamingResult extends RequestResult {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StreamingResult.class);
+  private static int chunkRows = 8192;
+
+  private RowSource source;
+  private Compression compression;
+  private boolean closed;
+
+  /**
+   * Thrown by a row source to refuse the rest of a request with a message for the client.
+   */
+  public static class RefusedException extends SQLException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     *
+     * @param message error message for the client
+     */
+    public RefusedException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Rows to be streamed.
+   */
+  public interface RowSource {
+
+    /**
+     * Getter for number of columns in each row.
+     *
+     * @return column count
+     */
+    int getColumns();
+
+    /**
+     * Read the next row.
+     *
+     * @return row, or null if there are no more rows
+     * @throws SQLException if reading fails
+     */
+    double[] next() throws SQLException;
+
+    /**
+     * Release whatever the rows are read from.
+     */
+    void close();
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param s rows to stream
+   */
+  public StreamingResult(RowSource s) {
+    super();
+    source = s;
+  }
+
+  /**
+   * Set number of rows encoded and compressed together.
+   *
+   * @param rows rows per chunk, at least 64
+   */
+  public static void setChunkRows(int rows) {
+    chunkRows = Math.max(64, rows);
+  }
+
+  /**
+   * Get result ready for writing.
+   */
+  public void prepare() {
+    compression = Compression.negotiate(codecs, Integer.MAX_VALUE, 0);
+    set("encoding", "chunked");
+    set("columns", Integer.toString(source.getColumns()));
+    set("codec", compression.toString());
+  }
+
+  /**
+   * Write data.
+   *
+   * @param netTools tools to use for writing
+   * @param channel channel to write to
+   */
+  protected void writeBody(NetTools netTools, SocketChannel channel) {
+    int columns = source.getColumns();
+    int rows = chunkRows;
+    ByteBuffer raw = ByteBuffer.allocate(8 + rows * columns * 8);
+    int total = 0;
+    try {
+      boolean more = true;
+      while (more) {
+        raw.clear();
+        raw.position(8);
+        int count = 0;
+        while (count < rows) {
+          double[] row = source.next();
+          if (row == null) {
+            more = false;
+            break;
+          }
+          for (int i = 0; i < columns; i++) {
+            raw.putDouble(row[i]);
+          }
+          count++;
+        }
+
+        // clients expect a single row of nulls when there is no data
+        if (total == 0 && count == 0) {
+          for (int i = 0; i < columns; i++) {
+            raw.putDouble(Double.NaN);
+          }
+          count = 1;
+        }
+        if (count == 0) {
+          break;
+        }
+        raw.putInt(0, count);
+        raw.putInt(4, columns);
+        total += count;
+
+        byte[] compressed = compression.compress(raw.array(), 0, raw.position());
+        writeLength(compressed.length, netTools, channel);
+        netTools.writeByteBuffer(ByteBuffer.wrap(compressed), channel);
+      }
+      writeLength(0, netTools, channel);
+    } catch (RefusedException e) {
+      LOGGER.info("StreamingResult.writeBody() refused after {} rows: {}", total,
+          e.getMessage());
+      writeMessage(e.getMessage(), netTools, channel);
+    } catch (SQLException e) {
+      QueryGuard guard = QueryGuard.current();
+      if (guard != null && guard.getState() == QueryGuard.TIMED_OUT) {
+        LOGGER.info("StreamingResult.writeBody() timed out after {} rows.", total);
+        writeMessage("timeout: query ran longer than its time limit", netTools, channel);
+      } else {
+        LOGGER.error("StreamingResult.writeBody() failed after {} rows.", total, e);
+        writeLength(-1, netTools, channel);
+      }
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Abort the body with an error message for the client.
+   *
+   * @param text error message
+   * @param netTools tools to use for writing
+   * @param channel channel to write to
+   */
+  private void writeMessage(String text, NetTools netTools, SocketChannel channel) {
+    byte[] message = text.getBytes(StandardCharsets.UTF_8);
+    writeLength(-2, netTools, channel);
+    writeLength(message.length, netTools, channel);
+    netTools.writeByteBuffer(ByteBuffer.wrap(message), channel);
+  }
+
+  /**
+   * Write a bare chunk length.
+   *
+   * @param length length of the next chunk, 0 to end the body, -1 or -2 to abort it
+   * @param netTools tools to use for writing
+   * @param channel channel to write to
+   */
+  private void writeLength(int length, NetTools netTools, SocketChannel channel) {
+    ByteBuffer bb = ByteBuffer.allocate(4);
+    bb.putInt(length);
+    bb.flip();
+    netTools.writeByteBuffer(bb, channel);
+  }
+
+  /**
+   * Release the row source. Safe to call more than once.
+   */
+  public void close() {
+    if (!closed) {
+      closed = true;
+      source.close();
+    }
+  }
+}
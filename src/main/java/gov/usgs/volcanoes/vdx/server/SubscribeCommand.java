@@ -0,0 +1,142 @@
+package gov.usgs.volcanoes.vdx.server;
+
+import gov.usgs.volcanoes.core.CodeTimer;
+import gov.usgs.volcanoes.core.legacy.net.NetTools;
+import gov.usgs.volcanoes.core.util.StringUtils;
+import gov.usgs.volcanoes.vdx.data.ChangeNotifier;
+import gov.usgs.volcanoes.vdx.data.DataSource;
+import gov.usgs.volcanoes.vdx.data.DataSourceDescriptor;
+import gov.usgs.volcanoes.vdx.data.SQLDataSource;
+
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-poll command for live plots. Takes the parameters of a getdata command with a since cursor
+ * and answers like getdata as soon as there are rows after the cursor, or with no rows once the
+ * timeout parameter (seconds, default 30, at most 300) has passed. The data source is only queried
+ * again after the {@link ChangeNotifier} has announced an insert, so waiting costs no queries.
+ *
+ * <p>A waiting subscriber holds the thread running it, so only a limited number wait at once.
+ * Beyond that, subscribers without new rows get a busy error and poll again later.
+ *
+ * @author Tom Parker
+ */
+public class SubscribeCommand extends GetDataCommand {
+
+  private static final int DEFAULT_TIMEOUT = 30;
+  private static final int MAX_TIMEOUT = 300;
+  private static final int BUSY_RETRY = 5;
+  private static final AtomicInteger waiting = new AtomicInteger();
+  private static int maxWaiting = 2;
+
+  /**
+   * Constructor.
+   *
+   * @param sh server handler, or other context running the command
+   * @param nt net tools
+   */
+  public SubscribeCommand(CommandContext sh, NetTools nt) {
+    super(sh, nt);
+  }
+
+  /**
+   * Set the number of subscribers that may wait for new rows at once.
+   *
+   * @param max number of waiting subscribers
+   */
+  public static void setMaxWaiting(int max) {
+    maxWaiting = max;
+  }
+
+  /**
+   * Take a slot for waiting subscribers.
+   *
+   * @return false if all slots are taken
+   */
+  private static boolean startWaiting() {
+    while (true) {
+      int n = waiting.get();
+      if (n >= maxWaiting) {
+        return false;
+      }
+      if (waiting.compareAndSet(n, n + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Wait for new rows, write result to channel.
+   *
+   * @param info params
+   * @param channel where to write to
+   */
+  public void doCommand(Object info, SocketChannel channel) {
+    CodeTimer ct = new CodeTimer("send");
+    parseParams((String) info);
+    String source = inParams.get("source");
+    if (source == null) {
+      sendError("source not specified", "subscribe", channel);
+      return;
+    }
+    if (inParams.get("since") == null) {
+      sendError("since not specified", "subscribe", channel);
+      return;
+    }
+    if (!applySince(channel)) {
+      return;
+    }
+    DataSourceDescriptor dsd = handler.getDataSourceHandler().getDataSourceDescriptor(source);
+    if (dsd == null) {
+      sendError("unknown source", "subscribe", channel);
+      return;
+    }
+    DataSource ds = dsd.getDataSource();
+    if (ds == null) {
+      sendError("source unavailable", "subscribe", channel);
+      return;
+    }
+
+    int timeout = Math.min(MAX_TIMEOUT,
+        StringUtils.stringToInt(inParams.get("timeout"), DEFAULT_TIMEOUT));
+    long deadline = System.currentTimeMillis() + timeout * 1000L;
+    String key = ds instanceof SQLDataSource ? ((SQLDataSource) ds).getChangeKey() : null;
+    ChangeNotifier notifier = ChangeNotifier.getInstance();
+    boolean slot = false;
+    try {
+      RequestResult result;
+      while (true) {
+
+        // read the version first, so an insert during the query is not missed
+        final long version = key == null ? 0 : notifier.getVersion(key);
+        result = ds.getData(inParams);
+        long remaining = deadline - System.currentTimeMillis();
+        if (key == null || hasRows(result) || remaining <= 0) {
+          break;
+        }
+        ((SQLDataSource) ds).releaseConnection();
+        if (!slot) {
+          slot = startWaiting();
+          if (!slot) {
+            sendError("busy: retry-after=" + BUSY_RETRY + "; too many subscribers", "subscribe",
+                channel);
+            return;
+          }
+        }
+        if (!notifier.await(key, version, remaining)) {
+          break;
+        }
+      }
+      writeResult(result, ds.getType(), (String) info, channel, ct);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      sendError("interrupted", "subscribe", channel);
+    } finally {
+      if (slot) {
+        waiting.decrementAndGet();
+      }
+      dsd.putDataSource();
+    }
+  }
+}
@@ -5,13 +5,23 @@ import gov.usgs.volcanoes.core.configfile.ConfigFile;
 import gov.usgs.volcanoes.core.legacy.net.Server;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.vdx.Version;
+import gov.usgs.volcanoes.vdx.data.DataSourceHandler;
+import gov.usgs.volcanoes.vdx.data.ResultCache;
+import gov.usgs.volcanoes.vdx.db.ConnectionPool;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Level;
 import org.slf4j.Logger;
@@ -25,11 +35,22 @@ import org.slf4j.LoggerFactory;
 public class VDX extends Server {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(VDX.class);
+  private static volatile VDX running;
   protected String configFilename = "VDX.config";
   protected int numHandlers;
+  protected int healthCheckInterval;
+  protected boolean nio;
+  protected int nioThreads;
+  protected int sourceConcurrency;
+  protected int connectionConcurrency;
   private String driver;
   private String url;
   private String prefix;
+  private DataSourceHandler dataSourceHandler;
+  private ScheduledExecutorService healthChecker;
+  private NioServer nioServer;
+  private Catalog catalog;
+  private int catalogInterval;
 
   /**
    * Constructor.
@@ -46,12 +67,108 @@ public class VDX extends Server {
       configFilename = cf;
     }
     processConfigFile();
+    dataSourceHandler = new DataSourceHandler(driver, url, prefix);
 
-    for (int i = 0; i < numHandlers; i++) {
-      this.addCommandHandler(new ServerHandler(this));
+    if (!nio) {
+      for (int i = 0; i < numHandlers; i++) {
+        this.addCommandHandler(new ServerHandler(this));
+      }
+    }
+
+    startHealthCheck();
+    catalog = new Catalog(dataSourceHandler);
+    Catalog.setInstance(catalog);
+    catalog.start(catalogInterval);
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      public void run() {
+        shutdownDataSources();
+      }
+    }, "VDX/shutdown"));
+
+    running = this;
+    if (nio) {
+      nioServer = new NioServer(this, serverPort, nioThreads, sourceConcurrency,
+          connectionConcurrency, connections.getMaxConnections());
+      try {
+        nioServer.run();
+      } catch (IOException e) {
+        LOGGER.error("VDX.nioServer() failed.", e);
+        fatalError("could not listen on port " + serverPort);
+      }
+    } else {
+      startListening();
+    }
+  }
+
+  /**
+   * Start background thread periodically checking connections of idle data sources.
+   */
+  private void startHealthCheck() {
+    if (healthCheckInterval <= 0) {
+      return;
+    }
+    healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "VDX/HealthCheck");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    healthChecker.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          dataSourceHandler.checkHealth();
+          for (ConnectionPool pool : ConnectionPool.getPools()) {
+            LOGGER.debug("connection pool: {}", pool);
+          }
+          LOGGER.debug("result cache: {}", ResultCache.getInstance());
+        } catch (Exception e) {
+          LOGGER.error("VDX.healthCheck() failed.", e);
+        }
+      }
+    }, healthCheckInterval, healthCheckInterval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Log connection pool and result cache statistics.
+   */
+  public static void logStatistics() {
+    for (ConnectionPool pool : ConnectionPool.getPools()) {
+      LOGGER.info("connection pool: {}", pool);
+    }
+    LOGGER.info("result cache: {}", ResultCache.getInstance());
+    LOGGER.info("getdata: {}", GetDataCommand.getStatistics());
+    LOGGER.info("admission: {}", AdmissionControl.getInstance());
+    LOGGER.info("catalog: {}", Catalog.getInstance());
+    if (running != null && running.nioServer != null) {
+      LOGGER.info("server: {}", running.nioServer);
     }
+  }
 
-    startListening();
+  /**
+   * Re-read data source configuration.
+   */
+  public void reloadDataSources() {
+    LOGGER.info("reloading data sources");
+    dataSourceHandler.reload();
+    if (nioServer != null) {
+      nioServer.resetLimits();
+    }
+    catalog.refresh();
+  }
+
+  /**
+   * Disconnect all data sources.
+   */
+  public void shutdownDataSources() {
+    if (healthChecker != null) {
+      healthChecker.shutdownNow();
+    }
+    if (catalog != null) {
+      catalog.stop();
+    }
+    dataSourceHandler.shutdown();
+    ConnectionPool.closeAll();
   }
 
   /**
@@ -88,12 +205,32 @@ public class VDX extends Server {
     serverPort = p;
     LOGGER.info("config: vdx.port={}", serverPort);
 
-    int h = StringUtils.stringToInt(cf.getString("vdx.handlers"), -1);
-    if (h < 1 || h > 128) {
-      fatalError(configFilename + ": bad or missing 'vdx.handlers' setting.");
+    String mode = cf.getString("vdx.server");
+    nio = mode != null && mode.equalsIgnoreCase("nio");
+    if (mode != null && !nio && !mode.equalsIgnoreCase("handlers")) {
+      fatalError(configFilename + ": bad 'vdx.server' setting.");
+    }
+    LOGGER.info("config: vdx.server={}", nio ? "nio" : "handlers");
+
+    if (nio) {
+      nioThreads = StringUtils.stringToInt(cf.getString("vdx.nio.threads"), 64);
+      sourceConcurrency = StringUtils.stringToInt(cf.getString("vdx.nio.sourceConcurrency"), 8);
+      connectionConcurrency =
+          StringUtils.stringToInt(cf.getString("vdx.nio.connectionConcurrency"), 4);
+      if (nioThreads < 1 || sourceConcurrency < 1 || connectionConcurrency < 1) {
+        fatalError(configFilename + ": bad 'vdx.nio' setting.");
+      }
+      LOGGER.info("config: vdx.nio.threads={}, vdx.nio.sourceConcurrency={}, "
+          + "vdx.nio.connectionConcurrency={}", nioThreads, sourceConcurrency,
+          connectionConcurrency);
+    } else {
+      int h = StringUtils.stringToInt(cf.getString("vdx.handlers"), -1);
+      if (h < 1 || h > 128) {
+        fatalError(configFilename + ": bad or missing 'vdx.handlers' setting.");
+      }
+      numHandlers = h;
+      LOGGER.info("config: vdx.handlers={}", numHandlers);
     }
-    numHandlers = h;
-    LOGGER.info("config: vdx.handlers={}", numHandlers);
 
     driver = cf.getString("vdx.driver");
     if (driver == null) {
@@ -129,6 +266,108 @@ public class VDX extends Server {
 
     connections.setMaxConnections(m);
     LOGGER.info("config: vdx.maxConnections={}", connections.getMaxConnections());
+
+    healthCheckInterval = StringUtils.stringToInt(cf.getString("vdx.healthCheckInterval"), 60);
+    LOGGER.info("config: vdx.healthCheckInterval={}", healthCheckInterval);
+
+    catalogInterval = StringUtils.stringToInt(cf.getString("vdx.catalog.refreshInterval"), 300);
+    LOGGER.info("config: vdx.catalog.refreshInterval={}", catalogInterval);
+
+    int poolMin = StringUtils.stringToInt(cf.getString("vdx.pool.minSize"), 1);
+    int poolMax = StringUtils.stringToInt(cf.getString("vdx.pool.maxSize"), 20);
+    int poolIdle = StringUtils.stringToInt(cf.getString("vdx.pool.idleTimeout"), 300);
+    int poolWait = StringUtils.stringToInt(cf.getString("vdx.pool.borrowTimeout"), 10);
+    if (poolMax < 1 || poolMin < 0 || poolMin > poolMax) {
+      fatalError(configFilename + ": bad 'vdx.pool.minSize' or 'vdx.pool.maxSize' setting.");
+    }
+    ConnectionPool.setDefaults(poolMin, poolMax, poolIdle * 1000L, poolWait * 1000L);
+    LOGGER.info("config: vdx.pool.minSize={}, vdx.pool.maxSize={}", poolMin, poolMax);
+    LOGGER.info("config: vdx.pool.idleTimeout={}, vdx.pool.borrowTimeout={}", poolIdle,
+        poolWait);
+
+    int statementCache = StringUtils.stringToInt(cf.getString("vdx.pool.statementCacheSize"), 100);
+    ConnectionPool.setStatementCacheSize(statementCache);
+    LOGGER.info("config: vdx.pool.statementCacheSize={}", statementCache);
+
+    int cacheSize = StringUtils.stringToInt(cf.getString("vdx.resultCache.size"), 64);
+    int tileSize = StringUtils.stringToInt(cf.getString("vdx.resultCache.tileSize"), 3600);
+    int liveMargin = StringUtils.stringToInt(cf.getString("vdx.resultCache.liveMargin"), 600);
+    int cacheTtl = StringUtils.stringToInt(cf.getString("vdx.resultCache.ttl"), 900);
+    if (cacheSize < 0 || tileSize < 60 || liveMargin < 0 || cacheTtl < 0) {
+      fatalError(configFilename + ": bad 'vdx.resultCache' setting.");
+    }
+    ResultCache.getInstance().configure(cacheSize * 1024L * 1024L, tileSize, liveMargin,
+        cacheTtl);
+    LOGGER.info("config: vdx.resultCache.size={}, vdx.resultCache.tileSize={}, "
+        + "vdx.resultCache.liveMargin={}, vdx.resultCache.ttl={}", cacheSize, tileSize,
+        liveMargin, cacheTtl);
+
+    int chunkRows = StringUtils.stringToInt(cf.getString("vdx.stream.chunkRows"), 8192);
+    StreamingResult.setChunkRows(chunkRows);
+    LOGGER.info("config: vdx.stream.chunkRows={}", chunkRows);
+
+    int threshold = StringUtils.stringToInt(cf.getString("vdx.compression.threshold"), 1024);
+    BinaryResult.setCompressionThreshold(threshold);
+    LOGGER.info("config: vdx.compression.threshold={}", threshold);
+
+    boolean coalesce = StringUtils.stringToBoolean(cf.getString("vdx.coalesce"), true);
+    GetDataCommand.setCoalescing(coalesce);
+    LOGGER.info("config: vdx.coalesce={}", coalesce);
+
+    int queryTimeout = StringUtils.stringToInt(cf.getString("vdx.queryTimeout"), 0);
+    GetDataCommand.setQueryTimeout(queryTimeout);
+    LOGGER.info("config: vdx.queryTimeout={}", queryTimeout);
+
+    int batchThreads = StringUtils.stringToInt(cf.getString("vdx.batchThreads"), 16);
+    if (batchThreads < 1) {
+      fatalError(configFilename + ": bad 'vdx.batchThreads' setting.");
+    }
+    GetDataCommand.setBatchThreads(batchThreads);
+    LOGGER.info("config: vdx.batchThreads={}", batchThreads);
+
+    int maxSubscribers = StringUtils.stringToInt(cf.getString("vdx.subscribe.maxWaiting"),
+        nio ? Math.max(1, nioThreads / 4) : numHandlers / 2);
+    if (maxSubscribers < 0 || (!nio && maxSubscribers >= numHandlers)) {
+      fatalError(configFilename + ": bad 'vdx.subscribe.maxWaiting' setting.");
+    }
+    SubscribeCommand.setMaxWaiting(maxSubscribers);
+    LOGGER.info("config: vdx.subscribe.maxWaiting={}", maxSubscribers);
+
+    Set<InetAddress> trusted = new HashSet<InetAddress>();
+    String peers = cf.getString("vdx.notify.trusted");
+    if (peers != null) {
+      for (String peer : peers.split(",")) {
+        if (peer.trim().length() == 0) {
+          continue;
+        }
+        try {
+          trusted.addAll(Arrays.asList(InetAddress.getAllByName(peer.trim())));
+        } catch (UnknownHostException e) {
+          fatalError(configFilename + ": bad 'vdx.notify.trusted' setting.");
+        }
+      }
+    }
+    NotifyCommand.setTrusted(trusted);
+    LOGGER.info("config: vdx.notify.trusted={}", peers);
+
+    double budget = StringUtils.stringToDouble(cf.getString("vdx.admission.budget"), 0);
+    int maxWait = StringUtils.stringToInt(cf.getString("vdx.admission.maxWait"), 10);
+    int clientConcurrency =
+        StringUtils.stringToInt(cf.getString("vdx.admission.clientConcurrency"), 0);
+    double clientRate = StringUtils.stringToDouble(cf.getString("vdx.admission.clientRate"), 0);
+    AdmissionControl.setInstance(
+        new AdmissionControl(budget, maxWait, clientConcurrency, clientRate));
+    LOGGER.info("config: vdx.admission.budget={}, maxWait={}, clientConcurrency={}, "
+        + "clientRate={}", budget, maxWait, clientConcurrency, clientRate);
+  }
+
+  /**
+   * Yield data source handler shared by all server handlers.
+   *
+   * @return data source handler
+   */
+  public DataSourceHandler getDataSourceHandler() {
+    return dataSourceHandler;
   }
 
   /**
@@ -160,7 +399,7 @@ public class VDX extends Server {
 
   /**
    * Main method, starts new thread for VDX server which listen configured port, and expect 'q'
-   * symbol on stdin to exit.
+   * symbol on stdin to exit or 'r' to reload data sources.
    *
    * @param args command line args
    */
@@ -189,6 +428,10 @@ public class VDX extends Server {
         s = s.toLowerCase().trim();
         if (s.equals("q")) {
           acceptCommands = false;
+        } else if (s.equals("r") && running != null) {
+          running.reloadDataSources();
+        } else if (s.equals("s")) {
+          logStatistics();
         }
       }
     }